@@ -0,0 +1,372 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade for signing, verifying, MACing, encrypting and decrypting COSE messages, so
+ * callers on event loop threads never block on cryptographic operations.
+ *
+ * <p>Every operation returns a {@link CompletableFuture} right away and runs on a bounded
+ * executor. The futures complete exceptionally with the CborException or CoseException the
+ * synchronous API would have thrown, with a CoseException if the executor queue is full and with
+ * a {@link TimeoutException} if the deadline of the call passes first. Cancelling a future or
+ * letting its deadline pass before the operation started means the operation never runs.
+ *
+ * <p>Dependent stages attached without an executor run on the worker thread that completed the
+ * operation, use the async variants of CompletableFuture to move them elsewhere.
+ */
+public final class AsyncCose implements Closeable {
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  /** Queue name the number of pending operations is reported under to the metrics listener. */
+  public static final String PENDING_QUEUE = "async-pending";
+
+  /** An operation run on the executor. */
+  @FunctionalInterface
+  public interface CryptoTask<T> {
+    T call() throws CborException, CoseException;
+  }
+
+  /** Finds the key for a message, possibly asynchronously. */
+  @FunctionalInterface
+  public interface KeyResolver {
+    /**
+     * Returns a stage completing with the key to verify or decrypt the message with, or with null
+     * if there is none.
+     */
+    CompletionStage<? extends CoseKey> resolve(CoseMessage message);
+  }
+
+  private final Executor executor;
+  private final ThreadPoolExecutor ownedExecutor;
+  private final ScheduledExecutorService scheduler;
+  private final ScheduledThreadPoolExecutor ownedScheduler;
+  private final long defaultTimeoutNanos;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  private AsyncCose(Executor executor, int parallelism, int queueCapacity,
+      ScheduledExecutorService scheduler, long defaultTimeoutNanos) {
+    if (executor == null) {
+      AtomicInteger threads = new AtomicInteger();
+      this.ownedExecutor = new ThreadPoolExecutor(parallelism, parallelism, 0,
+          TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "cose-async-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          });
+      this.executor = ownedExecutor;
+    } else {
+      this.ownedExecutor = null;
+      this.executor = executor;
+    }
+    if (scheduler == null) {
+      this.ownedScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "cose-async-deadline");
+        thread.setDaemon(true);
+        return thread;
+      });
+      // Most deadlines are cancelled because the operation finished, don't keep them queued.
+      ownedScheduler.setRemoveOnCancelPolicy(true);
+      this.scheduler = ownedScheduler;
+    } else {
+      this.ownedScheduler = null;
+      this.scheduler = scheduler;
+    }
+    this.defaultTimeoutNanos = defaultTimeoutNanos;
+  }
+
+  public static class Builder {
+    private Executor executor;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private ScheduledExecutorService scheduler;
+    private long defaultTimeoutNanos;
+
+    public AsyncCose build() throws CoseException {
+      if (parallelism <= 0) {
+        throw new CoseException("Parallelism must be positive.");
+      }
+      if (queueCapacity <= 0) {
+        throw new CoseException("Queue capacity must be positive.");
+      }
+      if (defaultTimeoutNanos < 0) {
+        throw new CoseException("Timeout must not be negative.");
+      }
+      return new AsyncCose(executor, parallelism, queueCapacity, scheduler, defaultTimeoutNanos);
+    }
+
+    /**
+     * Sets the executor operations run on instead of a pool owned by the facade. The executor
+     * should be bounded, it is not shut down when the facade is closed.
+     */
+    public Builder withExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the number of worker threads created by the facade. Defaults to the number of
+     * processors. Ignored if an executor is set.
+     */
+    public Builder withParallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Sets the number of operations that may wait for a worker thread. Further operations fail
+     * right away. Defaults to {@link #DEFAULT_QUEUE_CAPACITY}. Ignored if an executor is set.
+     */
+    public Builder withQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * Sets the scheduler deadlines are tracked on instead of a thread owned by the facade. The
+     * scheduler is not shut down when the facade is closed.
+     */
+    public Builder withScheduler(ScheduledExecutorService scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /** Sets the deadline applied to every operation, 0 for none. Defaults to none. */
+    public Builder withDefaultTimeout(long timeout, TimeUnit unit) {
+      this.defaultTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public CompletableFuture<Sign1Message> sign1(CoseKey key, Map protectedHeaders,
+      Map unprotectedHeaders, byte[] payload, byte[] externalAad, Algorithm algorithm) {
+    return submit(() -> CoseUtils.generateCoseSign1(key, protectedHeaders, unprotectedHeaders,
+        payload, null, externalAad, algorithm));
+  }
+
+  /** Completes normally if the signature is valid, exceptionally otherwise. */
+  public CompletableFuture<Void> verifySign1(CoseKey key, Sign1Message message,
+      byte[] detachedContent, byte[] externalAad) {
+    return submit(() -> {
+      CoseUtils.verifyCoseSign1Message(key, message, detachedContent, externalAad, null);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Mac0Message> mac0(MacKey key, Map protectedHeaders,
+      Map unprotectedHeaders, byte[] payload, Algorithm algorithm) {
+    return submit(() -> CoseUtils.generateCoseMac0(key, protectedHeaders, unprotectedHeaders,
+        payload, null, algorithm));
+  }
+
+  /** Completes with whether the tag is valid. */
+  public CompletableFuture<Boolean> verifyMac0(MacKey key, Mac0Message message,
+      byte[] detachedContent) {
+    return submit(() -> CoseUtils.verifyCoseMac0(key, message, detachedContent, null));
+  }
+
+  public CompletableFuture<Encrypt0Message> encrypt0(EncryptionKey key, Map protectedHeaders,
+      Map unprotectedHeaders, byte[] plaintext, byte[] externalAad, byte[] iv,
+      Algorithm algorithm) {
+    return submit(() -> CoseUtils.generateCoseEncrypt0(key, protectedHeaders, unprotectedHeaders,
+        plaintext, externalAad, iv, algorithm));
+  }
+
+  public CompletableFuture<byte[]> decrypt0(EncryptionKey key, Encrypt0Message message,
+      byte[] externalAad) {
+    return submit(() -> message.decrypt(key, null, externalAad, null));
+  }
+
+  /**
+   * Verifies a COSE_Sign1 or COSE_Mac0 message or decrypts a COSE_Encrypt0 message once its key
+   * is available. The deadline covers key resolution as well.
+   * @param key stage completing with the key, e.g. a lookup in a remote key store
+   * @return future completing with the verified payload or the decrypted plaintext
+   */
+  public CompletableFuture<byte[]> open(CoseMessage message, CompletionStage<? extends CoseKey> key,
+      byte[] externalAad) {
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    if (!checkOpen(future)) {
+      return future;
+    }
+    key.whenComplete((resolved, failure) -> {
+      if (failure != null) {
+        future.completeExceptionally(unwrap(failure));
+      } else if (resolved == null) {
+        future.completeExceptionally(new CoseException(
+            "No key found for " + message.getClass().getSimpleName() + "."));
+      } else {
+        dispatch(future, () -> CoseUtils.verifyOrDecryptMessage(resolved, message, externalAad));
+      }
+    });
+    return expireAfter(future, defaultTimeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Same as {@link #open(CoseMessage, CompletionStage, byte[])} with the key from the resolver. */
+  public CompletableFuture<byte[]> open(CoseMessage message, KeyResolver keyResolver,
+      byte[] externalAad) {
+    CompletionStage<? extends CoseKey> key;
+    try {
+      key = keyResolver.resolve(message);
+    } catch (RuntimeException e) {
+      CompletableFuture<byte[]> future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+      return future;
+    }
+    return open(message, key, externalAad);
+  }
+
+  /** Runs any operation on the executor, with the default deadline. */
+  public <T> CompletableFuture<T> submit(CryptoTask<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    if (checkOpen(future)) {
+      dispatch(future, task);
+    }
+    return expireAfter(future, defaultTimeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets a deadline on a future returned by this facade, after which it completes exceptionally
+   * with a {@link TimeoutException}. An operation still waiting for a worker thread is then
+   * skipped, one already running is not interrupted but its result is dropped.
+   * @param timeout time until the deadline, 0 for none
+   * @return the given future
+   */
+  public <T> CompletableFuture<T> expireAfter(CompletableFuture<T> future, long timeout,
+      TimeUnit unit) {
+    if (timeout <= 0 || future.isDone()) {
+      return future;
+    }
+    try {
+      ScheduledFuture<?> deadline = scheduler.schedule(() -> future.completeExceptionally(
+          new TimeoutException("Operation did not finish within " + timeout + " " + unit + ".")),
+          timeout, unit);
+      future.whenComplete((result, failure) -> deadline.cancel(false));
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(new CoseException("AsyncCose is closed.", e));
+    }
+    return future;
+  }
+
+  /** Returns the number of operations submitted and not yet finished. */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /**
+   * Stops accepting operations. Operations already submitted still run.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (ownedExecutor != null) {
+        ownedExecutor.shutdown();
+      }
+      if (ownedScheduler != null) {
+        ownedScheduler.shutdown();
+      }
+    }
+  }
+
+  private boolean checkOpen(CompletableFuture<?> future) {
+    if (closed.get()) {
+      future.completeExceptionally(new CoseException("AsyncCose is closed."));
+      return false;
+    }
+    return true;
+  }
+
+  private <T> void dispatch(CompletableFuture<T> future, CryptoTask<T> task) {
+    if (future.isDone()) {
+      return;
+    }
+    updatePending(pending.incrementAndGet());
+    Runnable runnable = () -> {
+      try {
+        // Cancelled or expired while waiting for a worker.
+        if (!future.isDone()) {
+          future.complete(task.call());
+        }
+      } catch (Throwable e) {
+        // Errors complete the future too, so callers waiting on it are not left hanging.
+        future.completeExceptionally(e);
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+      } finally {
+        updatePending(pending.decrementAndGet());
+      }
+    };
+    try {
+      executor.execute(runnable);
+    } catch (RejectedExecutionException e) {
+      updatePending(pending.decrementAndGet());
+      future.completeExceptionally(new CoseException(closed.get()
+          ? "AsyncCose is closed." : "Too many pending operations.", e));
+      return;
+    }
+    if (ownedExecutor != null) {
+      // Frees the queue slot of an operation that is cancelled or expires while it waits.
+      future.whenComplete((result, failure) -> {
+        if (future.isCancelled() || failure instanceof TimeoutException) {
+          if (ownedExecutor.remove(runnable)) {
+            updatePending(pending.decrementAndGet());
+          }
+        }
+      });
+    }
+  }
+
+  private static void updatePending(int depth) {
+    if (Metrics.isEnabled()) {
+      Metrics.recordQueueDepth(PENDING_QUEUE, depth);
+    }
+  }
+
+  private static Throwable unwrap(Throwable failure) {
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      return failure.getCause();
+    }
+    return failure;
+  }
+}
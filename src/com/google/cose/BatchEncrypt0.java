@@ -0,0 +1,407 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborScanner;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts pages of records as COSE_Encrypt0 messages with a fixed key, algorithm,
+ * headers and external aad.
+ *
+ * <p>The Enc_structure and the message envelope are encoded once, as in {@link PreparedEncrypt0}.
+ * Every thread keeps one AES-GCM Cipher that is only re-initialized with the IV of each record,
+ * the IVs of a page are drawn from the random generator in a single call, and all records of a
+ * page are written into one buffer sized up front. Instances are immutable and can be shared
+ * between threads.
+ */
+public final class BatchEncrypt0 {
+  /** Length of the AES-GCM IVs generated by {@link #encrypt(List)}. */
+  public static final int IV_LENGTH = 12;
+
+  private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int TAG_LENGTH = 16;
+  private static final SecureRandom RANDOM = new SecureRandom();
+  // Cipher.getInstance is comparatively expensive, so every thread keeps its own instance around.
+  private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<>();
+
+  private final PreparedEncrypt0 prepared;
+  private final SecretKeySpec keySpec;
+  private final byte[] externalAad;
+
+  private BatchEncrypt0(PreparedEncrypt0 prepared, SecretKeySpec keySpec, byte[] externalAad) {
+    this.prepared = prepared;
+    this.keySpec = keySpec;
+    this.externalAad = externalAad;
+  }
+
+  /**
+   * Records of one page stored back to back in a single buffer. Record i occupies the bytes from
+   * {@code getOffset(i)} to {@code getOffset(i) + getLength(i)}.
+   */
+  public static final class Page {
+    private final byte[] buffer;
+    // offsets[i] is the start of record i, offsets[size] the end of the last record.
+    private final int[] offsets;
+
+    private Page(byte[] buffer, int[] offsets) {
+      this.buffer = buffer;
+      this.offsets = offsets;
+    }
+
+    public int size() {
+      return offsets.length - 1;
+    }
+
+    /** Returns the backing buffer, which holds a CBOR sequence for a page of messages. */
+    public byte[] getBuffer() {
+      return buffer;
+    }
+
+    public int getOffset(int index) {
+      return offsets[index];
+    }
+
+    public int getLength(int index) {
+      return offsets[index + 1] - offsets[index];
+    }
+
+    /** Returns a copy of a single record. */
+    public byte[] get(int index) {
+      return Arrays.copyOfRange(buffer, offsets[index], offsets[index + 1]);
+    }
+
+    /** Returns a read only view of a single record without copying it. */
+    public ByteBuffer getBuffer(int index) {
+      return ByteBuffer.wrap(buffer, offsets[index], getLength(index)).slice().asReadOnlyBuffer();
+    }
+  }
+
+  public static class Builder {
+    private final PreparedEncrypt0.Builder prepared = PreparedEncrypt0.builder();
+    private EncryptionKey key;
+    private Algorithm algorithm;
+    private byte[] externalAad;
+
+    public BatchEncrypt0 build() throws CborException, CoseException {
+      PreparedEncrypt0 prepared = this.prepared.build();
+      switch (algorithm) {
+        case ENCRYPTION_AES_128_GCM:
+        case ENCRYPTION_AES_192_GCM:
+        case ENCRYPTION_AES_256_GCM:
+          break;
+        default:
+          throw new CoseException("Batch encryption supports AES-GCM only.");
+      }
+      return new BatchEncrypt0(prepared, key.getSecretKeySpec(algorithm), externalAad);
+    }
+
+    public Builder withKey(EncryptionKey key) {
+      this.key = key;
+      prepared.withKey(key);
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      prepared.withAlgorithm(algorithm);
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      prepared.withProtectedHeaders(protectedHeaders);
+      return this;
+    }
+
+    /**
+     * Sets the unprotected headers. The IV header is added to them for every message.
+     */
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      prepared.withUnprotectedHeaders(unprotectedHeaders);
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      prepared.withExternalAad(externalAad);
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Encrypts every record with a fresh random IV.
+   * @param plaintexts records of the page
+   * @return serialized COSE_Encrypt0 messages, one per record
+   */
+  public Page encrypt(List<byte[]> plaintexts) throws CborException, CoseException {
+    byte[] ivs = new byte[plaintexts.size() * IV_LENGTH];
+    RANDOM.nextBytes(ivs);
+    return encrypt(plaintexts, ivs);
+  }
+
+  /**
+   * Encrypts every record with the given IVs.
+   * @param plaintexts records of the page
+   * @param ivs IV of record i at offset {@code i * IV_LENGTH}, must not be reused with the key
+   * @return serialized COSE_Encrypt0 messages, one per record
+   */
+  public Page encrypt(List<byte[]> plaintexts, byte[] ivs) throws CborException, CoseException {
+    EncryptionKey key = prepared.getKey();
+    key.verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_ENCRYPT);
+    int count = plaintexts.size();
+    if (ivs.length != count * IV_LENGTH) {
+      throw new CoseException("Expected " + count + " IVs of " + IV_LENGTH + " bytes.");
+    }
+    byte[] envelopePrefix = prepared.getEnvelopePrefix();
+    byte[] envelopeInfix = prepared.getEnvelopeInfix();
+    int ivHeadLength = CborUtils.headLength(IV_LENGTH);
+
+    int[] offsets = new int[count + 1];
+    long size = 0;
+    long plaintextSize = 0;
+    for (int i = 0; i < count; i++) {
+      byte[] plaintext = plaintexts.get(i);
+      if (plaintext == null) {
+        throw new CoseException("Missing plaintext for record " + i);
+      }
+      offsets[i] = (int) size;
+      long ciphertextLength = (long) plaintext.length + TAG_LENGTH;
+      size += envelopePrefix.length + ivHeadLength + IV_LENGTH + envelopeInfix.length
+          + CborUtils.headLength(ciphertextLength) + ciphertextLength;
+      plaintextSize += plaintext.length;
+      if (size > Integer.MAX_VALUE) {
+        throw new CoseException("Page does not fit in a single buffer, split it.");
+      }
+    }
+    offsets[count] = (int) size;
+
+    byte[] output = new byte[(int) size];
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      Cipher cipher = getCipher();
+      for (int i = 0; i < count; i++) {
+        byte[] plaintext = plaintexts.get(i);
+        int offset = offsets[i];
+        System.arraycopy(envelopePrefix, 0, output, offset, envelopePrefix.length);
+        offset = CborUtils.writeHead(output, offset + envelopePrefix.length,
+            MajorType.BYTE_STRING, IV_LENGTH);
+        System.arraycopy(ivs, i * IV_LENGTH, output, offset, IV_LENGTH);
+        offset += IV_LENGTH;
+        System.arraycopy(envelopeInfix, 0, output, offset, envelopeInfix.length);
+        offset = CborUtils.writeHead(output, offset + envelopeInfix.length,
+            MajorType.BYTE_STRING, plaintext.length + TAG_LENGTH);
+
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec,
+            new GCMParameterSpec(TAG_LENGTH * 8, ivs, i * IV_LENGTH, IV_LENGTH));
+        cipher.updateAAD(prepared.getAad());
+        cipher.doFinal(plaintext, 0, plaintext.length, output, offset);
+      }
+      success = true;
+      return new Page(output, offsets);
+    } catch (GeneralSecurityException e) {
+      throw new CoseException("Error while encrypting message.", e);
+    } finally {
+      Metrics.record(Operation.ENCRYPT, prepared.getAlgorithm(), key.getKeyType(),
+          (int) Math.min(plaintextSize, Integer.MAX_VALUE), start, success);
+    }
+  }
+
+  /**
+   * Decrypts a page produced by {@link #encrypt(List)}.
+   * @return plaintexts, one per record
+   * @throws CoseException if any record fails to decrypt
+   */
+  public Page decrypt(Page page) throws CborException, CoseException {
+    return decrypt(page.buffer, page.offsets);
+  }
+
+  /**
+   * Decrypts a CBOR sequence of COSE_Encrypt0 messages.
+   * @param sequence serialized messages back to back
+   * @return plaintexts, one per message
+   * @throws CborException if the sequence is not well formed CBOR
+   * @throws CoseException if any message fails to decrypt
+   */
+  public Page decrypt(byte[] sequence) throws CborException, CoseException {
+    CborScanner scanner = new CborScanner(sequence.length);
+    ByteBuffer buffer = ByteBuffer.wrap(sequence);
+    int[] offsets = new int[16];
+    int count = 0;
+    while (buffer.hasRemaining()) {
+      if (!scanner.scan(buffer)) {
+        throw new CborException("Truncated message at offset " + offsets[count]);
+      }
+      scanner.reset();
+      if (count + 2 > offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      offsets[++count] = buffer.position();
+    }
+    return decrypt(sequence, Arrays.copyOf(offsets, count + 1));
+  }
+
+  private Page decrypt(byte[] input, int[] inputOffsets) throws CborException, CoseException {
+    EncryptionKey key = prepared.getKey();
+    key.verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_DECRYPT);
+    int count = inputOffsets.length - 1;
+    // Position of IV and ciphertext of every record in the input, or the decoded message for
+    // records that were not written with the envelope of this instance.
+    int[] ivOffsets = new int[count];
+    int[] ciphertextOffsets = new int[count];
+    Encrypt0Message[] decoded = new Encrypt0Message[count];
+    int[] offsets = new int[count + 1];
+    long size = 0;
+    for (int i = 0; i < count; i++) {
+      int ciphertextLength = locate(input, inputOffsets[i], inputOffsets[i + 1], i, ivOffsets,
+          ciphertextOffsets);
+      if (ciphertextLength < 0) {
+        decoded[i] = Encrypt0Message.deserialize(
+            Arrays.copyOfRange(input, inputOffsets[i], inputOffsets[i + 1]));
+        if (decoded[i].getCiphertext() == null) {
+          throw new CoseException("Missing ciphertext for record " + i);
+        }
+        ciphertextLength = decoded[i].getCiphertext().length;
+      }
+      if (ciphertextLength < TAG_LENGTH) {
+        throw new CoseException("Ciphertext of record " + i + " is too short.");
+      }
+      offsets[i] = (int) size;
+      size += ciphertextLength - TAG_LENGTH;
+    }
+    offsets[count] = (int) size;
+
+    byte[] output = new byte[(int) size];
+    long start = Metrics.start();
+    boolean success = false;
+    int i = 0;
+    try {
+      Cipher cipher = getCipher();
+      for (; i < count; i++) {
+        if (decoded[i] != null) {
+          byte[] plaintext = decoded[i].decrypt(key, null, externalAad, prepared.getAlgorithm());
+          System.arraycopy(plaintext, 0, output, offsets[i], plaintext.length);
+          continue;
+        }
+        cipher.init(Cipher.DECRYPT_MODE, keySpec,
+            new GCMParameterSpec(TAG_LENGTH * 8, input, ivOffsets[i], IV_LENGTH));
+        cipher.updateAAD(prepared.getAad());
+        cipher.doFinal(input, ciphertextOffsets[i],
+            offsets[i + 1] - offsets[i] + TAG_LENGTH, output, offsets[i]);
+      }
+      success = true;
+      return new Page(output, offsets);
+    } catch (GeneralSecurityException e) {
+      throw new CoseException("Error while decrypting record " + i, e);
+    } finally {
+      Metrics.record(Operation.DECRYPT, prepared.getAlgorithm(), key.getKeyType(),
+          (int) Math.min(size, Integer.MAX_VALUE), start, success);
+    }
+  }
+
+  /**
+   * Finds IV and ciphertext of a record written with the envelope of this instance without
+   * decoding it.
+   * @return length of the ciphertext, or -1 if the record uses a different envelope
+   */
+  private int locate(byte[] input, int from, int to, int index, int[] ivOffsets,
+      int[] ciphertextOffsets) {
+    byte[] envelopePrefix = prepared.getEnvelopePrefix();
+    byte[] envelopeInfix = prepared.getEnvelopeInfix();
+    int offset = from;
+    if (!regionMatches(input, offset, to, envelopePrefix)) {
+      return -1;
+    }
+    offset += envelopePrefix.length;
+    // Byte string head of the IV, which is always 12 bytes long.
+    if (offset >= to || (input[offset] & 0xff) != ((MajorType.BYTE_STRING.getValue() << 5)
+        | IV_LENGTH)) {
+      return -1;
+    }
+    ivOffsets[index] = offset + 1;
+    offset += 1 + IV_LENGTH;
+    if (!regionMatches(input, offset, to, envelopeInfix)) {
+      return -1;
+    }
+    offset += envelopeInfix.length;
+    if (offset >= to || (input[offset] & 0xe0) != MajorType.BYTE_STRING.getValue() << 5) {
+      return -1;
+    }
+    int additional = input[offset] & 0x1f;
+    int headLength = (additional < 24) ? 1 : (additional <= 27) ? 1 + (1 << (additional - 24)) : 0;
+    if (headLength == 0 || offset + headLength > to) {
+      return -1;
+    }
+    long length = (additional < 24) ? additional : 0;
+    for (int i = 1; i < headLength; i++) {
+      length = (length << 8) | (input[offset + i] & 0xff);
+    }
+    if (length != to - offset - headLength) {
+      return -1;
+    }
+    ciphertextOffsets[index] = offset + headLength;
+    return (int) length;
+  }
+
+  private static boolean regionMatches(byte[] input, int offset, int to, byte[] expected) {
+    if (to - offset < expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (input[offset + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Cipher getCipher() throws CoseException {
+    Cipher cipher = CIPHER.get();
+    Metrics.recordCacheAccess(Metrics.CACHE_BATCH_CIPHER, cipher != null);
+    if (cipher == null) {
+      try {
+        cipher = Cipher.getInstance(AES_GCM_TRANSFORMATION);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new CoseException("No provider for " + AES_GCM_TRANSFORMATION, e);
+      }
+      CIPHER.set(cipher);
+    }
+    return cipher;
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.structure.MacStructure;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborScanner;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Creates and verifies COSE_Mac0 messages in batches with a fixed key, algorithm, headers and
+ * external aad.
+ *
+ * <p>Every thread keeps one Mac initialized with the key, so the Mac and the key spec are created
+ * once per thread instead of once per message. The MAC_structure is fed to the Mac in parts and
+ * never assembled. Generated messages and tags are written into a single output array.
+ *
+ * <p>If a pool is configured, batches larger than the batch size are split into ranges that are
+ * processed in parallel. Instances are immutable apart from the per thread Mac and can be shared
+ * between threads.
+ */
+public final class BatchMac0 {
+  public static final int DEFAULT_BATCH_SIZE = 256;
+
+  private final MacKey key;
+  private final Algorithm algorithm;
+  private final int tagLength;
+  private final byte[] externalAad;
+  // ["MAC0", protected, external_aad, ... up to the payload.
+  private final byte[] toBeMacedPrefix;
+  // [protected, unprotected, ... up to the payload.
+  private final byte[] envelopePrefix;
+  private final ForkJoinPool pool;
+  private final int batchSize;
+  private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+  private BatchMac0(MacKey key, Algorithm algorithm, int tagLength, byte[] externalAad,
+      byte[] toBeMacedPrefix, byte[] envelopePrefix, ForkJoinPool pool, int batchSize) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.tagLength = tagLength;
+    this.externalAad = externalAad;
+    this.toBeMacedPrefix = toBeMacedPrefix;
+    this.envelopePrefix = envelopePrefix;
+    this.pool = pool;
+    this.batchSize = batchSize;
+  }
+
+  public static class Builder {
+    private MacKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+    private ForkJoinPool pool;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public BatchMac0 build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null
+          || unprotectedHeaders == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (batchSize <= 0) {
+        throw new CoseException("Batch size must be positive.");
+      }
+      // Also fails early for a key that does not match the algorithm.
+      int tagLength = key.initMac(algorithm).getMacLength();
+      byte[] aad = (externalAad != null) ? externalAad : new byte[0];
+      byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      byte[] toBeMacedPrefix = MacStructure.encodeMac0Prefix(encodedProtectedHeaders, aad);
+      byte[] envelopePrefix = Bytes.concat(
+          CborUtils.encodeHead(MajorType.ARRAY, 4),
+          CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+          CborUtils.encode(unprotectedHeaders));
+      return new BatchMac0(key, algorithm, tagLength, aad, toBeMacedPrefix, envelopePrefix, pool,
+          batchSize);
+    }
+
+    public Builder withKey(MacKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+
+    /**
+     * Sets the pool batches are split across. Optional, batches run on the calling thread if not
+     * set.
+     */
+    public Builder withPool(ForkJoinPool pool) {
+      this.pool = pool;
+      return this;
+    }
+
+    /**
+     * Sets the number of messages below which a range is processed by a single task instead of
+     * being split further. Defaults to {@link #DEFAULT_BATCH_SIZE}.
+     */
+    public Builder withBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the length in bytes of every tag produced by this instance. */
+  public int getTagLength() {
+    return tagLength;
+  }
+
+  /**
+   * Computes the tags of all payloads.
+   * @param payloads attached payloads or detached contents
+   * @return tag i at offset {@code i * getTagLength()}
+   */
+  public byte[] computeTags(List<byte[]> payloads) throws CborException, CoseException {
+    byte[][] contents = toArray(payloads);
+    byte[] tags = new byte[contents.length * tagLength];
+    int[] tagOffsets = new int[contents.length];
+    for (int i = 0; i < contents.length; i++) {
+      tagOffsets[i] = i * tagLength;
+    }
+    run(Operation.MAC_CREATE, contents, tags, null, tagOffsets, null);
+    return tags;
+  }
+
+  /**
+   * Creates one COSE_Mac0 message per payload.
+   * @param payloads payloads carried by the messages
+   * @return the serialized messages back to back, i.e. a CBOR sequence
+   */
+  public byte[] mac(List<byte[]> payloads) throws CborException, CoseException {
+    byte[][] contents = toArray(payloads);
+    int[] envelopeOffsets = new int[contents.length];
+    int[] tagOffsets = new int[contents.length];
+    long size = 0;
+    for (int i = 0; i < contents.length; i++) {
+      envelopeOffsets[i] = (int) size;
+      size += envelopePrefix.length + CborUtils.byteStringLength(contents[i]);
+      size += CborUtils.encodeHead(MajorType.BYTE_STRING, tagLength).length;
+      tagOffsets[i] = (int) size;
+      size += tagLength;
+      if (size > Integer.MAX_VALUE) {
+        throw new CoseException("Batch does not fit in a single array, split it.");
+      }
+    }
+    byte[] output = new byte[(int) size];
+    run(Operation.MAC_CREATE, contents, output, envelopeOffsets, tagOffsets, null);
+    return output;
+  }
+
+  /**
+   * Verifies tags computed by {@link #computeTags(List)}.
+   * @param payloads attached payloads or detached contents
+   * @param tags tag i at offset {@code i * getTagLength()}
+   * @return for every payload whether its tag is valid
+   */
+  public boolean[] verifyTags(List<byte[]> payloads, byte[] tags)
+      throws CborException, CoseException {
+    byte[][] contents = toArray(payloads);
+    if (tags.length != contents.length * tagLength) {
+      throw new CoseException("Expected " + contents.length + " tags of " + tagLength + " bytes.");
+    }
+    int[] tagOffsets = new int[contents.length];
+    for (int i = 0; i < contents.length; i++) {
+      tagOffsets[i] = i * tagLength;
+    }
+    boolean[] results = new boolean[contents.length];
+    run(Operation.MAC_VERIFY, contents, tags, null, tagOffsets, results);
+    return results;
+  }
+
+  /**
+   * Verifies a CBOR sequence of COSE_Mac0 messages with attached payloads against the key,
+   * algorithm and external aad of this instance. The protected headers of every message are used
+   * as found in the message, and must name the algorithm of this instance.
+   * @param sequence serialized messages back to back, e.g. the output of {@link #mac(List)}
+   * @return for every message whether its tag is valid
+   * @throws CborException if the sequence is not well formed CBOR
+   */
+  public boolean[] verify(byte[] sequence) throws CborException, CoseException {
+    List<Mac0Message> messages = new ArrayList<>();
+    CborScanner scanner = new CborScanner(sequence.length);
+    ByteBuffer buffer = ByteBuffer.wrap(sequence);
+    while (buffer.hasRemaining()) {
+      int start = buffer.position();
+      if (!scanner.scan(buffer)) {
+        throw new CborException("Truncated message at offset " + start);
+      }
+      messages.add(Mac0Message.deserialize(Arrays.copyOfRange(sequence, start,
+          buffer.position())));
+      scanner.reset();
+    }
+    return verify(messages);
+  }
+
+  /**
+   * Verifies COSE_Mac0 messages with attached payloads. Messages without a payload or whose
+   * protected algorithm header differs from the algorithm of this instance fail.
+   * @return for every message whether its tag is valid
+   */
+  public boolean[] verify(List<Mac0Message> messages) throws CborException, CoseException {
+    int count = messages.size();
+    byte[][] contents = new byte[count][];
+    byte[][] prefixes = new byte[count][];
+    byte[] tags = new byte[count * tagLength];
+    int[] tagOffsets = new int[count];
+    boolean[] valid = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      Mac0Message message = messages.get(i);
+      tagOffsets[i] = i * tagLength;
+      if (message.getMessage() == null || message.getTag().length != tagLength
+          || !algorithm.getCoseAlgorithmId().equals(CoseUtils.getValueFromMap(
+              message.getProtectedHeaders(), Headers.MESSAGE_HEADER_ALGORITHM))) {
+        continue;
+      }
+      valid[i] = true;
+      contents[i] = message.getMessage();
+      prefixes[i] = MacStructure.encodeMac0Prefix(message.getEncodedProtectedHeaders(),
+          externalAad);
+      System.arraycopy(message.getTag(), 0, tags, tagOffsets[i], tagLength);
+    }
+    boolean[] results = new boolean[count];
+    new Batch(Operation.MAC_VERIFY, contents, prefixes, tags, null, tagOffsets, results)
+        .execute();
+    for (int i = 0; i < count; i++) {
+      results[i] &= valid[i];
+    }
+    return results;
+  }
+
+  private static byte[][] toArray(List<byte[]> payloads) throws CoseException {
+    byte[][] contents = payloads.toArray(new byte[0][]);
+    for (byte[] content : contents) {
+      if (content == null) {
+        throw new CoseException("Need message bytes to generate tag.");
+      }
+    }
+    return contents;
+  }
+
+  private void run(Operation operation, byte[][] contents, byte[] output, int[] envelopeOffsets,
+      int[] tagOffsets, boolean[] results) throws CborException, CoseException {
+    new Batch(operation, contents, null, output, envelopeOffsets, tagOffsets, results).execute();
+  }
+
+  private Mac getMac() throws CborException, CoseException {
+    Mac mac = macs.get();
+    Metrics.recordCacheAccess(Metrics.CACHE_BATCH_MAC, mac != null);
+    if (mac == null) {
+      mac = key.initMac(algorithm);
+      macs.set(mac);
+    }
+    return mac;
+  }
+
+  /**
+   * One batch operation. Ranges of messages are independent: every range writes to its own part
+   * of the output and of the results.
+   */
+  private final class Batch {
+    private final Operation operation;
+    private final byte[][] contents;
+    // Per message MAC_structure prefix, null to use the prefix of this instance.
+    private final byte[][] prefixes;
+    private final byte[] output;
+    // Start of every message envelope in the output, null if only tags are written.
+    private final int[] envelopeOffsets;
+    private final int[] tagOffsets;
+    // Verification results, null when creating tags.
+    private final boolean[] results;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    Batch(Operation operation, byte[][] contents, byte[][] prefixes, byte[] output,
+        int[] envelopeOffsets, int[] tagOffsets, boolean[] results) {
+      this.operation = operation;
+      this.contents = contents;
+      this.prefixes = prefixes;
+      this.output = output;
+      this.envelopeOffsets = envelopeOffsets;
+      this.tagOffsets = tagOffsets;
+      this.results = results;
+    }
+
+    void execute() throws CborException, CoseException {
+      key.verifyOperationAllowedByKey((operation == Operation.MAC_CREATE)
+          ? Headers.KEY_OPERATIONS_MAC_CREATE : Headers.KEY_OPERATIONS_MAC_VERIFY);
+      long start = Metrics.start();
+      boolean success = false;
+      try {
+        if (pool == null || contents.length <= batchSize) {
+          process(0, contents.length);
+        } else {
+          pool.invoke(new Task(0, contents.length));
+          Exception e = failure.get();
+          if (e instanceof CoseException) {
+            throw (CoseException) e;
+          } else if (e instanceof CborException) {
+            throw (CborException) e;
+          }
+        }
+        success = true;
+      } finally {
+        long size = 0;
+        for (byte[] content : contents) {
+          size += (content != null) ? content.length : 0;
+        }
+        Metrics.record(operation, algorithm, key.getKeyType(),
+            (int) Math.min(size, Integer.MAX_VALUE), start, success);
+      }
+    }
+
+    void process(int from, int to) throws CborException, CoseException {
+      boolean create = operation == Operation.MAC_CREATE;
+      Mac mac = getMac();
+      byte[] tag = create ? null : new byte[tagLength];
+      for (int i = from; i < to; i++) {
+        byte[] content = contents[i];
+        if (content == null) {
+          continue;
+        }
+        if (envelopeOffsets != null) {
+          System.arraycopy(envelopePrefix, 0, output, envelopeOffsets[i], envelopePrefix.length);
+          int offset = CborUtils.writeByteString(output,
+              envelopeOffsets[i] + envelopePrefix.length, content);
+          byte[] head = CborUtils.encodeHead(MajorType.BYTE_STRING, tagLength);
+          System.arraycopy(head, 0, output, offset, head.length);
+        }
+        mac.update((prefixes != null) ? prefixes[i] : toBeMacedPrefix);
+        mac.update(CborUtils.encodeHead(MajorType.BYTE_STRING, content.length));
+        mac.update(content);
+        try {
+          if (create) {
+            mac.doFinal(output, tagOffsets[i]);
+          } else {
+            mac.doFinal(tag, 0);
+            results[i] = MessageDigest.isEqual(tag,
+                Arrays.copyOfRange(output, tagOffsets[i], tagOffsets[i] + tagLength));
+          }
+        } catch (ShortBufferException e) {
+          throw new CoseException("Error while creating mac", e);
+        }
+      }
+    }
+
+    private final class Task extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final int from;
+      private final int to;
+
+      Task(int from, int to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (failure.get() != null) {
+          return;
+        }
+        if (to - from <= batchSize) {
+          try {
+            process(from, to);
+          } catch (CborException | CoseException e) {
+            failure.compareAndSet(null, e);
+          }
+          return;
+        }
+        int middle = (from + to) >>> 1;
+        invokeAll(new Task(from, middle), new Task(middle, to));
+      }
+    }
+  }
+}
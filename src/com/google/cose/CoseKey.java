@@ -25,6 +25,8 @@ import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
@@ -128,14 +130,50 @@ public abstract class CoseKey {
     }
   }
 
+  /** Creates a key object from its cbor representation. */
+  @FunctionalInterface
+  interface KeyDecoder<T extends CoseKey> {
+    T decode(DataItem cborKey) throws CborException, CoseException;
+  }
+
+  /**
+   * Runs the decoder and reports the time taken to the metrics listener.
+   */
+  static <T extends CoseKey> T decodeKey(DataItem cborKey, KeyDecoder<T> decoder)
+      throws CborException, CoseException {
+    long start = Metrics.start();
+    T key = null;
+    try {
+      key = decoder.decode(cborKey);
+      return key;
+    } finally {
+      if (key != null) {
+        Algorithm algorithm = (key.getAlgorithm() != null)
+            ? Algorithm.fromCoseAlgorithmId(key.getAlgorithm()) : null;
+        Metrics.record(Operation.KEY_PARSE, algorithm, key.getKeyType(), 0, start, true);
+      } else {
+        Metrics.record(Operation.KEY_PARSE, null, 0, 0, start, false);
+      }
+    }
+  }
+
   public static CoseKey generateKey(Algorithm algorithm) throws CborException, CoseException {
+    return generateKey(algorithm, null);
+  }
+
+  /**
+   * Generates a key for the given algorithm. If a pool is provided, the key pair is taken from the
+   * pool instead of being generated on the calling thread.
+   */
+  public static CoseKey generateKey(Algorithm algorithm, EphemeralKeyPool pool)
+      throws CborException, CoseException {
     switch (algorithm) {
       case SIGNING_ALGORITHM_EDDSA:
-        return OkpSigningKey.generateKey();
+        return OkpSigningKey.generateKey(pool);
       case SIGNING_ALGORITHM_ECDSA_SHA_256:
       case SIGNING_ALGORITHM_ECDSA_SHA_384:
       case SIGNING_ALGORITHM_ECDSA_SHA_512:
-        return Ec2SigningKey.generateKey(algorithm);
+        return Ec2SigningKey.generateKey(algorithm, pool);
       default:
         throw new CoseException("Unknown Key Type specified: " + algorithm.getJavaAlgorithmId());
     }
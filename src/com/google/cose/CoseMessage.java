@@ -18,10 +18,16 @@ package com.google.cose;
 
 import co.nstant.in.cbor.CborException;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.List;
 
 /**
  * Implements the base class for COSE Message structure to be implemented for other message types.
@@ -29,13 +35,67 @@ import com.google.cose.utils.CoseUtils;
 public abstract class CoseMessage {
   private final Map protectedHeaders;
   private final Map unprotectedHeaders;
+  // Protected headers exactly as received on the wire or, for messages built locally, as encoded
+  // on first use. Reusing these bytes keeps signatures and tags over non-canonical encodings valid.
+  private volatile byte[] encodedProtectedHeaders;
 
   CoseMessage(Map protectedHeaders, Map unprotectedHeaders) {
+    this(protectedHeaders, null, unprotectedHeaders);
+  }
+
+  CoseMessage(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders) {
     this.protectedHeaders = protectedHeaders;
+    this.encodedProtectedHeaders = encodedProtectedHeaders;
     this.unprotectedHeaders = unprotectedHeaders;
   }
 
-  // TODO: Add counter signature support
+  /**
+   * Returns the protected headers for a message built from the given builder fields. If encoded
+   * protected headers are set, they have to decode to the map, or the map is derived from them if
+   * it is not set.
+   * @throws CoseException if the encoded protected headers do not decode to the map
+   */
+  static Map checkProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders)
+      throws CoseException {
+    if (encodedProtectedHeaders == null) {
+      return protectedHeaders;
+    }
+    Map decoded;
+    try {
+      decoded = CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders);
+    } catch (CborException e) {
+      throw new CoseException("Encoded protected headers are not a CBOR map.", e);
+    }
+    if (protectedHeaders == null) {
+      return decoded;
+    }
+    if (!protectedHeaders.equals(decoded)) {
+      throw new CoseException("Encoded protected headers do not match the protected headers.");
+    }
+    return protectedHeaders;
+  }
+
+  /** Creates a message object from its cbor representation. */
+  @FunctionalInterface
+  interface MessageDecoder<T extends CoseMessage> {
+    T decode(DataItem cborMessage) throws CborException, CoseException;
+  }
+
+  /**
+   * Decodes the message bytes with the decoder and reports the time taken to the metrics listener.
+   */
+  static <T extends CoseMessage> T deserializeMessage(byte[] messageBytes,
+      MessageDecoder<T> decoder) throws CborException, CoseException {
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      T message = decoder.decode(CborUtils.decode(messageBytes));
+      success = true;
+      return message;
+    } finally {
+      Metrics.record(Operation.MESSAGE_DECODE, null, 0, messageBytes.length, start, success);
+    }
+  }
 
   public abstract DataItem encode() throws CborException, CoseException;
 
@@ -43,14 +103,179 @@ public abstract class CoseMessage {
     return CborUtils.encode(encode());
   }
 
+  /**
+   * Returns the CBOR tag identifying the message type, or null for structures that only appear
+   * inside other messages.
+   */
+  Integer getMessageTag() {
+    return null;
+  }
+
+  /**
+   * Encodes the message with the CBOR tag of its type, so receivers can identify the message type
+   * without knowing it in advance.
+   */
+  public DataItem encodeTagged() throws CborException, CoseException {
+    Integer tag = getMessageTag();
+    if (tag == null) {
+      throw new CoseException(getClass().getSimpleName() + " cannot be tagged.");
+    }
+    DataItem item = encode();
+    item.setTag(tag);
+    return item;
+  }
+
+  public byte[] serializeTagged() throws CborException, CoseException {
+    return CborUtils.encode(encodeTagged());
+  }
+
+  /**
+   * Deserializes a COSE message of any of the six message types. See {@link #decodeAny}.
+   */
+  public static CoseMessage deserializeAny(byte[] messageBytes)
+      throws CborException, CoseException {
+    return deserializeMessage(messageBytes, CoseMessage::decodeAny);
+  }
+
+  /**
+   * Decodes a COSE message of any of the six message types.
+   *
+   * <p>Tagged messages are dispatched on their tag. For untagged messages the type is derived from
+   * the number of items, the type of the last item and, where these are ambiguous, from the
+   * category of the algorithm in the headers: a signing algorithm identifies COSE_Sign1, a MAC
+   * algorithm COSE_Mac0 and a content encryption algorithm COSE_Encrypt. For messages with
+   * signatures or recipients but no algorithm in the body, the first signature or recipient
+   * decides.
+   * @param cborMessage cbor representation of the message
+   * @return the decoded message, to be cast to the type it is an instance of
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if the tag is unknown or the type cannot be determined
+   */
+  public static CoseMessage decodeAny(DataItem cborMessage) throws CborException, CoseException {
+    if (cborMessage.hasTag()) {
+      long tag = cborMessage.getTag().getValue();
+      switch ((tag <= Integer.MAX_VALUE) ? (int) tag : -1) {
+        case Headers.MESSAGE_TAG_ENCRYPT0:
+          return Encrypt0Message.decode(cborMessage);
+        case Headers.MESSAGE_TAG_MAC0:
+          return Mac0Message.decode(cborMessage);
+        case Headers.MESSAGE_TAG_SIGN1:
+          return Sign1Message.decode(cborMessage);
+        case Headers.MESSAGE_TAG_ENCRYPT:
+          return EncryptMessage.decode(cborMessage);
+        case Headers.MESSAGE_TAG_MAC:
+          return MacMessage.decode(cborMessage);
+        case Headers.MESSAGE_TAG_SIGN:
+          return SignMessage.decode(cborMessage);
+        default:
+          throw new CoseException("Unsupported COSE message tag: " + tag);
+      }
+    }
+
+    List<DataItem> messageArray = CborUtils.asArray(cborMessage).getDataItems();
+    switch (messageArray.size()) {
+      case 3:
+        return Encrypt0Message.decode(cborMessage);
+      case 5:
+        return MacMessage.decode(cborMessage);
+      case 4:
+        break;
+      default:
+        throw new CoseException("Cannot determine the type of a message with "
+            + messageArray.size() + " items.");
+    }
+
+    // The protected headers are decoded once here and handed to the decoder of the message type.
+    byte[] protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
+    Map protectedHeaders = CoseUtils.asProtectedHeadersMap(protectedHeaderBytes);
+    Algorithm algorithm = peekAlgorithm(protectedHeaders, messageArray.get(1));
+    DataItem last = messageArray.get(3);
+    if (last.getMajorType() == MajorType.BYTE_STRING) {
+      if (isSigningAlgorithm(algorithm)) {
+        return Sign1Message.decode(cborMessage, protectedHeaders, protectedHeaderBytes);
+      } else if (isMacAlgorithm(algorithm)) {
+        return Mac0Message.decode(cborMessage, protectedHeaders, protectedHeaderBytes);
+      }
+    } else if (last.getMajorType() == MajorType.ARRAY) {
+      if (isContentEncryptionAlgorithm(algorithm)) {
+        return EncryptMessage.decode(cborMessage, protectedHeaders, protectedHeaderBytes);
+      }
+      List<DataItem> layers = CborUtils.asArray(last).getDataItems();
+      if (!layers.isEmpty()) {
+        List<DataItem> layer = CborUtils.asArray(layers.get(0)).getDataItems();
+        Algorithm layerAlgorithm = (layer.size() >= 2)
+            ? peekAlgorithm(CoseUtils.asProtectedHeadersMap(layer.get(0)), layer.get(1)) : null;
+        if (layer.size() == 4 || (layerAlgorithm != null && !isSigningAlgorithm(layerAlgorithm))) {
+          return EncryptMessage.decode(cborMessage, protectedHeaders, protectedHeaderBytes);
+        } else if (isSigningAlgorithm(layerAlgorithm)) {
+          return SignMessage.decode(cborMessage, protectedHeaders, protectedHeaderBytes);
+        }
+      }
+    }
+    throw new CoseException("Cannot determine the type of an untagged message.");
+  }
+
+  /**
+   * Reads the algorithm from the protected headers or the undecoded unprotected headers of a layer.
+   */
+  private static Algorithm peekAlgorithm(Map protectedHeaders, DataItem unprotectedHeaders)
+      throws CborException {
+    DataItem algorithm = CoseUtils.getValueFromMap(protectedHeaders,
+        Headers.MESSAGE_HEADER_ALGORITHM);
+    if (algorithm == null) {
+      algorithm = CoseUtils.getValueFromMap(CborUtils.asMap(unprotectedHeaders),
+          Headers.MESSAGE_HEADER_ALGORITHM);
+    }
+    return (algorithm != null) ? Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(algorithm))
+        : null;
+  }
+
+  private static boolean isSigningAlgorithm(Algorithm algorithm) {
+    return algorithm == Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256
+        || algorithm == Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384
+        || algorithm == Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512
+        || algorithm == Algorithm.SIGNING_ALGORITHM_EDDSA;
+  }
+
+  private static boolean isMacAlgorithm(Algorithm algorithm) {
+    return algorithm == Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256
+        || algorithm == Algorithm.MAC_ALGORITHM_HMAC_SHA_384_384
+        || algorithm == Algorithm.MAC_ALGORITHM_HMAC_SHA_512_512;
+  }
+
+  private static boolean isContentEncryptionAlgorithm(Algorithm algorithm) {
+    return algorithm == Algorithm.ENCRYPTION_AES_128_GCM
+        || algorithm == Algorithm.ENCRYPTION_AES_192_GCM
+        || algorithm == Algorithm.ENCRYPTION_AES_256_GCM;
+  }
+
   public Map getProtectedHeaders() {
     return protectedHeaders;
   }
 
+  /**
+   * Returns the serialized protected headers. These are the original bytes for decoded messages.
+   */
+  public byte[] getEncodedProtectedHeaders() throws CborException {
+    byte[] encoded = encodedProtectedHeaders;
+    if (encoded == null) {
+      encoded = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      encodedProtectedHeaders = encoded;
+    }
+    return encoded;
+  }
+
   public Map getUnprotectedHeaders() {
     return unprotectedHeaders;
   }
 
+  /**
+   * Returns the countersignatures in the unprotected headers, see {@link CounterSignatures}.
+   */
+  public List<Signature> getCounterSignatures() throws CborException, CoseException {
+    return CounterSignatures.get(this);
+  }
+
   public DataItem findAttributeInUnprotectedHeaders(int attribute) throws CoseException {
     DataItem item = CoseUtils.getValueFromMap(unprotectedHeaders, attribute);
     if (item == null) {
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.structure.SignStructure.SignatureContext;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborScanner;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Creates and verifies countersignatures (RFC 9338) on COSE_Sign1, COSE_Mac0 and COSE_Encrypt0
+ * messages.
+ *
+ * <p>Countersignatures are carried in the Countersignature version 2 header of the unprotected
+ * headers and cover the protected headers, the payload (the ciphertext for COSE_Encrypt0) and the
+ * signature or tag of the message. A single countersignature is stored as a COSE_Countersignature,
+ * several as an array of them.
+ *
+ * <p>{@link #countersign(byte[], CoseKey, Algorithm, Map, Map, byte[])} works on serialized
+ * messages: only the unprotected headers are decoded and re-encoded, the other fields are copied
+ * as they are.
+ */
+public final class CounterSignatures {
+  /**
+   * Creates a countersignature over the message. The message itself is not modified, see
+   * {@link #add(CoseMessage, Signature)}.
+   * @param message Sign1Message, Mac0Message or Encrypt0Message
+   * @param key Ec2SigningKey or OkpSigningKey
+   * @param algorithm signing algorithm
+   * @param protectedHeaders protected headers of the countersignature
+   * @param unprotectedHeaders unprotected headers of the countersignature
+   * @param externalAad externally supplied data, may be null
+   * @return the countersignature
+   */
+  public static Signature create(CoseMessage message, CoseKey key, Algorithm algorithm,
+      Map protectedHeaders, Map unprotectedHeaders, byte[] externalAad)
+      throws CborException, CoseException {
+    byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+    byte[] toBeSigned = toBeSigned(message.getEncodedProtectedHeaders(), encodedProtectedHeaders,
+        externalAad, getPayload(message), getOtherFields(message));
+    return Signature.builder()
+        .withSerializedProtectedHeaders(protectedHeaders, encodedProtectedHeaders)
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .withSignature(CoseUtils.computeSignature(key, toBeSigned, algorithm))
+        .build();
+  }
+
+  /**
+   * Adds the countersignature to the unprotected headers of the message, next to any
+   * countersignatures already present.
+   */
+  public static void add(CoseMessage message, Signature counterSignature)
+      throws CborException, CoseException {
+    addToHeaders(message.getUnprotectedHeaders(), counterSignature);
+  }
+
+  /**
+   * Countersigns a serialized COSE_Sign1, COSE_Mac0 or COSE_Encrypt0 message, tagged or untagged.
+   * Only the unprotected headers are re-encoded, so the payload and signature bytes of the message
+   * are preserved exactly.
+   * @return the serialized message with the countersignature added
+   * @throws CborException if the message is not well-formed CBOR
+   * @throws CoseException if the message cannot be countersigned
+   */
+  public static byte[] countersign(byte[] serializedMessage, CoseKey key, Algorithm algorithm,
+      Map protectedHeaders, Map unprotectedHeaders, byte[] externalAad)
+      throws CborException, CoseException {
+    RawMessage raw = RawMessage.parse(serializedMessage);
+    byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+    byte[] toBeSigned = toBeSigned(raw.getBodyProtectedHeaders(), encodedProtectedHeaders,
+        externalAad, raw.getPayload(), raw.getOtherFields());
+    Signature counterSignature = Signature.builder()
+        .withSerializedProtectedHeaders(protectedHeaders, encodedProtectedHeaders)
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .withSignature(CoseUtils.computeSignature(key, toBeSigned, algorithm))
+        .build();
+
+    Map headers = CborUtils.asMap(CborUtils.decode(raw.slice(1)));
+    addToHeaders(headers, counterSignature);
+    return Bytes.concat(
+        Arrays.copyOfRange(serializedMessage, 0, raw.start(1)),
+        CborUtils.encode(headers),
+        Arrays.copyOfRange(serializedMessage, raw.end(1), serializedMessage.length));
+  }
+
+  /**
+   * Returns the countersignatures in the unprotected headers of the message, in the order they were
+   * added. Empty if there are none.
+   */
+  public static ImmutableList<Signature> get(CoseMessage message)
+      throws CborException, CoseException {
+    DataItem header = CoseUtils.getValueFromMap(message.getUnprotectedHeaders(),
+        Headers.MESSAGE_HEADER_COUNTER_SIGNATURE_V2);
+    if (header == null) {
+      return ImmutableList.of();
+    }
+    List<DataItem> items = CborUtils.asArray(header).getDataItems();
+    if (!items.isEmpty() && items.get(0).getMajorType() != MajorType.ARRAY) {
+      return ImmutableList.of(Signature.decode(header));
+    }
+    ImmutableList.Builder<Signature> counterSignatures = ImmutableList.builder();
+    for (DataItem item : items) {
+      counterSignatures.add(Signature.decode(item));
+    }
+    return counterSignatures.build();
+  }
+
+  /**
+   * Verifies a countersignature of the message. The algorithm is taken from the protected headers
+   * of the countersignature.
+   * @throws CoseException if the countersignature does not verify
+   */
+  public static void verify(CoseMessage message, Signature counterSignature, CoseKey key,
+      byte[] externalAad) throws CborException, CoseException {
+    Algorithm algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        counterSignature.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+    byte[] toBeSigned = toBeSigned(message.getEncodedProtectedHeaders(),
+        counterSignature.getEncodedProtectedHeaders(), externalAad, getPayload(message),
+        getOtherFields(message));
+    CoseUtils.verifySignature(key, toBeSigned, counterSignature.getSignature(), algorithm);
+  }
+
+  /**
+   * Verifies all countersignatures of the message on the common pool. See
+   * {@link #verifyAll(CoseMessage, List, byte[], Executor)}.
+   */
+  public static void verifyAll(CoseMessage message, List<? extends CoseKey> keys,
+      byte[] externalAad) throws CborException, CoseException {
+    verifyAll(message, keys, externalAad, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Verifies all countersignatures of the message concurrently.
+   * @param keys one key per countersignature, in the order returned by
+   *     {@link #get(CoseMessage)}
+   * @param externalAad externally supplied data, may be null
+   * @param executor executor the verifications run on
+   * @throws CoseException if the number of keys does not match or a countersignature does not
+   *     verify. For several failures, the one of the first countersignature is thrown.
+   */
+  public static void verifyAll(CoseMessage message, List<? extends CoseKey> keys,
+      byte[] externalAad, Executor executor) throws CborException, CoseException {
+    ImmutableList<Signature> counterSignatures = get(message);
+    if (counterSignatures.size() != keys.size()) {
+      throw new CoseException("Expected " + counterSignatures.size() + " keys, received "
+          + keys.size());
+    }
+    // The fields shared by all countersignatures are computed once.
+    byte[] bodyProtectedHeaders = message.getEncodedProtectedHeaders();
+    byte[] payload = getPayload(message);
+    byte[][] otherFields = getOtherFields(message);
+    List<FutureTask<Void>> tasks = new ArrayList<>(counterSignatures.size());
+    for (int i = 0; i < counterSignatures.size(); i++) {
+      Signature counterSignature = counterSignatures.get(i);
+      CoseKey key = keys.get(i);
+      FutureTask<Void> task = new FutureTask<>(() -> {
+        Algorithm algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+            counterSignature.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+        CoseUtils.verifySignature(key, toBeSigned(bodyProtectedHeaders,
+            counterSignature.getEncodedProtectedHeaders(), externalAad, payload, otherFields),
+            counterSignature.getSignature(), algorithm);
+        return null;
+      });
+      tasks.add(task);
+      executor.execute(task);
+    }
+    for (FutureTask<Void> task : tasks) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CoseException("Interrupted while verifying countersignatures.", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof CoseException) {
+          throw (CoseException) e.getCause();
+        } else if (e.getCause() instanceof CborException) {
+          throw (CborException) e.getCause();
+        }
+        throw new CoseException("Error while verifying countersignatures.", e.getCause());
+      }
+    }
+  }
+
+  private static byte[] toBeSigned(byte[] bodyProtectedHeaders, byte[] signProtectedHeaders,
+      byte[] externalAad, byte[] payload, byte[][] otherFields) throws CborException {
+    return new SignStructure(SignatureContext.COUNTER_SIGNATURE_V2, bodyProtectedHeaders,
+        signProtectedHeaders, externalAad, payload, otherFields).serialize();
+  }
+
+  private static byte[] getPayload(CoseMessage message) throws CoseException {
+    byte[] payload;
+    if (message instanceof Sign1Message) {
+      payload = ((Sign1Message) message).getMessage();
+    } else if (message instanceof Mac0Message) {
+      payload = ((Mac0Message) message).getMessage();
+    } else if (message instanceof Encrypt0Message) {
+      payload = ((Encrypt0Message) message).getCiphertext();
+    } else {
+      throw new CoseException("Countersignatures are supported for Sign1, Mac0 and Encrypt0.");
+    }
+    if (payload == null) {
+      throw new CoseException("Cannot countersign a message with detached content.");
+    }
+    return payload;
+  }
+
+  private static byte[][] getOtherFields(CoseMessage message) {
+    if (message instanceof Sign1Message) {
+      return new byte[][] {((Sign1Message) message).getSignature()};
+    } else if (message instanceof Mac0Message) {
+      return new byte[][] {((Mac0Message) message).getTag()};
+    }
+    return null;
+  }
+
+  private static void addToHeaders(Map headers, Signature counterSignature)
+      throws CborException, CoseException {
+    UnsignedInteger label = new UnsignedInteger(Headers.MESSAGE_HEADER_COUNTER_SIGNATURE_V2);
+    DataItem existing = headers.get(label);
+    if (existing == null) {
+      headers.put(label, counterSignature.encode());
+      return;
+    }
+    Array existingArray = CborUtils.asArray(existing);
+    List<DataItem> items = existingArray.getDataItems();
+    if (!items.isEmpty() && items.get(0).getMajorType() == MajorType.ARRAY) {
+      existingArray.add(counterSignature.encode());
+    } else {
+      Array counterSignatures = new Array();
+      counterSignatures.add(existing);
+      counterSignatures.add(counterSignature.encode());
+      headers.put(label, counterSignatures);
+    }
+  }
+
+  /**
+   * Item boundaries of a serialized COSE_Sign1, COSE_Mac0 or COSE_Encrypt0 message, located
+   * without decoding the items.
+   */
+  private static final class RawMessage {
+    private final byte[] bytes;
+    private final int[] starts;
+    private final int[] ends;
+
+    private RawMessage(byte[] bytes, int[] starts, int[] ends) {
+      this.bytes = bytes;
+      this.starts = starts;
+      this.ends = ends;
+    }
+
+    static RawMessage parse(byte[] bytes) throws CborException, CoseException {
+      int offset = 0;
+      Integer tag = null;
+      while (offset < bytes.length && (bytes[offset] & 0xff) >>> 5 == MajorType.TAG.getValue()) {
+        tag = (int) argument(bytes, offset);
+        offset += headLength(bytes, offset);
+      }
+      if (offset >= bytes.length || (bytes[offset] & 0xff) >>> 5 != MajorType.ARRAY.getValue()) {
+        throw new CoseException("Message must be an array.");
+      }
+      int count = (int) argument(bytes, offset);
+      boolean supportedTag = tag == null || tag == Headers.MESSAGE_TAG_SIGN1
+          || tag == Headers.MESSAGE_TAG_MAC0 || tag == Headers.MESSAGE_TAG_ENCRYPT0;
+      if (!supportedTag || (count != 3 && count != 4) || (bytes[offset] & 0x1f) >= 24) {
+        throw new CoseException("Countersignatures are supported for Sign1, Mac0 and Encrypt0.");
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      buffer.position(offset + 1);
+      CborScanner scanner = new CborScanner(bytes.length);
+      int[] starts = new int[count];
+      int[] ends = new int[count];
+      for (int i = 0; i < count; i++) {
+        starts[i] = buffer.position();
+        scanner.reset();
+        if (!scanner.scan(buffer)) {
+          throw new CborException("Message is truncated.");
+        }
+        ends[i] = buffer.position();
+      }
+      if (buffer.hasRemaining()) {
+        throw new CborException("Unexpected data after the message.");
+      }
+      RawMessage raw = new RawMessage(bytes, starts, ends);
+      if (count == 4 && !raw.isByteString(3)) {
+        throw new CoseException("Countersignatures are supported for Sign1, Mac0 and Encrypt0.");
+      }
+      return raw;
+    }
+
+    int start(int item) {
+      return starts[item];
+    }
+
+    int end(int item) {
+      return ends[item];
+    }
+
+    byte[] slice(int item) {
+      return Arrays.copyOfRange(bytes, starts[item], ends[item]);
+    }
+
+    byte[] getBodyProtectedHeaders() throws CoseException {
+      return byteStringContent(0);
+    }
+
+    byte[] getPayload() throws CoseException {
+      if ((bytes[starts[2]] & 0xff) == 0xf6) {
+        throw new CoseException("Cannot countersign a message with detached content.");
+      }
+      return byteStringContent(2);
+    }
+
+    byte[][] getOtherFields() throws CoseException {
+      return (starts.length == 4) ? new byte[][] {byteStringContent(3)} : null;
+    }
+
+    private boolean isByteString(int item) {
+      return (bytes[starts[item]] & 0xff) >>> 5 == MajorType.BYTE_STRING.getValue()
+          && (bytes[starts[item]] & 0x1f) != 31;
+    }
+
+    private byte[] byteStringContent(int item) throws CoseException {
+      if (!isByteString(item)) {
+        throw new CoseException("Expected a definite length byte string.");
+      }
+      return Arrays.copyOfRange(bytes, starts[item] + headLength(bytes, starts[item]), ends[item]);
+    }
+
+    private static int headLength(byte[] bytes, int offset) {
+      int additionalInformation = bytes[offset] & 0x1f;
+      return (additionalInformation < 24) ? 1 : 1 + (1 << (additionalInformation - 24));
+    }
+
+    private static long argument(byte[] bytes, int offset) throws CborException {
+      int additionalInformation = bytes[offset] & 0x1f;
+      if (additionalInformation < 24) {
+        return additionalInformation;
+      } else if (additionalInformation > 27) {
+        throw new CborException("Unsupported additional information: " + additionalInformation);
+      }
+      int length = headLength(bytes, offset);
+      if (offset + length > bytes.length) {
+        throw new CborException("Message is truncated.");
+      }
+      long argument = 0;
+      for (int i = 1; i < length; i++) {
+        argument = (argument << 8) | (bytes[offset + i] & 0xff);
+      }
+      return argument;
+    }
+  }
+
+  // Avoiding instantiation of the class
+  private CounterSignatures() {}
+}
@@ -17,13 +17,25 @@
 package com.google.cose;
 
 import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
 import com.google.cose.utils.Headers;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPrivateKey;
+import javax.crypto.KeyAgreement;
 
 /** Implements EC2 COSE_Key spec for key wrapping purposes. */
 public final class Ec2KeyAgreementKey extends Ec2Key {
+  private static final int SIGN_POSITIVE = 1;
+
+  private final ECPrivateKey privateKey;
 
   public Ec2KeyAgreementKey(DataItem cborKey) throws CborException, CoseException {
     super(cborKey);
@@ -31,6 +43,17 @@ public final class Ec2KeyAgreementKey extends Ec2Key {
     if ((operations != null) && !operations.contains(Headers.KEY_OPERATIONS_WRAP_KEY)) {
       throw new CoseException("Wrapping key operation is needed for key agreement.");
     }
+
+    // An empty D parameter is tolerated since the private key is only needed on the side that
+    // derives the shared secret.
+    byte[] key = labels.containsKey(Headers.KEY_PARAMETER_D)
+        ? CborUtils.asByteString(labels.get(Headers.KEY_PARAMETER_D)).getBytes() : null;
+    if (key != null && key.length != 0) {
+      int curve = CborUtils.asInteger(labels.get(Headers.KEY_PARAMETER_CURVE));
+      privateKey = CoseUtils.getEc2PrivateKeyFromInteger(curve, new BigInteger(SIGN_POSITIVE, key));
+    } else {
+      privateKey = null;
+    }
   }
 
   public static Ec2KeyAgreementKey parse(byte[] keyBytes) throws CborException, CoseException {
@@ -39,10 +62,84 @@ public final class Ec2KeyAgreementKey extends Ec2Key {
   }
 
   public static Ec2KeyAgreementKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new Ec2KeyAgreementKey(cborKey);
+    return decodeKey(cborKey, Ec2KeyAgreementKey::new);
+  }
+
+  /** Returns the private key, or null if the key only holds public key material. */
+  ECPrivateKey getPrivateKey() {
+    return privateKey;
+  }
+
+  /**
+   * Computes the ECDH shared secret between the private key of this key and the public key of the
+   * peer.
+   * @param peer key holding the public key of the other party
+   * @return raw shared secret
+   * @throws CoseException if this key has no private key or the curves do not match
+   */
+  byte[] computeSharedSecret(Ec2KeyAgreementKey peer) throws CborException, CoseException {
+    if (privateKey == null) {
+      throw new CoseException("Missing key material for key agreement.");
+    }
+    if (CborUtils.asInteger(labels.get(Headers.KEY_PARAMETER_CURVE))
+        != CborUtils.asInteger(peer.labels.get(Headers.KEY_PARAMETER_CURVE))) {
+      throw new CoseException("Key agreement requires keys on the same curve.");
+    }
+    try {
+      KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+      keyAgreement.init(privateKey);
+      keyAgreement.doPhase(peer.getPublicKey(), true);
+      return keyAgreement.generateSecret();
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new CoseException("Error while computing shared secret.", e);
+    }
+  }
+
+  /** Returns a copy of this key that only holds the public key material. */
+  public Ec2KeyAgreementKey getPublicKeyOnly() throws CborException, CoseException {
+    Builder builder = Ec2KeyAgreementKey.builder()
+        .withCurve(CborUtils.asInteger(labels.get(Headers.KEY_PARAMETER_CURVE)))
+        .withXCoordinate(CborUtils.getBytes(labels.get(Headers.KEY_PARAMETER_X)))
+        .withYCoordinate(CborUtils.getBytes(labels.get(Headers.KEY_PARAMETER_Y)));
+    if (getKeyId() != null) {
+      builder.withKeyId(getKeyId());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Generates an Ec2 key agreement key with private key material on the given curve.
+   */
+  public static Ec2KeyAgreementKey generateKey(int curve) throws CborException, CoseException {
+    return generateKey(curve, null);
+  }
+
+  /**
+   * Generates an Ec2 key agreement key on the given curve, taking the key pair from the given pool
+   * instead of generating it on the calling thread. This is the typical source of ephemeral keys
+   * for ECDH-ES.
+   * @param curve one of the EC2 curves
+   * @param pool pool of pre-generated key pairs, may be null
+   * @return Ec2KeyAgreementKey with both private and public key material
+   */
+  public static Ec2KeyAgreementKey generateKey(int curve, EphemeralKeyPool pool)
+      throws CborException, CoseException {
+    if (curve != Headers.CURVE_EC2_P256 && curve != Headers.CURVE_EC2_P384
+        && curve != Headers.CURVE_EC2_P521) {
+      throw new CoseException(CoseException.UNSUPPORTED_CURVE_EXCEPTION_MESSAGE);
+    }
+    EphemeralKeyPool.KeyMaterial material = EphemeralKeyPool.takeOrGenerate(pool, curve);
+    return Ec2KeyAgreementKey.builder()
+        .withDParameter(material.getD())
+        .withXCoordinate(material.getX())
+        .withYCoordinate(material.getY())
+        .withCurve(curve)
+        .build();
   }
 
   public static class Builder extends Ec2Key.Builder<Builder> {
+    private byte[] dParameter;
+
     @Override
     public Builder self() {
       return this;
@@ -50,7 +147,16 @@ public final class Ec2KeyAgreementKey extends Ec2Key {
 
     @Override
     public Ec2KeyAgreementKey build() throws CborException, CoseException {
-      return new Ec2KeyAgreementKey(compile());
+      Map cborKey = compile();
+      if (dParameter != null) {
+        cborKey.put(new NegativeInteger(Headers.KEY_PARAMETER_D), new ByteString(dParameter));
+      }
+      return new Ec2KeyAgreementKey(cborKey);
+    }
+
+    public Builder withDParameter(byte[] dParameter) {
+      this.dParameter = dParameter;
+      return this;
     }
 
     @Override
@@ -22,15 +22,15 @@ import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
 import com.google.cose.utils.Headers;
 import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
@@ -38,12 +38,11 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
-import java.security.spec.ECGenParameterSpec;
-import java.security.spec.ECPoint;
 
 /** Implements EC2 COSE_Key spec for signing purposes. */
 public final class Ec2SigningKey extends Ec2Key {
   private static final int SIGN_POSITIVE = 1;
+  private static final String PREHASHED_ECDSA = "NONEwithECDSA";
 
   private KeyPair keyPair;
 
@@ -110,7 +109,7 @@ public final class Ec2SigningKey extends Ec2Key {
   }
 
   public static Ec2SigningKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new Ec2SigningKey(cborKey);
+    return decodeKey(cborKey, Ec2SigningKey::new);
   }
 
   @Override
@@ -118,88 +117,50 @@ public final class Ec2SigningKey extends Ec2Key {
     return (ECPublicKey) this.keyPair.getPublic();
   }
 
-  // Big endian: Do not reuse for little endian encodings
-  private static byte[] arrayFromBigNum(BigInteger num, int keySize)
-      throws IllegalArgumentException {
-    // Roundup arithmetic from bits to bytes.
-    byte[] keyBytes = new byte[(keySize + 7) / 8];
-    byte[] keyBytes2 = num.toByteArray();
-    if (keyBytes.length == keyBytes2.length) {
-      return keyBytes2;
-    }
-    if (keyBytes2.length > keyBytes.length) {
-      // There should be no more than one padding(0) byte, invalid key otherwise.
-      if (keyBytes2.length - keyBytes.length > 1 && keyBytes2[0] != 0) {
-        throw new IllegalArgumentException();
-      }
-      System.arraycopy(keyBytes2, keyBytes2.length - keyBytes.length, keyBytes, 0, keyBytes.length);
-    } else {
-      System.arraycopy(
-          keyBytes2, 0, keyBytes, keyBytes.length - keyBytes2.length, keyBytes2.length);
-    }
-    return keyBytes;
-  }
-
   /**
    * Generates a COSE formatted Ec2 signing key given a specific algorithm. The selected key size is
    * chosen based on section 6.2.1 of RFC 5656
    */
   public static Ec2SigningKey generateKey(Algorithm algorithm) throws CborException, CoseException {
-    KeyPair keyPair;
-    int keySize;
-    int header;
-    String curveName;
+    return generateKey(algorithm, null);
+  }
 
+  /**
+   * Generates a COSE formatted Ec2 signing key given a specific algorithm, taking the key pair from
+   * the given pool instead of generating it on the calling thread.
+   * @param algorithm signing algorithm the key is generated for
+   * @param pool pool of pre-generated key pairs, may be null
+   * @return Ec2SigningKey with both private and public key material
+   */
+  public static Ec2SigningKey generateKey(Algorithm algorithm, EphemeralKeyPool pool)
+      throws CborException, CoseException {
+    int header;
     switch (algorithm) {
       case SIGNING_ALGORITHM_ECDSA_SHA_256:
-        curveName = "secp256r1";
-        keySize = 256;
         header = Headers.CURVE_EC2_P256;
         break;
 
       case SIGNING_ALGORITHM_ECDSA_SHA_384:
-        curveName = "secp384r1";
-        keySize = 384;
         header = Headers.CURVE_EC2_P384;
         break;
 
       case SIGNING_ALGORITHM_ECDSA_SHA_512:
-        curveName = "secp521r1";
-        keySize = 521;
         header = Headers.CURVE_EC2_P521;
         break;
 
       default:
         throw new CoseException("Unsupported algorithm curve: " + algorithm.getJavaAlgorithmId());
     }
-    try {
-      ECGenParameterSpec paramSpec = new ECGenParameterSpec(curveName);
-      KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
-      gen.initialize(paramSpec);
-      keyPair = gen.genKeyPair();
-
-      ECPoint pubPoint = ((ECPublicKey) keyPair.getPublic()).getW();
-      byte[] x = arrayFromBigNum(pubPoint.getAffineX(), keySize);
-      byte[] y = arrayFromBigNum(pubPoint.getAffineY(), keySize);
-
-      byte[] privEncodedKey = keyPair.getPrivate().getEncoded();
-
-      return Ec2SigningKey.builder()
-          .withPrivateKeyRepresentation()
-          .withPkcs8EncodedBytes(privEncodedKey)
-          .withXCoordinate(x)
-          .withYCoordinate(y)
-          .withCurve(header)
-          .withAlgorithm(algorithm)
-          .build();
-    } catch (NoSuchAlgorithmException e) {
-      throw new CoseException("No provider for algorithm: " + algorithm.getJavaAlgorithmId(), e);
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new CoseException("The curve is not supported: " + algorithm.getJavaAlgorithmId(), e);
-    } catch (IllegalArgumentException e) {
-      throw new CoseException(
-          "Invalid Coordinates generated for: " + algorithm.getJavaAlgorithmId(), e);
-    }
+    EphemeralKeyPool.KeyMaterial material = EphemeralKeyPool.takeOrGenerate(pool, header);
+
+    return Ec2SigningKey.builder()
+        .withPrivateKeyRepresentation()
+        .withDParameter(material.getD())
+        .withXCoordinate(material.getX())
+        .withYCoordinate(material.getY())
+        .withCurve(header)
+        .withAlgorithm(algorithm)
+        .build();
   }
 
   /** Implements builder for Ec2SigningKey. */
@@ -287,6 +248,8 @@ public final class Ec2SigningKey extends Ec2Key {
     verifyAlgorithmAllowedByKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_SIGN);
 
+    long start = Metrics.start();
+    boolean success = false;
     try {
       Signature signature;
       if (provider == null) {
@@ -296,10 +259,14 @@ public final class Ec2SigningKey extends Ec2Key {
       }
       signature.initSign(keyPair.getPrivate());
       signature.update(message);
-      return signature.sign();
+      byte[] result = signature.sign();
+      success = true;
+      return result;
     } catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException
         | NoSuchProviderException e) {
       throw new CoseException("Error while signing message.", e);
+    } finally {
+      Metrics.record(Operation.SIGN, algorithm, getKeyType(), message.length, start, success);
     }
   }
 
@@ -309,6 +276,8 @@ public final class Ec2SigningKey extends Ec2Key {
     verifyAlgorithmAllowedByKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_VERIFY);
 
+    long start = Metrics.start();
+    boolean success = false;
     try {
       Signature signer;
       if (provider == null) {
@@ -321,9 +290,161 @@ public final class Ec2SigningKey extends Ec2Key {
       if (!signer.verify(signature)) {
         throw new CoseException("Failed verification.");
       }
+      success = true;
+    } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeyException
+        | SignatureException e) {
+      throw new CoseException("Error while verifying ", e);
+    } finally {
+      Metrics.record(Operation.VERIFY, algorithm, getKeyType(), message.length, start, success);
+    }
+  }
+
+  /**
+   * Signs a precomputed digest of the ToBeSigned bytes with NONEwithECDSA. The digest has to be
+   * computed with the hash function of the algorithm, e.g. SHA-256 for ES256, so the signature is
+   * identical in form to the one produced by {@link #sign(Algorithm, byte[], String)}.
+   * @param algorithm ECDSA signing algorithm
+   * @param digest hash of the ToBeSigned bytes
+   * @param provider JCA provider, may be null
+   * @return signature in DER format
+   */
+  public byte[] signDigest(Algorithm algorithm, byte[] digest, String provider)
+      throws CborException, CoseException {
+    if (keyPair.getPrivate() == null) {
+      throw new CoseException("Missing key material for signing.");
+    }
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyAlgorithmAllowedByKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_SIGN);
+    verifyDigestLength(algorithm, digest);
+
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      Signature signature;
+      if (provider == null) {
+        signature = Signature.getInstance(PREHASHED_ECDSA);
+      } else {
+        signature = Signature.getInstance(PREHASHED_ECDSA, provider);
+      }
+      signature.initSign(keyPair.getPrivate());
+      signature.update(digest);
+      byte[] result = signature.sign();
+      success = true;
+      return result;
+    } catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException
+        | NoSuchProviderException e) {
+      throw new CoseException("Error while signing message.", e);
+    } finally {
+      Metrics.record(Operation.SIGN, algorithm, getKeyType(), digest.length, start, success);
+    }
+  }
+
+  /**
+   * Verifies a DER format signature against a precomputed digest of the ToBeSigned bytes.
+   * @param algorithm ECDSA signing algorithm
+   * @param digest hash of the ToBeSigned bytes
+   * @param signature signature in DER format
+   * @param provider JCA provider, may be null
+   * @throws CoseException if the signature does not verify
+   */
+  public void verifyDigest(Algorithm algorithm, byte[] digest, byte[] signature, String provider)
+      throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyAlgorithmAllowedByKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_VERIFY);
+    verifyDigestLength(algorithm, digest);
+
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      Signature signer;
+      if (provider == null) {
+        signer = Signature.getInstance(PREHASHED_ECDSA);
+      } else {
+        signer = Signature.getInstance(PREHASHED_ECDSA, provider);
+      }
+      signer.initVerify(keyPair.getPublic());
+      signer.update(digest);
+      if (!signer.verify(signature)) {
+        throw new CoseException("Failed verification.");
+      }
+      success = true;
     } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeyException
         | SignatureException e) {
       throw new CoseException("Error while verifying ", e);
+    } finally {
+      Metrics.record(Operation.VERIFY, algorithm, getKeyType(), digest.length, start, success);
+    }
+  }
+
+  private static void verifyDigestLength(Algorithm algorithm, byte[] digest)
+      throws CoseException {
+    int expected;
+    switch (algorithm) {
+      case SIGNING_ALGORITHM_ECDSA_SHA_256:
+        expected = 32;
+        break;
+      case SIGNING_ALGORITHM_ECDSA_SHA_384:
+        expected = 48;
+        break;
+      case SIGNING_ALGORITHM_ECDSA_SHA_512:
+        expected = 64;
+        break;
+      default:
+        throw new CoseException("Unsupported algorithm for digest signing: " + algorithm);
+    }
+    if (digest.length != expected) {
+      throw new CoseException("Digest length " + digest.length + " does not match " + algorithm);
+    }
+  }
+
+  /**
+   * Returns a JCA Signature initialized for signing with this key. Used by callers that feed the
+   * ToBeSigned bytes in several parts instead of a single array.
+   * @param provider JCA provider, may be null
+   */
+  Signature initSign(Algorithm algorithm, String provider) throws CborException, CoseException {
+    if (keyPair.getPrivate() == null) {
+      throw new CoseException("Missing key material for signing.");
+    }
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyAlgorithmAllowedByKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_SIGN);
+    try {
+      Signature signature;
+      if (provider == null) {
+        signature = Signature.getInstance(algorithm.getJavaAlgorithmId());
+      } else {
+        signature = Signature.getInstance(algorithm.getJavaAlgorithmId(), provider);
+      }
+      signature.initSign(keyPair.getPrivate());
+      return signature;
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchProviderException e) {
+      throw new CoseException("Error while signing message.", e);
+    }
+  }
+
+  /**
+   * Returns a JCA Signature initialized for verifying with this key. Used by callers that feed
+   * the ToBeSigned bytes in several parts instead of a single array.
+   * @param provider JCA provider, may be null
+   */
+  Signature initVerify(Algorithm algorithm, String provider) throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyAlgorithmAllowedByKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_VERIFY);
+    try {
+      Signature signature;
+      if (provider == null) {
+        signature = Signature.getInstance(algorithm.getJavaAlgorithmId());
+      } else {
+        signature = Signature.getInstance(algorithm.getJavaAlgorithmId(), provider);
+      }
+      signature.initVerify(keyPair.getPublic());
+      return signature;
+    } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeyException e) {
+      throw new CoseException("Error while verifying ", e);
     }
   }
 }
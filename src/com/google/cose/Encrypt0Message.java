@@ -36,18 +36,25 @@ import java.util.List;
 public class Encrypt0Message extends CoseMessage {
   byte[] ciphertext;
 
-  private Encrypt0Message(Map protectedHeaders, Map unprotectedHeaders, byte[] ciphertext) {
-    super(protectedHeaders, unprotectedHeaders);
+  private Encrypt0Message(Map protectedHeaders, byte[] encodedProtectedHeaders,
+      Map unprotectedHeaders, byte[] ciphertext) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.ciphertext = ciphertext;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] ciphertext;
     public Encrypt0Message build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null)) {
-        return new Encrypt0Message(protectedHeaders, unprotectedHeaders, ciphertext);
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null)) {
+        return new Encrypt0Message(headers, encodedProtectedHeaders, unprotectedHeaders,
+            ciphertext);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -55,6 +62,24 @@ public class Encrypt0Message extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(byte[] encodedProtectedHeaders) throws CborException {
+      this.protectedHeaders = CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders);
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -81,8 +106,11 @@ public class Encrypt0Message extends CoseMessage {
      */
     public Builder generateCiphertext(EncryptionKey key, byte[] message, byte[] iv,
         byte[] externalAad, Algorithm algorithm) throws CborException, CoseException {
+      if (encodedProtectedHeaders == null) {
+        encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      }
       this.ciphertext = key.encrypt(algorithm, message, iv, new EncryptStructure(
-          EncryptionContext.ENCRYPT0, protectedHeaders, externalAad).serialize());
+          EncryptionContext.ENCRYPT0, encodedProtectedHeaders, externalAad).serialize());
       return this;
     }
   }
@@ -91,14 +119,19 @@ public class Encrypt0Message extends CoseMessage {
   public DataItem encode() throws CborException {
     ArrayBuilder<CborBuilder> encryptArrayBuilder = new CborBuilder().addArray();
     encryptArrayBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(getCiphertext());
     return encryptArrayBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_ENCRYPT0;
+  }
+
   public static Encrypt0Message deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, Encrypt0Message::decode);
   }
 
   public static Encrypt0Message decode(DataItem cborMessage) throws CborException, CoseException {
@@ -107,8 +140,9 @@ public class Encrypt0Message extends CoseMessage {
       throw new CoseException("Error while decoding Encrypt0Message. Expected 3 items,"
           + "received " + messageArray.size());
     }
+    byte[] protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
     return Encrypt0Message.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withCiphertext(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .build();
@@ -140,8 +174,8 @@ public class Encrypt0Message extends CoseMessage {
         findAttributeInUnprotectedHeaders(Headers.MESSAGE_HEADER_BASE_IV)
     );
     // generate aad out of the external aad.
-    byte[] aad = new EncryptStructure(EncryptionContext.ENCRYPT0, getProtectedHeaders(), externalAad)
-        .serialize();
+    byte[] aad = new EncryptStructure(EncryptionContext.ENCRYPT0, getEncodedProtectedHeaders(),
+        externalAad).serialize();
     return key.decrypt(algorithm, ciphertext, iv, aad);
   }
 }
@@ -20,11 +20,17 @@ import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.CborException;
 import co.nstant.in.cbor.builder.ArrayBuilder;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
 import com.google.common.collect.ImmutableList;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.structure.EncryptStructure;
+import com.google.cose.structure.EncryptStructure.EncryptionContext;
+import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -35,23 +41,31 @@ import java.util.List;
 public class EncryptMessage extends CoseMessage {
   private final byte[] ciphertext;
   private final ImmutableList<Recipient> recipients;
+  // Built on first use. RecipientIndex is immutable, so racing threads at worst build it twice.
+  private volatile RecipientIndex recipientIndex;
 
-  EncryptMessage(Map protectedHeaders, Map unprotectedHeaders, byte[] ciphertext,
-      ImmutableList<Recipient> recipients) {
-    super(protectedHeaders, unprotectedHeaders);
+  EncryptMessage(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders,
+      byte[] ciphertext, ImmutableList<Recipient> recipients) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.ciphertext = ciphertext;
     this.recipients = recipients;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] ciphertext;
     private ImmutableList<Recipient> recipients;
 
     public EncryptMessage build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null) && (recipients.size() != 0)) {
-        return new EncryptMessage(protectedHeaders, unprotectedHeaders, ciphertext, recipients);
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null) && (recipients.size() != 0)) {
+        return new EncryptMessage(headers, encodedProtectedHeaders, unprotectedHeaders,
+            ciphertext, recipients);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -59,6 +73,24 @@ public class EncryptMessage extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -86,7 +118,7 @@ public class EncryptMessage extends CoseMessage {
   public DataItem encode() throws CborException, CoseException {
     ArrayBuilder<CborBuilder> encryptArrayBuilder = new CborBuilder().addArray();
     encryptArrayBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(ciphertext);
     ArrayBuilder<ArrayBuilder<CborBuilder>> recipientArrayBuilder = encryptArrayBuilder.addArray();
@@ -103,11 +135,25 @@ public class EncryptMessage extends CoseMessage {
     return encryptArrayBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_ENCRYPT;
+  }
+
   public static EncryptMessage deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, EncryptMessage::decode);
   }
 
   public static EncryptMessage decode(DataItem cborMessage) throws CborException, CoseException {
+    return decode(cborMessage, null, null);
+  }
+
+  /**
+   * Decodes the message with protected headers that {@link CoseMessage#decodeAny} already decoded
+   * from its first item. If they are null, they are decoded here.
+   */
+  static EncryptMessage decode(DataItem cborMessage, Map protectedHeaders,
+      byte[] protectedHeaderBytes) throws CborException, CoseException {
     List<DataItem> messageArray = CborUtils.asArray(cborMessage).getDataItems();
     if (messageArray.size() != 4) {
       throw new CoseException("Error while decoding EncryptMessage. Expected 4 items,"
@@ -120,8 +166,12 @@ public class EncryptMessage extends CoseMessage {
       recipients.add(decode);
     }
 
+    if (protectedHeaders == null) {
+      protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
+      protectedHeaders = CoseUtils.asProtectedHeadersMap(protectedHeaderBytes);
+    }
     return EncryptMessage.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaders, protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withCiphertext(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .withRecipients(recipients)
@@ -136,6 +186,77 @@ public class EncryptMessage extends CoseMessage {
     return recipients;
   }
 
+  /**
+   * Decrypts the message with the key of one of its recipients. Recipients carrying the key id of
+   * the key are used directly. Otherwise at most {@code RecipientIndex.DEFAULT_MAX_TRIALS}
+   * recipients without a key id are tried.
+   * @param key EncryptionKey for direct key usage, KeyWrapKey for AES key wrap or private key
+   *     agreement key for ECDH-ES + AES key wrap
+   * @param externalAad externally supplied data, may be null
+   * @param algorithm content encryption algorithm, read from the protected headers if null
+   * @return decrypted payload
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if no recipient could be opened with the key or decryption fails
+   */
+  public byte[] decrypt(CoseKey key, byte[] externalAad, Algorithm algorithm)
+      throws CborException, CoseException {
+    return decrypt(key, externalAad, algorithm, RecipientIndex.DEFAULT_MAX_TRIALS);
+  }
+
+  /**
+   * Same as {@link #decrypt(CoseKey, byte[], Algorithm)} with a custom bound on the number of
+   * recipients without a matching key id that are tried.
+   */
+  public byte[] decrypt(CoseKey key, byte[] externalAad, Algorithm algorithm, int maxTrials)
+      throws CborException, CoseException {
+    if (algorithm == null) {
+      algorithm = Algorithm.fromCoseAlgorithmId(
+          CborUtils.asInteger(findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+      if (algorithm == null) {
+        throw new CoseException("Unsupported algorithm in the protected headers.");
+      }
+    }
+    DataItem iv = CoseUtils.getValueFromMap(getUnprotectedHeaders(),
+        Headers.MESSAGE_HEADER_BASE_IV);
+    if (iv == null) {
+      iv = CoseUtils.getValueFromMap(getProtectedHeaders(), Headers.MESSAGE_HEADER_BASE_IV);
+    }
+    if (iv == null || iv.getMajorType() != MajorType.BYTE_STRING) {
+      throw new CoseException("Missing IV.");
+    }
+    if (ciphertext == null) {
+      throw new CoseException("Missing ciphertext.");
+    }
+    byte[] aad = new EncryptStructure(EncryptionContext.ENCRYPT, getEncodedProtectedHeaders(),
+        externalAad).serialize();
+
+    CoseException lastFailure = null;
+    List<Recipient> candidates =
+        getRecipientIndex().candidates(key, EncryptionKey.class, maxTrials);
+    for (Recipient recipient : candidates) {
+      try {
+        EncryptionKey contentKey = recipient.isDirect()
+            ? (EncryptionKey) key
+            : EncryptionKey.builder().withSecretKey(recipient.unwrapKey(key, null)).build();
+        return contentKey.decrypt(algorithm, ciphertext, CborUtils.asByteString(iv).getBytes(),
+            aad);
+      } catch (CoseException e) {
+        lastFailure = e;
+      }
+    }
+    throw new CoseException("Could not decrypt the message with any recipient.", lastFailure);
+  }
+
+  private RecipientIndex getRecipientIndex() throws CborException {
+    RecipientIndex index = recipientIndex;
+    Metrics.recordCacheAccess(Metrics.CACHE_RECIPIENT_INDEX, index != null);
+    if (index == null) {
+      index = new RecipientIndex(recipients);
+      recipientIndex = index;
+    }
+    return index;
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -23,6 +23,8 @@ import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.Headers;
@@ -67,7 +69,7 @@ public final class EncryptionKey extends CoseKey {
   }
 
   public static EncryptionKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new EncryptionKey(cborKey);
+    return decodeKey(cborKey, EncryptionKey::new);
   }
 
   public static class Builder extends CoseKey.Builder<Builder> {
@@ -115,6 +117,15 @@ public final class EncryptionKey extends CoseKey {
     return new Builder();
   }
 
+  /**
+   * Returns the key spec for the given algorithm, for callers that keep their own Cipher and
+   * encrypt or decrypt many messages with it. Callers check the key operation themselves.
+   */
+  SecretKeySpec getSecretKeySpec(Algorithm algorithm) throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    return new SecretKeySpec(secretKey, algorithm.getJavaAlgorithmId());
+  }
+
   private byte[] aesGcmCipher(int mode, Algorithm algorithm, byte[] message, byte[] iv, byte[] aad)
       throws IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
       InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
@@ -132,11 +143,17 @@ public final class EncryptionKey extends CoseKey {
       throws CborException, CoseException {
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_ENCRYPT);
+    long start = Metrics.start();
+    boolean success = false;
     try {
-      return aesGcmCipher(Cipher.ENCRYPT_MODE, algorithm, message, iv, aad);
+      byte[] ciphertext = aesGcmCipher(Cipher.ENCRYPT_MODE, algorithm, message, iv, aad);
+      success = true;
+      return ciphertext;
     } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException
         | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
       throw new CoseException("Error while encrypting message.", e);
+    } finally {
+      Metrics.record(Operation.ENCRYPT, algorithm, getKeyType(), message.length, start, success);
     }
   }
 
@@ -144,11 +161,17 @@ public final class EncryptionKey extends CoseKey {
       throws CborException, CoseException {
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_DECRYPT);
+    long start = Metrics.start();
+    boolean success = false;
     try {
-      return aesGcmCipher(Cipher.DECRYPT_MODE, algorithm, ciphertext, iv, aad);
+      byte[] plaintext = aesGcmCipher(Cipher.DECRYPT_MODE, algorithm, ciphertext, iv, aad);
+      success = true;
+      return plaintext;
     } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException
         | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
       throw new CoseException("Error while decrypting message.", e);
+    } finally {
+      Metrics.record(Operation.DECRYPT, algorithm, getKeyType(), ciphertext.length, start, success);
     }
   }
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import com.google.crypto.tink.subtle.Ed25519Sign;
+import com.google.crypto.tink.subtle.X25519;
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of pre-generated key pairs that can be used as ephemeral keys for key agreement or handed
+ * out by the generateKey functions of the key classes.
+ *
+ * <p>Key pairs are generated per curve on a background executor. Whenever the number of available
+ * key pairs for a curve drops below the low watermark, the pool is refilled up to the high
+ * watermark. A key pair is removed from the pool when it is handed out, so it is never returned
+ * twice. If the pool for a curve runs dry, the key pair is generated on the calling thread.
+ */
+public final class EphemeralKeyPool implements Closeable {
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final ImmutableMap<Integer, CurvePool> pools;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  private EphemeralKeyPool(int lowWatermark, int highWatermark, Set<Integer> curves,
+      Executor executor) {
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    if (executor == null) {
+      this.ownedExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cose-ephemeral-key-pool");
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.executor = ownedExecutor;
+    } else {
+      this.ownedExecutor = null;
+      this.executor = executor;
+    }
+
+    ImmutableMap.Builder<Integer, CurvePool> pools = ImmutableMap.builder();
+    for (int curve : curves) {
+      pools.put(curve, new CurvePool(curve));
+    }
+    this.pools = pools.build();
+    for (CurvePool pool : this.pools.values()) {
+      pool.scheduleRefill();
+    }
+  }
+
+  /** Raw key material for a single generated key pair. */
+  static final class KeyMaterial {
+    private final int curve;
+    private final byte[] d;
+    private final byte[] x;
+    private final byte[] y;
+
+    private KeyMaterial(int curve, byte[] d, byte[] x, byte[] y) {
+      this.curve = curve;
+      this.d = d;
+      this.x = x;
+      this.y = y;
+    }
+
+    int getCurve() {
+      return curve;
+    }
+
+    byte[] getD() {
+      return d;
+    }
+
+    byte[] getX() {
+      return x;
+    }
+
+    byte[] getY() {
+      return y;
+    }
+  }
+
+  private final class CurvePool {
+    private final int curve;
+    private final ConcurrentLinkedQueue<KeyMaterial> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+    CurvePool(int curve) {
+      this.curve = curve;
+    }
+
+    KeyMaterial poll() {
+      KeyMaterial material = queue.poll();
+      if (material != null) {
+        size.decrementAndGet();
+      }
+      if (size.get() < lowWatermark) {
+        scheduleRefill();
+      }
+      return material;
+    }
+
+    void scheduleRefill() {
+      if (closed.get() || !refilling.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        executor.execute(this::refill);
+      } catch (RejectedExecutionException e) {
+        refilling.set(false);
+      }
+    }
+
+    private void refill() {
+      try {
+        while (!closed.get() && size.get() < highWatermark) {
+          queue.add(generate(curve));
+          size.incrementAndGet();
+        }
+      } catch (CoseException e) {
+        // Callers fall back to generating on their own thread and will see the failure there.
+      } finally {
+        refilling.set(false);
+      }
+    }
+  }
+
+  public static class Builder {
+    private int lowWatermark = 4;
+    private int highWatermark = 16;
+    private final Set<Integer> curves = new LinkedHashSet<>();
+    private Executor executor;
+
+    public EphemeralKeyPool build() throws CoseException {
+      if (lowWatermark < 0 || highWatermark <= 0 || lowWatermark > highWatermark) {
+        throw new CoseException("Watermarks must satisfy 0 <= low <= high and high > 0.");
+      }
+      Set<Integer> curves = this.curves;
+      if (curves.isEmpty()) {
+        curves = new LinkedHashSet<>(Arrays.asList(Headers.CURVE_EC2_P256, Headers.CURVE_EC2_P384,
+            Headers.CURVE_EC2_P521, Headers.CURVE_OKP_X25519, Headers.CURVE_OKP_ED25519));
+      }
+      return new EphemeralKeyPool(lowWatermark, highWatermark, curves, executor);
+    }
+
+    public Builder withLowWatermark(int lowWatermark) {
+      this.lowWatermark = lowWatermark;
+      return this;
+    }
+
+    public Builder withHighWatermark(int highWatermark) {
+      this.highWatermark = highWatermark;
+      return this;
+    }
+
+    public Builder withCurves(Integer...curves) throws CoseException {
+      for (int curve : curves) {
+        if (!isSupportedCurve(curve)) {
+          throw new CoseException(CoseException.UNSUPPORTED_CURVE_EXCEPTION_MESSAGE);
+        }
+      }
+      this.curves.addAll(Arrays.asList(curves));
+      return this;
+    }
+
+    /**
+     * Sets the executor used for background key generation. If not set, the pool creates a
+     * single daemon thread which is stopped when the pool is closed.
+     */
+    public Builder withExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Removes a key pair for the given curve from the pool. The key pair is generated on the calling
+   * thread if the pool for the curve is currently empty.
+   * @param curve COSE curve identifier
+   * @return raw key material of a key pair that has not been handed out before
+   * @throws CoseException if the curve is not configured for this pool or key generation fails
+   */
+  KeyMaterial take(int curve) throws CoseException {
+    CurvePool pool = pools.get(curve);
+    if (pool == null) {
+      throw new CoseException("Curve " + curve + " is not configured for this key pool.");
+    }
+    KeyMaterial material = pool.poll();
+    Metrics.recordCacheAccess(Metrics.CACHE_EPHEMERAL_KEY_POOL, material != null);
+    if (material == null) {
+      material = generate(curve);
+    }
+    return material;
+  }
+
+  /**
+   * Returns the number of key pairs currently available for the given curve.
+   */
+  public int available(int curve) {
+    CurvePool pool = pools.get(curve);
+    return (pool == null) ? 0 : pool.size.get();
+  }
+
+  public int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  public int getHighWatermark() {
+    return highWatermark;
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (ownedExecutor != null) {
+        ownedExecutor.shutdownNow();
+      }
+      for (CurvePool pool : pools.values()) {
+        pool.queue.clear();
+        pool.size.set(0);
+      }
+    }
+  }
+
+  /**
+   * Returns key material from the pool if one is provided, otherwise generates it right away.
+   */
+  static KeyMaterial takeOrGenerate(EphemeralKeyPool pool, int curve) throws CoseException {
+    if (pool == null) {
+      return generate(curve);
+    }
+    return pool.take(curve);
+  }
+
+  private static boolean isSupportedCurve(int curve) {
+    switch (curve) {
+      case Headers.CURVE_EC2_P256:
+      case Headers.CURVE_EC2_P384:
+      case Headers.CURVE_EC2_P521:
+      case Headers.CURVE_OKP_X25519:
+      case Headers.CURVE_OKP_ED25519:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static KeyMaterial generate(int curve) throws CoseException {
+    switch (curve) {
+      case Headers.CURVE_EC2_P256:
+        return generateEc2(curve, 256);
+      case Headers.CURVE_EC2_P384:
+        return generateEc2(curve, 384);
+      case Headers.CURVE_EC2_P521:
+        return generateEc2(curve, 521);
+      case Headers.CURVE_OKP_ED25519:
+        try {
+          Ed25519Sign.KeyPair keyPair = Ed25519Sign.KeyPair.newKeyPair();
+          return new KeyMaterial(curve, keyPair.getPrivateKey(), keyPair.getPublicKey(), null);
+        } catch (GeneralSecurityException e) {
+          throw new CoseException("Error while generating key pair: ", e);
+        }
+      case Headers.CURVE_OKP_X25519:
+        try {
+          byte[] privateKey = X25519.generatePrivateKey();
+          return new KeyMaterial(curve, privateKey, X25519.publicFromPrivate(privateKey), null);
+        } catch (GeneralSecurityException e) {
+          throw new CoseException("Error while generating key pair: ", e);
+        }
+      default:
+        throw new CoseException(CoseException.UNSUPPORTED_CURVE_EXCEPTION_MESSAGE);
+    }
+  }
+
+  private static KeyMaterial generateEc2(int curve, int keySize) throws CoseException {
+    try {
+      KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+      gen.initialize(new ECGenParameterSpec(CoseUtils.getEc2CoseCurveName(curve)));
+      KeyPair keyPair = gen.genKeyPair();
+
+      ECPoint pubPoint = ((ECPublicKey) keyPair.getPublic()).getW();
+      return new KeyMaterial(
+          curve,
+          ((ECPrivateKey) keyPair.getPrivate()).getS().toByteArray(),
+          arrayFromBigNum(pubPoint.getAffineX(), keySize),
+          arrayFromBigNum(pubPoint.getAffineY(), keySize));
+    } catch (NoSuchAlgorithmException e) {
+      throw new CoseException("No provider for EC key generation.", e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new CoseException("The curve is not supported: " + curve, e);
+    } catch (IllegalArgumentException e) {
+      throw new CoseException("Invalid Coordinates generated for curve: " + curve, e);
+    }
+  }
+
+  // Big endian: Do not reuse for little endian encodings
+  private static byte[] arrayFromBigNum(BigInteger num, int keySize)
+      throws IllegalArgumentException {
+    // Roundup arithmetic from bits to bytes.
+    byte[] keyBytes = new byte[(keySize + 7) / 8];
+    byte[] keyBytes2 = num.toByteArray();
+    if (keyBytes.length == keyBytes2.length) {
+      return keyBytes2;
+    }
+    if (keyBytes2.length > keyBytes.length) {
+      // There should be no more than one padding(0) byte, invalid key otherwise.
+      if (keyBytes2.length - keyBytes.length > 1 && keyBytes2[0] != 0) {
+        throw new IllegalArgumentException();
+      }
+      System.arraycopy(keyBytes2, keyBytes2.length - keyBytes.length, keyBytes, 0, keyBytes.length);
+    } else {
+      System.arraycopy(
+          keyBytes2, 0, keyBytes, keyBytes.length - keyBytes2.length, keyBytes2.length);
+    }
+    return keyBytes;
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnicodeString;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Signs and verifies COSE_Sign1 hash envelopes, where the payload is the digest of the actual
+ * content.
+ *
+ * <p>The hash algorithm and, optionally, the content type of the preimage and its location are
+ * recorded in the protected headers. The content is hashed where it is stored, so the signer only
+ * needs the digest and the cost of signing does not depend on the size of the content.
+ *
+ * <p>The digest is either the plain digest of the content or a {@link TreeHash}, whose parameters
+ * are then recorded in the protected headers as well. Verification picks the matching function.
+ *
+ * <pre>{@code
+ * byte[] digest = HashEnvelope.hash(Algorithm.HASH_SHA_256, artifactPath);
+ * // On the signing host:
+ * Sign1Message envelope = HashEnvelope.sign(key, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256,
+ *     protectedHeaders, new Map(), Algorithm.HASH_SHA_256, digest, "application/zip", null, null);
+ * // Later:
+ * HashEnvelope.verify(key, envelope, artifactPath, null);
+ * }</pre>
+ */
+public final class HashEnvelope {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Hashes the content with one of the SHA-2 hash algorithms. */
+  public static byte[] hash(Algorithm hashAlgorithm, byte[] content) throws CoseException {
+    return CoseUtils.getMessageDigest(hashAlgorithm).digest(content);
+  }
+
+  /** Hashes the remaining bytes of the stream. The stream is not closed. */
+  public static byte[] hash(Algorithm hashAlgorithm, InputStream content)
+      throws IOException, CoseException {
+    MessageDigest digest = CoseUtils.getMessageDigest(hashAlgorithm);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = content.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+    return digest.digest();
+  }
+
+  /** Hashes the content of the file. */
+  public static byte[] hash(Algorithm hashAlgorithm, Path content)
+      throws IOException, CoseException {
+    MessageDigest digest = CoseUtils.getMessageDigest(hashAlgorithm);
+    // A direct buffer lets the channel read without an intermediate copy.
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Creates a hash envelope over the digest of the content.
+   * @param key Ec2SigningKey or OkpSigningKey
+   * @param algorithm signing algorithm
+   * @param protectedHeaders protected headers, the hash envelope headers are added to a copy
+   * @param unprotectedHeaders unprotected headers
+   * @param hashAlgorithm algorithm the digest was computed with
+   * @param digest digest of the content
+   * @param contentType content type of the content, may be null
+   * @param payloadLocation location the content can be retrieved from, may be null
+   * @param externalAad externally supplied data, may be null
+   * @return Sign1Message with the digest as payload
+   * @throws CoseException if the digest length does not match the hash algorithm or signing fails
+   */
+  public static Sign1Message sign(CoseKey key, Algorithm algorithm, Map protectedHeaders,
+      Map unprotectedHeaders, Algorithm hashAlgorithm, byte[] digest, String contentType,
+      String payloadLocation, byte[] externalAad) throws CborException, CoseException {
+    if (digest == null
+        || digest.length != CoseUtils.getMessageDigest(hashAlgorithm).getDigestLength()) {
+      throw new CoseException("Digest length does not match the hash algorithm.");
+    }
+    Map headers = new Map();
+    for (DataItem label : protectedHeaders.getKeys()) {
+      headers.put(label, protectedHeaders.get(label));
+    }
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_PAYLOAD_HASH_ALGORITHM),
+        hashAlgorithm.getCoseAlgorithmId());
+    if (contentType != null) {
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_PREIMAGE_CONTENT_TYPE),
+          new UnicodeString(contentType));
+    }
+    if (payloadLocation != null) {
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_PAYLOAD_LOCATION),
+          new UnicodeString(payloadLocation));
+    }
+    return CoseUtils.generateCoseSign1(key, headers, unprotectedHeaders, digest, null,
+        externalAad, algorithm);
+  }
+
+  /**
+   * Verifies the signature of the envelope and that the content matches the digest.
+   * @throws CoseException if the signature does not verify or the content does not match
+   */
+  public static void verify(CoseKey key, Sign1Message envelope, byte[] content,
+      byte[] externalAad) throws CborException, CoseException {
+    Algorithm hashAlgorithm = verifySignature(key, envelope, externalAad);
+    TreeHash treeHash = TreeHash.fromHeaders(envelope.getProtectedHeaders(), null);
+    verifyDigest(envelope,
+        (treeHash != null) ? treeHash.hash(content) : hash(hashAlgorithm, content));
+  }
+
+  /**
+   * Verifies the signature of the envelope and that the remaining bytes of the stream match the
+   * digest. The content is only read if the signature verifies.
+   */
+  public static void verify(CoseKey key, Sign1Message envelope, InputStream content,
+      byte[] externalAad) throws CborException, CoseException, IOException {
+    Algorithm hashAlgorithm = verifySignature(key, envelope, externalAad);
+    TreeHash treeHash = TreeHash.fromHeaders(envelope.getProtectedHeaders(), null);
+    verifyDigest(envelope,
+        (treeHash != null) ? treeHash.hash(content) : hash(hashAlgorithm, content));
+  }
+
+  /**
+   * Verifies the signature of the envelope and that the file content matches the digest. The
+   * file is only read if the signature verifies.
+   */
+  public static void verify(CoseKey key, Sign1Message envelope, Path content,
+      byte[] externalAad) throws CborException, CoseException, IOException {
+    Algorithm hashAlgorithm = verifySignature(key, envelope, externalAad);
+    TreeHash treeHash = TreeHash.fromHeaders(envelope.getProtectedHeaders(), null);
+    verifyDigest(envelope,
+        (treeHash != null) ? treeHash.hash(content) : hash(hashAlgorithm, content));
+  }
+
+  /** Returns the hash algorithm of the envelope. */
+  public static Algorithm getHashAlgorithm(Sign1Message envelope)
+      throws CborException, CoseException {
+    Algorithm hashAlgorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        envelope.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_PAYLOAD_HASH_ALGORITHM)));
+    if (hashAlgorithm == null) {
+      throw new CoseException("Unsupported hash algorithm.");
+    }
+    return hashAlgorithm;
+  }
+
+  /** Returns the content type of the preimage, or null if it is not set. */
+  public static String getContentType(Sign1Message envelope) throws CborException {
+    return getOptionalString(envelope, Headers.MESSAGE_HEADER_PREIMAGE_CONTENT_TYPE);
+  }
+
+  /** Returns the location of the preimage, or null if it is not set. */
+  public static String getPayloadLocation(Sign1Message envelope) throws CborException {
+    return getOptionalString(envelope, Headers.MESSAGE_HEADER_PAYLOAD_LOCATION);
+  }
+
+  private static Algorithm verifySignature(CoseKey key, Sign1Message envelope,
+      byte[] externalAad) throws CborException, CoseException {
+    Algorithm hashAlgorithm = getHashAlgorithm(envelope);
+    if (envelope.getMessage() == null) {
+      throw new CoseException("Hash envelope has no digest.");
+    }
+    CoseUtils.verifyCoseSign1Message(key, envelope, null, externalAad, null);
+    return hashAlgorithm;
+  }
+
+  private static void verifyDigest(Sign1Message envelope, byte[] digest) throws CoseException {
+    if (!MessageDigest.isEqual(envelope.getMessage(), digest)) {
+      throw new CoseException("Content does not match the digest of the hash envelope.");
+    }
+  }
+
+  private static String getOptionalString(Sign1Message envelope, int label)
+      throws CborException {
+    DataItem item = CoseUtils.getValueFromMap(envelope.getProtectedHeaders(), label);
+    return (item != null) ? CborUtils.getString(item) : null;
+  }
+
+  // Avoiding instantiation of the class
+  private HashEnvelope() {}
+}
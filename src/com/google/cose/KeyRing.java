@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the active key used to create messages and the previous keys still accepted when
+ * verifying or decrypting, and rotates them at runtime.
+ *
+ * <p>The keys are published as an immutable snapshot through an atomic reference. Lookups read the
+ * reference once and never lock, rotation copies the snapshot and swaps it in with a compare and
+ * set. Lookups by key id are counted with a {@link LongAdder}, so concurrent verifications update
+ * separate cells. Uses of the active key for creating messages are counted exactly, and once they
+ * reach the configured usage limit, e.g. the invocation limit of AES-GCM, the rotation listener is
+ * called so that a new key can be rotated in.
+ *
+ * <p>All keys need a key id, which is how messages select the key they were created with.
+ * @param <K> type of the keys, e.g. MacKey, EncryptionKey or Ec2SigningKey
+ */
+public final class KeyRing<K extends CoseKey> {
+  public static final int DEFAULT_MAX_KEYS = 8;
+
+  /** Called when the active key reached the usage limit. */
+  @FunctionalInterface
+  public interface RotationListener<K extends CoseKey> {
+    /**
+     * Called once per key, on the thread whose use reached the limit. Implementations typically
+     * generate a new key and call {@link KeyRing#rotate(CoseKey)}, possibly on another thread.
+     */
+    void onUsageLimitReached(KeyRing<K> keyRing, K key, long usageCount);
+  }
+
+  private static final class Entry<K extends CoseKey> {
+    private final K key;
+    // Uses through resolve, which do not count towards the usage limit.
+    private final LongAdder resolutions = new LongAdder();
+    // Uses through useActiveKey. Counted exactly, so the limit is reported exactly once.
+    private final AtomicLong activeUses = new AtomicLong();
+
+    Entry(K key) {
+      this.key = key;
+    }
+  }
+
+  private static final class Snapshot<K extends CoseKey> {
+    private final Entry<K> active;
+    // Newest first, starting with the active key.
+    private final ImmutableList<Entry<K>> entries;
+    private final ImmutableMap<ByteBuffer, Entry<K>> entriesByKeyId;
+
+    Snapshot(ImmutableList<Entry<K>> entries) {
+      this.active = entries.get(0);
+      this.entries = entries;
+      ImmutableMap.Builder<ByteBuffer, Entry<K>> byKeyId = ImmutableMap.builder();
+      for (Entry<K> entry : entries) {
+        byKeyId.put(ByteBuffer.wrap(entry.key.getKeyId()), entry);
+      }
+      this.entriesByKeyId = byKeyId.build();
+    }
+  }
+
+  private final AtomicReference<Snapshot<K>> snapshot;
+  private final int maxKeys;
+  private final long usageLimit;
+  private final RotationListener<K> rotationListener;
+
+  private KeyRing(Snapshot<K> snapshot, int maxKeys, long usageLimit,
+      RotationListener<K> rotationListener) {
+    this.snapshot = new AtomicReference<>(snapshot);
+    this.maxKeys = maxKeys;
+    this.usageLimit = usageLimit;
+    this.rotationListener = rotationListener;
+  }
+
+  public static class Builder<K extends CoseKey> {
+    private K activeKey;
+    private final List<K> previousKeys = new ArrayList<>();
+    private int maxKeys = DEFAULT_MAX_KEYS;
+    private long usageLimit = Long.MAX_VALUE;
+    private RotationListener<K> rotationListener;
+
+    public KeyRing<K> build() throws CoseException {
+      if (activeKey == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (maxKeys <= 0) {
+        throw new CoseException("A key ring holds at least one key.");
+      }
+      if (usageLimit <= 0) {
+        throw new CoseException("Usage limit must be positive.");
+      }
+      List<Entry<K>> entries = new ArrayList<>();
+      entries.add(new Entry<>(activeKey));
+      for (K key : previousKeys) {
+        entries.add(new Entry<>(key));
+      }
+      return new KeyRing<>(createSnapshot(entries, maxKeys), maxKeys, usageLimit,
+          rotationListener);
+    }
+
+    /** Sets the key returned for creating messages. */
+    public Builder<K> withActiveKey(K activeKey) {
+      this.activeKey = activeKey;
+      return this;
+    }
+
+    /** Adds keys that are only used for verifying or decrypting, newest first. */
+    @SafeVarargs
+    public final Builder<K> withPreviousKeys(K... previousKeys) {
+      for (K key : previousKeys) {
+        this.previousKeys.add(key);
+      }
+      return this;
+    }
+
+    /**
+     * Sets the number of keys kept including the active key. The oldest keys are dropped on
+     * rotation. Defaults to {@link #DEFAULT_MAX_KEYS}.
+     */
+    public Builder<K> withMaxKeys(int maxKeys) {
+      this.maxKeys = maxKeys;
+      return this;
+    }
+
+    /**
+     * Sets the number of calls to {@link KeyRing#useActiveKey()} on the same key after which the
+     * rotation listener is called. Lookups by key id do not count towards the limit.
+     */
+    public Builder<K> withUsageLimit(long usageLimit) {
+      this.usageLimit = usageLimit;
+      return this;
+    }
+
+    public Builder<K> withRotationListener(RotationListener<K> rotationListener) {
+      this.rotationListener = rotationListener;
+      return this;
+    }
+  }
+
+  public static <K extends CoseKey> Builder<K> builder() {
+    return new Builder<>();
+  }
+
+  /** Returns the active key without counting a use. */
+  public K getActiveKey() {
+    return snapshot.get().active.key;
+  }
+
+  /**
+   * Returns the active key for creating a message and counts the use.
+   */
+  public K useActiveKey() {
+    Entry<K> entry = snapshot.get().active;
+    long uses = entry.activeUses.incrementAndGet();
+    if (uses == usageLimit && rotationListener != null) {
+      rotationListener.onUsageLimitReached(this, entry.key, uses);
+    }
+    return entry.key;
+  }
+
+  /**
+   * Returns the key with the given key id and counts the use, or null if the ring holds no such
+   * key. The use does not count towards the usage limit.
+   */
+  public K resolve(byte[] keyId) {
+    Entry<K> entry = snapshot.get().entriesByKeyId.get(ByteBuffer.wrap(keyId));
+    if (entry == null) {
+      return null;
+    }
+    entry.resolutions.increment();
+    return entry.key;
+  }
+
+  /**
+   * Returns the key named by the key id header of the message and counts the use, or null if the
+   * message has no key id or the ring holds no such key. The unprotected headers are searched
+   * first. Can be used as the key resolver of a {@code CosePipeline}.
+   */
+  public K resolve(CoseMessage message) throws CborException {
+    DataItem keyId = CoseUtils.getValueFromMap(message.getUnprotectedHeaders(),
+        Headers.MESSAGE_HEADER_KEY_ID);
+    if (keyId == null) {
+      keyId = CoseUtils.getValueFromMap(message.getProtectedHeaders(),
+          Headers.MESSAGE_HEADER_KEY_ID);
+    }
+    return (keyId == null) ? null : resolve(CborUtils.asByteString(keyId).getBytes());
+  }
+
+  /**
+   * Makes the key the active key. The previously active key stays available for verifying and
+   * decrypting, the oldest key is dropped if the ring is full.
+   * @throws CoseException if the key has no key id or one already in the ring
+   */
+  public void rotate(K newActiveKey) throws CoseException {
+    Entry<K> newEntry = new Entry<>(newActiveKey);
+    Snapshot<K> current;
+    Snapshot<K> next;
+    do {
+      current = snapshot.get();
+      List<Entry<K>> entries = new ArrayList<>();
+      entries.add(newEntry);
+      entries.addAll(current.entries);
+      next = createSnapshot(entries, maxKeys);
+    } while (!snapshot.compareAndSet(current, next));
+  }
+
+  /**
+   * Removes a key that is no longer accepted.
+   * @return false if the ring holds no key with the key id
+   * @throws CoseException if the key is the active key
+   */
+  public boolean retire(byte[] keyId) throws CoseException {
+    ByteBuffer id = ByteBuffer.wrap(keyId);
+    Snapshot<K> current;
+    Snapshot<K> next;
+    do {
+      current = snapshot.get();
+      Entry<K> entry = current.entriesByKeyId.get(id);
+      if (entry == null) {
+        return false;
+      }
+      if (entry == current.active) {
+        throw new CoseException("The active key cannot be retired, rotate first.");
+      }
+      List<Entry<K>> entries = new ArrayList<>(current.entries);
+      entries.remove(entry);
+      next = new Snapshot<>(ImmutableList.copyOf(entries));
+    } while (!snapshot.compareAndSet(current, next));
+    return true;
+  }
+
+  /** Returns all keys, starting with the active key followed by the previous keys newest first. */
+  public ImmutableList<K> getKeys() {
+    ImmutableList.Builder<K> keys = ImmutableList.builder();
+    for (Entry<K> entry : snapshot.get().entries) {
+      keys.add(entry.key);
+    }
+    return keys.build();
+  }
+
+  /** Returns the number of counted uses of the key, or 0 if the ring holds no such key. */
+  public long getUsageCount(byte[] keyId) {
+    Entry<K> entry = snapshot.get().entriesByKeyId.get(ByteBuffer.wrap(keyId));
+    return (entry == null) ? 0 : entry.resolutions.sum() + entry.activeUses.get();
+  }
+
+  private static <K extends CoseKey> Snapshot<K> createSnapshot(List<Entry<K>> entries,
+      int maxKeys) throws CoseException {
+    List<ByteBuffer> keyIds = new ArrayList<>();
+    for (Entry<K> entry : entries) {
+      byte[] keyId = entry.key.getKeyId();
+      if (keyId == null || keyId.length == 0) {
+        throw new CoseException("Keys in a key ring need a key id.");
+      }
+      if (keyIds.contains(ByteBuffer.wrap(keyId))) {
+        throw new CoseException("Duplicate key id in key ring.");
+      }
+      keyIds.add(ByteBuffer.wrap(keyId));
+    }
+    return new Snapshot<>(ImmutableList.copyOf(
+        entries.subList(0, Math.min(entries.size(), maxKeys))));
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.Headers;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Implements COSE_Key spec for AES key wrap (RFC 3394) purposes. Used by recipients to wrap and
+ * unwrap the content encryption key.
+ */
+public final class KeyWrapKey extends CoseKey {
+  private static final String AES_KEY_WRAP_TRANSFORMATION = "AESWrap";
+  // Cipher.getInstance is comparatively expensive, so every thread keeps its own instance around
+  // and only re-initializes it with the key for each operation.
+  private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<>();
+
+  private final byte[] secretKey;
+
+  private KeyWrapKey(final DataItem cborKey) throws CborException, CoseException {
+    super(cborKey);
+    if (labels.containsKey(Headers.KEY_PARAMETER_K)
+        && labels.get(Headers.KEY_PARAMETER_K).getMajorType() == MajorType.BYTE_STRING) {
+      byte[] keyMaterial = CborUtils.asByteString(labels.get(Headers.KEY_PARAMETER_K)).getBytes();
+      if (keyMaterial.length == 0) {
+        throw new CoseException("Missing key material information.");
+      } else {
+        secretKey = keyMaterial;
+      }
+    } else {
+      throw new CoseException("Missing key material information.");
+    }
+
+    if ((operations != null)
+        && !operations.contains(Headers.KEY_OPERATIONS_WRAP_KEY)
+        && !operations.contains(Headers.KEY_OPERATIONS_UNWRAP_KEY)) {
+      throw new CoseException("Key wrap key requires either wrap key or unwrap key operation.");
+    }
+  }
+
+  public static KeyWrapKey parse(byte[] keyBytes) throws CborException, CoseException {
+    return decode(CborUtils.decode(keyBytes));
+  }
+
+  public static KeyWrapKey decode(DataItem cborKey) throws CborException, CoseException {
+    return decodeKey(cborKey, KeyWrapKey::new);
+  }
+
+  public static class Builder extends CoseKey.Builder<Builder> {
+    private byte[] secretKey;
+
+    @Override
+    Builder self() {
+      return this;
+    }
+
+    @Override
+    void verifyKeyMaterialPresentAndComplete() throws CoseException {
+      if (secretKey == null) {
+        throw new CoseException("Missing key material information.");
+      }
+    }
+
+    @Override
+    public KeyWrapKey build() throws CborException, CoseException {
+      withKeyType(Headers.KEY_TYPE_SYMMETRIC);
+      Map cborKey = compile();
+
+      cborKey.put(new NegativeInteger(Headers.KEY_PARAMETER_K), new ByteString(secretKey));
+      return new KeyWrapKey(cborKey);
+    }
+
+    @Override
+    public Builder withOperations(Integer...operations) throws CoseException {
+      for (int operation : operations) {
+        if (operation != Headers.KEY_OPERATIONS_WRAP_KEY
+            && operation != Headers.KEY_OPERATIONS_UNWRAP_KEY) {
+          throw new CoseException("Key wrap key only supports Wrap Key or Unwrap Key operations.");
+        }
+      }
+      return super.withOperations(operations);
+    }
+
+    public Builder withSecretKey(byte[] k) {
+      this.secretKey = k;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Wraps the content encryption key with this key.
+   * @param algorithm one of the AES key wrap algorithms
+   * @param contentKey raw bytes of the key to be wrapped
+   * @return wrapped key bytes
+   */
+  public byte[] wrap(Algorithm algorithm, byte[] contentKey) throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_WRAP_KEY);
+    verifyKeyLength(algorithm, secretKey);
+    return aesKeyWrap(secretKey, contentKey);
+  }
+
+  /**
+   * Unwraps a content encryption key wrapped with this key.
+   * @param algorithm one of the AES key wrap algorithms
+   * @param wrappedKey wrapped key bytes
+   * @return raw bytes of the unwrapped key
+   */
+  public byte[] unwrap(Algorithm algorithm, byte[] wrappedKey) throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_UNWRAP_KEY);
+    verifyKeyLength(algorithm, secretKey);
+    return aesKeyUnwrap(secretKey, wrappedKey);
+  }
+
+  /**
+   * Returns the length of the key encryption key in bytes for the key wrap algorithms, including
+   * the ECDH-ES variants.
+   */
+  static int getKeyWrapKeyLength(Algorithm algorithm) throws CoseException {
+    switch (algorithm) {
+      case AES_KEY_WRAP_128:
+      case ECDH_ES_AES_KEY_WRAP_128:
+        return 16;
+      case AES_KEY_WRAP_192:
+      case ECDH_ES_AES_KEY_WRAP_192:
+        return 24;
+      case AES_KEY_WRAP_256:
+      case ECDH_ES_AES_KEY_WRAP_256:
+        return 32;
+      default:
+        throw new CoseException("Unsupported key wrap algorithm: " + algorithm);
+    }
+  }
+
+  private static void verifyKeyLength(Algorithm algorithm, byte[] key) throws CoseException {
+    if (algorithm != Algorithm.AES_KEY_WRAP_128 && algorithm != Algorithm.AES_KEY_WRAP_192
+        && algorithm != Algorithm.AES_KEY_WRAP_256) {
+      throw new CoseException("Incompatible key wrap algorithm: " + algorithm);
+    }
+    if (key.length != getKeyWrapKeyLength(algorithm)) {
+      throw new CoseException("Key length does not match the key wrap algorithm.");
+    }
+  }
+
+  private static Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Cipher cipher = CIPHER.get();
+    Metrics.recordCacheAccess(Metrics.CACHE_KEY_WRAP_CIPHER, cipher != null);
+    if (cipher == null) {
+      cipher = Cipher.getInstance(AES_KEY_WRAP_TRANSFORMATION);
+      CIPHER.set(cipher);
+    }
+    return cipher;
+  }
+
+  static byte[] aesKeyWrap(byte[] keyEncryptionKey, byte[] contentKey) throws CoseException {
+    if (contentKey.length < 16 || contentKey.length % 8 != 0) {
+      throw new CoseException("Key to be wrapped must be a multiple of 8 bytes and at least 16.");
+    }
+    try {
+      Cipher cipher = getCipher();
+      cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(keyEncryptionKey, "AES"));
+      return cipher.wrap(new SecretKeySpec(contentKey, "AES"));
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+        | IllegalBlockSizeException e) {
+      throw new CoseException("Error while wrapping key.", e);
+    }
+  }
+
+  static byte[] aesKeyUnwrap(byte[] keyEncryptionKey, byte[] wrappedKey) throws CoseException {
+    try {
+      Cipher cipher = getCipher();
+      cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(keyEncryptionKey, "AES"));
+      return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY).getEncoded();
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new CoseException("Error while unwrapping key.", e);
+    }
+  }
+}
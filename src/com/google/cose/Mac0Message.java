@@ -24,6 +24,7 @@ import co.nstant.in.cbor.model.Map;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.List;
 
 /**
@@ -33,20 +34,27 @@ public class Mac0Message extends CoseMessage {
   private final byte[] message;
   private final byte[] tag;
 
-  Mac0Message(Map protectedHeaders, Map unprotectedHeaders, byte[] message, byte[] tag) {
-    super(protectedHeaders, unprotectedHeaders);
+  Mac0Message(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders,
+      byte[] message, byte[] tag) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.message = message;
     this.tag = tag;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] message;
     private byte[] tag;
     public Mac0Message build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null) && (tag != null)) {
-        return new Mac0Message(protectedHeaders, unprotectedHeaders, message, tag);
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null) && (tag != null)) {
+        return new Mac0Message(headers, encodedProtectedHeaders,
+            unprotectedHeaders, message, tag);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -54,6 +62,24 @@ public class Mac0Message extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -77,25 +103,43 @@ public class Mac0Message extends CoseMessage {
   public DataItem encode() throws CborException {
     ArrayBuilder<CborBuilder> macArrayBuilder = new CborBuilder().addArray();
     macArrayBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(message)
         .add(tag);
     return macArrayBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_MAC0;
+  }
+
   public static Mac0Message deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, Mac0Message::decode);
   }
 
   public static Mac0Message decode(DataItem cborMessage) throws CborException, CoseException {
+    return decode(cborMessage, null, null);
+  }
+
+  /**
+   * Decodes the message with protected headers that {@link CoseMessage#decodeAny} already decoded
+   * from its first item. If they are null, they are decoded here.
+   */
+  static Mac0Message decode(DataItem cborMessage, Map protectedHeaders,
+      byte[] protectedHeaderBytes) throws CborException, CoseException {
     List<DataItem> messageArray = CborUtils.asArray(cborMessage).getDataItems();
     if (messageArray.size() != 4) {
       throw new CoseException("Error while decoding Mac0Message. Expected 4 items,"
           + "received " + messageArray.size());
     }
+    if (protectedHeaders == null) {
+      protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
+      protectedHeaders = CoseUtils.asProtectedHeadersMap(protectedHeaderBytes);
+    }
     return Mac0Message.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaders, protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withMessage(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .withTag(CborUtils.asByteString(messageArray.get(3)).getBytes())
@@ -23,6 +23,8 @@ import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.Headers;
@@ -62,7 +64,7 @@ public final class MacKey extends CoseKey {
   }
 
   public static MacKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new MacKey(cborKey);
+    return decodeKey(cborKey, MacKey::new);
   }
 
   public static class Builder extends CoseKey.Builder<Builder> {
@@ -113,13 +115,14 @@ public final class MacKey extends CoseKey {
   public byte[] createMac(byte[] message, Algorithm algorithm) throws CborException, CoseException {
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_MAC_CREATE);
+    long start = Metrics.start();
+    boolean success = false;
     try {
-      Mac mac = Mac.getInstance(algorithm.getJavaAlgorithmId());
-      mac.init(new SecretKeySpec(secretKey, ""));
-      mac.update(message);
-      return mac.doFinal();
-    } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
-      throw new CoseException("Error while creating mac", ex);
+      byte[] tag = computeMac(message, algorithm);
+      success = true;
+      return tag;
+    } finally {
+      Metrics.record(Operation.MAC_CREATE, algorithm, getKeyType(), message.length, start, success);
     }
   }
 
@@ -127,6 +130,39 @@ public final class MacKey extends CoseKey {
       throws CborException, CoseException {
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_MAC_VERIFY);
-    return Arrays.equals(createMac(message, algorithm), tag);
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      success = Arrays.equals(computeMac(message, algorithm), tag);
+      return success;
+    } finally {
+      Metrics.record(Operation.MAC_VERIFY, algorithm, getKeyType(), message.length, start, success);
+    }
+  }
+
+  /**
+   * Returns a Mac initialized with this key, for callers that compute many tags and reuse the
+   * instance between them. Callers check the key operation themselves.
+   */
+  Mac initMac(Algorithm algorithm) throws CborException, CoseException {
+    verifyAlgorithmMatchesKey(algorithm);
+    try {
+      Mac mac = Mac.getInstance(algorithm.getJavaAlgorithmId());
+      mac.init(new SecretKeySpec(secretKey, ""));
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+      throw new CoseException("Error while creating mac", ex);
+    }
+  }
+
+  private byte[] computeMac(byte[] message, Algorithm algorithm) throws CoseException {
+    try {
+      Mac mac = Mac.getInstance(algorithm.getJavaAlgorithmId());
+      mac.init(new SecretKeySpec(secretKey, ""));
+      mac.update(message);
+      return mac.doFinal();
+    } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+      throw new CoseException("Error while creating mac", ex);
+    }
   }
 }
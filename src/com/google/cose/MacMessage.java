@@ -23,8 +23,13 @@ import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.Map;
 import com.google.common.collect.ImmutableList;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.structure.MacStructure;
+import com.google.cose.structure.MacStructure.MacContext;
+import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,10 +41,12 @@ public class MacMessage extends CoseMessage {
   protected ImmutableList<Recipient> recipients;
   private final byte[] message;
   private final byte[] tag;
+  // Built on first use. RecipientIndex is immutable, so racing threads at worst build it twice.
+  private volatile RecipientIndex recipientIndex;
 
-  MacMessage(Map protectedHeaders, Map unprotectedHeaders, byte[] message, byte[] tag,
-      ImmutableList<Recipient> recipients) {
-    super(protectedHeaders, unprotectedHeaders);
+  MacMessage(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders,
+      byte[] message, byte[] tag, ImmutableList<Recipient> recipients) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.message = message;
     this.tag = tag;
     this.recipients = recipients;
@@ -47,15 +54,21 @@ public class MacMessage extends CoseMessage {
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] message;
     private byte[] tag;
     private ImmutableList<Recipient> recipients;
 
     public MacMessage build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null) && (tag != null)
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null) && (tag != null)
           && (recipients.size() != 0)) {
-        return new MacMessage(protectedHeaders, unprotectedHeaders, message, tag, recipients);
+        return new MacMessage(headers, encodedProtectedHeaders,
+            unprotectedHeaders, message, tag, recipients);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -63,6 +76,24 @@ public class MacMessage extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(byte[] encodedProtectedHeaders) throws CborException {
+      this.protectedHeaders = CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders);
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -100,7 +131,7 @@ public class MacMessage extends CoseMessage {
 
     ArrayBuilder<CborBuilder> macArrayBuilder = new CborBuilder().addArray();
     macArrayBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(message)
         .add(tag);
@@ -114,8 +145,13 @@ public class MacMessage extends CoseMessage {
     return macArrayBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_MAC;
+  }
+
   public static MacMessage deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, MacMessage::decode);
   }
 
   public static MacMessage decode(DataItem cborMessage) throws CborException, CoseException {
@@ -130,8 +166,9 @@ public class MacMessage extends CoseMessage {
       Recipient decode = Recipient.decode(recipient);
       recipients.add(decode);
     }
+    byte[] protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
     return MacMessage.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withMessage(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .withTag(CborUtils.asByteString(messageArray.get(3)).getBytes())
@@ -147,6 +184,70 @@ public class MacMessage extends CoseMessage {
     return tag;
   }
 
+  public List<Recipient> getRecipients() {
+    return recipients;
+  }
+
+  /**
+   * Verifies the tag of the message with the key of one of its recipients. Recipients carrying the
+   * key id of the key are used directly. Otherwise at most
+   * {@code RecipientIndex.DEFAULT_MAX_TRIALS} recipients without a key id are tried.
+   * @param key MacKey for direct key usage, KeyWrapKey for AES key wrap or private key agreement
+   *     key for ECDH-ES + AES key wrap
+   * @param detachedContent content if the payload is detached, null otherwise
+   * @param externalAad externally supplied data, may be null
+   * @param algorithm mac algorithm, read from the protected headers if null
+   * @return true if the tag could be verified through one of the recipients
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if the message cannot be processed
+   */
+  public boolean verify(CoseKey key, byte[] detachedContent, byte[] externalAad,
+      Algorithm algorithm) throws CborException, CoseException {
+    return verify(key, detachedContent, externalAad, algorithm, RecipientIndex.DEFAULT_MAX_TRIALS);
+  }
+
+  /**
+   * Same as {@link #verify(CoseKey, byte[], byte[], Algorithm)} with a custom bound on the number
+   * of recipients without a matching key id that are tried.
+   */
+  public boolean verify(CoseKey key, byte[] detachedContent, byte[] externalAad,
+      Algorithm algorithm, int maxTrials) throws CborException, CoseException {
+    if (algorithm == null) {
+      algorithm = Algorithm.fromCoseAlgorithmId(
+          CborUtils.asInteger(findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+      if (algorithm == null) {
+        throw new CoseException("Unsupported algorithm in the protected headers.");
+      }
+    }
+    byte[] content = (message != null && message.length > 0) ? message : detachedContent;
+    byte[] toBeMaced = new MacStructure(MacContext.MAC, getEncodedProtectedHeaders(), externalAad,
+        content).serialize();
+
+    for (Recipient recipient : getRecipientIndex().candidates(key, MacKey.class, maxTrials)) {
+      try {
+        MacKey macKey = recipient.isDirect()
+            ? (MacKey) key
+            : MacKey.builder().withSecretKey(recipient.unwrapKey(key, null)).build();
+        if (macKey.verifyMac(toBeMaced, algorithm, tag)) {
+          return true;
+        }
+      } catch (CoseException e) {
+        // The key does not open this recipient, try the next one.
+      }
+    }
+    return false;
+  }
+
+  private RecipientIndex getRecipientIndex() throws CborException {
+    RecipientIndex index = recipientIndex;
+    Metrics.recordCacheAccess(Metrics.CACHE_RECIPIENT_INDEX, index != null);
+    if (index == null) {
+      index = new RecipientIndex(recipients);
+      recipientIndex = index;
+    }
+    return index;
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.structure.SignStructure.SignatureContext;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.List;
+
+/**
+ * Signs a batch of payloads with a single signature.
+ *
+ * <p>The payloads are hashed into a {@link MerkleTree} and the root is signed once, as the payload
+ * of a Sig_structure with the private context "MerkleBatchSignature1". Every payload is returned in
+ * its own COSE_Sign1 message carrying the shared signature, the hash algorithm of the tree in the
+ * protected headers and the inclusion proof of the payload in the unprotected headers. A batch of
+ * N payloads costs one signature and about 2N hashes.
+ *
+ * <p>The messages are verified with {@link MerkleBatchVerifier}. They do not verify as regular
+ * COSE_Sign1 messages, and neither does a message carrying the root as payload, since the context
+ * differs. The hash algorithm header is listed as critical, so that other implementations reject
+ * the messages instead of ignoring the header. Instances are immutable and can be shared between
+ * threads.
+ */
+public final class MerkleBatchSigner {
+  private final CoseKey key;
+  private final Algorithm algorithm;
+  private final Algorithm hashAlgorithm;
+  private final Map protectedHeaders;
+  private final byte[] encodedProtectedHeaders;
+  private final Map unprotectedHeaders;
+  private final byte[] externalAad;
+
+  private MerkleBatchSigner(CoseKey key, Algorithm algorithm, Algorithm hashAlgorithm,
+      Map protectedHeaders, Map unprotectedHeaders, byte[] externalAad)
+      throws CborException {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.hashAlgorithm = hashAlgorithm;
+    this.protectedHeaders = protectedHeaders;
+    this.encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+    this.unprotectedHeaders = unprotectedHeaders;
+    this.externalAad = externalAad;
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private Algorithm algorithm;
+    private Algorithm hashAlgorithm = Algorithm.HASH_SHA_256;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+
+    public MerkleBatchSigner build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (!(key instanceof Ec2SigningKey || key instanceof OkpSigningKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      // Fails early for unsupported hash algorithms.
+      CoseUtils.getMessageDigest(hashAlgorithm);
+
+      Map headers = new Map();
+      for (DataItem label : protectedHeaders.getKeys()) {
+        headers.put(label, protectedHeaders.get(label));
+      }
+      headers.put(new NegativeInteger(Headers.MESSAGE_HEADER_MERKLE_HASH_ALGORITHM),
+          hashAlgorithm.getCoseAlgorithmId());
+      UnsignedInteger criticalityLabel = new UnsignedInteger(Headers.MESSAGE_HEADER_CRITICALITY);
+      Array critical = new Array();
+      DataItem labels = protectedHeaders.get(criticalityLabel);
+      if (labels != null) {
+        for (DataItem label : CborUtils.asArray(labels).getDataItems()) {
+          critical.add(label);
+        }
+      }
+      critical.add(new NegativeInteger(Headers.MESSAGE_HEADER_MERKLE_HASH_ALGORITHM));
+      headers.put(criticalityLabel, critical);
+      return new MerkleBatchSigner(key, algorithm, hashAlgorithm, headers,
+          (unprotectedHeaders != null) ? unprotectedHeaders : new Map(), externalAad);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    /** Sets the hash algorithm of the tree, one of the SHA-2 algorithms. Defaults to SHA-256. */
+    public Builder withHashAlgorithm(Algorithm hashAlgorithm) {
+      this.hashAlgorithm = hashAlgorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    /** Sets unprotected headers copied into every message of a batch. Optional. */
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Signs the batch of payloads.
+   * @param payloads payloads in the order of the leaves of the tree
+   * @return one message per payload, in the same order
+   * @throws CoseException if the batch is empty or signing fails
+   */
+  public ImmutableList<Sign1Message> sign(List<byte[]> payloads)
+      throws CborException, CoseException {
+    MerkleTree tree = MerkleTree.build(hashAlgorithm, payloads);
+    byte[] toBeSigned = new SignStructure(SignatureContext.MERKLE_BATCH_SIGNATURE1,
+        encodedProtectedHeaders, null, externalAad, tree.getRoot()).serialize();
+    byte[] signature = CoseUtils.computeSignature(key, toBeSigned, algorithm);
+
+    ImmutableList.Builder<Sign1Message> messages = ImmutableList.builder();
+    for (int i = 0; i < payloads.size(); i++) {
+      Array siblings = new Array();
+      for (byte[] sibling : tree.getProof(i)) {
+        siblings.add(new ByteString(sibling));
+      }
+      Array proof = new Array();
+      proof.add(new UnsignedInteger(i));
+      proof.add(new UnsignedInteger(payloads.size()));
+      proof.add(siblings);
+
+      Map headers = new Map();
+      for (DataItem label : unprotectedHeaders.getKeys()) {
+        headers.put(label, unprotectedHeaders.get(label));
+      }
+      headers.put(new NegativeInteger(Headers.MESSAGE_HEADER_MERKLE_PROOF), proof);
+      messages.add(Sign1Message.builder()
+          .withSerializedProtectedHeaders(protectedHeaders, encodedProtectedHeaders)
+          .withUnprotectedHeaders(headers)
+          .withMessage(payloads.get(i))
+          .withSignature(signature)
+          .build());
+    }
+    return messages.build();
+  }
+}
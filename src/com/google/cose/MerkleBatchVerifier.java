@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.structure.SignStructure.SignatureContext;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies messages created by {@link MerkleBatchSigner}.
+ *
+ * <p>The inclusion proof of the payload is checked first, which yields the root of the batch. The
+ * signature over the root is only verified the first time a root is seen: verified roots are kept
+ * in a bounded least recently used cache, so the other messages of the batch cost a few hashes
+ * each. Instances are thread safe.
+ */
+public final class MerkleBatchVerifier {
+  public static final int DEFAULT_CACHE_SIZE = 1024;
+
+  private final CoseKey key;
+  private final byte[] externalAad;
+  private final Map<ByteBuffer, Boolean> verifiedRoots;
+
+  private MerkleBatchVerifier(CoseKey key, byte[] externalAad, int cacheSize) {
+    this.key = key;
+    this.externalAad = externalAad;
+    this.verifiedRoots = Collections.synchronizedMap(
+        new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > cacheSize;
+          }
+        });
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private byte[] externalAad;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    public MerkleBatchVerifier build() throws CoseException {
+      if (key == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (!(key instanceof Ec2SigningKey || key instanceof OkpSigningKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      if (cacheSize < 0) {
+        throw new CoseException("Cache size must not be negative.");
+      }
+      return new MerkleBatchVerifier(key, externalAad, cacheSize);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+
+    /**
+     * Sets the number of verified roots to remember. 0 disables the cache. Defaults to
+     * {@link #DEFAULT_CACHE_SIZE}.
+     */
+    public Builder withCacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Verifies the inclusion proof of the payload and the batch signature.
+   * @throws CborException if the headers were not parseable
+   * @throws CoseException if the proof or the signature does not verify
+   */
+  public void verify(Sign1Message message) throws CborException, CoseException {
+    if (message.getMessage() == null) {
+      throw new CoseException("Batch signed messages cannot have detached content.");
+    }
+    Algorithm algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+    Algorithm hashAlgorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_MERKLE_HASH_ALGORITHM)));
+    if (hashAlgorithm == null) {
+      throw new CoseException("Unsupported hash algorithm.");
+    }
+    List<DataItem> proof = CborUtils.asArray(
+        message.findAttributeInUnprotectedHeaders(Headers.MESSAGE_HEADER_MERKLE_PROOF))
+        .getDataItems();
+    if (proof.size() != 3) {
+      throw new CoseException("Inclusion proof must have 3 items.");
+    }
+    List<byte[]> siblings = new ArrayList<>();
+    for (DataItem sibling : CborUtils.asArray(proof.get(2)).getDataItems()) {
+      siblings.add(CborUtils.getBytes(sibling));
+    }
+    byte[] root = MerkleTree.computeRoot(hashAlgorithm, message.getMessage(),
+        CborUtils.asInteger(proof.get(0)), CborUtils.asInteger(proof.get(1)), siblings);
+
+    byte[] toBeSigned = new SignStructure(SignatureContext.MERKLE_BATCH_SIGNATURE1,
+        message.getEncodedProtectedHeaders(), null, externalAad, root).serialize();
+    ByteBuffer cacheKey = ByteBuffer.wrap(
+        CoseUtils.getMessageDigest(Algorithm.HASH_SHA_256).digest(
+            Bytes.concat(toBeSigned, message.getSignature())));
+    boolean hit = verifiedRoots.containsKey(cacheKey);
+    Metrics.recordCacheAccess(Metrics.CACHE_MERKLE_ROOT, hit);
+    if (!hit) {
+      CoseUtils.verifySignature(key, toBeSigned, message.getSignature(), algorithm);
+      verifiedRoots.put(cacheKey, Boolean.TRUE);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import com.google.common.collect.ImmutableList;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree over a batch of payloads with the hashing scheme of RFC 9162 section 2.1: leaves are
+ * hashed as H(0x00 || payload) and interior nodes as H(0x01 || left || right).
+ *
+ * <p>The tree is built bottom up. A node without sibling at the end of a level is promoted to the
+ * next level unchanged, which yields the same root as the recursive definition of RFC 9162.
+ */
+final class MerkleTree {
+  static final byte LEAF_PREFIX = 0x00;
+  private static final byte NODE_PREFIX = 0x01;
+
+  // levels.get(0) holds the leaf hashes, the last level holds the root.
+  private final List<byte[][]> levels;
+
+  private MerkleTree(List<byte[][]> levels) {
+    this.levels = levels;
+  }
+
+  static MerkleTree build(Algorithm hashAlgorithm, List<byte[]> payloads) throws CoseException {
+    if (payloads.isEmpty()) {
+      throw new CoseException("Cannot build a Merkle tree without leaves.");
+    }
+    MessageDigest digest = CoseUtils.getMessageDigest(hashAlgorithm);
+    byte[][] level = new byte[payloads.size()][];
+    for (int i = 0; i < level.length; i++) {
+      level[i] = leafHash(digest, payloads.get(i));
+    }
+    List<byte[][]> levels = new ArrayList<>();
+    levels.add(level);
+    while (level.length > 1) {
+      byte[][] next = new byte[(level.length + 1) / 2][];
+      for (int i = 0; i < level.length / 2; i++) {
+        next[i] = nodeHash(digest, level[2 * i], level[2 * i + 1]);
+      }
+      if (level.length % 2 != 0) {
+        next[next.length - 1] = level[level.length - 1];
+      }
+      levels.add(next);
+      level = next;
+    }
+    return new MerkleTree(levels);
+  }
+
+  byte[] getRoot() {
+    return levels.get(levels.size() - 1)[0];
+  }
+
+  int size() {
+    return levels.get(0).length;
+  }
+
+  /** Returns the sibling hashes from the leaf up to the root. */
+  ImmutableList<byte[]> getProof(int index) {
+    ImmutableList.Builder<byte[]> proof = ImmutableList.builder();
+    for (int i = 0; i < levels.size() - 1; i++) {
+      byte[][] level = levels.get(i);
+      int sibling = index ^ 1;
+      if (sibling < level.length) {
+        proof.add(level[sibling]);
+      }
+      index >>>= 1;
+    }
+    return proof.build();
+  }
+
+  /**
+   * Computes the root of a tree of the given size from a payload and its inclusion proof.
+   * @throws CoseException if the proof does not fit the index and size
+   */
+  static byte[] computeRoot(Algorithm hashAlgorithm, byte[] payload, long index, long size,
+      List<byte[]> proof) throws CoseException {
+    if (index < 0 || index >= size) {
+      throw new CoseException("Leaf index out of range.");
+    }
+    MessageDigest digest = CoseUtils.getMessageDigest(hashAlgorithm);
+    byte[] hash = leafHash(digest, payload);
+    int used = 0;
+    while (size > 1) {
+      if ((index & 1) != 0 || index + 1 < size) {
+        if (used == proof.size()) {
+          throw new CoseException("Inclusion proof is too short.");
+        }
+        byte[] sibling = proof.get(used++);
+        hash = ((index & 1) != 0)
+            ? nodeHash(digest, sibling, hash) : nodeHash(digest, hash, sibling);
+      }
+      index >>>= 1;
+      size = (size + 1) / 2;
+    }
+    if (used != proof.size()) {
+      throw new CoseException("Inclusion proof is too long.");
+    }
+    return hash;
+  }
+
+  static byte[] leafHash(MessageDigest digest, byte[] payload) {
+    digest.update(LEAF_PREFIX);
+    return digest.digest(payload);
+  }
+
+  static byte[] leafHash(MessageDigest digest, ByteBuffer payload) {
+    digest.update(LEAF_PREFIX);
+    digest.update(payload);
+    return digest.digest();
+  }
+
+  static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+    digest.update(NODE_PREFIX);
+    digest.update(left);
+    return digest.digest(right);
+  }
+}
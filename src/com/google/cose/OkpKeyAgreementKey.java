@@ -17,16 +17,23 @@
 package com.google.cose;
 
 import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.Headers;
+import com.google.crypto.tink.subtle.X25519;
+import java.security.InvalidKeyException;
 
 /**
  * Implements OKP COSE_Key spec for key wrapping purposes.
  * Currently, only supports X25519 curve.
  */
 public final class OkpKeyAgreementKey extends OkpKey {
+  private final byte[] privateKeyBytes;
+
   public OkpKeyAgreementKey(DataItem cborKey) throws CborException, CoseException {
     super(cborKey);
 
@@ -38,6 +45,12 @@ public final class OkpKeyAgreementKey extends OkpKey {
     if ((operations != null) && !operations.contains(Headers.KEY_OPERATIONS_WRAP_KEY)) {
       throw new CoseException("Only wrap key operation supported with this key.");
     }
+
+    // An empty D parameter is tolerated since the private key is only needed on the side that
+    // derives the shared secret.
+    byte[] keyMaterial = labels.containsKey(Headers.KEY_PARAMETER_D)
+        ? CborUtils.asByteString(labels.get(Headers.KEY_PARAMETER_D)).getBytes() : null;
+    privateKeyBytes = (keyMaterial != null && keyMaterial.length != 0) ? keyMaterial : null;
   }
 
   public static OkpKeyAgreementKey parse(byte[] keyBytes) throws CborException, CoseException {
@@ -46,10 +59,65 @@ public final class OkpKeyAgreementKey extends OkpKey {
   }
 
   public static OkpKeyAgreementKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new OkpKeyAgreementKey(cborKey);
+    return decodeKey(cborKey, OkpKeyAgreementKey::new);
+  }
+
+  /** Returns the private key bytes, or null if the key only holds public key material. */
+  byte[] getPrivateKeyBytes() {
+    return privateKeyBytes;
+  }
+
+  /**
+   * Computes the X25519 shared secret between the private key of this key and the public key of
+   * the peer.
+   * @param peer key holding the public key of the other party
+   * @return raw shared secret
+   * @throws CoseException if this key has no private key or the peer key is invalid
+   */
+  byte[] computeSharedSecret(OkpKeyAgreementKey peer) throws CoseException {
+    if (privateKeyBytes == null) {
+      throw new CoseException("Missing key material for key agreement.");
+    }
+    try {
+      return X25519.computeSharedSecret(privateKeyBytes, peer.getPublicKeyBytes());
+    } catch (InvalidKeyException e) {
+      throw new CoseException("Error while computing shared secret.", e);
+    }
+  }
+
+  /** Returns a copy of this key that only holds the public key material. */
+  public OkpKeyAgreementKey getPublicKeyOnly() throws CborException, CoseException {
+    Builder builder = OkpKeyAgreementKey.builder().withXCoordinate(getPublicKeyBytes());
+    if (getKeyId() != null) {
+      builder.withKeyId(getKeyId());
+    }
+    return builder.build();
+  }
+
+  /** Generates an X25519 key agreement key with private key material. */
+  public static OkpKeyAgreementKey generateKey() throws CborException, CoseException {
+    return generateKey((EphemeralKeyPool) null);
+  }
+
+  /**
+   * Generates an X25519 key agreement key, taking the key pair from the given pool instead of
+   * generating it on the calling thread. This is the typical source of ephemeral keys for ECDH-ES.
+   * @param pool pool of pre-generated key pairs, may be null
+   * @return OkpKeyAgreementKey with both private and public key material
+   */
+  public static OkpKeyAgreementKey generateKey(EphemeralKeyPool pool)
+      throws CborException, CoseException {
+    EphemeralKeyPool.KeyMaterial material =
+        EphemeralKeyPool.takeOrGenerate(pool, Headers.CURVE_OKP_X25519);
+    return OkpKeyAgreementKey.builder()
+        .withXCoordinate(material.getX())
+        .withDParameter(material.getD())
+        .build();
   }
 
   public static class Builder extends OkpKey.Builder<Builder> {
+    private byte[] dParameter;
+
     @Override
     public Builder self() {
       return this;
@@ -58,7 +126,16 @@ public final class OkpKeyAgreementKey extends OkpKey {
     @Override
     public OkpKeyAgreementKey build() throws CborException, CoseException {
       withCurve(Headers.CURVE_OKP_X25519);
-      return new OkpKeyAgreementKey(compile());
+      Map cborKey = compile();
+      if (dParameter != null) {
+        cborKey.put(new NegativeInteger(Headers.KEY_PARAMETER_D), new ByteString(dParameter));
+      }
+      return new OkpKeyAgreementKey(cborKey);
+    }
+
+    public Builder withDParameter(byte[] dParameter) {
+      this.dParameter = dParameter;
+      return this;
     }
 
     @Override
@@ -22,6 +22,8 @@ import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.Headers;
@@ -97,7 +99,7 @@ public final class OkpSigningKey extends OkpKey {
   }
 
   public static OkpSigningKey decode(DataItem cborKey) throws CborException, CoseException {
-    return new OkpSigningKey(cborKey);
+    return decodeKey(cborKey, OkpSigningKey::new);
   }
 
   @Override
@@ -107,18 +109,23 @@ public final class OkpSigningKey extends OkpKey {
 
   /** Generates a COSE formatted OKP signing key from scratch */
   public static OkpSigningKey generateKey() throws CborException, CoseException {
-    KeyPair keyPair;
-    try {
-      keyPair = KeyPair.newKeyPair();
-    } catch (GeneralSecurityException e) {
-      throw new CoseException("Error while generating key pair: ", e);
-    }
-    byte[] privateKey = keyPair.getPrivateKey();
-    byte[] publicKey = keyPair.getPublicKey();
+    return generateKey((EphemeralKeyPool) null);
+  }
+
+  /**
+   * Generates a COSE formatted OKP signing key, taking the key pair from the given pool instead of
+   * generating it on the calling thread.
+   * @param pool pool of pre-generated key pairs, may be null
+   * @return OkpSigningKey with both private and public key material
+   */
+  public static OkpSigningKey generateKey(EphemeralKeyPool pool)
+      throws CborException, CoseException {
+    EphemeralKeyPool.KeyMaterial material =
+        EphemeralKeyPool.takeOrGenerate(pool, Headers.CURVE_OKP_ED25519);
 
     return OkpSigningKey.builder()
-        .withXCoordinate(publicKey)
-        .withDParameter(privateKey)
+        .withXCoordinate(material.getX())
+        .withDParameter(material.getD())
         .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
         .build();
   }
@@ -177,7 +184,15 @@ public final class OkpSigningKey extends OkpKey {
     }
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_SIGN);
-    return tinkSign(message);
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      byte[] signature = tinkSign(message);
+      success = true;
+      return signature;
+    } finally {
+      Metrics.record(Operation.SIGN, algorithm, getKeyType(), message.length, start, success);
+    }
   }
 
   private byte[] tinkSign(byte[] message) throws CoseException {
@@ -196,7 +211,14 @@ public final class OkpSigningKey extends OkpKey {
     }
     verifyAlgorithmMatchesKey(algorithm);
     verifyOperationAllowedByKey(Headers.KEY_OPERATIONS_VERIFY);
-    tinkVerify(signature, message);
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      tinkVerify(signature, message);
+      success = true;
+    } finally {
+      Metrics.record(Operation.VERIFY, algorithm, getKeyType(), message.length, start, success);
+    }
   }
 
   private void tinkVerify(byte[] signature, byte[] message) throws CoseException {
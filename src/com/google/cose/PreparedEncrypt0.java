@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.EncryptStructure;
+import com.google.cose.structure.EncryptStructure.EncryptionContext;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Creates COSE_Encrypt0 messages with a fixed key, algorithm, headers and external aad.
+ *
+ * <p>The Enc_structure used as additional authenticated data does not depend on the plaintext and
+ * is encoded only once. The message envelope is encoded once as well, leaving a gap for the IV
+ * header which is set per message. Instances are immutable and can be shared between threads.
+ */
+public final class PreparedEncrypt0 {
+  private static final byte[] IV_LABEL =
+      new byte[] {(byte) Headers.MESSAGE_HEADER_BASE_IV};
+  // Canonical CBOR ordering of encoded map keys: shorter first, then bytewise.
+  private static final Comparator<byte[]> CANONICAL_KEY_ORDER = (a, b) -> {
+    if (a.length != b.length) {
+      return Integer.compare(a.length, b.length);
+    }
+    return UnsignedBytes.lexicographicalComparator().compare(a, b);
+  };
+
+  private final EncryptionKey key;
+  private final Algorithm algorithm;
+  private final byte[] aad;
+  // [protected, {unprotected headers sorting before the IV label ... up to the IV label.
+  private final byte[] envelopePrefix;
+  // unprotected headers sorting after the IV label}, ... up to the ciphertext.
+  private final byte[] envelopeInfix;
+
+  private PreparedEncrypt0(EncryptionKey key, Algorithm algorithm, byte[] aad,
+      byte[] envelopePrefix, byte[] envelopeInfix) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.aad = aad;
+    this.envelopePrefix = envelopePrefix;
+    this.envelopeInfix = envelopeInfix;
+  }
+
+  public static class Builder {
+    private EncryptionKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+
+    public PreparedEncrypt0 build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null
+          || unprotectedHeaders == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (unprotectedHeaders.get(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV)) != null) {
+        throw new CoseException("IV is set per message and cannot be part of the headers.");
+      }
+      byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+
+      // Entries keyed by their encoded label, so they are written in canonical order around the
+      // IV label.
+      SortedMap<byte[], byte[]> entries = new TreeMap<>(CANONICAL_KEY_ORDER);
+      for (DataItem label : unprotectedHeaders.getKeys()) {
+        byte[] encodedLabel = CborUtils.encode(label);
+        entries.put(encodedLabel,
+            Bytes.concat(encodedLabel, CborUtils.encode(unprotectedHeaders.get(label))));
+      }
+      Collection<byte[]> before = entries.headMap(IV_LABEL).values();
+      Collection<byte[]> after = entries.tailMap(IV_LABEL).values();
+
+      byte[] envelopePrefix = Bytes.concat(
+          CborUtils.encodeHead(MajorType.ARRAY, 3),
+          CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+          CborUtils.encodeHead(MajorType.MAP, unprotectedHeaders.getKeys().size() + 1),
+          Bytes.concat(before.toArray(new byte[0][])),
+          IV_LABEL);
+      byte[] envelopeInfix = Bytes.concat(after.toArray(new byte[0][]));
+      byte[] aad = new EncryptStructure(EncryptionContext.ENCRYPT0, encodedProtectedHeaders,
+          externalAad).serialize();
+      return new PreparedEncrypt0(key, algorithm, aad, envelopePrefix, envelopeInfix);
+    }
+
+    public Builder withKey(EncryptionKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    /**
+     * Sets the unprotected headers. The IV header is added to them for every message.
+     */
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Encrypts the plaintext and returns the serialized COSE_Encrypt0 message carrying the
+   * ciphertext and the IV.
+   * @param plaintext message to be encrypted
+   * @param iv initialization vector, must not be reused with the same key
+   * @return serialized COSE_Encrypt0 message
+   */
+  public byte[] encrypt(byte[] plaintext, byte[] iv) throws CborException, CoseException {
+    byte[] ciphertext = key.encrypt(algorithm, plaintext, iv, aad);
+    byte[] message = new byte[envelopePrefix.length + CborUtils.byteStringLength(iv)
+        + envelopeInfix.length + CborUtils.byteStringLength(ciphertext)];
+    System.arraycopy(envelopePrefix, 0, message, 0, envelopePrefix.length);
+    int offset = CborUtils.writeByteString(message, envelopePrefix.length, iv);
+    System.arraycopy(envelopeInfix, 0, message, offset, envelopeInfix.length);
+    CborUtils.writeByteString(message, offset + envelopeInfix.length, ciphertext);
+    return message;
+  }
+
+  EncryptionKey getKey() {
+    return key;
+  }
+
+  Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  byte[] getAad() {
+    return aad;
+  }
+
+  byte[] getEnvelopePrefix() {
+    return envelopePrefix;
+  }
+
+  byte[] getEnvelopeInfix() {
+    return envelopeInfix;
+  }
+}
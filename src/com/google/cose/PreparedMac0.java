@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.MacStructure;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+
+/**
+ * Creates COSE_Mac0 messages with a fixed key, algorithm, headers and external aad.
+ *
+ * <p>The constant parts of the MAC_structure and of the message envelope are encoded once when
+ * the object is built, so creating a message only encodes the payload and the tag. Instances are
+ * immutable and can be shared between threads.
+ */
+public final class PreparedMac0 {
+  private final MacKey key;
+  private final Algorithm algorithm;
+  // ["MAC0", protected, external_aad, ... up to the payload.
+  private final byte[] toBeMacedPrefix;
+  // [protected, unprotected, ... up to the payload.
+  private final byte[] envelopePrefix;
+
+  private PreparedMac0(MacKey key, Algorithm algorithm, byte[] toBeMacedPrefix,
+      byte[] envelopePrefix) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.toBeMacedPrefix = toBeMacedPrefix;
+    this.envelopePrefix = envelopePrefix;
+  }
+
+  public static class Builder {
+    private MacKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+
+    public PreparedMac0 build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null
+          || unprotectedHeaders == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      byte[] toBeMacedPrefix = MacStructure.encodeMac0Prefix(encodedProtectedHeaders, externalAad);
+      byte[] envelopePrefix = Bytes.concat(
+          CborUtils.encodeHead(MajorType.ARRAY, 4),
+          CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+          CborUtils.encode(unprotectedHeaders));
+      return new PreparedMac0(key, algorithm, toBeMacedPrefix, envelopePrefix);
+    }
+
+    public Builder withKey(MacKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Computes the tag over the payload and returns the serialized COSE_Mac0 message carrying it.
+   */
+  public byte[] mac(byte[] payload) throws CborException, CoseException {
+    return assemble(payload, computeTag(payload));
+  }
+
+  /**
+   * Computes the tag over detached content and returns the serialized COSE_Mac0 message with a
+   * nil payload.
+   */
+  public byte[] macDetached(byte[] detachedContent) throws CborException, CoseException {
+    return assemble(null, computeTag(detachedContent));
+  }
+
+  byte[] toBeMaced(byte[] content) {
+    byte[] toBeMaced = new byte[toBeMacedPrefix.length + CborUtils.byteStringLength(content)];
+    System.arraycopy(toBeMacedPrefix, 0, toBeMaced, 0, toBeMacedPrefix.length);
+    CborUtils.writeByteString(toBeMaced, toBeMacedPrefix.length, content);
+    return toBeMaced;
+  }
+
+  private byte[] computeTag(byte[] content) throws CborException, CoseException {
+    if (content == null) {
+      throw new CoseException("Need message bytes to generate tag.");
+    }
+    return key.createMac(toBeMaced(content), algorithm);
+  }
+
+  private byte[] assemble(byte[] payload, byte[] tag) {
+    byte[] message = new byte[envelopePrefix.length + CborUtils.byteStringLength(payload)
+        + CborUtils.byteStringLength(tag)];
+    System.arraycopy(envelopePrefix, 0, message, 0, envelopePrefix.length);
+    int offset = CborUtils.writeByteString(message, envelopePrefix.length, payload);
+    CborUtils.writeByteString(message, offset, tag);
+    return message;
+  }
+}
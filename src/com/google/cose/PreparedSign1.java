@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+
+/**
+ * Signs COSE_Sign1 messages with a fixed key, algorithm, headers and external aad.
+ *
+ * <p>The constant parts of the Sig_structure and of the message envelope are encoded once when
+ * the object is built, so signing a message only encodes the payload and the signature. Instances
+ * are immutable and can be shared between threads.
+ */
+public final class PreparedSign1 {
+  private final CoseKey key;
+  private final Algorithm algorithm;
+  // ["Signature1", protected, external_aad, ... up to the payload.
+  private final byte[] toBeSignedPrefix;
+  // [protected, unprotected, ... up to the payload.
+  private final byte[] envelopePrefix;
+
+  private PreparedSign1(CoseKey key, Algorithm algorithm, byte[] toBeSignedPrefix,
+      byte[] envelopePrefix) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.toBeSignedPrefix = toBeSignedPrefix;
+    this.envelopePrefix = envelopePrefix;
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+
+    public PreparedSign1 build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null
+          || unprotectedHeaders == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (!(key instanceof Ec2SigningKey || key instanceof OkpSigningKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      byte[] envelopePrefix = Bytes.concat(
+          CborUtils.encodeHead(MajorType.ARRAY, 4),
+          CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+          CborUtils.encode(unprotectedHeaders));
+      return new PreparedSign1(key, algorithm,
+          SignStructure.encodeSignature1Prefix(encodedProtectedHeaders, externalAad),
+          envelopePrefix);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Signs the payload and returns the serialized COSE_Sign1 message carrying it.
+   */
+  public byte[] sign(byte[] payload) throws CborException, CoseException {
+    return assemble(payload, computeSignature(payload));
+  }
+
+  /**
+   * Signs detached content and returns the serialized COSE_Sign1 message with a nil payload.
+   */
+  public byte[] signDetached(byte[] detachedContent) throws CborException, CoseException {
+    return assemble(null, computeSignature(detachedContent));
+  }
+
+  byte[] toBeSigned(byte[] content) {
+    byte[] toBeSigned = new byte[toBeSignedPrefix.length + CborUtils.byteStringLength(content)];
+    System.arraycopy(toBeSignedPrefix, 0, toBeSigned, 0, toBeSignedPrefix.length);
+    CborUtils.writeByteString(toBeSigned, toBeSignedPrefix.length, content);
+    return toBeSigned;
+  }
+
+  private byte[] computeSignature(byte[] content) throws CborException, CoseException {
+    if (content == null) {
+      throw new CoseException("Need message bytes to generate signature.");
+    }
+    return CoseUtils.computeSignature(key, toBeSigned(content), algorithm);
+  }
+
+  private byte[] assemble(byte[] payload, byte[] signature) {
+    byte[] message = new byte[envelopePrefix.length + CborUtils.byteStringLength(payload)
+        + CborUtils.byteStringLength(signature)];
+    System.arraycopy(envelopePrefix, 0, message, 0, envelopePrefix.length);
+    int offset = CborUtils.writeByteString(message, envelopePrefix.length, payload);
+    CborUtils.writeByteString(message, offset, signature);
+    return message;
+  }
+}
@@ -20,11 +20,15 @@ import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.CborException;
 import co.nstant.in.cbor.builder.ArrayBuilder;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
 import com.google.common.collect.ImmutableList;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,23 +40,29 @@ public class Recipient extends CoseMessage {
   private final byte[] ciphertext;
   private final ImmutableList<Recipient> recipients;
 
-  private Recipient(Map protectedHeaders, Map unprotectedHeaders, byte[] ciphertext,
-      ImmutableList<Recipient> recipients) {
-    super(protectedHeaders, unprotectedHeaders);
+  private Recipient(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders,
+      byte[] ciphertext, ImmutableList<Recipient> recipients) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.ciphertext = ciphertext;
     this.recipients = recipients;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] ciphertext;
     private ImmutableList<Recipient> recipients;
 
     public Recipient build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null)) {
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null)) {
         // recipients is an optional field and ciphertext can be nil, hence we are not checking them
-        return new Recipient(protectedHeaders, unprotectedHeaders, ciphertext, recipients);
+        return new Recipient(headers, encodedProtectedHeaders, unprotectedHeaders,
+            ciphertext, recipients);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -60,6 +70,24 @@ public class Recipient extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(byte[] encodedProtectedHeaders) throws CborException {
+      this.protectedHeaders = CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders);
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -83,13 +111,100 @@ public class Recipient extends CoseMessage {
       this.recipients = recipients;
       return this;
     }
+
+    /**
+     * Wraps the content encryption key with an AES key wrap key and uses it as the ciphertext of
+     * the recipient.
+     * @param key KeyWrapKey object
+     * @param contentKey content encryption key to be wrapped
+     * @param algorithm one of the AES key wrap algorithms
+     * @return Recipient.Builder object
+     * @throws CborException if cbor information was not parseable
+     * @throws CoseException if wrapping fails for some reason
+     */
+    public Builder generateWrappedKey(KeyWrapKey key, byte[] contentKey, Algorithm algorithm)
+        throws CborException, CoseException {
+      this.ciphertext = key.wrap(algorithm, contentKey);
+      return this;
+    }
+
+    /**
+     * Wraps the content encryption key with a key derived through ECDH-ES and uses it as the
+     * ciphertext of the recipient. The ephemeral public key is added to the unprotected headers,
+     * so the protected headers need to be set before calling this function.
+     * @param recipientKey public Ec2KeyAgreementKey or OkpKeyAgreementKey of the recipient
+     * @param contentKey content encryption key to be wrapped
+     * @param algorithm one of the ECDH-ES + AES key wrap algorithms
+     * @param pool pool the ephemeral key is taken from, may be null
+     * @return Recipient.Builder object
+     * @throws CborException if cbor information was not parseable
+     * @throws CoseException if key agreement or wrapping fails for some reason
+     */
+    public Builder generateWrappedKey(CoseKey recipientKey, byte[] contentKey,
+        Algorithm algorithm, EphemeralKeyPool pool) throws CborException, CoseException {
+      if (protectedHeaders == null) {
+        throw new CoseException("Protected headers are needed before deriving the wrapping key.");
+      }
+      if (encodedProtectedHeaders == null) {
+        // The key derivation context must use the same bytes that end up in the message.
+        encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      }
+      final byte[] sharedSecret;
+      final CoseKey ephemeralPublicKey;
+      if (recipientKey instanceof Ec2KeyAgreementKey) {
+        Ec2KeyAgreementKey ec2Key = (Ec2KeyAgreementKey) recipientKey;
+        Ec2KeyAgreementKey ephemeralKey = Ec2KeyAgreementKey.generateKey(
+            CborUtils.asInteger(ec2Key.getLabels().get(Headers.KEY_PARAMETER_CURVE)), pool);
+        sharedSecret = ephemeralKey.computeSharedSecret(ec2Key);
+        ephemeralPublicKey = ephemeralKey.getPublicKeyOnly();
+      } else if (recipientKey instanceof OkpKeyAgreementKey) {
+        OkpKeyAgreementKey ephemeralKey = OkpKeyAgreementKey.generateKey(pool);
+        sharedSecret = ephemeralKey.computeSharedSecret((OkpKeyAgreementKey) recipientKey);
+        ephemeralPublicKey = ephemeralKey.getPublicKeyOnly();
+      } else {
+        throw new CoseException("Incompatible key used.");
+      }
+
+      // The caller's map is copied, so it can be shared by several recipients.
+      Map headers = new Map();
+      if (unprotectedHeaders != null) {
+        for (DataItem label : unprotectedHeaders.getKeys()) {
+          headers.put(label, unprotectedHeaders.get(label));
+        }
+      }
+      headers.put(new NegativeInteger(Headers.ECDH_EPHEMERAL_KEY), ephemeralPublicKey.encode());
+      unprotectedHeaders = headers;
+      this.ciphertext = KeyWrapKey.aesKeyWrap(
+          deriveKeyWrapKey(sharedSecret, algorithm, encodedProtectedHeaders), contentKey);
+      return this;
+    }
+  }
+
+  private static byte[] deriveKeyWrapKey(byte[] sharedSecret, Algorithm algorithm,
+      byte[] encodedProtectedHeaders) throws CborException, CoseException {
+    final Algorithm keyWrapAlgorithm;
+    switch (algorithm) {
+      case ECDH_ES_AES_KEY_WRAP_128:
+        keyWrapAlgorithm = Algorithm.AES_KEY_WRAP_128;
+        break;
+      case ECDH_ES_AES_KEY_WRAP_192:
+        keyWrapAlgorithm = Algorithm.AES_KEY_WRAP_192;
+        break;
+      case ECDH_ES_AES_KEY_WRAP_256:
+        keyWrapAlgorithm = Algorithm.AES_KEY_WRAP_256;
+        break;
+      default:
+        throw new CoseException("Unsupported key agreement algorithm: " + algorithm);
+    }
+    return CoseUtils.deriveKey(sharedSecret, keyWrapAlgorithm,
+        KeyWrapKey.getKeyWrapKeyLength(algorithm), encodedProtectedHeaders);
   }
 
   @Override
   public DataItem encode() throws CborException {
     ArrayBuilder<CborBuilder> arrayBuilder = new CborBuilder().addArray();
     arrayBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(ciphertext);
     if (recipients != null && !recipients.isEmpty()) {
@@ -124,8 +239,9 @@ public class Recipient extends CoseMessage {
       throw new CoseException("Error while decoding recipient array. Expected 3 or 4 items, "
           + "recieved " + messageDataItems.size());
     }
+    byte[] protectedHeaderBytes = CborUtils.asByteString(messageDataItems.get(0)).getBytes();
     return Recipient.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageDataItems.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageDataItems.get(1)))
         .withCiphertext(CoseUtils.getBytesFromBstrOrNilValue(messageDataItems.get(2)))
         .withRecipients(ImmutableList.copyOf(recipients))
@@ -140,6 +256,90 @@ public class Recipient extends CoseMessage {
     return recipients;
   }
 
+  /**
+   * Recovers the content encryption key carried by this recipient.
+   * @param key KeyWrapKey for AES key wrap, or the private Ec2KeyAgreementKey/OkpKeyAgreementKey
+   *     of the recipient for ECDH-ES + AES key wrap
+   * @param algorithm algorithm of this recipient, read from the protected headers if null
+   * @return content encryption key
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if the key cannot be recovered for some reason
+   */
+  public byte[] unwrapKey(CoseKey key, Algorithm algorithm) throws CborException, CoseException {
+    if (algorithm == null) {
+      algorithm = findAlgorithm();
+      if (algorithm == null) {
+        throw new CoseException("Unknown recipient algorithm.");
+      }
+    }
+    if (ciphertext == null) {
+      throw new CoseException("Recipient does not carry a wrapped key.");
+    }
+
+    switch (algorithm) {
+      case AES_KEY_WRAP_128:
+      case AES_KEY_WRAP_192:
+      case AES_KEY_WRAP_256:
+        if (!(key instanceof KeyWrapKey)) {
+          throw new CoseException("Incompatible key used.");
+        }
+        return ((KeyWrapKey) key).unwrap(algorithm, ciphertext);
+      case ECDH_ES_AES_KEY_WRAP_128:
+      case ECDH_ES_AES_KEY_WRAP_192:
+      case ECDH_ES_AES_KEY_WRAP_256:
+        DataItem ephemeralKey = CoseUtils.getValueFromMap(getUnprotectedHeaders(),
+            Headers.ECDH_EPHEMERAL_KEY);
+        if (ephemeralKey == null || ephemeralKey.getMajorType() != MajorType.MAP) {
+          throw new CoseException("Missing ephemeral key.");
+        }
+        final byte[] sharedSecret;
+        if (key instanceof Ec2KeyAgreementKey) {
+          sharedSecret = ((Ec2KeyAgreementKey) key).computeSharedSecret(
+              Ec2KeyAgreementKey.decode(ephemeralKey));
+        } else if (key instanceof OkpKeyAgreementKey) {
+          sharedSecret = ((OkpKeyAgreementKey) key).computeSharedSecret(
+              OkpKeyAgreementKey.decode(ephemeralKey));
+        } else {
+          throw new CoseException("Incompatible key used.");
+        }
+        return KeyWrapKey.aesKeyUnwrap(
+            deriveKeyWrapKey(sharedSecret, algorithm, getEncodedProtectedHeaders()), ciphertext);
+      default:
+        throw new CoseException("Unsupported recipient algorithm: " + algorithm);
+    }
+  }
+
+  /**
+   * Returns the algorithm of this recipient from the protected headers, or from the unprotected
+   * headers as used by direct key usage. Returns null if it is absent or unknown.
+   */
+  Algorithm findAlgorithm() throws CborException {
+    DataItem algorithm = CoseUtils.getValueFromMap(getProtectedHeaders(),
+        Headers.MESSAGE_HEADER_ALGORITHM);
+    if (algorithm == null) {
+      algorithm = CoseUtils.getValueFromMap(getUnprotectedHeaders(),
+          Headers.MESSAGE_HEADER_ALGORITHM);
+    }
+    return (algorithm != null) ? Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(algorithm))
+        : null;
+  }
+
+  /**
+   * Returns the key id of this recipient from the unprotected or protected headers, or null.
+   */
+  byte[] findKeyId() throws CborException {
+    DataItem keyId = CoseUtils.getValueFromMap(getUnprotectedHeaders(),
+        Headers.MESSAGE_HEADER_KEY_ID);
+    if (keyId == null) {
+      keyId = CoseUtils.getValueFromMap(getProtectedHeaders(), Headers.MESSAGE_HEADER_KEY_ID);
+    }
+    return (keyId != null) ? CborUtils.asByteString(keyId).getBytes() : null;
+  }
+
+  boolean isDirect() throws CborException {
+    return findAlgorithm() == Algorithm.DIRECT_CEK_USAGE;
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index over the recipients of a message, used to find the recipients a key can open without
+ * attempting every single one of them.
+ *
+ * <p>Recipients are grouped by the key id they carry. A key with a key id goes straight to the
+ * recipients with the same key id. Only recipients without a key id, or all recipients if the key
+ * has no key id, are tried one after the other, and the number of such trials is bounded.
+ */
+final class RecipientIndex {
+  static final int DEFAULT_MAX_TRIALS = 8;
+
+  private final ImmutableMap<ByteBuffer, ImmutableList<Recipient>> recipientsByKeyId;
+  private final ImmutableList<Recipient> recipientsWithoutKeyId;
+  private final ImmutableList<Recipient> recipients;
+
+  RecipientIndex(List<Recipient> recipients) throws CborException {
+    Map<ByteBuffer, List<Recipient>> byKeyId = new LinkedHashMap<>();
+    ImmutableList.Builder<Recipient> withoutKeyId = ImmutableList.builder();
+    for (Recipient recipient : recipients) {
+      byte[] keyId = recipient.findKeyId();
+      if (keyId == null) {
+        withoutKeyId.add(recipient);
+      } else {
+        byKeyId.computeIfAbsent(ByteBuffer.wrap(keyId), k -> new ArrayList<>()).add(recipient);
+      }
+    }
+    ImmutableMap.Builder<ByteBuffer, ImmutableList<Recipient>> index = ImmutableMap.builder();
+    for (Map.Entry<ByteBuffer, List<Recipient>> entry : byKeyId.entrySet()) {
+      index.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+    }
+    this.recipientsByKeyId = index.build();
+    this.recipientsWithoutKeyId = withoutKeyId.build();
+    this.recipients = ImmutableList.copyOf(recipients);
+  }
+
+  /**
+   * Returns the recipients that should be tried with the given key, in the order they should be
+   * tried. Recipients whose algorithm cannot be used with the type of the key are left out.
+   * @param key key of the receiver
+   * @param directKeyClass type the key must have to be used directly as the content key
+   * @param maxTrials maximum number of recipients returned that are not matched by key id
+   * @return list of candidate recipients
+   */
+  List<Recipient> candidates(CoseKey key, Class<? extends CoseKey> directKeyClass, int maxTrials)
+      throws CborException {
+    List<Recipient> candidates = new ArrayList<>();
+    final List<Recipient> trialRecipients;
+    if (key.getKeyId() != null) {
+      ImmutableList<Recipient> matches = recipientsByKeyId.get(ByteBuffer.wrap(key.getKeyId()));
+      if (matches != null) {
+        for (Recipient recipient : matches) {
+          if (isCompatible(recipient, key, directKeyClass)) {
+            candidates.add(recipient);
+          }
+        }
+      }
+      trialRecipients = recipientsWithoutKeyId;
+    } else {
+      trialRecipients = recipients;
+    }
+
+    int trials = 0;
+    for (Recipient recipient : trialRecipients) {
+      if (trials >= maxTrials) {
+        break;
+      }
+      if (isCompatible(recipient, key, directKeyClass)) {
+        candidates.add(recipient);
+        trials++;
+      }
+    }
+    return candidates;
+  }
+
+  private static boolean isCompatible(Recipient recipient, CoseKey key,
+      Class<? extends CoseKey> directKeyClass) throws CborException {
+    Algorithm algorithm = recipient.findAlgorithm();
+    if (algorithm == null) {
+      return false;
+    }
+    switch (algorithm) {
+      case DIRECT_CEK_USAGE:
+        return directKeyClass.isInstance(key);
+      case AES_KEY_WRAP_128:
+      case AES_KEY_WRAP_192:
+      case AES_KEY_WRAP_256:
+        return key instanceof KeyWrapKey;
+      case ECDH_ES_AES_KEY_WRAP_128:
+      case ECDH_ES_AES_KEY_WRAP_192:
+      case ECDH_ES_AES_KEY_WRAP_256:
+        if (!(key instanceof Ec2KeyAgreementKey || key instanceof OkpKeyAgreementKey)) {
+          return false;
+        }
+        // The key type of the ephemeral key tells EC2 and OKP recipients apart before any
+        // expensive key agreement is attempted.
+        DataItem ephemeralKey = CoseUtils.getValueFromMap(
+            recipient.getUnprotectedHeaders(), Headers.ECDH_EPHEMERAL_KEY);
+        if (ephemeralKey == null || ephemeralKey.getMajorType() != MajorType.MAP) {
+          return false;
+        }
+        DataItem keyType = CoseUtils.getValueFromMap(
+            CborUtils.asMap(ephemeralKey), Headers.KEY_PARAMETER_KEY_TYPE);
+        return keyType != null && CborUtils.asInteger(keyType) == key.getKeyType();
+      default:
+        return false;
+    }
+  }
+}
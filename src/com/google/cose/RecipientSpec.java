@@ -0,0 +1,198 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+
+/**
+ * Describes a single recipient of an EncryptMessage: the key used to reach the recipient, the
+ * recipient algorithm and the headers of the recipient layer.
+ *
+ * <p>Supported algorithms are direct usage of an EncryptionKey, AES key wrap with a KeyWrapKey
+ * and ECDH-ES + AES key wrap with the public Ec2KeyAgreementKey or OkpKeyAgreementKey of the
+ * recipient.
+ */
+public final class RecipientSpec {
+  private final CoseKey key;
+  private final Algorithm algorithm;
+  private final Map protectedHeaders;
+  private final Map unprotectedHeaders;
+  private final EphemeralKeyPool ephemeralKeyPool;
+
+  private RecipientSpec(CoseKey key, Algorithm algorithm, Map protectedHeaders,
+      Map unprotectedHeaders, EphemeralKeyPool ephemeralKeyPool) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.protectedHeaders = protectedHeaders;
+    this.unprotectedHeaders = unprotectedHeaders;
+    this.ephemeralKeyPool = ephemeralKeyPool;
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private EphemeralKeyPool ephemeralKeyPool;
+
+    public RecipientSpec build() throws CoseException {
+      if (key == null || algorithm == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      switch (algorithm) {
+        case DIRECT_CEK_USAGE:
+          if (!(key instanceof EncryptionKey)) {
+            throw new CoseException("Direct key usage requires an EncryptionKey.");
+          }
+          break;
+        case AES_KEY_WRAP_128:
+        case AES_KEY_WRAP_192:
+        case AES_KEY_WRAP_256:
+          if (!(key instanceof KeyWrapKey)) {
+            throw new CoseException("AES key wrap requires a KeyWrapKey.");
+          }
+          break;
+        case ECDH_ES_AES_KEY_WRAP_128:
+        case ECDH_ES_AES_KEY_WRAP_192:
+        case ECDH_ES_AES_KEY_WRAP_256:
+          if (!(key instanceof Ec2KeyAgreementKey || key instanceof OkpKeyAgreementKey)) {
+            throw new CoseException("Key agreement requires an Ec2 or Okp key agreement key.");
+          }
+          break;
+        default:
+          throw new CoseException("Unsupported recipient algorithm: " + algorithm);
+      }
+      Map protectedLayer = copyHeaders(protectedHeaders);
+      Map unprotectedLayer = copyHeaders(unprotectedHeaders);
+      boolean hasAlgorithm = verifyAlgorithmHeader(protectedLayer, algorithm);
+      hasAlgorithm |= verifyAlgorithmHeader(unprotectedLayer, algorithm);
+      if (!hasAlgorithm) {
+        // Direct key usage carries its algorithm unprotected, the protected headers stay empty.
+        (algorithm == Algorithm.DIRECT_CEK_USAGE ? unprotectedLayer : protectedLayer).put(
+            new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+            algorithm.getCoseAlgorithmId());
+      }
+      return new RecipientSpec(key, algorithm, protectedLayer, unprotectedLayer,
+          ephemeralKeyPool);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    /**
+     * Sets the pool ephemeral keys are taken from for key agreement algorithms. Optional.
+     */
+    public Builder withEphemeralKeyPool(EphemeralKeyPool ephemeralKeyPool) {
+      this.ephemeralKeyPool = ephemeralKeyPool;
+      return this;
+    }
+  }
+
+  private static Map copyHeaders(Map headers) {
+    Map copy = new Map();
+    if (headers != null) {
+      for (DataItem label : headers.getKeys()) {
+        copy.put(label, headers.get(label));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Returns whether the headers carry an algorithm, which then has to be the given one.
+   */
+  private static boolean verifyAlgorithmHeader(Map headers, Algorithm algorithm)
+      throws CoseException {
+    DataItem value = CoseUtils.getValueFromMap(headers, Headers.MESSAGE_HEADER_ALGORITHM);
+    if (value == null) {
+      return false;
+    }
+    if (!value.equals(algorithm.getCoseAlgorithmId())) {
+      throw new CoseException("Algorithm header does not match the recipient algorithm.");
+    }
+    return true;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public CoseKey getKey() {
+    return key;
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  public boolean isDirect() {
+    return algorithm == Algorithm.DIRECT_CEK_USAGE;
+  }
+
+  /**
+   * Creates the recipient layer carrying the given content encryption key. The unprotected headers
+   * of this spec are copied, so the same spec can be used for several messages. The algorithm
+   * header is added if the headers of the spec do not carry it.
+   * @param contentKey content encryption key, ignored for direct key usage
+   * @return Recipient object
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if the recipient layer cannot be created
+   */
+  public Recipient createRecipient(byte[] contentKey) throws CborException, CoseException {
+    Map headers = new Map();
+    for (DataItem label : unprotectedHeaders.getKeys()) {
+      headers.put(label, unprotectedHeaders.get(label));
+    }
+    Recipient.Builder builder = Recipient.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(headers);
+    switch (algorithm) {
+      case DIRECT_CEK_USAGE:
+        return builder.withCiphertext(new byte[0]).build();
+      case AES_KEY_WRAP_128:
+      case AES_KEY_WRAP_192:
+      case AES_KEY_WRAP_256:
+        return builder.generateWrappedKey((KeyWrapKey) key, contentKey, algorithm).build();
+      default:
+        return builder.generateWrappedKey(key, contentKey, algorithm, ephemeralKeyPool).build();
+    }
+  }
+}
@@ -24,6 +24,7 @@ import co.nstant.in.cbor.model.Map;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.List;
 
 /**
@@ -32,7 +33,6 @@ import java.util.List;
 public class Sign1Message extends CoseMessage {
   private final byte[] message;
   private final byte[] signature;
-  private final byte[] encodedProtectedHeaders;
 
   Sign1Message(
       Map protectedHeaders,
@@ -40,26 +40,26 @@ public class Sign1Message extends CoseMessage {
       Map unprotectedHeaders,
       byte[] message,
       byte[] sign) {
-    super(protectedHeaders, unprotectedHeaders);
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.message = message;
     this.signature = sign;
-    this.encodedProtectedHeaders = encodedProtectedHeaders;
   }
 
   public static class Builder {
     private Map protectedHeaders;
     private byte[] encodedProtectedHeaders;
+    // Set when the library derived the map from the bytes or the bytes from the map, so build()
+    // does not need to compare them.
+    private boolean protectedHeadersTrusted;
     private Map unprotectedHeaders;
     private byte[] message;
     private byte[] signature;
     public Sign1Message build() throws CoseException, CborException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null) && (signature != null)) {
-        if (encodedProtectedHeaders == null) {
-          encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
-        }
-
+      Map headers = protectedHeadersTrusted ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null) && (signature != null)) {
         return new Sign1Message(
-            protectedHeaders, encodedProtectedHeaders, unprotectedHeaders, message, signature);
+            headers, encodedProtectedHeaders, unprotectedHeaders, message, signature);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -67,11 +67,35 @@ public class Sign1Message extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersTrusted = false;
       return this;
     }
 
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
     public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
       this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = true;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers together with the bytes the library encoded from them, without
+     * decoding the bytes again to compare them with the map.
+     */
+    Builder withSerializedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = true;
       return this;
     }
 
@@ -95,29 +119,44 @@ public class Sign1Message extends CoseMessage {
   public DataItem encode() throws CborException {
     ArrayBuilder<CborBuilder> signArrayBuilder = new CborBuilder().addArray();
     signArrayBuilder
-        .add(encodedProtectedHeaders)
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(message)
         .add(signature);
     return signArrayBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_SIGN1;
+  }
+
   public static Sign1Message deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, Sign1Message::decode);
   }
 
   public static Sign1Message decode(DataItem cborMessage) throws CborException, CoseException {
+    return decode(cborMessage, null, null);
+  }
+
+  /**
+   * Decodes the message with protected headers that {@link CoseMessage#decodeAny} already decoded
+   * from its first item. If they are null, they are decoded here.
+   */
+  static Sign1Message decode(DataItem cborMessage, Map protectedHeaders,
+      byte[] protectedHeaderBytes) throws CborException, CoseException {
     List<DataItem> messageArray = CborUtils.asArray(cborMessage).getDataItems();
     if (messageArray.size() != 4) {
       throw new CoseException("Error while decoding Sign1Message. Expected 4 items,"
           + "received " + messageArray.size());
     }
 
-    byte[] protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
-
+    if (protectedHeaders == null) {
+      protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
+      protectedHeaders = CoseUtils.asProtectedHeadersMap(protectedHeaderBytes);
+    }
     return Sign1Message.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(protectedHeaderBytes))
-        .withEncodedProtectedHeaders(protectedHeaderBytes)
+        .withDecodedProtectedHeaders(protectedHeaders, protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withMessage(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .withSignature(CborUtils.asByteString(messageArray.get(3)).getBytes())
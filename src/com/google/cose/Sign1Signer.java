@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.MajorType;
+import co.nstant.in.cbor.model.Map;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Incrementally signs a COSE_Sign1 message whose payload is supplied in chunks.
+ *
+ * <p>The length of the payload has to be known up front, since it is part of the byte string
+ * header inside the Sig_structure. The Sig_structure prefix is fed to the signature when the
+ * signer is built, {@link #update(byte[], int, int)} feeds payload chunks, and {@link #finish()}
+ * returns the signed message. A detached signer never holds on to the payload. An attached signer
+ * copies it into a single array of the announced length, because Sign1Message carries the payload
+ * as a byte[].
+ *
+ * <p>Only Ec2SigningKey is supported: EdDSA hashes the message twice and needs all of it at once.
+ * Instances are single use and not thread safe.
+ */
+public final class Sign1Signer {
+  private final Ec2SigningKey key;
+  private final Algorithm algorithm;
+  private final Map protectedHeaders;
+  private final byte[] encodedProtectedHeaders;
+  private final Map unprotectedHeaders;
+  private final long payloadLength;
+  private final byte[] payload;
+  private final Signature signature;
+  private final long start;
+  private long written;
+  private boolean finished;
+
+  private Sign1Signer(Ec2SigningKey key, Algorithm algorithm, Map protectedHeaders,
+      byte[] encodedProtectedHeaders, Map unprotectedHeaders, long payloadLength, byte[] payload,
+      Signature signature) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.protectedHeaders = protectedHeaders;
+    this.encodedProtectedHeaders = encodedProtectedHeaders;
+    this.unprotectedHeaders = unprotectedHeaders;
+    this.payloadLength = payloadLength;
+    this.payload = payload;
+    this.signature = signature;
+    this.start = Metrics.start();
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private Algorithm algorithm;
+    private Map protectedHeaders;
+    private Map unprotectedHeaders;
+    private byte[] externalAad;
+    private long payloadLength = -1;
+    private boolean detached;
+    private String provider;
+
+    /**
+     * Initializes the signature and feeds it the Sig_structure up to the first payload byte.
+     */
+    public Sign1Signer build() throws CborException, CoseException {
+      if (key == null || algorithm == null || protectedHeaders == null
+          || unprotectedHeaders == null || payloadLength < 0) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (!(key instanceof Ec2SigningKey)) {
+        throw new CoseException("Incremental signing requires an Ec2SigningKey.");
+      }
+      if (!detached && payloadLength > Integer.MAX_VALUE) {
+        throw new CoseException("Attached payload is too large, use a detached payload.");
+      }
+      Ec2SigningKey signingKey = (Ec2SigningKey) key;
+      byte[] encodedProtectedHeaders = CoseUtils.serializeProtectedHeaders(protectedHeaders);
+      Signature signature = signingKey.initSign(algorithm, provider);
+      try {
+        signature.update(
+            SignStructure.encodeSignature1Prefix(encodedProtectedHeaders, externalAad));
+        signature.update(CborUtils.encodeHead(MajorType.BYTE_STRING, payloadLength));
+      } catch (SignatureException e) {
+        throw new CoseException("Error while signing message.", e);
+      }
+      return new Sign1Signer(signingKey, algorithm, protectedHeaders, encodedProtectedHeaders,
+          unprotectedHeaders, payloadLength, detached ? null : new byte[(int) payloadLength],
+          signature);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withProtectedHeaders(Map protectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      return this;
+    }
+
+    public Builder withUnprotectedHeaders(Map unprotectedHeaders) {
+      this.unprotectedHeaders = unprotectedHeaders;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+
+    /**
+     * Sets the total number of payload bytes that will be passed to update. Required.
+     */
+    public Builder withPayloadLength(long payloadLength) {
+      this.payloadLength = payloadLength;
+      return this;
+    }
+
+    /**
+     * Produces a message with a nil payload. The payload is then transported separately.
+     */
+    public Builder withDetachedPayload(boolean detached) {
+      this.detached = detached;
+      return this;
+    }
+
+    /** Sets the JCA provider of the signature. Optional, the default provider if not set. */
+    public Builder withProvider(String provider) {
+      this.provider = provider;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public void update(byte[] chunk) throws CoseException {
+    update(chunk, 0, chunk.length);
+  }
+
+  public void update(byte[] chunk, int offset, int length) throws CoseException {
+    reserve(length);
+    if (payload != null) {
+      System.arraycopy(chunk, offset, payload, (int) written, length);
+    }
+    try {
+      signature.update(chunk, offset, length);
+    } catch (SignatureException e) {
+      throw new CoseException("Error while signing message.", e);
+    }
+    written += length;
+  }
+
+  /**
+   * Feeds the remaining bytes of the buffer and advances its position to the limit.
+   */
+  public void update(ByteBuffer chunk) throws CoseException {
+    int length = chunk.remaining();
+    reserve(length);
+    if (payload != null) {
+      chunk.duplicate().get(payload, (int) written, length);
+    }
+    try {
+      signature.update(chunk);
+    } catch (SignatureException e) {
+      throw new CoseException("Error while signing message.", e);
+    }
+    written += length;
+  }
+
+  /**
+   * Computes the signature over everything passed to update.
+   * @return Sign1Message carrying the payload, or a nil payload if the signer is detached
+   * @throws CoseException if fewer bytes than announced were passed or signing fails
+   */
+  public Sign1Message finish() throws CborException, CoseException {
+    if (finished) {
+      throw new CoseException("Signer has already finished.");
+    }
+    if (written != payloadLength) {
+      throw new CoseException("Expected " + payloadLength + " payload bytes, got " + written);
+    }
+    finished = true;
+    boolean success = false;
+    try {
+      byte[] result = CoseUtils.signatureDerToCose(signature.sign(), algorithm);
+      success = true;
+      return Sign1Message.builder()
+          .withSerializedProtectedHeaders(protectedHeaders, encodedProtectedHeaders)
+          .withUnprotectedHeaders(unprotectedHeaders)
+          .withMessage(payload)
+          .withSignature(result)
+          .build();
+    } catch (SignatureException e) {
+      throw new CoseException("Error while signing message.", e);
+    } finally {
+      Metrics.record(Operation.SIGN, algorithm, key.getKeyType(),
+          (int) Math.min(payloadLength, Integer.MAX_VALUE), start, success);
+    }
+  }
+
+  public long getPayloadLength() {
+    return payloadLength;
+  }
+
+  public long getBytesWritten() {
+    return written;
+  }
+
+  private void reserve(int length) throws CoseException {
+    if (finished) {
+      throw new CoseException("Signer has already finished.");
+    }
+    if (length > payloadLength - written) {
+      throw new CoseException("Payload exceeds the announced length of " + payloadLength);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.MajorType;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Incrementally verifies a COSE_Sign1 message whose payload is supplied in chunks, typically the
+ * detached content of the message while it is read from disk or the network.
+ *
+ * <p>The length of the payload has to be known up front, it is fed to the signature together with
+ * the Sig_structure prefix when the verifier is built. Only Ec2SigningKey is supported. Instances
+ * are single use and not thread safe.
+ */
+public final class Sign1Verifier {
+  private final Ec2SigningKey key;
+  private final Algorithm algorithm;
+  private final byte[] expectedSignature;
+  private final long payloadLength;
+  private final Signature signature;
+  private final long start;
+  private long written;
+  private boolean finished;
+
+  private Sign1Verifier(Ec2SigningKey key, Algorithm algorithm, byte[] expectedSignature,
+      long payloadLength, Signature signature) {
+    this.key = key;
+    this.algorithm = algorithm;
+    this.expectedSignature = expectedSignature;
+    this.payloadLength = payloadLength;
+    this.signature = signature;
+    this.start = Metrics.start();
+  }
+
+  public static class Builder {
+    private CoseKey key;
+    private Algorithm algorithm;
+    private Sign1Message message;
+    private byte[] externalAad;
+    private long payloadLength = -1;
+    private String provider;
+
+    /**
+     * Initializes the signature and feeds it the Sig_structure up to the first payload byte.
+     */
+    public Sign1Verifier build() throws CborException, CoseException {
+      if (key == null || message == null || payloadLength < 0) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (!(key instanceof Ec2SigningKey)) {
+        throw new CoseException("Incremental verification requires an Ec2SigningKey.");
+      }
+      Algorithm algorithm = this.algorithm;
+      if (algorithm == null) {
+        algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+            message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+      }
+      Ec2SigningKey verifyingKey = (Ec2SigningKey) key;
+      Signature signature = verifyingKey.initVerify(algorithm, provider);
+      try {
+        signature.update(SignStructure.encodeSignature1Prefix(
+            message.getEncodedProtectedHeaders(), externalAad));
+        signature.update(CborUtils.encodeHead(MajorType.BYTE_STRING, payloadLength));
+      } catch (SignatureException e) {
+        throw new CoseException("Error while verifying ", e);
+      }
+      return new Sign1Verifier(verifyingKey, algorithm, message.getSignature(), payloadLength,
+          signature);
+    }
+
+    public Builder withKey(CoseKey key) {
+      this.key = key;
+      return this;
+    }
+
+    /**
+     * Sets the algorithm. Optional, taken from the protected headers of the message if not set.
+     */
+    public Builder withAlgorithm(Algorithm algorithm) {
+      this.algorithm = algorithm;
+      return this;
+    }
+
+    public Builder withMessage(Sign1Message message) {
+      this.message = message;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+
+    /**
+     * Sets the total number of payload bytes that will be passed to update. Required.
+     */
+    public Builder withPayloadLength(long payloadLength) {
+      this.payloadLength = payloadLength;
+      return this;
+    }
+
+    /** Sets the JCA provider of the signature. Optional, the default provider if not set. */
+    public Builder withProvider(String provider) {
+      this.provider = provider;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public void update(byte[] chunk) throws CoseException {
+    update(chunk, 0, chunk.length);
+  }
+
+  public void update(byte[] chunk, int offset, int length) throws CoseException {
+    reserve(length);
+    try {
+      signature.update(chunk, offset, length);
+    } catch (SignatureException e) {
+      throw new CoseException("Error while verifying ", e);
+    }
+    written += length;
+  }
+
+  /**
+   * Feeds the remaining bytes of the buffer and advances its position to the limit.
+   */
+  public void update(ByteBuffer chunk) throws CoseException {
+    int length = chunk.remaining();
+    reserve(length);
+    try {
+      signature.update(chunk);
+    } catch (SignatureException e) {
+      throw new CoseException("Error while verifying ", e);
+    }
+    written += length;
+  }
+
+  /**
+   * Checks the signature of the message over everything passed to update.
+   * @throws CoseException if fewer bytes than announced were passed or the signature is invalid
+   */
+  public void finish() throws CoseException {
+    if (finished) {
+      throw new CoseException("Verifier has already finished.");
+    }
+    if (written != payloadLength) {
+      throw new CoseException("Expected " + payloadLength + " payload bytes, got " + written);
+    }
+    finished = true;
+    boolean success = false;
+    try {
+      if (!signature.verify(CoseUtils.signatureCoseToDer(expectedSignature))) {
+        throw new CoseException("Failed verification.");
+      }
+      success = true;
+    } catch (SignatureException e) {
+      throw new CoseException("Error while verifying ", e);
+    } finally {
+      Metrics.record(Operation.VERIFY, algorithm, key.getKeyType(),
+          (int) Math.min(payloadLength, Integer.MAX_VALUE), start, success);
+    }
+  }
+
+  private void reserve(int length) throws CoseException {
+    if (finished) {
+      throw new CoseException("Verifier has already finished.");
+    }
+    if (length > payloadLength - written) {
+      throw new CoseException("Payload exceeds the announced length of " + payloadLength);
+    }
+  }
+}
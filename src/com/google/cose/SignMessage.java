@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,23 +37,29 @@ public class SignMessage extends CoseMessage {
   private final byte[] message;
   private final ImmutableList<Signature> signatures;
 
-  private SignMessage(Map protectedHeaders, Map unprotectedHeaders, byte[] message,
-      ImmutableList<Signature> signatures) {
-    super(protectedHeaders, unprotectedHeaders);
+  private SignMessage(Map protectedHeaders, byte[] encodedProtectedHeaders,
+      Map unprotectedHeaders, byte[] message, ImmutableList<Signature> signatures) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.message = message;
     this.signatures = signatures;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when decode derived the map from the bytes, so build() does not need to compare them.
+    private boolean protectedHeadersDecoded;
     private Map unprotectedHeaders;
     private byte[] message;
     private ImmutableList<Signature> signatures;
 
     public SignMessage build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null)
+      Map headers = protectedHeadersDecoded ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null)
           && (signatures != null && signatures.size() != 0)) {
-        return new SignMessage(protectedHeaders, unprotectedHeaders, message, signatures);
+        return new SignMessage(headers, encodedProtectedHeaders,
+            unprotectedHeaders, message, signatures);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -60,6 +67,24 @@ public class SignMessage extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersDecoded = true;
       return this;
     }
 
@@ -91,7 +116,7 @@ public class SignMessage extends CoseMessage {
 
     ArrayBuilder<CborBuilder> messageBuilder = new CborBuilder().addArray();
     messageBuilder
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders())
         .add(message);
 
@@ -105,11 +130,25 @@ public class SignMessage extends CoseMessage {
     return messageBuilder.end().build().get(0);
   }
 
+  @Override
+  Integer getMessageTag() {
+    return Headers.MESSAGE_TAG_SIGN;
+  }
+
   public static SignMessage deserialize(byte[] messageBytes) throws CborException, CoseException {
-    return decode(CborUtils.decode(messageBytes));
+    return deserializeMessage(messageBytes, SignMessage::decode);
   }
 
   public static SignMessage decode(DataItem cborMessage) throws CborException, CoseException {
+    return decode(cborMessage, null, null);
+  }
+
+  /**
+   * Decodes the message with protected headers that {@link CoseMessage#decodeAny} already decoded
+   * from its first item. If they are null, they are decoded here.
+   */
+  static SignMessage decode(DataItem cborMessage, Map protectedHeaders,
+      byte[] protectedHeaderBytes) throws CborException, CoseException {
     List<DataItem> messageArray = CborUtils.asArray(cborMessage).getDataItems();
     if (messageArray.size() != 4) {
       throw new CoseException("Error while decoding SignMessage. Expected 4 items,"
@@ -122,8 +161,12 @@ public class SignMessage extends CoseMessage {
       signatures.add(decodedSignature);
     }
 
+    if (protectedHeaders == null) {
+      protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
+      protectedHeaders = CoseUtils.asProtectedHeadersMap(protectedHeaderBytes);
+    }
     return SignMessage.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaders, protectedHeaderBytes)
         .withMessage(CoseUtils.getBytesFromBstrOrNilValue(messageArray.get(2)))
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withSignatures(signatures)
@@ -31,19 +31,27 @@ import java.util.List;
 public class Signature extends CoseMessage {
   private final byte[] signature;
 
-  Signature(Map protectedHeaders, Map unprotectedHeaders, byte[] signature) {
-    super(protectedHeaders, unprotectedHeaders);
+  Signature(Map protectedHeaders, byte[] encodedProtectedHeaders, Map unprotectedHeaders,
+      byte[] signature) {
+    super(protectedHeaders, encodedProtectedHeaders, unprotectedHeaders);
     this.signature = signature;
   }
 
   public static class Builder {
     private Map protectedHeaders;
+    private byte[] encodedProtectedHeaders;
+    // Set when the library derived the map from the bytes or the bytes from the map, so build()
+    // does not need to compare them.
+    private boolean protectedHeadersTrusted;
     private Map unprotectedHeaders;
     private byte[] signature;
 
     public Signature build() throws CoseException {
-      if ((protectedHeaders != null) && (unprotectedHeaders != null) && (signature != null)) {
-        return new Signature(protectedHeaders, unprotectedHeaders, signature);
+      Map headers = protectedHeadersTrusted ? protectedHeaders
+          : checkProtectedHeaders(protectedHeaders, encodedProtectedHeaders);
+      if ((headers != null) && (unprotectedHeaders != null) && (signature != null)) {
+        return new Signature(headers, encodedProtectedHeaders, unprotectedHeaders,
+            signature);
       } else {
         throw new CoseException("Some fields are missing.");
       }
@@ -51,6 +59,35 @@ public class Signature extends CoseMessage {
 
     public Builder withProtectedHeaders(Map protectedHeaders) {
       this.protectedHeaders = protectedHeaders;
+      this.protectedHeadersTrusted = false;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers exactly as encoded on the wire. They have to decode to the map
+     * set with {@link #withProtectedHeaders}, which may be omitted.
+     */
+    public Builder withEncodedProtectedHeaders(byte[] encodedProtectedHeaders) {
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = false;
+      return this;
+    }
+
+    Builder withDecodedProtectedHeaders(byte[] encodedProtectedHeaders) throws CborException {
+      this.protectedHeaders = CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders);
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = true;
+      return this;
+    }
+
+    /**
+     * Sets the protected headers together with the bytes the library encoded from them, without
+     * decoding the bytes again to compare them with the map.
+     */
+    Builder withSerializedProtectedHeaders(Map protectedHeaders, byte[] encodedProtectedHeaders) {
+      this.protectedHeaders = protectedHeaders;
+      this.encodedProtectedHeaders = encodedProtectedHeaders;
+      this.protectedHeadersTrusted = true;
       return this;
     }
 
@@ -68,7 +105,7 @@ public class Signature extends CoseMessage {
   @Override
   public DataItem encode() throws CborException {
     return new CborBuilder().addArray()
-        .add(CoseUtils.serializeProtectedHeaders(getProtectedHeaders()))
+        .add(getEncodedProtectedHeaders())
         .add(getUnprotectedHeaders()).add(signature).end().build().get(0);
   }
 
@@ -83,8 +120,9 @@ public class Signature extends CoseMessage {
           + "received " + messageArray.size());
     }
 
+    byte[] protectedHeaderBytes = CborUtils.asByteString(messageArray.get(0)).getBytes();
     return Signature.builder()
-        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(messageArray.get(0)))
+        .withDecodedProtectedHeaders(protectedHeaderBytes)
         .withUnprotectedHeaders(CborUtils.asMap(messageArray.get(1)))
         .withSignature(CborUtils.asByteString(messageArray.get(2)).getBytes())
         .build();
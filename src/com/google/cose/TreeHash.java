@@ -0,0 +1,297 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Chunked tree hash for large content, computed in parallel.
+ *
+ * <p>The content is split into chunks of a fixed size, the last chunk may be shorter. The chunks
+ * are the leaves of a Merkle tree with the layout and hashing scheme of RFC 9162 section 2.1, see
+ * {@link MerkleTree}. The root is the tree hash; empty content hashes to the hash of the empty
+ * string. Subtrees of more than a few MiB are hashed as fork/join tasks, and files are memory
+ * mapped, so all cores contribute and no chunk is copied onto the heap.
+ *
+ * <p>The result differs from the plain digest of the content. The chunk size and layout are
+ * recorded with {@link #addHeaders(Map)} in the protected headers of a {@link HashEnvelope}, which
+ * then uses the same tree hash to verify the content. Instances are immutable and can be shared
+ * between threads.
+ */
+public final class TreeHash {
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  /** Binary Merkle tree of RFC 9162 over fixed size chunks. */
+  public static final int LAYOUT_RFC9162 = 1;
+  // Files are mapped in segments of at most this size, holding a whole number of chunks.
+  private static final long MAX_SEGMENT_SIZE = 1L << 30;
+  // Subtrees over at most this many bytes are hashed by a single task, with a single digest.
+  private static final long SEQUENTIAL_THRESHOLD = 4L * 1024 * 1024;
+
+  private final Algorithm hashAlgorithm;
+  private final int chunkSize;
+  private final ForkJoinPool pool;
+
+  private TreeHash(Algorithm hashAlgorithm, int chunkSize, ForkJoinPool pool) {
+    this.hashAlgorithm = hashAlgorithm;
+    this.chunkSize = chunkSize;
+    this.pool = pool;
+  }
+
+  public static class Builder {
+    private Algorithm hashAlgorithm = Algorithm.HASH_SHA_256;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private ForkJoinPool pool;
+
+    public TreeHash build() throws CoseException {
+      if (chunkSize <= 0) {
+        throw new CoseException("Chunk size must be positive.");
+      }
+      // Fails early for unsupported hash algorithms.
+      CoseUtils.getMessageDigest(hashAlgorithm);
+      return new TreeHash(hashAlgorithm, chunkSize,
+          (pool != null) ? pool : ForkJoinPool.commonPool());
+    }
+
+    /** Sets one of the SHA-2 hash algorithms. Defaults to SHA-256. */
+    public Builder withHashAlgorithm(Algorithm hashAlgorithm) {
+      this.hashAlgorithm = hashAlgorithm;
+      return this;
+    }
+
+    /** Sets the chunk size in bytes. Defaults to {@link #DEFAULT_CHUNK_SIZE}. */
+    public Builder withChunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    /** Sets the pool the hashing tasks run on. Defaults to the common pool. */
+    public Builder withPool(ForkJoinPool pool) {
+      this.pool = pool;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Creates the tree hash described by the protected headers of a hash envelope.
+   * @param protectedHeaders protected headers with the payload hash algorithm and tree hash headers
+   * @param pool pool the hashing tasks run on, null for the common pool
+   * @return the tree hash, or null if the headers do not describe one
+   * @throws CoseException if the parameters are not supported
+   */
+  public static TreeHash fromHeaders(Map protectedHeaders, ForkJoinPool pool)
+      throws CborException, CoseException {
+    DataItem parameters = CoseUtils.getValueFromMap(protectedHeaders,
+        Headers.MESSAGE_HEADER_TREE_HASH);
+    if (parameters == null) {
+      return null;
+    }
+    List<DataItem> items = CborUtils.asArray(parameters).getDataItems();
+    if (items.size() != 2 || CborUtils.asInteger(items.get(0)) != LAYOUT_RFC9162) {
+      throw new CoseException("Unsupported tree hash parameters.");
+    }
+    DataItem hashAlgorithm = CoseUtils.getValueFromMap(protectedHeaders,
+        Headers.MESSAGE_HEADER_PAYLOAD_HASH_ALGORITHM);
+    if (hashAlgorithm == null) {
+      throw new CoseException("Missing payload hash algorithm.");
+    }
+    Algorithm algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(hashAlgorithm));
+    if (algorithm == null) {
+      throw new CoseException("Unsupported hash algorithm.");
+    }
+    return builder()
+        .withHashAlgorithm(algorithm)
+        .withChunkSize(CborUtils.asInteger(items.get(1)))
+        .withPool(pool)
+        .build();
+  }
+
+  /**
+   * Records the layout and chunk size in the given protected headers. The hash algorithm is
+   * recorded by {@link HashEnvelope#sign}.
+   */
+  public void addHeaders(Map protectedHeaders) {
+    Array parameters = new Array();
+    parameters.add(new UnsignedInteger(LAYOUT_RFC9162));
+    parameters.add(new UnsignedInteger(chunkSize));
+    protectedHeaders.put(new NegativeInteger(Headers.MESSAGE_HEADER_TREE_HASH), parameters);
+  }
+
+  public Algorithm getHashAlgorithm() {
+    return hashAlgorithm;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public byte[] hash(byte[] content) {
+    return hash(ByteBuffer.wrap(content));
+  }
+
+  /** Hashes the content from the position to the limit of the buffer, in parallel. */
+  public byte[] hash(ByteBuffer content) {
+    ByteBuffer[] segments = new ByteBuffer[] {content.slice()};
+    return hash(segments, Long.MAX_VALUE, content.remaining());
+  }
+
+  /** Hashes the content of the file, in parallel over memory mapped segments. */
+  public byte[] hash(Path content) throws IOException {
+    long chunksPerSegment = Math.max(1, MAX_SEGMENT_SIZE / chunkSize);
+    long segmentSize = chunksPerSegment * chunkSize;
+    try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * segmentSize;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(segmentSize, size - start));
+      }
+      return hash(segments, chunksPerSegment, size);
+    }
+  }
+
+  /**
+   * Hashes the remaining bytes of the stream on the calling thread, keeping only one chunk and the
+   * roots of the completed subtrees in memory. The stream is not closed.
+   */
+  public byte[] hash(InputStream content) throws IOException {
+    MessageDigest digest = newDigest();
+    List<byte[]> roots = new ArrayList<>();
+    List<Long> sizes = new ArrayList<>();
+    byte[] chunk = new byte[chunkSize];
+    int length;
+    while ((length = readChunk(content, chunk)) > 0) {
+      digest.update(MerkleTree.LEAF_PREFIX);
+      digest.update(chunk, 0, length);
+      byte[] hash = digest.digest();
+      long size = 1;
+      // Merges perfect subtrees of equal size, as a binary counter.
+      while (!sizes.isEmpty() && sizes.get(sizes.size() - 1) == size) {
+        hash = MerkleTree.nodeHash(digest, roots.remove(roots.size() - 1), hash);
+        sizes.remove(sizes.size() - 1);
+        size *= 2;
+      }
+      roots.add(hash);
+      sizes.add(size);
+    }
+    if (roots.isEmpty()) {
+      return digest.digest();
+    }
+    // The RFC 9162 tree is the right fold of the perfect subtrees, largest first.
+    byte[] root = roots.get(roots.size() - 1);
+    for (int i = roots.size() - 2; i >= 0; i--) {
+      root = MerkleTree.nodeHash(digest, roots.get(i), root);
+    }
+    return root;
+  }
+
+  private byte[] hash(ByteBuffer[] segments, long chunksPerSegment, long size) {
+    long chunks = (size + chunkSize - 1) / chunkSize;
+    if (chunks == 0) {
+      return newDigest().digest();
+    }
+    return pool.invoke(new HashTask(segments, chunksPerSegment, 0, chunks));
+  }
+
+  private static int readChunk(InputStream content, byte[] chunk) throws IOException {
+    int length = 0;
+    while (length < chunk.length) {
+      int read = content.read(chunk, length, chunk.length - length);
+      if (read == -1) {
+        break;
+      }
+      length += read;
+    }
+    return length;
+  }
+
+  private MessageDigest newDigest() {
+    try {
+      return CoseUtils.getMessageDigest(hashAlgorithm);
+    } catch (CoseException e) {
+      // The algorithm was checked when the object was built.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Computes the root of the subtree over the chunks [from, to). */
+  private final class HashTask extends RecursiveTask<byte[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer[] segments;
+    private final long chunksPerSegment;
+    private final long from;
+    private final long to;
+
+    HashTask(ByteBuffer[] segments, long chunksPerSegment, long from, long to) {
+      this.segments = segments;
+      this.chunksPerSegment = chunksPerSegment;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected byte[] compute() {
+      return subtreeHash(newDigest(), from, to);
+    }
+
+    private byte[] subtreeHash(MessageDigest digest, long from, long to) {
+      if (to - from == 1) {
+        ByteBuffer chunk = segments[(int) (from / chunksPerSegment)].duplicate();
+        int start = (int) ((from % chunksPerSegment) * chunkSize);
+        chunk.position(start);
+        chunk.limit(Math.min(chunk.capacity(), start + chunkSize));
+        return MerkleTree.leafHash(digest, chunk);
+      }
+      // RFC 9162: the left subtree holds the largest power of two smaller than the leaf count.
+      long split = from + Long.highestOneBit(to - from - 1);
+      if ((to - from) * chunkSize <= SEQUENTIAL_THRESHOLD) {
+        byte[] left = subtreeHash(digest, from, split);
+        return MerkleTree.nodeHash(digest, left, subtreeHash(digest, split, to));
+      }
+      HashTask left = new HashTask(segments, chunksPerSegment, from, split);
+      left.fork();
+      byte[] right = subtreeHash(digest, split, to);
+      return MerkleTree.nodeHash(digest, left.join(), right);
+    }
+  }
+}
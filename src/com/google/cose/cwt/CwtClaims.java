@@ -0,0 +1,376 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.cwt;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnicodeString;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.utils.CborScanner;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Claims set of a CBOR Web Token (RFC 8392).
+ *
+ * <p>The claims are read directly from the encoded payload. On first access the top level map is
+ * scanned once to record where the values of the registered claims start, without decoding any
+ * value. Afterwards every getter only decodes the claim it returns, so checking the expiration time
+ * of a token never touches its other claims.
+ */
+public final class CwtClaims {
+  private static final int MAX_REGISTERED_CLAIM = Headers.CWT_CLAIM_CWT_ID;
+  private static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+  private static final int MAJOR_TYPE_NEGATIVE_INTEGER = 1;
+  private static final int MAJOR_TYPE_BYTE_STRING = 2;
+  private static final int MAJOR_TYPE_UNICODE_STRING = 3;
+  private static final int MAJOR_TYPE_ARRAY = 4;
+  private static final int MAJOR_TYPE_MAP = 5;
+  private static final int MAJOR_TYPE_SPECIAL = 7;
+  private static final int INDEFINITE_LENGTH = 31;
+  private static final int BREAK = 0xff;
+  private static final int EPOCH_DATE_TIME_TAG = 0xc1;
+
+  private final byte[] payload;
+  // Offsets of the values of the registered claims indexed by label, -1 if absent. Computing the
+  // index twice on concurrent first access is harmless, so the field is only volatile.
+  private volatile int[] valueOffsets;
+
+  private CwtClaims(byte[] payload) {
+    this.payload = payload;
+  }
+
+  /**
+   * Wraps the encoded claims set. No work is done until the first claim is accessed.
+   * @param payload encoded claims map, e.g. the payload of a COSE_Sign1 or COSE_Mac0 message
+   * @return CwtClaims object
+   */
+  public static CwtClaims parse(byte[] payload) {
+    return new CwtClaims(payload);
+  }
+
+  public static class Builder {
+    private final Map claims = new Map();
+
+    public CwtClaims build() throws CborException {
+      return new CwtClaims(CborUtils.encode(claims));
+    }
+
+    public Builder withIssuer(String issuer) {
+      return withClaim(Headers.CWT_CLAIM_ISSUER, new UnicodeString(issuer));
+    }
+
+    public Builder withSubject(String subject) {
+      return withClaim(Headers.CWT_CLAIM_SUBJECT, new UnicodeString(subject));
+    }
+
+    public Builder withAudience(String audience) {
+      return withClaim(Headers.CWT_CLAIM_AUDIENCE, new UnicodeString(audience));
+    }
+
+    /** Sets the expiration time in seconds since the epoch. */
+    public Builder withExpirationTime(long expirationTime) {
+      return withClaim(Headers.CWT_CLAIM_EXPIRATION_TIME, numericDate(expirationTime));
+    }
+
+    /** Sets the time before which the token must not be accepted in seconds since the epoch. */
+    public Builder withNotBefore(long notBefore) {
+      return withClaim(Headers.CWT_CLAIM_NOT_BEFORE, numericDate(notBefore));
+    }
+
+    /** Sets the time the token was issued at in seconds since the epoch. */
+    public Builder withIssuedAt(long issuedAt) {
+      return withClaim(Headers.CWT_CLAIM_ISSUED_AT, numericDate(issuedAt));
+    }
+
+    public Builder withCwtId(byte[] cwtId) {
+      return withClaim(Headers.CWT_CLAIM_CWT_ID, new ByteString(cwtId));
+    }
+
+    /** Adds a claim that is not covered by the other builder methods. */
+    public Builder withClaim(DataItem label, DataItem value) {
+      claims.put(label, value);
+      return this;
+    }
+
+    private Builder withClaim(int label, DataItem value) {
+      return withClaim(new UnsignedInteger(label), value);
+    }
+
+    private static DataItem numericDate(long seconds) {
+      return (seconds >= 0) ? new UnsignedInteger(seconds) : new NegativeInteger(seconds);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns the encoded claims set. */
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * Returns true if the registered claim with the given label is present.
+   * @param label one of the CWT_CLAIM labels in {@link Headers}
+   */
+  public boolean hasClaim(int label) throws CborException {
+    return label > 0 && label <= MAX_REGISTERED_CLAIM && index()[label] >= 0;
+  }
+
+  public String getIssuer() throws CborException {
+    return readTextClaim(Headers.CWT_CLAIM_ISSUER);
+  }
+
+  public String getSubject() throws CborException {
+    return readTextClaim(Headers.CWT_CLAIM_SUBJECT);
+  }
+
+  /**
+   * Returns the audience. A single string is returned as a list with one element.
+   * @return the audience, empty if the claim is absent
+   */
+  public ImmutableList<String> getAudience() throws CborException {
+    int offset = index()[Headers.CWT_CLAIM_AUDIENCE];
+    if (offset < 0) {
+      return ImmutableList.of();
+    }
+    if (majorType(offset) == MAJOR_TYPE_UNICODE_STRING) {
+      return ImmutableList.of(readText(offset));
+    }
+    if (majorType(offset) != MAJOR_TYPE_ARRAY || additionalInformation(offset) >= 28) {
+      throw new CborException("Audience must be a string or an array of strings.");
+    }
+    long count = argument(offset);
+    ImmutableList.Builder<String> audience = ImmutableList.builder();
+    offset += headLength(offset);
+    for (long i = 0; i < count; i++) {
+      audience.add(readText(offset));
+      offset += headLength(offset) + (int) argument(offset);
+    }
+    return audience.build();
+  }
+
+  /**
+   * Returns the expiration time in seconds since the epoch, null if the claim is absent. Fractional
+   * seconds are truncated.
+   */
+  public Long getExpirationTime() throws CborException {
+    return readNumericDate(Headers.CWT_CLAIM_EXPIRATION_TIME);
+  }
+
+  /**
+   * Returns the not before time in seconds since the epoch, null if the claim is absent. Fractional
+   * seconds are truncated.
+   */
+  public Long getNotBefore() throws CborException {
+    return readNumericDate(Headers.CWT_CLAIM_NOT_BEFORE);
+  }
+
+  /**
+   * Returns the issued at time in seconds since the epoch, null if the claim is absent. Fractional
+   * seconds are truncated.
+   */
+  public Long getIssuedAt() throws CborException {
+    return readNumericDate(Headers.CWT_CLAIM_ISSUED_AT);
+  }
+
+  public byte[] getCwtId() throws CborException {
+    int offset = index()[Headers.CWT_CLAIM_CWT_ID];
+    if (offset < 0) {
+      return null;
+    }
+    if (majorType(offset) != MAJOR_TYPE_BYTE_STRING
+        || additionalInformation(offset) == INDEFINITE_LENGTH) {
+      throw new CborException("CWT ID must be a definite length byte string.");
+    }
+    int start = offset + headLength(offset);
+    return Arrays.copyOfRange(payload, start, start + (int) argument(offset));
+  }
+
+  /**
+   * Decodes the whole claims set, including claims that are not registered.
+   */
+  public Map asMap() throws CborException {
+    return CborUtils.asMap(CborUtils.decode(payload));
+  }
+
+  private int[] index() throws CborException {
+    int[] offsets = valueOffsets;
+    if (offsets == null) {
+      offsets = buildIndex();
+      valueOffsets = offsets;
+    }
+    return offsets;
+  }
+
+  private int[] buildIndex() throws CborException {
+    if (payload == null || payload.length == 0 || majorType(0) != MAJOR_TYPE_MAP) {
+      throw new CborException("CWT claims set must be a map.");
+    }
+    boolean indefinite = additionalInformation(0) == INDEFINITE_LENGTH;
+    long count = indefinite ? Long.MAX_VALUE : argument(0);
+    int[] offsets = new int[MAX_REGISTERED_CLAIM + 1];
+    Arrays.fill(offsets, -1);
+
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    buffer.position(headLength(0));
+    CborScanner scanner = new CborScanner(payload.length);
+    for (long i = 0; i < count; i++) {
+      if (indefinite && buffer.hasRemaining() && (payload[buffer.position()] & 0xff) == BREAK) {
+        buffer.get();
+        break;
+      }
+      int labelOffset = buffer.position();
+      skipItem(scanner, buffer);
+      // Registered claim labels are small unsigned integers. The whole argument is decoded, so a
+      // label in a longer than necessary head still counts as the same claim.
+      if (majorType(labelOffset) == MAJOR_TYPE_UNSIGNED_INTEGER) {
+        long label = argument(labelOffset);
+        if (label > 0 && label <= MAX_REGISTERED_CLAIM) {
+          if (offsets[(int) label] >= 0) {
+            throw new CborException("Duplicate claim: " + label);
+          }
+          offsets[(int) label] = buffer.position();
+        }
+      }
+      skipItem(scanner, buffer);
+    }
+    if (buffer.hasRemaining()) {
+      throw new CborException("Unexpected data after the CWT claims set.");
+    }
+    return offsets;
+  }
+
+  private static void skipItem(CborScanner scanner, ByteBuffer buffer) throws CborException {
+    scanner.reset();
+    if (!scanner.scan(buffer)) {
+      throw new CborException("CWT claims set is truncated.");
+    }
+  }
+
+  private String readTextClaim(int label) throws CborException {
+    int offset = index()[label];
+    return (offset < 0) ? null : readText(offset);
+  }
+
+  private String readText(int offset) throws CborException {
+    if (majorType(offset) != MAJOR_TYPE_UNICODE_STRING
+        || additionalInformation(offset) == INDEFINITE_LENGTH) {
+      throw new CborException("Expected a definite length text string.");
+    }
+    return new String(payload, offset + headLength(offset), (int) argument(offset),
+        StandardCharsets.UTF_8);
+  }
+
+  private Long readNumericDate(int label) throws CborException {
+    int offset = index()[label];
+    if (offset < 0) {
+      return null;
+    }
+    if ((payload[offset] & 0xff) == EPOCH_DATE_TIME_TAG) {
+      offset++;
+    }
+    long argument = argument(offset);
+    switch (majorType(offset)) {
+      case MAJOR_TYPE_UNSIGNED_INTEGER:
+        if (argument < 0) {
+          throw new CborException("NumericDate out of range.");
+        }
+        return argument;
+      case MAJOR_TYPE_NEGATIVE_INTEGER:
+        if (argument < 0) {
+          throw new CborException("NumericDate out of range.");
+        }
+        return -1 - argument;
+      case MAJOR_TYPE_SPECIAL:
+        double value;
+        switch (additionalInformation(offset)) {
+          case 25:
+            value = halfToDouble((int) argument);
+            break;
+          case 26:
+            value = Float.intBitsToFloat((int) argument);
+            break;
+          case 27:
+            value = Double.longBitsToDouble(argument);
+            break;
+          default:
+            throw new CborException("NumericDate must be a number.");
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          throw new CborException("NumericDate must be finite.");
+        }
+        return (long) value;
+      default:
+        throw new CborException("NumericDate must be a number.");
+    }
+  }
+
+  private int majorType(int offset) {
+    return (payload[offset] & 0xff) >>> 5;
+  }
+
+  private int additionalInformation(int offset) {
+    return payload[offset] & 0x1f;
+  }
+
+  private int headLength(int offset) throws CborException {
+    int additionalInformation = additionalInformation(offset);
+    if (additionalInformation < 24 || additionalInformation == INDEFINITE_LENGTH) {
+      return 1;
+    } else if (additionalInformation <= 27) {
+      return 1 + (1 << (additionalInformation - 24));
+    }
+    throw new CborException("Reserved additional information: " + additionalInformation);
+  }
+
+  // Offsets handed to this method were validated by the scanner, so the head is complete.
+  private long argument(int offset) throws CborException {
+    int length = headLength(offset);
+    if (length == 1) {
+      return additionalInformation(offset);
+    }
+    long argument = 0;
+    for (int i = 1; i < length; i++) {
+      argument = (argument << 8) | (payload[offset + i] & 0xff);
+    }
+    return argument;
+  }
+
+  private static double halfToDouble(int bits) {
+    int exponent = (bits >> 10) & 0x1f;
+    int mantissa = bits & 0x3ff;
+    double value;
+    if (exponent == 0) {
+      value = mantissa * Math.pow(2, -24);
+    } else if (exponent == 0x1f) {
+      value = (mantissa == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+    }
+    return ((bits & 0x8000) != 0) ? -value : value;
+  }
+}
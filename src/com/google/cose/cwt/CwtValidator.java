@@ -0,0 +1,207 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.cwt;
+
+import co.nstant.in.cbor.CborException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.cose.CoseKey;
+import com.google.cose.Mac0Message;
+import com.google.cose.MacKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Validates the claims of CBOR Web Tokens (RFC 8392) and verifies tokens carried in COSE_Sign1 or
+ * COSE_Mac0 messages.
+ *
+ * <p>The checks are compiled into a list when the validator is built, so validating a token only
+ * runs the checks that were configured, in order of their cost. The verify functions validate the
+ * claims before the signature or MAC, so expired or misaddressed tokens are rejected without any
+ * cryptographic operation. Instances are immutable and can be shared between threads.
+ */
+public final class CwtValidator {
+  private final ImmutableList<ClaimCheck> checks;
+  private final Clock clock;
+
+  @FunctionalInterface
+  interface ClaimCheck {
+    void check(CwtClaims claims, long now) throws CborException, CoseException;
+  }
+
+  private CwtValidator(ImmutableList<ClaimCheck> checks, Clock clock) {
+    this.checks = checks;
+    this.clock = clock;
+  }
+
+  public static class Builder {
+    private String issuer;
+    private final Set<String> audiences = new LinkedHashSet<>();
+    private long clockSkewSeconds;
+    private boolean expirationRequired;
+    private Clock clock = Clock.systemUTC();
+
+    public CwtValidator build() throws CoseException {
+      if (clockSkewSeconds < 0) {
+        throw new CoseException("Clock skew must not be negative.");
+      }
+      long skew = clockSkewSeconds;
+      boolean requireExpiration = expirationRequired;
+      ImmutableList.Builder<ClaimCheck> checks = ImmutableList.builder();
+      checks.add((claims, now) -> {
+        Long expirationTime = claims.getExpirationTime();
+        if (expirationTime == null) {
+          if (requireExpiration) {
+            throw new CoseException("Token has no expiration time.");
+          }
+        } else if (now - skew >= expirationTime) {
+          throw new CoseException("Token has expired.");
+        }
+      });
+      checks.add((claims, now) -> {
+        Long notBefore = claims.getNotBefore();
+        if (notBefore != null && now + skew < notBefore) {
+          throw new CoseException("Token is not yet valid.");
+        }
+      });
+      if (issuer != null) {
+        String expectedIssuer = issuer;
+        checks.add((claims, now) -> {
+          if (!expectedIssuer.equals(claims.getIssuer())) {
+            throw new CoseException("Unexpected issuer.");
+          }
+        });
+      }
+      if (!audiences.isEmpty()) {
+        ImmutableSet<String> expectedAudiences = ImmutableSet.copyOf(audiences);
+        checks.add((claims, now) -> {
+          for (String audience : claims.getAudience()) {
+            if (expectedAudiences.contains(audience)) {
+              return;
+            }
+          }
+          throw new CoseException("Token is not intended for this audience.");
+        });
+      }
+      return new CwtValidator(checks.build(), clock);
+    }
+
+    /** Requires the issuer claim to be equal to the given issuer. */
+    public Builder withIssuer(String issuer) {
+      this.issuer = issuer;
+      return this;
+    }
+
+    /**
+     * Adds audiences this validator accepts. A token is accepted if one of its audiences was
+     * added. If none is added, the audience claim is not checked.
+     */
+    public Builder withAudiences(String...audiences) {
+      this.audiences.addAll(Arrays.asList(audiences));
+      return this;
+    }
+
+    /** Sets the tolerance applied to the expiration and not before times. Defaults to 0. */
+    public Builder withClockSkewSeconds(long clockSkewSeconds) {
+      this.clockSkewSeconds = clockSkewSeconds;
+      return this;
+    }
+
+    /** Rejects tokens without expiration time. By default such tokens are accepted. */
+    public Builder withExpirationRequired(boolean expirationRequired) {
+      this.expirationRequired = expirationRequired;
+      return this;
+    }
+
+    /** Sets the clock the current time is taken from. Defaults to the UTC system clock. */
+    public Builder withClock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Runs the configured checks on the claims.
+   * @throws CborException if a checked claim is malformed
+   * @throws CoseException if a check fails
+   */
+  public void validate(CwtClaims claims) throws CborException, CoseException {
+    long now = clock.millis() / 1000;
+    for (ClaimCheck check : checks) {
+      check.check(claims, now);
+    }
+  }
+
+  /**
+   * Validates the claims of a token carried in a COSE_Sign1 message and verifies its signature.
+   * @param token serialized message, optionally tagged as CWT
+   * @param key Ec2SigningKey or OkpSigningKey
+   * @return the validated claims
+   * @throws CborException if the token was not parseable
+   * @throws CoseException if validation or verification fails
+   */
+  public CwtClaims verifySign1(byte[] token, CoseKey key) throws CborException, CoseException {
+    Sign1Message message = Sign1Message.deserialize(stripCwtTag(token));
+    CwtClaims claims = validatePayload(message.getMessage());
+    CoseUtils.verifyCoseSign1Message(key, message, null, null, null);
+    return claims;
+  }
+
+  /**
+   * Validates the claims of a token carried in a COSE_Mac0 message and verifies its tag.
+   * @param token serialized message, optionally tagged as CWT
+   * @param key MacKey
+   * @return the validated claims
+   * @throws CborException if the token was not parseable
+   * @throws CoseException if validation or verification fails
+   */
+  public CwtClaims verifyMac0(byte[] token, MacKey key) throws CborException, CoseException {
+    Mac0Message message = Mac0Message.deserialize(stripCwtTag(token));
+    CwtClaims claims = validatePayload(message.getMessage());
+    if (!CoseUtils.verifyCoseMac0(key, message, null, null)) {
+      throw new CoseException("MAC verification failed.");
+    }
+    return claims;
+  }
+
+  private CwtClaims validatePayload(byte[] payload) throws CborException, CoseException {
+    if (payload == null) {
+      throw new CoseException("Token has no claims set.");
+    }
+    CwtClaims claims = CwtClaims.parse(payload);
+    validate(claims);
+    return claims;
+  }
+
+  // The CWT tag is a one byte argument head: 0xd8 0x3d.
+  private static byte[] stripCwtTag(byte[] token) {
+    if (token.length > 2 && (token[0] & 0xff) == 0xd8 && token[1] == Headers.MESSAGE_TAG_CWT) {
+      return Arrays.copyOfRange(token, 2, token.length);
+    }
+    return token;
+  }
+}
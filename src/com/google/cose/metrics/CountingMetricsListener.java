@@ -0,0 +1,128 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import com.google.cose.utils.Algorithm;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link MetricsListener} that aggregates the reports into per operation and per cache counters
+ * and the maximum depth seen per queue.
+ *
+ * <p>Counters are {@link LongAdder}s, which spread updates from concurrent threads over separate
+ * cells, so recording stays cheap under contention. Reads sum up the cells and are not atomic
+ * across counters.
+ */
+public final class CountingMetricsListener implements MetricsListener {
+  private final OperationCounters[] operations;
+  private final ConcurrentHashMap<String, CacheCounters> caches = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, LongAccumulator> queueDepths = new ConcurrentHashMap<>();
+
+  private static final class OperationCounters {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+  }
+
+  private static final class CacheCounters {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+  }
+
+  public CountingMetricsListener() {
+    operations = new OperationCounters[Operation.values().length];
+    for (int i = 0; i < operations.length; i++) {
+      operations[i] = new OperationCounters();
+    }
+  }
+
+  @Override
+  public void onOperation(Operation operation, Algorithm algorithm, int keyType, int payloadSize,
+      long durationNanos, boolean success) {
+    OperationCounters counters = operations[operation.ordinal()];
+    counters.count.increment();
+    if (!success) {
+      counters.failures.increment();
+    }
+    counters.nanos.add(durationNanos);
+    counters.bytes.add(payloadSize);
+  }
+
+  @Override
+  public void onCacheAccess(String cache, boolean hit) {
+    CacheCounters counters = caches.computeIfAbsent(cache, name -> new CacheCounters());
+    if (hit) {
+      counters.hits.increment();
+    } else {
+      counters.misses.increment();
+    }
+  }
+
+  @Override
+  public void onQueueDepth(String queue, int depth) {
+    queueDepths.computeIfAbsent(queue, name -> new LongAccumulator(Math::max, 0))
+        .accumulate(depth);
+  }
+
+  /** Returns the number of reported operations, including failed ones. */
+  public long getCount(Operation operation) {
+    return operations[operation.ordinal()].count.sum();
+  }
+
+  public long getFailureCount(Operation operation) {
+    return operations[operation.ordinal()].failures.sum();
+  }
+
+  public long getTotalNanos(Operation operation) {
+    return operations[operation.ordinal()].nanos.sum();
+  }
+
+  public long getTotalBytes(Operation operation) {
+    return operations[operation.ordinal()].bytes.sum();
+  }
+
+  public long getCacheHits(String cache) {
+    CacheCounters counters = caches.get(cache);
+    return (counters == null) ? 0 : counters.hits.sum();
+  }
+
+  public long getCacheMisses(String cache) {
+    CacheCounters counters = caches.get(cache);
+    return (counters == null) ? 0 : counters.misses.sum();
+  }
+
+  /** Returns the largest depth reported for the queue. */
+  public long getMaxQueueDepth(String queue) {
+    LongAccumulator depth = queueDepths.get(queue);
+    return (depth == null) ? 0 : depth.get();
+  }
+
+  /** Resets all counters to zero. */
+  public void reset() {
+    for (OperationCounters counters : operations) {
+      counters.count.reset();
+      counters.failures.reset();
+      counters.nanos.reset();
+      counters.bytes.reset();
+    }
+    caches.clear();
+    queueDepths.clear();
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import com.google.cose.utils.Algorithm;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link MetricsListener} that emits a Java Flight Recorder event for every reported operation,
+ * so COSE latency can be correlated with GC, lock and I/O events of the same recording.
+ *
+ * <p>Events are named {@code com.google.cose.<Operation>}, e.g. {@code com.google.cose.Sign} or
+ * {@code com.google.cose.MessageDecode}, and carry the algorithm, key type, payload size, duration
+ * and outcome of the operation. The event is committed when the operation completes, the time taken
+ * is recorded in the {@code operationDuration} field.
+ *
+ * <p>The JFR API is only available on Java 11 and later and on recent Java 8 updates, so the event
+ * types are defined at runtime through {@code jdk.jfr.EventFactory} and accessed through cached
+ * method handles. Use {@link #isSupported()} to check whether JFR is available. While no recording
+ * has the events enabled, reporting an operation costs a single check of the event type.
+ */
+public final class JfrMetricsListener implements MetricsListener {
+  private static final String EVENT_NAME_PREFIX = "com.google.cose.";
+  private static final String CATEGORY = "COSE";
+
+  private static final int FIELD_ALGORITHM = 0;
+  private static final int FIELD_KEY_TYPE = 1;
+  private static final int FIELD_PAYLOAD_BYTES = 2;
+  private static final int FIELD_DURATION = 3;
+  private static final int FIELD_SUCCESS = 4;
+
+  // Indexed by Operation ordinal, null if JFR is not available.
+  private static final EventType[] EVENT_TYPES = createEventTypes();
+
+  private final MetricsListener delegate;
+
+  /** Event type created by the event factory and the handles needed to emit events of it. */
+  private static final class EventType {
+    private final MethodHandle isEnabled;
+    private final MethodHandle newEvent;
+    private final MethodHandle set;
+    private final MethodHandle commit;
+
+    private EventType(MethodHandle isEnabled, MethodHandle newEvent, MethodHandle set,
+        MethodHandle commit) {
+      this.isEnabled = isEnabled;
+      this.newEvent = newEvent;
+      this.set = set;
+      this.commit = commit;
+    }
+  }
+
+  public JfrMetricsListener() {
+    this(null);
+  }
+
+  /**
+   * Creates a listener that also forwards all reports to the given listener, e.g. a
+   * {@link CountingMetricsListener}.
+   * @param delegate listener receiving all reports as well, may be null
+   * @throws UnsupportedOperationException if JFR is not available in this runtime
+   */
+  public JfrMetricsListener(MetricsListener delegate) {
+    if (EVENT_TYPES == null) {
+      throw new UnsupportedOperationException("Java Flight Recorder is not available.");
+    }
+    this.delegate = delegate;
+  }
+
+  /** Returns true if JFR events can be emitted in this runtime. */
+  public static boolean isSupported() {
+    return EVENT_TYPES != null;
+  }
+
+  /** Returns the name of the JFR event emitted for the given operation. */
+  public static String getEventName(Operation operation) {
+    return EVENT_NAME_PREFIX + toCamelCase(operation);
+  }
+
+  @Override
+  public void onOperation(Operation operation, Algorithm algorithm, int keyType, int payloadSize,
+      long durationNanos, boolean success) {
+    EventType eventType = EVENT_TYPES[operation.ordinal()];
+    try {
+      if ((boolean) eventType.isEnabled.invokeExact()) {
+        Object event = eventType.newEvent.invokeExact();
+        eventType.set.invokeExact(event, FIELD_ALGORITHM,
+            (Object) ((algorithm != null) ? algorithm.name() : null));
+        eventType.set.invokeExact(event, FIELD_KEY_TYPE, (Object) keyType);
+        eventType.set.invokeExact(event, FIELD_PAYLOAD_BYTES, (Object) payloadSize);
+        eventType.set.invokeExact(event, FIELD_DURATION, (Object) durationNanos);
+        eventType.set.invokeExact(event, FIELD_SUCCESS, (Object) success);
+        eventType.commit.invokeExact(event);
+      }
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      // Losing an event is preferable to failing the operation that is being reported.
+    }
+    if (delegate != null) {
+      delegate.onOperation(operation, algorithm, keyType, payloadSize, durationNanos, success);
+    }
+  }
+
+  @Override
+  public void onCacheAccess(String cache, boolean hit) {
+    if (delegate != null) {
+      delegate.onCacheAccess(cache, hit);
+    }
+  }
+
+  private static String toCamelCase(Operation operation) {
+    StringBuilder name = new StringBuilder();
+    for (String part : operation.name().split("_")) {
+      name.append(part.charAt(0)).append(part.substring(1).toLowerCase(Locale.ROOT));
+    }
+    return name.toString();
+  }
+
+  private static EventType[] createEventTypes() {
+    try {
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+      Constructor<?> field =
+          valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+      Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+      Method getEventType = eventFactoryClass.getMethod("getEventType");
+
+      Class<?> name = Class.forName("jdk.jfr.Name");
+      Class<?> label = Class.forName("jdk.jfr.Label");
+      Class<?> category = Class.forName("jdk.jfr.Category");
+      Class<?> timespan = Class.forName("jdk.jfr.Timespan");
+
+      List<Object> fields = Arrays.asList(
+          field.newInstance(String.class, "algorithm",
+              Collections.singletonList(annotation.newInstance(label, "Algorithm"))),
+          field.newInstance(int.class, "keyType",
+              Collections.singletonList(annotation.newInstance(label, "Key Type"))),
+          field.newInstance(int.class, "payloadBytes",
+              Collections.singletonList(annotation.newInstance(label, "Payload Bytes"))),
+          field.newInstance(long.class, "operationDuration", Arrays.asList(
+              annotation.newInstance(label, "Operation Duration"),
+              annotation.newInstance(timespan, "NANOSECONDS"))),
+          field.newInstance(boolean.class, "success",
+              Collections.singletonList(annotation.newInstance(label, "Success"))));
+
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      MethodHandle isEnabled = lookup.findVirtual(
+          eventTypeClass, "isEnabled", MethodType.methodType(boolean.class));
+      MethodHandle newEvent = lookup.findVirtual(
+          eventFactoryClass, "newEvent", MethodType.methodType(eventClass));
+      MethodHandle set = lookup.findVirtual(
+          eventClass, "set", MethodType.methodType(void.class, int.class, Object.class))
+          .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+      MethodHandle commit = lookup.findVirtual(
+          eventClass, "commit", MethodType.methodType(void.class))
+          .asType(MethodType.methodType(void.class, Object.class));
+
+      Operation[] operations = Operation.values();
+      EventType[] eventTypes = new EventType[operations.length];
+      for (Operation operation : operations) {
+        String displayName = toCamelCase(operation).replaceAll("(?<=[a-z])(?=[A-Z])", " ");
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation.newInstance(name, getEventName(operation)));
+        annotations.add(annotation.newInstance(label, "COSE " + displayName));
+        annotations.add(annotation.newInstance(category, new String[] {CATEGORY}));
+        Object factory = create.invoke(null, annotations, fields);
+        Object type = getEventType.invoke(factory);
+        eventTypes[operation.ordinal()] = new EventType(
+            isEnabled.bindTo(type),
+            newEvent.bindTo(factory).asType(MethodType.methodType(Object.class)),
+            set,
+            commit);
+      }
+      return eventTypes;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // JFR is missing or its API differs from the expected one, so no events are emitted.
+      return null;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.utils.Algorithm;
+
+/**
+ * Holds the process wide {@link MetricsListener} and reports operations to it.
+ *
+ * <p>Instrumented code brackets an operation with {@link #start()} and {@link #record}. While no
+ * listener is installed, {@link #start()} does not read the clock and {@link #record} returns
+ * right away, so the instrumentation reduces to a field read and a comparison.
+ */
+public final class Metrics {
+  /** Pre-generated key pairs of an {@code EphemeralKeyPool}. */
+  public static final String CACHE_EPHEMERAL_KEY_POOL = "ephemeral-key-pool";
+  /** Per thread AES key wrap cipher instances. */
+  public static final String CACHE_KEY_WRAP_CIPHER = "key-wrap-cipher";
+  /** Key id index over the recipients of a message. */
+  public static final String CACHE_RECIPIENT_INDEX = "recipient-index";
+  /** Merkle roots whose batch signature has been verified. */
+  public static final String CACHE_MERKLE_ROOT = "merkle-root";
+  /** Per thread Mac instances of a {@code BatchMac0}. */
+  public static final String CACHE_BATCH_MAC = "batch-mac";
+  /** Per thread AES-GCM cipher instances used by {@code BatchEncrypt0}. */
+  public static final String CACHE_BATCH_CIPHER = "batch-cipher";
+
+  private static final MetricsListener NO_OP = new MetricsListener() {};
+
+  private static volatile MetricsListener listener = NO_OP;
+
+  private Metrics() {}
+
+  /**
+   * Installs the listener that receives all further reports. Passing null restores the default
+   * listener which ignores all reports.
+   */
+  public static void setListener(MetricsListener listener) {
+    Metrics.listener = (listener != null) ? listener : NO_OP;
+  }
+
+  public static MetricsListener getListener() {
+    return listener;
+  }
+
+  public static boolean isEnabled() {
+    return listener != NO_OP;
+  }
+
+  /**
+   * Returns the start timestamp of an operation, or 0 if no listener is installed.
+   */
+  public static long start() {
+    return (listener != NO_OP) ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Reports an operation that was started with {@link #start()}. Operations started before a
+   * listener was installed are not reported.
+   */
+  public static void record(Operation operation, Algorithm algorithm, int keyType,
+      int payloadSize, long startNanos, boolean success) {
+    MetricsListener current = listener;
+    if (current != NO_OP && startNanos != 0) {
+      current.onOperation(operation, algorithm, keyType, payloadSize,
+          System.nanoTime() - startNanos, success);
+    }
+  }
+
+  public static void recordCacheAccess(String cache, boolean hit) {
+    MetricsListener current = listener;
+    if (current != NO_OP) {
+      current.onCacheAccess(cache, hit);
+    }
+  }
+
+  public static void recordQueueDepth(String queue, int depth) {
+    MetricsListener current = listener;
+    if (current != NO_OP) {
+      current.onQueueDepth(queue, depth);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import com.google.cose.utils.Algorithm;
+
+/**
+ * Receives timings of the cryptographic and CBOR operations performed by the library, the
+ * outcome of lookups in its internal caches and the depth of its internal queues. Install an
+ * implementation with {@link Metrics#setListener(MetricsListener)}.
+ *
+ * <p>Callbacks are invoked synchronously on the thread performing the operation, so
+ * implementations need to be thread safe and should return quickly.
+ */
+public interface MetricsListener {
+  /** Operations reported to the listener. */
+  enum Operation {
+    SIGN,
+    VERIFY,
+    MAC_CREATE,
+    MAC_VERIFY,
+    ENCRYPT,
+    DECRYPT,
+    CBOR_ENCODE,
+    CBOR_DECODE,
+    KEY_PARSE,
+    MESSAGE_DECODE
+  }
+
+  /**
+   * Called after an operation completed.
+   * @param operation the operation that was performed
+   * @param algorithm algorithm used, null for CBOR operations or if it is not known
+   * @param keyType COSE key type of the key used, 0 if no key is involved
+   * @param payloadSize size of the processed payload in bytes, 0 if not applicable
+   * @param durationNanos time taken by the operation
+   * @param success false if the operation threw or a verification failed
+   */
+  default void onOperation(Operation operation, Algorithm algorithm, int keyType, int payloadSize,
+      long durationNanos, boolean success) {}
+
+  /**
+   * Called after a lookup in one of the internal caches.
+   * @param cache name of the cache, one of the {@code CACHE_*} constants in {@link Metrics}
+   * @param hit true if the cached value was used
+   */
+  default void onCacheAccess(String cache, boolean hit) {}
+
+  /**
+   * Called when the number of items waiting in one of the internal queues changes.
+   * @param queue name of the queue, e.g. a stage of a {@code CosePipeline}
+   * @param depth number of items in the queue after the change
+   */
+  default void onQueueDepth(String queue, int depth) {}
+}
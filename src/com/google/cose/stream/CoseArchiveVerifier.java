@@ -0,0 +1,325 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import co.nstant.in.cbor.CborException;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.CoseKey;
+import com.google.cose.CoseMessage;
+import com.google.cose.Ec2SigningKey;
+import com.google.cose.Mac0Message;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.CborScanner;
+import com.google.cose.utils.CoseUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies all COSE_Sign1 and COSE_Mac0 messages of a CBOR sequence (RFC 8742) in parallel.
+ *
+ * <p>Verification runs in two phases. First the record boundaries are located with a
+ * {@link CborScanner}, which only reads the CBOR heads and skips over the contents of byte
+ * strings. Then contiguous ranges of records are decoded and verified as tasks on a
+ * {@link ForkJoinPool}. Files are memory mapped, so the payloads are only paged in by the thread
+ * verifying them.
+ *
+ * <p>Every record gets a {@link Result} at its position in the sequence. A record that cannot be
+ * decoded or does not verify does not stop the verification of the others. Only a sequence that is
+ * not well-formed CBOR, e.g. one that is truncated within a record, fails as a whole, since the
+ * boundaries of the following records cannot be determined. Instances are immutable and can be
+ * shared between threads.
+ */
+public final class CoseArchiveVerifier {
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = CoseMessageParser.DEFAULT_MAX_MESSAGE_SIZE;
+  public static final int DEFAULT_BATCH_SIZE = 64;
+  // Files are mapped in windows of this size. Every window extends by the maximum message size
+  // beyond its nominal end, so a record always lies within the window it starts in.
+  private static final long WINDOW_SIZE = 1L << 28;
+  // A window is mapped as a single buffer, so it has to stay within Integer.MAX_VALUE bytes.
+  private static final long MAX_MESSAGE_SIZE = Integer.MAX_VALUE - WINDOW_SIZE;
+
+  private final CoseKey signingKey;
+  private final MacKey macKey;
+  private final ForkJoinPool pool;
+  private final int maxMessageSize;
+  private final int batchSize;
+
+  private CoseArchiveVerifier(CoseKey signingKey, MacKey macKey, ForkJoinPool pool,
+      int maxMessageSize, int batchSize) {
+    this.signingKey = signingKey;
+    this.macKey = macKey;
+    this.pool = pool;
+    this.maxMessageSize = maxMessageSize;
+    this.batchSize = batchSize;
+  }
+
+  public static class Builder {
+    private CoseKey signingKey;
+    private MacKey macKey;
+    private ForkJoinPool pool;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public CoseArchiveVerifier build() throws CoseException {
+      if (signingKey == null && macKey == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (signingKey != null
+          && !(signingKey instanceof Ec2SigningKey || signingKey instanceof OkpSigningKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      if (maxMessageSize <= 0 || batchSize <= 0) {
+        throw new CoseException("Maximum message size and batch size must be positive.");
+      }
+      if (maxMessageSize > MAX_MESSAGE_SIZE) {
+        throw new CoseException("Maximum message size exceeds " + MAX_MESSAGE_SIZE + " bytes.");
+      }
+      return new CoseArchiveVerifier(signingKey, macKey,
+          (pool != null) ? pool : ForkJoinPool.commonPool(), maxMessageSize, batchSize);
+    }
+
+    /** Sets the Ec2SigningKey or OkpSigningKey used to verify COSE_Sign1 records. */
+    public Builder withSigningKey(CoseKey signingKey) {
+      this.signingKey = signingKey;
+      return this;
+    }
+
+    /** Sets the key used to verify COSE_Mac0 records. */
+    public Builder withMacKey(MacKey macKey) {
+      this.macKey = macKey;
+      return this;
+    }
+
+    /** Sets the pool the verification tasks run on. Defaults to the common pool. */
+    public Builder withPool(ForkJoinPool pool) {
+      this.pool = pool;
+      return this;
+    }
+
+    /**
+     * Sets the maximum encoded size of a single record, below 1792 MiB. Defaults to
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public Builder withMaxMessageSize(int maxMessageSize) {
+      this.maxMessageSize = maxMessageSize;
+      return this;
+    }
+
+    /**
+     * Sets the number of records below which a range is verified by a single task instead of being
+     * split further. Defaults to {@link #DEFAULT_BATCH_SIZE}.
+     */
+    public Builder withBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Outcome of the verification of a single record. */
+  public static final class Result {
+    private final int index;
+    private final long offset;
+    private final int length;
+    private final Exception failure;
+
+    private Result(int index, long offset, int length, Exception failure) {
+      this.index = index;
+      this.offset = offset;
+      this.length = length;
+      this.failure = failure;
+    }
+
+    /** Returns the position of the record in the sequence, starting at 0. */
+    public int getIndex() {
+      return index;
+    }
+
+    /** Returns the byte offset of the record in the sequence. */
+    public long getOffset() {
+      return offset;
+    }
+
+    /** Returns the encoded length of the record. */
+    public int getLength() {
+      return length;
+    }
+
+    public boolean isVerified() {
+      return failure == null;
+    }
+
+    /**
+     * Returns the reason the record was rejected, or null if it verified. This is a CborException
+     * if the record could not be decoded and a CoseException otherwise.
+     */
+    public Exception getFailure() {
+      return failure;
+    }
+  }
+
+  /**
+   * Verifies all records of the sequence stored in the file.
+   * @param file path of the CBOR sequence
+   * @return the results in the order of the records
+   * @throws IOException if the file cannot be read
+   * @throws CborException if the sequence is not well-formed CBOR
+   */
+  public ImmutableList<Result> verify(Path file) throws IOException, CborException {
+    ByteBuffer[] windows;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+      for (int i = 0; i < windows.length; i++) {
+        long start = i * WINDOW_SIZE;
+        windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(WINDOW_SIZE + maxMessageSize, size - start));
+      }
+    }
+    return verify(windows, WINDOW_SIZE);
+  }
+
+  /**
+   * Verifies all records of the sequence from the position to the limit of the buffer. The buffer
+   * itself is not modified.
+   * @param sequence CBOR sequence
+   * @return the results in the order of the records
+   * @throws CborException if the sequence is not well-formed CBOR
+   */
+  public ImmutableList<Result> verify(ByteBuffer sequence) throws CborException {
+    return verify(new ByteBuffer[] {sequence.slice()}, Integer.MAX_VALUE + 1L);
+  }
+
+  private ImmutableList<Result> verify(ByteBuffer[] windows, long windowSize)
+      throws CborException {
+    RecordIndex index = scan(windows, windowSize);
+    Result[] results = new Result[index.count];
+    pool.invoke(new VerifyTask(windows, windowSize, index, results, 0, index.count));
+    return ImmutableList.copyOf(results);
+  }
+
+  /**
+   * Locates the record boundaries. Every window is only scanned up to its nominal end, the scanner
+   * carries the state of a record crossing into the next window.
+   */
+  private RecordIndex scan(ByteBuffer[] windows, long windowSize) throws CborException {
+    CborScanner scanner = new CborScanner(maxMessageSize);
+    RecordIndex index = new RecordIndex();
+    long recordStart = 0;
+    for (int i = 0; i < windows.length; i++) {
+      ByteBuffer window = windows[i].duplicate();
+      window.limit((int) Math.min(window.capacity(), windowSize));
+      while (window.hasRemaining()) {
+        if (scanner.scan(window)) {
+          index.add(recordStart, (int) scanner.getItemLength());
+          recordStart += scanner.getItemLength();
+          scanner.reset();
+        }
+      }
+    }
+    if (!scanner.isAtItemStart()) {
+      throw new CborException("Sequence ends within message " + index.count + ".");
+    }
+    return index;
+  }
+
+  private Result verifyRecord(ByteBuffer[] windows, long windowSize, int index, long offset,
+      int length) {
+    ByteBuffer window = windows[(int) (offset / windowSize)].duplicate();
+    window.position((int) (offset % windowSize));
+    byte[] encoded = new byte[length];
+    window.get(encoded);
+    try {
+      verifyMessage(CoseMessage.deserializeAny(encoded));
+      return new Result(index, offset, length, null);
+    } catch (CborException | CoseException e) {
+      return new Result(index, offset, length, e);
+    }
+  }
+
+  private void verifyMessage(CoseMessage message) throws CborException, CoseException {
+    CoseKey key = message instanceof Sign1Message ? signingKey
+        : message instanceof Mac0Message ? macKey : null;
+    if (key == null) {
+      throw new CoseException("No key configured for " + message.getClass().getSimpleName() + ".");
+    }
+    CoseUtils.verifyOrDecryptMessage(key, message, null);
+  }
+
+  /** Offsets and lengths of the records, in order. */
+  private static final class RecordIndex {
+    private long[] offsets = new long[256];
+    private int[] lengths = new int[256];
+    private int count;
+
+    void add(long offset, int length) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        lengths = Arrays.copyOf(lengths, count * 2);
+      }
+      offsets[count] = offset;
+      lengths[count] = length;
+      count++;
+    }
+  }
+
+  private final class VerifyTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer[] windows;
+    private final long windowSize;
+    private final RecordIndex index;
+    private final Result[] results;
+    private final int from;
+    private final int to;
+
+    VerifyTask(ByteBuffer[] windows, long windowSize, RecordIndex index, Result[] results,
+        int from, int to) {
+      this.windows = windows;
+      this.windowSize = windowSize;
+      this.index = index;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= batchSize) {
+        for (int i = from; i < to; i++) {
+          results[i] = verifyRecord(windows, windowSize, i, index.offsets[i], index.lengths[i]);
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new VerifyTask(windows, windowSize, index, results, from, middle),
+          new VerifyTask(windows, windowSize, index, results, middle, to));
+    }
+  }
+}
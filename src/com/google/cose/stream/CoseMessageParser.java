@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import co.nstant.in.cbor.CborException;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.CoseMessage;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.CborScanner;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Non-blocking parser for COSE messages arriving in fragments, e.g. from a selector based server.
+ *
+ * <p>Fragments of any size are pushed into the parser, which keeps its state between calls and
+ * returns messages as soon as their last byte has arrived. Message boundaries are found with a
+ * {@link CborScanner}, so only the bytes of the message that is currently incomplete are retained.
+ * A message contained in a single fragment is copied out of it once, right before decoding.
+ *
+ * <p>If the input is not well-formed CBOR or exceeds the maximum message size, the stream cannot be
+ * resynchronized and the parser must be discarded. Instances are not thread safe.
+ */
+public final class CoseMessageParser {
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  // A larger buffer grown for an oversized message is released once that message is complete.
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private final CborScanner scanner;
+  private byte[] pending = new byte[0];
+  private int pendingLength;
+
+  private CoseMessageParser(int maxMessageSize) {
+    this.scanner = new CborScanner(maxMessageSize);
+  }
+
+  public static class Builder {
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    public CoseMessageParser build() throws CoseException {
+      if (maxMessageSize <= 0) {
+        throw new CoseException("Maximum message size must be positive.");
+      }
+      return new CoseMessageParser(maxMessageSize);
+    }
+
+    /**
+     * Sets the maximum encoded size of a single message. Defaults to
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public Builder withMaxMessageSize(int maxMessageSize) {
+      this.maxMessageSize = maxMessageSize;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Consumes the fragment and decodes all messages completed by it, see
+   * {@link CoseMessage#decodeAny}. If scanning or decoding a message fails after earlier messages
+   * of the fragment were decoded, those messages are returned and the fragment is left positioned
+   * at the failed message, so the failure is reported by the next call. Once a decoding failure
+   * has been reported, the fragment is left positioned after that message, so parsing can continue
+   * with the next call.
+   * @param fragment input bytes from its position to its limit
+   * @return the completed messages in order, empty if none was completed
+   * @throws CborException if the input is not well-formed CBOR
+   * @throws CoseException if a completed data item is not a supported COSE message
+   */
+  public ImmutableList<CoseMessage> feed(ByteBuffer fragment) throws CborException, CoseException {
+    byte[] encodedMessage = nextEncoded(fragment);
+    if (encodedMessage == null) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<CoseMessage> messages = ImmutableList.builder();
+    messages.add(CoseMessage.deserializeAny(encodedMessage));
+    while (true) {
+      // Messages after the first one lie entirely within the fragment, so they can be rescanned.
+      int start = fragment.position();
+      try {
+        encodedMessage = nextEncoded(fragment);
+        if (encodedMessage == null) {
+          return messages.build();
+        }
+        messages.add(CoseMessage.deserializeAny(encodedMessage));
+      } catch (CborException | CoseException e) {
+        // A scan failure leaves no bytes retained, so rescanning from the start reports it again.
+        scanner.reset();
+        fragment.position(start);
+        return messages.build();
+      }
+    }
+  }
+
+  /**
+   * Consumes bytes of the fragment up to the end of the next message and returns its encoding.
+   * @param fragment input bytes from its position to its limit
+   * @return the encoded message, or null if the fragment ended before the message was complete,
+   *     in which case all of its bytes have been consumed
+   * @throws CborException if the input is not well-formed CBOR
+   */
+  public byte[] nextEncoded(ByteBuffer fragment) throws CborException {
+    if (scanner.isComplete()) {
+      scanner.reset();
+    }
+    int start = fragment.position();
+    boolean complete = scanner.scan(fragment);
+    int count = fragment.position() - start;
+    if (complete && pendingLength == 0) {
+      return copy(fragment, start, count, new byte[count], 0);
+    }
+    if (pendingLength + count > pending.length) {
+      pending = Arrays.copyOf(pending,
+          Math.max(pendingLength + count, Math.max(INITIAL_BUFFER_SIZE, pending.length * 2)));
+    }
+    copy(fragment, start, count, pending, pendingLength);
+    pendingLength += count;
+    if (!complete) {
+      return null;
+    }
+    byte[] encodedMessage = Arrays.copyOf(pending, pendingLength);
+    pendingLength = 0;
+    if (pending.length > MAX_RETAINED_BUFFER_SIZE) {
+      pending = new byte[0];
+    }
+    return encodedMessage;
+  }
+
+  /** Returns true if bytes of an incomplete message are retained. */
+  public boolean hasPartialMessage() {
+    return !scanner.isComplete() && !scanner.isAtItemStart();
+  }
+
+  private static byte[] copy(ByteBuffer source, int position, int length, byte[] destination,
+      int offset) {
+    if (source.hasArray()) {
+      System.arraycopy(source.array(), source.arrayOffset() + position, destination, offset,
+          length);
+    } else {
+      ByteBuffer view = source.duplicate();
+      view.position(position);
+      view.get(destination, offset, length);
+    }
+    return destination;
+  }
+}
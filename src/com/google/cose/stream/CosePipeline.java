@@ -0,0 +1,438 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.CoseKey;
+import com.google.cose.CoseMessage;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.CoseUtils;
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Verifies and decrypts a stream of encoded COSE messages in parallel and returns the results in
+ * the order the messages were submitted.
+ *
+ * <p>Every message passes three stages. It is decoded and its key is resolved on a single decode
+ * thread, verified or decrypted on a bounded pool of workers, and its result is stored in a ring
+ * buffer slot determined by its submission number. Results are handed out strictly in submission
+ * order, so a slow message holds back the results after it but not the work on them.
+ *
+ * <p>The ring buffer bounds the number of messages in the pipeline. Once it is full,
+ * {@link #offer(byte[])} returns false and {@link #submit(byte[])} blocks until the consumer takes
+ * a result, which is how backpressure propagates to producers. The number of messages in every
+ * stage is available from {@link #getQueueDepth(Stage)} and reported to the metrics listener.
+ *
+ * <p>COSE_Sign1, COSE_Mac0 and COSE_Encrypt0 messages are supported. Any number of threads may
+ * submit messages, but results have to be consumed by a single thread.
+ */
+public final class CosePipeline implements Closeable {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /** Stages a message passes through. */
+  public enum Stage {
+    /** Submitted and waiting to be decoded. */
+    DECODE("pipeline-decode"),
+    /** Decoded and waiting for or running verification or decryption. */
+    CRYPTO("pipeline-crypto"),
+    /** Finished and waiting to be taken by the consumer, e.g. behind a slower message. */
+    EMIT("pipeline-emit");
+
+    private final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    /** Returns the queue name reported to the metrics listener. */
+    public String getName() {
+      return name;
+    }
+  }
+
+  /** Finds the key for a decoded message. */
+  @FunctionalInterface
+  public interface KeyResolver {
+    /**
+     * Returns the key to verify or decrypt the message with, or null if there is none.
+     */
+    CoseKey resolve(CoseMessage message) throws CborException, CoseException;
+  }
+
+  /** Outcome of a single message. */
+  public static final class Result {
+    private final long index;
+    private final CoseMessage message;
+    private final byte[] payload;
+    private final Exception failure;
+
+    private Result(long index, CoseMessage message, byte[] payload, Exception failure) {
+      this.index = index;
+      this.message = message;
+      this.payload = payload;
+      this.failure = failure;
+    }
+
+    /** Returns the submission number of the message, starting at 0. */
+    public long getIndex() {
+      return index;
+    }
+
+    /** Returns the decoded message, or null if it could not be decoded. */
+    public CoseMessage getMessage() {
+      return message;
+    }
+
+    /** Returns the verified payload or the decrypted plaintext, null on failure. */
+    public byte[] getPayload() {
+      return payload;
+    }
+
+    public boolean isSuccess() {
+      return failure == null;
+    }
+
+    /**
+     * Returns the reason the message was rejected, or null if it succeeded. This is a
+     * CborException if the message could not be decoded and a CoseException otherwise.
+     */
+    public Exception getFailure() {
+      return failure;
+    }
+  }
+
+  private final KeyResolver keyResolver;
+  private final byte[] externalAad;
+  private final ExecutorService decodeExecutor;
+  private final Executor workerExecutor;
+  private final ExecutorService ownedWorkerExecutor;
+  private final int mask;
+  private final AtomicReferenceArray<Result> slots;
+  // One permit per free slot. Taken on submission and returned when the result is consumed.
+  private final Semaphore permits;
+  private final AtomicLong tail = new AtomicLong();
+  // Only written by the consumer.
+  private volatile long head;
+  private volatile Thread waiter;
+  private final AtomicInteger[] depths = new AtomicInteger[Stage.values().length];
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  private CosePipeline(KeyResolver keyResolver, byte[] externalAad, int capacity,
+      int parallelism, Executor executor) {
+    this.keyResolver = keyResolver;
+    this.externalAad = externalAad;
+    this.decodeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "cose-pipeline-decode");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (executor == null) {
+      AtomicInteger threads = new AtomicInteger();
+      this.ownedWorkerExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+        Thread thread = new Thread(runnable, "cose-pipeline-worker-" + threads.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.workerExecutor = ownedWorkerExecutor;
+    } else {
+      this.ownedWorkerExecutor = null;
+      this.workerExecutor = executor;
+    }
+    this.mask = capacity - 1;
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.permits = new Semaphore(capacity);
+    for (int i = 0; i < depths.length; i++) {
+      depths[i] = new AtomicInteger();
+    }
+  }
+
+  public static class Builder {
+    private KeyResolver keyResolver;
+    private byte[] externalAad;
+    private int capacity = DEFAULT_CAPACITY;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private Executor executor;
+
+    public CosePipeline build() throws CoseException {
+      if (keyResolver == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+        throw new CoseException("Capacity must be a power of two.");
+      }
+      if (parallelism <= 0) {
+        throw new CoseException("Parallelism must be positive.");
+      }
+      return new CosePipeline(keyResolver, externalAad, capacity, parallelism, executor);
+    }
+
+    public Builder withKeyResolver(KeyResolver keyResolver) {
+      this.keyResolver = keyResolver;
+      return this;
+    }
+
+    /** Uses the same key for all messages. */
+    public Builder withKey(CoseKey key) {
+      this.keyResolver = message -> key;
+      return this;
+    }
+
+    public Builder withExternalAad(byte[] externalAad) {
+      this.externalAad = externalAad;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages in the pipeline, a power of two. Defaults to
+     * {@link #DEFAULT_CAPACITY}.
+     */
+    public Builder withCapacity(int capacity) {
+      this.capacity = capacity;
+      return this;
+    }
+
+    /**
+     * Sets the number of worker threads created by the pipeline. Defaults to the number of
+     * processors. Ignored if an executor is set.
+     */
+    public Builder withParallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Sets the executor verification and decryption run on instead of a pool owned by the
+     * pipeline. The executor is not shut down when the pipeline is closed.
+     */
+    public Builder withExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Submits a message if there is room in the pipeline.
+   * @param encoded serialized COSE message, tagged or untagged
+   * @return false if the pipeline is full
+   * @throws CoseException if the pipeline is closed
+   */
+  public boolean offer(byte[] encoded) throws CoseException {
+    checkOpen();
+    if (!permits.tryAcquire()) {
+      return false;
+    }
+    dispatch(encoded);
+    return true;
+  }
+
+  /**
+   * Submits a message, waiting for room in the pipeline if it is full.
+   * @param encoded serialized COSE message, tagged or untagged
+   * @throws CoseException if the pipeline is closed
+   */
+  public void submit(byte[] encoded) throws CoseException, InterruptedException {
+    checkOpen();
+    permits.acquire();
+    dispatch(encoded);
+  }
+
+  /**
+   * Returns the next result in submission order, or null if it is not finished yet.
+   */
+  public Result poll() {
+    long next = head;
+    int slot = (int) (next & mask);
+    Result result = slots.get(slot);
+    if (result == null) {
+      return null;
+    }
+    // Free the slot before its permit, so the next message using it finds it empty.
+    slots.set(slot, null);
+    head = next + 1;
+    leave(Stage.EMIT);
+    permits.release();
+    return result;
+  }
+
+  /**
+   * Waits up to the given time for the next result in submission order.
+   * @return the result, or null if it did not finish in time
+   */
+  public Result poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    Result result;
+    while ((result = poll()) == null) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
+      park(remaining);
+    }
+    return result;
+  }
+
+  /**
+   * Waits for the next result in submission order. Blocks forever if no message is outstanding.
+   */
+  public Result take() throws InterruptedException {
+    Result result;
+    while ((result = poll()) == null) {
+      park(Long.MAX_VALUE);
+    }
+    return result;
+  }
+
+  /** Returns the number of messages submitted and not yet taken. */
+  public int getInFlight() {
+    return (int) (tail.get() - head);
+  }
+
+  /** Returns the number of messages currently in the given stage. */
+  public int getQueueDepth(Stage stage) {
+    return depths[stage.ordinal()].get();
+  }
+
+  /**
+   * Stops accepting messages. Messages already submitted are still processed and can be taken.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      decodeExecutor.shutdown();
+      if (ownedWorkerExecutor != null) {
+        ownedWorkerExecutor.shutdown();
+      }
+    }
+  }
+
+  private void checkOpen() throws CoseException {
+    if (closed.get()) {
+      throw new CoseException("Pipeline is closed.");
+    }
+  }
+
+  private void park(long nanos) throws InterruptedException {
+    waiter = Thread.currentThread();
+    try {
+      // Checked again after registering, a result completed in between would not wake us.
+      if (slots.get((int) (head & mask)) == null) {
+        LockSupport.parkNanos(this, nanos);
+      }
+    } finally {
+      waiter = null;
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  private void dispatch(byte[] encoded) {
+    long index = tail.getAndIncrement();
+    enter(Stage.DECODE);
+    try {
+      decodeExecutor.execute(() -> decode(index, encoded));
+    } catch (RejectedExecutionException e) {
+      leave(Stage.DECODE);
+      complete(index, null, null, new CoseException("Pipeline is closed.", e));
+    }
+  }
+
+  private void decode(long index, byte[] encoded) {
+    CoseMessage message = null;
+    CoseKey key;
+    try {
+      message = CoseMessage.deserializeAny(encoded);
+      key = keyResolver.resolve(message);
+      if (key == null) {
+        throw new CoseException("No key found for " + message.getClass().getSimpleName() + ".");
+      }
+    } catch (CborException | CoseException | RuntimeException e) {
+      leave(Stage.DECODE);
+      complete(index, message, null, e);
+      return;
+    } catch (Error e) {
+      // Completes the slot before the error ends the task, so the consumer is not blocked on it.
+      leave(Stage.DECODE);
+      complete(index, message, null, new CoseException("Unexpected error.", e));
+      throw e;
+    }
+    leave(Stage.DECODE);
+    enter(Stage.CRYPTO);
+    CoseMessage decoded = message;
+    try {
+      workerExecutor.execute(() -> process(index, decoded, key));
+    } catch (RejectedExecutionException e) {
+      leave(Stage.CRYPTO);
+      complete(index, message, null, new CoseException("Pipeline is closed.", e));
+    }
+  }
+
+  private void process(long index, CoseMessage message, CoseKey key) {
+    byte[] payload = null;
+    Exception failure = null;
+    try {
+      payload = CoseUtils.verifyOrDecryptMessage(key, message, externalAad);
+    } catch (CborException | CoseException | RuntimeException e) {
+      failure = e;
+    } catch (Error e) {
+      failure = new CoseException("Unexpected error.", e);
+      throw e;
+    } finally {
+      leave(Stage.CRYPTO);
+      complete(index, message, payload, failure);
+    }
+  }
+
+  private void complete(long index, CoseMessage message, byte[] payload, Exception failure) {
+    enter(Stage.EMIT);
+    slots.set((int) (index & mask), new Result(index, message, payload, failure));
+    Thread current = waiter;
+    if (current != null) {
+      LockSupport.unpark(current);
+    }
+  }
+
+  private void enter(Stage stage) {
+    int depth = depths[stage.ordinal()].incrementAndGet();
+    if (Metrics.isEnabled()) {
+      Metrics.recordQueueDepth(stage.getName(), depth);
+    }
+  }
+
+  private void leave(Stage stage) {
+    int depth = depths[stage.ordinal()].decrementAndGet();
+    if (Metrics.isEnabled()) {
+      Metrics.recordQueueDepth(stage.getName(), depth);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.CoseMessage;
+import com.google.cose.exceptions.CoseException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a CBOR sequence (RFC 8742) of COSE messages from a stream, one message at a time.
+ *
+ * <p>Only the bytes of the message currently being read are held in memory, so arbitrarily large
+ * sequences can be processed. Messages larger than the configured maximum size are rejected before
+ * their contents are buffered. This is the blocking counterpart of {@link CoseMessageParser}.
+ *
+ * <pre>{@code
+ * try (CoseSequenceReader reader = CoseSequenceReader.builder().withInputStream(in).build()) {
+ *   CoseMessage message;
+ *   while ((message = reader.read()) != null) {
+ *     ...
+ *   }
+ * }
+ * }</pre>
+ */
+public final class CoseSequenceReader implements Closeable {
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = CoseMessageParser.DEFAULT_MAX_MESSAGE_SIZE;
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private final ReadableByteChannel channel;
+  private final CoseMessageParser parser;
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private long messagesRead;
+  private boolean endOfStream;
+
+  private CoseSequenceReader(ReadableByteChannel channel, CoseMessageParser parser) {
+    this.channel = channel;
+    this.parser = parser;
+    // Empty until the first read.
+    readBuffer.flip();
+  }
+
+  public static class Builder {
+    private ReadableByteChannel channel;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    public CoseSequenceReader build() throws CoseException {
+      if (channel == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      return new CoseSequenceReader(channel,
+          CoseMessageParser.builder().withMaxMessageSize(maxMessageSize).build());
+    }
+
+    public Builder withInputStream(InputStream inputStream) {
+      this.channel = Channels.newChannel(inputStream);
+      return this;
+    }
+
+    /** Sets a blocking channel to read the sequence from. */
+    public Builder withChannel(ReadableByteChannel channel) {
+      this.channel = channel;
+      return this;
+    }
+
+    /**
+     * Sets the maximum encoded size of a single message. Defaults to
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public Builder withMaxMessageSize(int maxMessageSize) {
+      this.maxMessageSize = maxMessageSize;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Reads and decodes the next message of the sequence. Tagged messages are decoded according to
+   * their tag, untagged messages according to their structure, see {@link CoseMessage#decodeAny}.
+   * @return the next message, or null at the end of the sequence
+   * @throws IOException if reading from the underlying stream fails
+   * @throws CborException if the sequence is truncated or not well-formed
+   * @throws CoseException if the next data item is not a supported COSE message
+   */
+  public CoseMessage read() throws IOException, CborException, CoseException {
+    byte[] encodedMessage = readEncoded();
+    return (encodedMessage != null) ? CoseMessage.deserializeAny(encodedMessage) : null;
+  }
+
+  /**
+   * Reads the encoding of the next message of the sequence without decoding it.
+   * @return the encoded message, or null at the end of the sequence
+   * @throws IOException if reading from the underlying stream fails
+   * @throws CborException if the sequence is truncated or not well-formed
+   */
+  public byte[] readEncoded() throws IOException, CborException {
+    byte[] encodedMessage;
+    while ((encodedMessage = parser.nextEncoded(readBuffer)) == null) {
+      if (!fill()) {
+        if (parser.hasPartialMessage()) {
+          throw new CborException("Sequence ends within message " + messagesRead + ".");
+        }
+        return null;
+      }
+    }
+    messagesRead++;
+    return encodedMessage;
+  }
+
+  /** Returns the number of messages read so far. */
+  public long getMessagesRead() {
+    return messagesRead;
+  }
+
+  private boolean fill() throws IOException {
+    if (endOfStream) {
+      return false;
+    }
+    readBuffer.clear();
+    int read;
+    do {
+      read = channel.read(readBuffer);
+    } while (read == 0);
+    readBuffer.flip();
+    if (read < 0) {
+      endOfStream = true;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.CoseMessage;
+import com.google.cose.exceptions.CoseException;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes COSE messages as a CBOR sequence (RFC 8742), i.e. as concatenated encoded messages
+ * without any framing. The output can be read back with {@link CoseSequenceReader}.
+ */
+public final class CoseSequenceWriter implements Closeable, Flushable {
+  private final OutputStream outputStream;
+  private final boolean tagged;
+  private long messagesWritten;
+
+  private CoseSequenceWriter(OutputStream outputStream, boolean tagged) {
+    this.outputStream = outputStream;
+    this.tagged = tagged;
+  }
+
+  public static class Builder {
+    private OutputStream outputStream;
+    private boolean tagged;
+
+    public CoseSequenceWriter build() throws CoseException {
+      if (outputStream == null) {
+        throw new CoseException("Some fields are missing.");
+      }
+      return new CoseSequenceWriter(outputStream, tagged);
+    }
+
+    public Builder withOutputStream(OutputStream outputStream) {
+      this.outputStream = outputStream;
+      return this;
+    }
+
+    public Builder withChannel(WritableByteChannel channel) {
+      this.outputStream = Channels.newOutputStream(channel);
+      return this;
+    }
+
+    /**
+     * Writes every message with the CBOR tag of its type, so readers can identify message types
+     * without relying on their structure. Disabled by default.
+     */
+    public Builder withTagging(boolean tagged) {
+      this.tagged = tagged;
+      return this;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Appends the message to the sequence.
+   * @param message message to be written
+   * @throws IOException if writing to the underlying stream fails
+   * @throws CborException if the message cannot be encoded
+   * @throws CoseException if the message cannot be encoded
+   */
+  public void write(CoseMessage message) throws IOException, CborException, CoseException {
+    outputStream.write(tagged ? message.serializeTagged() : message.serialize());
+    messagesWritten++;
+  }
+
+  /** Returns the number of messages written so far. */
+  public long getMessagesWritten() {
+    return messagesWritten;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    outputStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    outputStream.close();
+  }
+}
@@ -50,11 +50,20 @@ public class EncryptStructure {
 
   private final EncryptionContext context;
   private final Map protectedHeaders;
+  private final byte[] encodedProtectedHeaders;
   private final byte[] externalAad;
 
   public EncryptStructure(EncryptionContext context, Map headers, byte[] externalAad) {
     this.context = context;
     this.protectedHeaders = headers;
+    this.encodedProtectedHeaders = null;
+    this.externalAad = (externalAad != null) ? externalAad : new byte[0];
+  }
+
+  public EncryptStructure(EncryptionContext context, byte[] encodedHeaders, byte[] externalAad) {
+    this.context = context;
+    this.protectedHeaders = null;
+    this.encodedProtectedHeaders = encodedHeaders;
     this.externalAad = (externalAad != null) ? externalAad : new byte[0];
   }
 
@@ -63,6 +72,10 @@ public class EncryptStructure {
   }
 
   public DataItem encode() throws CborException {
+    if (encodedProtectedHeaders != null) {
+      return CoseUtils.encodeStructure(context.getContext(), encodedProtectedHeaders, null,
+          externalAad, null);
+    }
     return CoseUtils.encodeStructure(context.getContext(), protectedHeaders, null, externalAad,
         null);
   }
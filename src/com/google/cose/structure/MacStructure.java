@@ -17,8 +17,12 @@
 package com.google.cose.structure;
 
 import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnicodeString;
+import com.google.common.primitives.Bytes;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
 
@@ -47,21 +51,49 @@ public class MacStructure {
 
   private final MacContext context;
   private final Map protectedHeaders;
+  private final byte[] encodedProtectedHeaders;
   private final byte[] externalAad;
   private final byte[] message;
 
   public MacStructure(MacContext context, Map headers, byte[] externalAad, byte[] message) {
     this.context = context;
     this.protectedHeaders = headers;
+    this.encodedProtectedHeaders = null;
     this.externalAad = (externalAad != null) ? externalAad : new byte[0];
     this.message = (message != null) ? message : new byte[0];
   }
 
+  public MacStructure(MacContext context, byte[] encodedHeaders, byte[] externalAad,
+      byte[] message) {
+    this.context = context;
+    this.protectedHeaders = null;
+    this.encodedProtectedHeaders = encodedHeaders;
+    this.externalAad = (externalAad != null) ? externalAad : new byte[0];
+    this.message = (message != null) ? message : new byte[0];
+  }
+
+  /**
+   * Encodes the MAC_structure of a COSE_Mac0 message up to, but not including, the payload. The
+   * payload follows as a byte string, so callers can feed it separately without copying it.
+   */
+  public static byte[] encodeMac0Prefix(byte[] encodedProtectedHeaders, byte[] externalAad)
+      throws CborException {
+    return Bytes.concat(
+        CborUtils.encodeHead(MajorType.ARRAY, 4),
+        CborUtils.encode(new UnicodeString(MacContext.MAC0.getContext())),
+        CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+        CborUtils.encode(new ByteString((externalAad != null) ? externalAad : new byte[0])));
+  }
+
   public byte[] serialize() throws CborException {
     return CborUtils.encode(encode());
   }
 
   public DataItem encode() throws CborException {
+    if (encodedProtectedHeaders != null) {
+      return CoseUtils.encodeStructure(context.getContext(), encodedProtectedHeaders, null,
+          externalAad, message);
+    }
     return CoseUtils.encodeStructure(context.getContext(), protectedHeaders, null, externalAad,
         message);
   }
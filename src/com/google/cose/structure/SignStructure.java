@@ -17,13 +17,19 @@
 package com.google.cose.structure;
 
 import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnicodeString;
+import com.google.common.primitives.Bytes;
 import com.google.cose.utils.CborUtils;
 import com.google.cose.utils.CoseUtils;
 
 /**
- * Encodes the Sig_Structure as mentioned in COSE RFC section 4.4
+ * Encodes the Sig_Structure as mentioned in COSE RFC section 4.4, and the Countersign_structure
+ * of RFC 9338 section 3.3.
  */
 public class SignStructure {
 
@@ -33,7 +39,11 @@ public class SignStructure {
   public enum SignatureContext {
     SIGNATURE1("Signature1"),
     SIGNATURE("Signature"),
-    COUNTER_SIGNATURE("CounterSignature");
+    COUNTER_SIGNATURE("CounterSignature"),
+    COUNTER_SIGNATURE_V2("CounterSignatureV2"),
+    // Private context for the root signature of a Merkle signed batch, so that it never verifies
+    // as the signature of a regular COSE_Sign1 message carrying the root as payload.
+    MERKLE_BATCH_SIGNATURE1("MerkleBatchSignature1");
 
     private final String context;
 
@@ -49,16 +59,60 @@ public class SignStructure {
   private final SignatureContext context;
   private final Map protectedBodyHeaders;
   private final Map protectedSignHeaders;
+  private final byte[] encodedBodyHeaders;
+  private final byte[] encodedSignHeaders;
   private final byte[] externalAad;
   private final byte[] message;
+  private final byte[][] otherFields;
 
   public SignStructure(SignatureContext context, Map bodyHeaders, Map signHeaders,
       byte[] externalAad, byte[] message) {
     this.context = context;
     this.protectedBodyHeaders = bodyHeaders;
     this.protectedSignHeaders = signHeaders;
+    this.encodedBodyHeaders = null;
+    this.encodedSignHeaders = null;
     this.externalAad = (externalAad != null) ? externalAad : new byte[0];
     this.message = (message != null) ? message : new byte[0];
+    this.otherFields = null;
+  }
+
+  /**
+   * Creates the structure from already serialized protected headers. signHeaders is null for
+   * Signature1.
+   */
+  public SignStructure(SignatureContext context, byte[] bodyHeaders, byte[] signHeaders,
+      byte[] externalAad, byte[] message) {
+    this(context, bodyHeaders, signHeaders, externalAad, message, null);
+  }
+
+  /**
+   * Creates a Countersign_structure with the other_fields of the countersigned structure, i.e. its
+   * signature or tag. otherFields is null if the countersigned structure has none.
+   */
+  public SignStructure(SignatureContext context, byte[] bodyHeaders, byte[] signHeaders,
+      byte[] externalAad, byte[] message, byte[][] otherFields) {
+    this.context = context;
+    this.protectedBodyHeaders = null;
+    this.protectedSignHeaders = null;
+    this.encodedBodyHeaders = bodyHeaders;
+    this.encodedSignHeaders = signHeaders;
+    this.externalAad = (externalAad != null) ? externalAad : new byte[0];
+    this.message = (message != null) ? message : new byte[0];
+    this.otherFields = otherFields;
+  }
+
+  /**
+   * Encodes the Sig_structure of a COSE_Sign1 message up to, but not including, the payload. The
+   * payload follows as a byte string, so signers can feed it separately without copying it.
+   */
+  public static byte[] encodeSignature1Prefix(byte[] encodedProtectedHeaders, byte[] externalAad)
+      throws CborException {
+    return Bytes.concat(
+        CborUtils.encodeHead(MajorType.ARRAY, 4),
+        CborUtils.encode(new UnicodeString(SignatureContext.SIGNATURE1.getContext())),
+        CborUtils.encode(new ByteString(encodedProtectedHeaders)),
+        CborUtils.encode(new ByteString((externalAad != null) ? externalAad : new byte[0])));
   }
 
   public byte[] serialize() throws CborException {
@@ -66,6 +120,18 @@ public class SignStructure {
   }
 
   public DataItem encode() throws CborException {
+    if (encodedBodyHeaders != null) {
+      DataItem structure = CoseUtils.encodeStructure(context.getContext(), encodedBodyHeaders,
+          encodedSignHeaders, externalAad, message);
+      if (otherFields != null) {
+        Array fields = new Array();
+        for (byte[] field : otherFields) {
+          fields.add(new ByteString(field));
+        }
+        ((Array) structure).add(fields);
+      }
+      return structure;
+    }
     return CoseUtils.encodeStructure(context.getContext(), protectedBodyHeaders,
         protectedSignHeaders, externalAad, message);
   }
@@ -38,8 +38,19 @@ public enum Algorithm {
   ENCRYPTION_AES_192_GCM(2, "AES"),
   ENCRYPTION_AES_256_GCM(3, "AES"),
 
+  AES_KEY_WRAP_128(-3, "AESWrap"),
+  AES_KEY_WRAP_192(-4, "AESWrap"),
+  AES_KEY_WRAP_256(-5, "AESWrap"),
+
   ECDH_ES_HKDF_256(-25, null),
-  DIRECT_CEK_USAGE(-6, null);
+  ECDH_ES_AES_KEY_WRAP_128(-29, "AESWrap"),
+  ECDH_ES_AES_KEY_WRAP_192(-30, "AESWrap"),
+  ECDH_ES_AES_KEY_WRAP_256(-31, "AESWrap"),
+  DIRECT_CEK_USAGE(-6, null),
+
+  HASH_SHA_256(-16, "SHA-256"),
+  HASH_SHA_384(-43, "SHA-384"),
+  HASH_SHA_512(-44, "SHA-512");
 
   private final int coseAlgorithmId;
   private final String javaAlgorithmId;
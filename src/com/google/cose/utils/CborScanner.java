@@ -0,0 +1,239 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.utils;
+
+import co.nstant.in.cbor.CborException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the boundaries of CBOR data items without decoding them.
+ *
+ * <p>The scanner only reads the initial bytes and arguments of the data items. The contents of
+ * byte and text strings are skipped over, so scanning is cheap even for large payloads. Scanning
+ * is resumable: the input can be provided in fragments of any size and the scanner keeps its state
+ * between calls to {@link #scan(ByteBuffer)} until a complete top level data item was seen.
+ *
+ * <p>Instances are not thread safe.
+ */
+public final class CborScanner {
+  public static final int DEFAULT_MAX_DEPTH = 64;
+
+  private static final long INDEFINITE = -1;
+  private static final int BREAK = 0xff;
+
+  private final long maxItemSize;
+  // Number of items still expected by each open array, map, tag or indefinite length container.
+  private final long[] remaining;
+  // Major type of each open container.
+  private final int[] containerTypes;
+  private int depth;
+
+  private long itemLength;
+  private boolean complete;
+
+  private int majorType;
+  private long argument;
+  private int argumentBytesNeeded;
+  private long payloadRemaining;
+
+  /**
+   * Creates a scanner for top level data items of at most the given number of bytes.
+   * @param maxItemSize maximum encoded size of a top level data item
+   */
+  public CborScanner(long maxItemSize) {
+    this(maxItemSize, DEFAULT_MAX_DEPTH);
+  }
+
+  /**
+   * Creates a scanner for top level data items of at most the given size and nesting depth.
+   * @param maxItemSize maximum encoded size of a top level data item
+   * @param maxDepth maximum number of nested arrays, maps and tags
+   */
+  public CborScanner(long maxItemSize, int maxDepth) {
+    if (maxItemSize <= 0 || maxDepth <= 0) {
+      throw new IllegalArgumentException("Maximum item size and depth must be positive.");
+    }
+    this.maxItemSize = maxItemSize;
+    this.remaining = new long[maxDepth];
+    this.containerTypes = new int[maxDepth];
+  }
+
+  /**
+   * Consumes bytes from the buffer up to the end of the current top level data item. The position
+   * of the buffer is advanced past the consumed bytes. String contents are skipped without being
+   * read.
+   * @param buffer input bytes from its position to its limit
+   * @return true if the current data item is complete, in which case the buffer is positioned
+   *     right after it
+   * @throws CborException if the input is not well-formed CBOR or exceeds the configured limits
+   */
+  public boolean scan(ByteBuffer buffer) throws CborException {
+    while (!complete && buffer.hasRemaining()) {
+      if (payloadRemaining > 0) {
+        int skip = (int) Math.min(payloadRemaining, buffer.remaining());
+        buffer.position(buffer.position() + skip);
+        itemLength += skip;
+        payloadRemaining -= skip;
+        if (payloadRemaining == 0) {
+          itemDone();
+        }
+      } else if (argumentBytesNeeded > 0) {
+        argument = (argument << 8) | (buffer.get() & 0xff);
+        consumed(1);
+        if (--argumentBytesNeeded == 0) {
+          headDone();
+        }
+      } else {
+        int initialByte = buffer.get() & 0xff;
+        consumed(1);
+        startHead(initialByte);
+      }
+    }
+    return complete;
+  }
+
+  /** Returns true if a complete top level data item has been scanned. */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** Returns the number of bytes of the current top level data item consumed so far. */
+  public long getItemLength() {
+    return itemLength;
+  }
+
+  /** Returns true if no byte of a new data item has been consumed since the last reset. */
+  public boolean isAtItemStart() {
+    return itemLength == 0;
+  }
+
+  /** Prepares the scanner for the next top level data item. */
+  public void reset() {
+    depth = 0;
+    itemLength = 0;
+    complete = false;
+    argumentBytesNeeded = 0;
+    payloadRemaining = 0;
+  }
+
+  private void startHead(int initialByte) throws CborException {
+    majorType = initialByte >>> 5;
+    int additionalInformation = initialByte & 0x1f;
+    boolean inIndefiniteString = depth > 0 && remaining[depth - 1] == INDEFINITE
+        && (containerTypes[depth - 1] == 2 || containerTypes[depth - 1] == 3);
+
+    if (initialByte == BREAK) {
+      if (depth == 0 || remaining[depth - 1] != INDEFINITE) {
+        throw new CborException("Unexpected break outside of an indefinite length item.");
+      }
+      depth--;
+      itemDone();
+      return;
+    }
+    if (inIndefiniteString
+        && (majorType != containerTypes[depth - 1] || additionalInformation == 31)) {
+      throw new CborException("Indefinite length strings may only contain definite length "
+          + "strings of the same major type.");
+    }
+
+    argument = 0;
+    if (additionalInformation < 24) {
+      argument = additionalInformation;
+      headDone();
+    } else if (additionalInformation <= 27) {
+      argumentBytesNeeded = 1 << (additionalInformation - 24);
+    } else if (additionalInformation == 31) {
+      if (majorType < 2 || majorType > 5) {
+        throw new CborException("Indefinite length is not allowed for major type " + majorType);
+      }
+      push(INDEFINITE);
+    } else {
+      throw new CborException("Reserved additional information " + additionalInformation);
+    }
+  }
+
+  private void headDone() throws CborException {
+    switch (majorType) {
+      case 2:
+      case 3:
+        if (argument < 0 || argument > maxItemSize - itemLength) {
+          throw new CborException("Data item exceeds the maximum size of " + maxItemSize
+              + " bytes.");
+        }
+        payloadRemaining = argument;
+        if (payloadRemaining == 0) {
+          itemDone();
+        }
+        break;
+      case 4:
+        if (argument == 0) {
+          itemDone();
+        } else {
+          push(checkedCount(argument));
+        }
+        break;
+      case 5:
+        if (argument == 0) {
+          itemDone();
+        } else {
+          push(checkedCount(argument) * 2);
+        }
+        break;
+      case 6:
+        push(1);
+        break;
+      default:
+        itemDone();
+        break;
+    }
+  }
+
+  private long checkedCount(long count) throws CborException {
+    // Every item takes at least one byte, so larger counts can never fit.
+    if (count < 0 || count > maxItemSize) {
+      throw new CborException("Data item exceeds the maximum size of " + maxItemSize + " bytes.");
+    }
+    return count;
+  }
+
+  private void push(long count) throws CborException {
+    if (depth == remaining.length) {
+      throw new CborException("Data item exceeds the maximum nesting depth of "
+          + remaining.length + ".");
+    }
+    remaining[depth] = count;
+    containerTypes[depth] = majorType;
+    depth++;
+  }
+
+  private void itemDone() {
+    while (depth > 0) {
+      if (remaining[depth - 1] == INDEFINITE || --remaining[depth - 1] > 0) {
+        return;
+      }
+      depth--;
+    }
+    complete = true;
+  }
+
+  private void consumed(int count) throws CborException {
+    itemLength += count;
+    if (itemLength > maxItemSize) {
+      throw new CborException("Data item exceeds the maximum size of " + maxItemSize + " bytes.");
+    }
+  }
+}
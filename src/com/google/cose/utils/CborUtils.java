@@ -31,6 +31,8 @@ import co.nstant.in.cbor.model.Special;
 import co.nstant.in.cbor.model.SpecialType;
 import co.nstant.in.cbor.model.UnicodeString;
 import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.metrics.MetricsListener.Operation;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.List;
@@ -46,13 +48,20 @@ public class CborUtils {
    * @return DataItem cbor object
    */
   public static DataItem decode(final byte[] data) throws CborException {
-    final ByteArrayInputStream bais = new ByteArrayInputStream(data);
-    final List<DataItem> dataItems = new CborDecoder(bais).decode();
-    if (dataItems.size() != 1) {
-      throw new CborException("Byte stream cannot be decoded properly. Expected 1 item, found "
-          + dataItems.size());
+    long start = Metrics.start();
+    boolean success = false;
+    try {
+      final ByteArrayInputStream bais = new ByteArrayInputStream(data);
+      final List<DataItem> dataItems = new CborDecoder(bais).decode();
+      if (dataItems.size() != 1) {
+        throw new CborException("Byte stream cannot be decoded properly. Expected 1 item, found "
+            + dataItems.size());
+      }
+      success = true;
+      return dataItems.get(0);
+    } finally {
+      Metrics.record(Operation.CBOR_DECODE, null, 0, data.length, start, success);
     }
-    return dataItems.get(0);
   }
 
   /**
@@ -61,10 +70,17 @@ public class CborUtils {
    * @return encoded bytes
    */
   public static byte[] encode(final DataItem dataItem) throws CborException {
+    long start = Metrics.start();
     final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    CborEncoder encoder = new CborEncoder(baos);
-    encoder.encode(dataItem);
-    return baos.toByteArray();
+    boolean success = false;
+    try {
+      CborEncoder encoder = new CborEncoder(baos);
+      encoder.encode(dataItem);
+      success = true;
+      return baos.toByteArray();
+    } finally {
+      Metrics.record(Operation.CBOR_ENCODE, null, 0, baos.size(), start, success);
+    }
   }
 
   /**
@@ -184,6 +200,94 @@ public class CborUtils {
         && ((SimpleValue) item).getSimpleValueType() == SimpleValueType.NULL;
   }
 
+  /**
+   * Returns the number of bytes needed for the head of a CBOR data item, i.e. the initial byte and
+   * the following argument bytes, when the argument (length or value) is {@code value}.
+   * @param value non-negative argument of the head
+   * @return length of the encoded head in bytes
+   */
+  public static int headLength(long value) {
+    if (value < 24) {
+      return 1;
+    } else if (value < 0x100) {
+      return 2;
+    } else if (value < 0x10000) {
+      return 3;
+    } else if (value < 0x100000000L) {
+      return 5;
+    }
+    return 9;
+  }
+
+  /**
+   * Writes the head of a CBOR data item in its shortest form into the destination array. Used to
+   * assemble encodings from precomputed parts without building DataItem objects.
+   * @param dest destination array, must have {@link #headLength(long)} bytes left at offset
+   * @param offset position in dest to write the head at
+   * @param majorType major type of the data item
+   * @param value non-negative argument of the head, e.g. the length of a byte string
+   * @return position in dest right after the written head
+   */
+  public static int writeHead(byte[] dest, int offset, MajorType majorType, long value) {
+    int initialByte = majorType.getValue() << 5;
+    int length = headLength(value);
+    switch (length) {
+      case 1:
+        dest[offset] = (byte) (initialByte | value);
+        return offset + 1;
+      case 2:
+        dest[offset] = (byte) (initialByte | 24);
+        break;
+      case 3:
+        dest[offset] = (byte) (initialByte | 25);
+        break;
+      case 5:
+        dest[offset] = (byte) (initialByte | 26);
+        break;
+      default:
+        dest[offset] = (byte) (initialByte | 27);
+        break;
+    }
+    for (int i = length - 1; i > 0; i--) {
+      dest[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+    return offset + length;
+  }
+
+  /**
+   * Returns the head of a CBOR data item with the given major type and argument.
+   */
+  public static byte[] encodeHead(MajorType majorType, long value) {
+    byte[] head = new byte[headLength(value)];
+    writeHead(head, 0, majorType, value);
+    return head;
+  }
+
+  /**
+   * Returns the number of bytes {@link #writeByteString(byte[], int, byte[])} writes for value.
+   */
+  public static int byteStringLength(byte[] value) {
+    return (value == null) ? 1 : headLength(value.length) + value.length;
+  }
+
+  /**
+   * Writes value as a CBOR byte string, or as CBOR null if value is null.
+   * @param dest destination array, must have {@link #byteStringLength(byte[])} bytes left
+   * @param offset position in dest to write at
+   * @param value bytes to be written
+   * @return position in dest right after the written byte string
+   */
+  public static int writeByteString(byte[] dest, int offset, byte[] value) {
+    if (value == null) {
+      dest[offset] = (byte) 0xf6;
+      return offset + 1;
+    }
+    offset = writeHead(dest, offset, MajorType.BYTE_STRING, value.length);
+    System.arraycopy(value, 0, dest, offset, value.length);
+    return offset + value.length;
+  }
+
   // Avoiding instantiation of the class
   private CborUtils() {}
 }
@@ -24,15 +24,20 @@ import co.nstant.in.cbor.model.MajorType;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.NegativeInteger;
 import co.nstant.in.cbor.model.Number;
+import co.nstant.in.cbor.model.SimpleValue;
 import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.common.collect.ImmutableMap;
 import com.google.cose.CoseKey;
+import com.google.cose.CoseMessage;
 import com.google.cose.Ec2SigningKey;
 import com.google.cose.Encrypt0Message;
+import com.google.cose.EncryptMessage;
 import com.google.cose.EncryptionKey;
 import com.google.cose.Mac0Message;
 import com.google.cose.MacKey;
 import com.google.cose.OkpSigningKey;
+import com.google.cose.Recipient;
+import com.google.cose.RecipientSpec;
 import com.google.cose.Sign1Message;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.structure.EncryptStructure;
@@ -41,14 +46,18 @@ import com.google.cose.structure.MacStructure;
 import com.google.cose.structure.MacStructure.MacContext;
 import com.google.cose.structure.SignStructure;
 import com.google.cose.structure.SignStructure.SignatureContext;
+import com.google.crypto.tink.subtle.Hkdf;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.interfaces.ECPrivateKey;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
@@ -58,7 +67,12 @@ import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Integer;
@@ -70,14 +84,26 @@ import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
 
 public class CoseUtils {
   private static final String EC_PARAMETER_SPEC = "EC";
+  private static final SecureRandom RANDOM = new SecureRandom();
 
   public static DataItem encodeStructure(String context, Map protectedBodyHeaders,
       Map protectedSignHeaders, byte[] externalAad, byte[] payload) throws CborException {
+    return encodeStructure(context, serializeProtectedHeaders(protectedBodyHeaders),
+        (protectedSignHeaders != null) ? serializeProtectedHeaders(protectedSignHeaders) : null,
+        externalAad, payload);
+  }
+
+  /**
+   * Same as {@link #encodeStructure(String, Map, Map, byte[], byte[])} but takes the protected
+   * headers already serialized, so that the original bytes of a received message can be used.
+   */
+  public static DataItem encodeStructure(String context, byte[] encodedBodyHeaders,
+      byte[] encodedSignHeaders, byte[] externalAad, byte[] payload) {
     ArrayBuilder<CborBuilder> arrayBuilder = new CborBuilder().addArray();
     arrayBuilder.add(context);
-    arrayBuilder.add(serializeProtectedHeaders(protectedBodyHeaders));
-    if (protectedSignHeaders != null) {
-      arrayBuilder.add(serializeProtectedHeaders(protectedSignHeaders));
+    arrayBuilder.add(encodedBodyHeaders);
+    if (encodedSignHeaders != null) {
+      arrayBuilder.add(encodedSignHeaders);
     }
     arrayBuilder.add((externalAad != null) ? externalAad : new byte[0]);
     if (payload != null) {
@@ -86,6 +112,44 @@ public class CoseUtils {
     return arrayBuilder.end().build().get(0);
   }
 
+  /**
+   * Encodes the COSE_KDF_Context structure from section 11.2 of RFC 8152. Party information is
+   * left empty.
+   * @param algorithm algorithm the derived key will be used for
+   * @param keyDataLength length of the derived key in bits
+   * @param encodedProtectedHeaders serialized protected headers of the layer doing the derivation
+   * @return DataItem representing the context
+   */
+  public static DataItem encodeKdfContext(Algorithm algorithm, int keyDataLength,
+      byte[] encodedProtectedHeaders) {
+    return new CborBuilder().addArray()
+        .add(algorithm.getCoseAlgorithmId())
+        .addArray().add(SimpleValue.NULL).add(SimpleValue.NULL).add(SimpleValue.NULL).end()
+        .addArray().add(SimpleValue.NULL).add(SimpleValue.NULL).add(SimpleValue.NULL).end()
+        .addArray().add(keyDataLength).add(encodedProtectedHeaders).end()
+        .end().build().get(0);
+  }
+
+  /**
+   * Derives key material from an ECDH shared secret using HKDF SHA-256 as described in section
+   * 11.1 of RFC 8152.
+   * @param sharedSecret output of the key agreement
+   * @param algorithm algorithm the derived key will be used for
+   * @param keyLength length of the derived key in bytes
+   * @param encodedProtectedHeaders serialized protected headers of the recipient layer
+   * @return derived key bytes
+   */
+  public static byte[] deriveKey(byte[] sharedSecret, Algorithm algorithm, int keyLength,
+      byte[] encodedProtectedHeaders) throws CborException, CoseException {
+    byte[] context = CborUtils.encode(
+        encodeKdfContext(algorithm, keyLength * 8, encodedProtectedHeaders));
+    try {
+      return Hkdf.computeHkdf("HMACSHA256", sharedSecret, null, context, keyLength);
+    } catch (GeneralSecurityException e) {
+      throw new CoseException("Error while deriving key.", e);
+    }
+  }
+
   public static ImmutableMap<Integer, DataItem> getLabelsFromMap(Map keyMap) throws CborException {
     final ImmutableMap.Builder<Integer, DataItem> labels = ImmutableMap.builder();
     for (DataItem item : keyMap.getKeys()) {
@@ -110,6 +174,25 @@ public class CoseUtils {
     return cborMap.get(key);
   }
 
+  /**
+   * Returns a new MessageDigest for one of the SHA-2 hash algorithms.
+   * @throws CoseException if the algorithm is not a supported hash algorithm
+   */
+  public static MessageDigest getMessageDigest(Algorithm hashAlgorithm) throws CoseException {
+    switch (hashAlgorithm) {
+      case HASH_SHA_256:
+      case HASH_SHA_384:
+      case HASH_SHA_512:
+        try {
+          return MessageDigest.getInstance(hashAlgorithm.getJavaAlgorithmId());
+        } catch (NoSuchAlgorithmException e) {
+          throw new CoseException("No provider for " + hashAlgorithm.getJavaAlgorithmId(), e);
+        }
+      default:
+        throw new CoseException("Unsupported hash algorithm: " + hashAlgorithm);
+    }
+  }
+
   public static ECPrivateKey getEc2PrivateKeyFromEncodedKeyBytes(byte[] encodedPrivateKeyBytes)
       throws CoseException {
     try {
@@ -169,7 +252,7 @@ public class CoseUtils {
     }
   }
 
-  private static String getEc2CoseCurveName(int coseCurveId) throws CoseException {
+  public static String getEc2CoseCurveName(int coseCurveId) throws CoseException {
     switch (coseCurveId) {
       case Headers.CURVE_EC2_P256:
         return "secp256r1";
@@ -227,12 +310,14 @@ public class CoseUtils {
       Map unprotectedHeaders, byte[] payloadMessage, byte[] detachedContent, Algorithm algorithm)
       throws CborException, CoseException {
     byte[] message = getMessageFromDetachedOrPayload(payloadMessage, detachedContent);
+    byte[] encodedProtectedHeaders = serializeProtectedHeaders(protectedHeaders);
 
     return Mac0Message.builder()
         .withProtectedHeaders(protectedHeaders)
         .withMessage(payloadMessage)
         .withTag(key.createMac(
-            new MacStructure(MacContext.MAC0, protectedHeaders, new byte[0], message).serialize(),
+            new MacStructure(MacContext.MAC0, encodedProtectedHeaders, new byte[0], message)
+                .serialize(),
             algorithm))
         .withUnprotectedHeaders(unprotectedHeaders)
         .build();
@@ -241,8 +326,8 @@ public class CoseUtils {
   public static boolean verifyCoseMac0(MacKey key, Mac0Message message, byte[] detachedContent,
       Algorithm algorithm) throws CborException, CoseException {
     byte[] macedMessage = getMessageFromDetachedOrPayload(message.getMessage(), detachedContent);
-    byte[] toBeMaced = new MacStructure(MacContext.MAC0, message.getProtectedHeaders(), new byte[0],
-        macedMessage).serialize();
+    byte[] toBeMaced = new MacStructure(MacContext.MAC0, message.getEncodedProtectedHeaders(),
+        new byte[0], macedMessage).serialize();
     if (algorithm == null) {
       algorithm = Algorithm.fromCoseAlgorithmId(
           CborUtils.asInteger(
@@ -256,15 +341,123 @@ public class CoseUtils {
   public static Encrypt0Message generateCoseEncrypt0(EncryptionKey key, Map protectedHeaders,
       Map unprotectedHeaders, byte[] message, byte[] externalAad, byte[] iv, Algorithm algorithm)
       throws CborException, CoseException {
+    byte[] encodedProtectedHeaders = serializeProtectedHeaders(protectedHeaders);
     return Encrypt0Message.builder()
         .withProtectedHeaders(protectedHeaders)
         .withUnprotectedHeaders(unprotectedHeaders)
         .withCiphertext(
             key.encrypt(algorithm, message, iv, new EncryptStructure(
-                EncryptionContext.ENCRYPT0, protectedHeaders, externalAad).serialize())
+                EncryptionContext.ENCRYPT0, encodedProtectedHeaders, externalAad).serialize())
         ).build();
   }
 
+  /**
+   * Generates an EncryptMessage for any number of recipients. The payload is encrypted exactly once
+   * with a fresh random content encryption key, and the recipient layers carrying that key are
+   * computed concurrently on the given executor.
+   *
+   * <p>If a recipient uses direct key usage, it must be the only recipient and its EncryptionKey
+   * is used to encrypt the payload.
+   * @param protectedHeaders protected headers of the message
+   * @param unprotectedHeaders unprotected headers of the message
+   * @param message payload to be encrypted
+   * @param externalAad externally supplied data, may be null
+   * @param iv initialization vector for the content encryption
+   * @param algorithm content encryption algorithm
+   * @param recipients recipients of the message, in the order they are added to the message
+   * @param executor executor the recipient layers are computed on, or null to compute them on the
+   *     calling thread
+   * @return EncryptMessage object
+   * @throws CborException if cbor information was not parseable
+   * @throws CoseException if encryption or one of the recipient layers fails
+   */
+  public static EncryptMessage generateCoseEncrypt(Map protectedHeaders, Map unprotectedHeaders,
+      byte[] message, byte[] externalAad, byte[] iv, Algorithm algorithm,
+      List<RecipientSpec> recipients, Executor executor) throws CborException, CoseException {
+    if (recipients == null || recipients.isEmpty()) {
+      throw new CoseException("EncryptMessage needs at least one recipient.");
+    }
+
+    for (RecipientSpec recipient : recipients) {
+      if (recipient.isDirect() && recipients.size() != 1) {
+        throw new CoseException("Direct key usage only supports a single recipient.");
+      }
+    }
+
+    final EncryptionKey contentKey;
+    final byte[] contentKeyBytes;
+    if (recipients.get(0).isDirect()) {
+      contentKey = (EncryptionKey) recipients.get(0).getKey();
+      contentKeyBytes = null;
+    } else {
+      contentKeyBytes = new byte[getContentKeyLength(algorithm)];
+      RANDOM.nextBytes(contentKeyBytes);
+      contentKey = EncryptionKey.builder()
+          .withSecretKey(contentKeyBytes)
+          .withOperations(Headers.KEY_OPERATIONS_ENCRYPT)
+          .build();
+    }
+
+    List<FutureTask<Recipient>> tasks = new ArrayList<>(recipients.size());
+    for (RecipientSpec recipient : recipients) {
+      FutureTask<Recipient> task =
+          new FutureTask<>(() -> recipient.createRecipient(contentKeyBytes));
+      tasks.add(task);
+      if (executor == null) {
+        task.run();
+      } else {
+        executor.execute(task);
+      }
+    }
+
+    // The payload is encrypted while the recipient layers are being computed.
+    byte[] encodedProtectedHeaders = serializeProtectedHeaders(protectedHeaders);
+    byte[] ciphertext = contentKey.encrypt(algorithm, message, iv, new EncryptStructure(
+        EncryptionContext.ENCRYPT, encodedProtectedHeaders, externalAad).serialize());
+
+    List<Recipient> recipientLayers = new ArrayList<>(tasks.size());
+    for (FutureTask<Recipient> task : tasks) {
+      recipientLayers.add(awaitRecipient(task));
+    }
+
+    return EncryptMessage.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .withCiphertext(ciphertext)
+        .withRecipients(recipientLayers)
+        .build();
+  }
+
+  private static Recipient awaitRecipient(FutureTask<Recipient> task)
+      throws CborException, CoseException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CoseException("Interrupted while computing recipients.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CoseException) {
+        throw (CoseException) e.getCause();
+      } else if (e.getCause() instanceof CborException) {
+        throw (CborException) e.getCause();
+      }
+      throw new CoseException("Error while computing recipient.", e.getCause());
+    }
+  }
+
+  private static int getContentKeyLength(Algorithm algorithm) throws CoseException {
+    switch (algorithm) {
+      case ENCRYPTION_AES_128_GCM:
+        return 16;
+      case ENCRYPTION_AES_192_GCM:
+        return 24;
+      case ENCRYPTION_AES_256_GCM:
+        return 32;
+      default:
+        throw new CoseException("Unsupported content encryption algorithm: " + algorithm);
+    }
+  }
+
   public static Sign1Message generateCoseSign1(CoseKey key, Map protectedHeaders,
       Map unprotectedHeaders, byte[] payloadMessage, byte[] detachedContent, byte[] externalAad,
       Algorithm algorithm) throws CborException, CoseException {
@@ -272,18 +465,12 @@ public class CoseUtils {
       throw new CoseException("Incompatible key used.");
     }
 
+    byte[] encodedProtectedHeaders = serializeProtectedHeaders(protectedHeaders);
     byte[] toBeSigned = new SignStructure(
-        SignatureContext.SIGNATURE1, protectedHeaders, null, externalAad,
+        SignatureContext.SIGNATURE1, encodedProtectedHeaders, null, externalAad,
         getMessageFromDetachedOrPayload(payloadMessage, detachedContent)).serialize();
 
-    byte[] signature;
-    if (key instanceof OkpSigningKey) {
-      signature = ((OkpSigningKey) key).sign(algorithm, toBeSigned);
-    } else {
-      signature = signatureDerToCose(
-          ((Ec2SigningKey) key).sign(algorithm, toBeSigned, null),
-          algorithm);
-    }
+    byte[] signature = computeSignature(key, toBeSigned, algorithm);
 
     return Sign1Message.builder()
         .withProtectedHeaders(protectedHeaders)
@@ -306,21 +493,194 @@ public class CoseUtils {
               message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
     }
 
-    Map protectedHeaders = message.getProtectedHeaders();
     byte[] signedMessage = getMessageFromDetachedOrPayload(message.getMessage(), detachedContent);
 
     byte[] encodedStructure = new SignStructure(
-        SignatureContext.SIGNATURE1, protectedHeaders, null, externalAad, signedMessage
+        SignatureContext.SIGNATURE1, message.getEncodedProtectedHeaders(), null, externalAad,
+        signedMessage
     ).serialize();
+    verifySignature(key, encodedStructure, message.getSignature(), algorithm);
+  }
+
+  /**
+   * Verifies a COSE_Sign1 or COSE_Mac0 message or decrypts a COSE_Encrypt0 message with attached
+   * content, using the algorithm from its protected headers.
+   * @param key key matching the message type
+   * @param message decoded message
+   * @param externalAad externally supplied data, may be null
+   * @return the verified payload or the decrypted plaintext
+   * @throws CoseException if the key does not fit the message or verification fails
+   */
+  public static byte[] verifyOrDecryptMessage(CoseKey key, CoseMessage message,
+      byte[] externalAad) throws CborException, CoseException {
+    if (message instanceof Sign1Message) {
+      Sign1Message sign1 = (Sign1Message) message;
+      verifyCoseSign1Message(key, sign1, null, externalAad, findMessageAlgorithm(sign1));
+      return sign1.getMessage();
+    } else if (message instanceof Mac0Message) {
+      if (!(key instanceof MacKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      Mac0Message mac0 = (Mac0Message) message;
+      if (mac0.getMessage() == null) {
+        throw new CoseException("Need message bytes to verify tag.");
+      }
+      Algorithm algorithm = findMessageAlgorithm(mac0);
+      byte[] toBeMaced = new MacStructure(MacContext.MAC0, mac0.getEncodedProtectedHeaders(),
+          externalAad, mac0.getMessage()).serialize();
+      if (!((MacKey) key).verifyMac(toBeMaced, algorithm, mac0.getTag())) {
+        throw new CoseException("MAC verification failed.");
+      }
+      return mac0.getMessage();
+    } else if (message instanceof Encrypt0Message) {
+      if (!(key instanceof EncryptionKey)) {
+        throw new CoseException("Incompatible key used.");
+      }
+      return ((Encrypt0Message) message).decrypt((EncryptionKey) key, null, externalAad,
+          findMessageAlgorithm(message));
+    }
+    throw new CoseException("Unsupported message type " + message.getClass().getSimpleName()
+        + ".");
+  }
+
+  private static Algorithm findMessageAlgorithm(CoseMessage message)
+      throws CborException, CoseException {
+    Algorithm algorithm = Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+    if (algorithm == null) {
+      throw new CoseException("Unsupported algorithm in the protected headers.");
+    }
+    return algorithm;
+  }
+
+  /**
+   * Signs the already encoded ToBeSigned bytes and returns the signature in COSE format.
+   * @param key Ec2SigningKey or OkpSigningKey
+   * @param toBeSigned encoded Sig_structure
+   * @param algorithm signing algorithm
+   * @return signature bytes, ECDSA signatures are converted from DER to r || s
+   */
+  public static byte[] computeSignature(CoseKey key, byte[] toBeSigned, Algorithm algorithm)
+      throws CborException, CoseException {
+    if (key instanceof OkpSigningKey) {
+      return ((OkpSigningKey) key).sign(algorithm, toBeSigned);
+    } else if (key instanceof Ec2SigningKey) {
+      return signatureDerToCose(((Ec2SigningKey) key).sign(algorithm, toBeSigned, null),
+          algorithm);
+    }
+    throw new CoseException("Incompatible key used.");
+  }
+
+  /**
+   * Verifies a COSE format signature over the already encoded ToBeSigned bytes.
+   * @param key Ec2SigningKey or OkpSigningKey
+   * @param toBeSigned encoded Sig_structure
+   * @param signature signature bytes in COSE format
+   * @param algorithm signing algorithm
+   * @throws CoseException if the signature does not verify
+   */
+  public static void verifySignature(CoseKey key, byte[] toBeSigned, byte[] signature,
+      Algorithm algorithm) throws CborException, CoseException {
     if (key instanceof Ec2SigningKey) {
-      byte[] signature = signatureCoseToDer(message.getSignature());
-      ((Ec2SigningKey) key).verify(algorithm, encodedStructure, signature, null);
+      ((Ec2SigningKey) key).verify(algorithm, toBeSigned, signatureCoseToDer(signature), null);
+    } else if (key instanceof OkpSigningKey) {
+      ((OkpSigningKey) key).verify(algorithm, toBeSigned, signature);
     } else {
-      ((OkpSigningKey) key).verify(algorithm, encodedStructure, message.getSignature());
+      throw new CoseException("Incompatible key used.");
+    }
+  }
+
+  /**
+   * Returns the hash algorithm an ECDSA signing algorithm applies to the ToBeSigned bytes.
+   * @throws CoseException for algorithms other than ES256, ES384 and ES512
+   */
+  public static Algorithm getSignatureHashAlgorithm(Algorithm algorithm) throws CoseException {
+    switch (algorithm) {
+      case SIGNING_ALGORITHM_ECDSA_SHA_256:
+        return Algorithm.HASH_SHA_256;
+      case SIGNING_ALGORITHM_ECDSA_SHA_384:
+        return Algorithm.HASH_SHA_384;
+      case SIGNING_ALGORITHM_ECDSA_SHA_512:
+        return Algorithm.HASH_SHA_512;
+      default:
+        throw new CoseException("Unsupported algorithm for digest signing: " + algorithm);
+    }
+  }
+
+  /**
+   * Hashes the Sig_structure of a COSE_Sign1 message with the hash function of the signing
+   * algorithm. The payload is fed to the digest after the structure prefix, so it is never copied
+   * into the structure.
+   * @param encodedProtectedHeaders serialized protected headers of the message
+   * @param externalAad external additional authenticated data, may be null
+   * @param payload attached payload or detached content
+   * @param algorithm ECDSA signing algorithm
+   * @return digest to pass to {@link #computeSignatureFromDigest} or
+   *     {@link #verifySignatureFromDigest}
+   */
+  public static byte[] digestSign1Structure(byte[] encodedProtectedHeaders, byte[] externalAad,
+      byte[] payload, Algorithm algorithm) throws CborException, CoseException {
+    if (payload == null) {
+      throw new CoseException("Need message bytes to generate signature.");
     }
+    MessageDigest digest = getMessageDigest(getSignatureHashAlgorithm(algorithm));
+    digest.update(SignStructure.encodeSignature1Prefix(encodedProtectedHeaders, externalAad));
+    digest.update(CborUtils.encodeHead(MajorType.BYTE_STRING, payload.length));
+    return digest.digest(payload);
   }
 
-  private static byte[] signatureCoseToDer(byte[] signature) {
+  /**
+   * Signs a precomputed digest of the ToBeSigned bytes and returns the signature in COSE format.
+   * @param key Ec2SigningKey, EdDSA has no prehashed variant in COSE
+   * @param digest hash of the encoded Sig_structure
+   * @param algorithm ECDSA signing algorithm
+   * @return signature bytes in r || s format
+   */
+  public static byte[] computeSignatureFromDigest(CoseKey key, byte[] digest, Algorithm algorithm)
+      throws CborException, CoseException {
+    if (!(key instanceof Ec2SigningKey)) {
+      throw new CoseException("Digest signing requires an Ec2SigningKey.");
+    }
+    return signatureDerToCose(((Ec2SigningKey) key).signDigest(algorithm, digest, null),
+        algorithm);
+  }
+
+  /**
+   * Verifies a COSE format signature against a precomputed digest of the ToBeSigned bytes.
+   * @param key Ec2SigningKey
+   * @param digest hash of the encoded Sig_structure
+   * @param signature signature bytes in COSE format
+   * @param algorithm ECDSA signing algorithm
+   * @throws CoseException if the signature does not verify
+   */
+  public static void verifySignatureFromDigest(CoseKey key, byte[] digest, byte[] signature,
+      Algorithm algorithm) throws CborException, CoseException {
+    if (!(key instanceof Ec2SigningKey)) {
+      throw new CoseException("Digest verification requires an Ec2SigningKey.");
+    }
+    ((Ec2SigningKey) key).verifyDigest(algorithm, digest, signatureCoseToDer(signature), null);
+  }
+
+  /**
+   * Verifies a COSE_Sign1 message against a precomputed digest of its Sig_structure, e.g. one
+   * returned by {@link #digestSign1Structure}. The same digest can be checked against several
+   * keys without hashing the payload again.
+   * @param algorithm ECDSA signing algorithm, taken from the protected headers if null
+   */
+  public static void verifyCoseSign1MessageDigest(CoseKey key, Sign1Message message,
+      byte[] digest, Algorithm algorithm) throws CborException, CoseException {
+    if (algorithm == null) {
+      algorithm = Algorithm.fromCoseAlgorithmId(
+          CborUtils.asInteger(
+              message.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+    }
+    verifySignatureFromDigest(key, digest, message.getSignature(), algorithm);
+  }
+
+  /**
+   * Converts an ECDSA signature from the COSE r || s format to the DER format used by JCA.
+   */
+  public static byte[] signatureCoseToDer(byte[] signature) {
     // r and s are always positive and may use all bits so use the constructor which
     // parses them as unsigned.
     BigInteger r = new BigInteger(1, Arrays.copyOfRange(
@@ -352,7 +712,7 @@ public class CoseUtils {
    * concatenated together to form a byte string that is the resulting
    * signature.
    */
-  private static byte[] signatureDerToCose(byte[] signature, Algorithm algorithm)
+  public static byte[] signatureDerToCose(byte[] signature, Algorithm algorithm)
       throws CoseException {
     ASN1Primitive asn1;
     try {
@@ -402,7 +762,8 @@ public class CoseUtils {
       case SIGNING_ALGORITHM_ECDSA_SHA_384:
         return 48;
       case SIGNING_ALGORITHM_ECDSA_SHA_512:
-        return 64;
+        // ES512 uses P-521, whose coordinates take 66 bytes.
+        return 66;
       default:
         throw new IllegalArgumentException("Unsupported algorithm " + algorithm);
     }
@@ -49,6 +49,16 @@ public class Headers {
   public static final int MESSAGE_HEADER_BASE_IV = 5;
   public static final int MESSAGE_HEADER_PARTIAL_IV = 6;
   public static final int MESSAGE_HEADER_COUNTER_SIGNATURE = 7;
+  public static final int MESSAGE_HEADER_COUNTER_SIGNATURE_V2 = 11;
+  public static final int MESSAGE_HEADER_PAYLOAD_HASH_ALGORITHM = 258;
+  public static final int MESSAGE_HEADER_PREIMAGE_CONTENT_TYPE = 259;
+  public static final int MESSAGE_HEADER_PAYLOAD_LOCATION = 260;
+  // Private use labels for messages of a Merkle signed batch: the hash algorithm of the tree in the
+  // protected headers and the inclusion proof of the payload in the unprotected headers.
+  public static final int MESSAGE_HEADER_MERKLE_HASH_ALGORITHM = -65537;
+  public static final int MESSAGE_HEADER_MERKLE_PROOF = -65538;
+  // Private use label for the parameters of a chunked tree hash: [layout, chunk size].
+  public static final int MESSAGE_HEADER_TREE_HASH = -65539;
 
   public static final int KEY_PARAMETER_CURVE = -1;
   public static final int KEY_PARAMETER_X = -2;
@@ -66,6 +76,22 @@ public class Headers {
   public static final int CURVE_OKP_ED25519 = 6;
   public static final int CURVE_OKP_ED448 = 7;
 
+  public static final int MESSAGE_TAG_ENCRYPT0 = 16;
+  public static final int MESSAGE_TAG_MAC0 = 17;
+  public static final int MESSAGE_TAG_SIGN1 = 18;
+  public static final int MESSAGE_TAG_ENCRYPT = 96;
+  public static final int MESSAGE_TAG_MAC = 97;
+  public static final int MESSAGE_TAG_SIGN = 98;
+  public static final int MESSAGE_TAG_CWT = 61;
+
+  public static final int CWT_CLAIM_ISSUER = 1;
+  public static final int CWT_CLAIM_SUBJECT = 2;
+  public static final int CWT_CLAIM_AUDIENCE = 3;
+  public static final int CWT_CLAIM_EXPIRATION_TIME = 4;
+  public static final int CWT_CLAIM_NOT_BEFORE = 5;
+  public static final int CWT_CLAIM_ISSUED_AT = 6;
+  public static final int CWT_CLAIM_CWT_ID = 7;
+
   public static final int ECDH_EPHEMERAL_KEY = -1;
   public static final int ECDH_STATIC_KEY = -2;
   public static final int ECDH_STATIC_KEY_ID = -3;
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.lang.management.ManagementFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class guarding the number of bytes allocated by the hot decode and verify paths.
+ *
+ * <p>Allocations are measured with the per thread allocation counter of the JVM after a warm up
+ * phase. The messages carry a payload large enough that payload copies dominate the allocations,
+ * so the budgets are expressed in payload sizes: one more copy of the payload or a rebuilt cbor
+ * structure exceeds a budget, while differences between JDKs and security providers do not. When
+ * an intended change exceeds a budget, re-measure and update the budget together with that change.
+ */
+@RunWith(JUnit4.class)
+public class AllocationBudgetTest {
+  private static final int WARMUP_ITERATIONS = 2_000;
+  private static final int MEASURED_ITERATIONS = 2_000;
+
+  private static final int PAYLOAD_SIZE = 64 * 1024;
+
+  // Bytes per operation. The cbor decoder buffers a byte string before copying it out, so decoding
+  // a message costs two payload copies on its own.
+  private static final long SIGN1_DESERIALIZE_BUDGET = 2L * PAYLOAD_SIZE + 32 * 1024;
+  private static final long SIGN1_VERIFY_BUDGET = 3L * PAYLOAD_SIZE + 32 * 1024;
+  private static final long MAC0_VERIFY_BUDGET = 2L * PAYLOAD_SIZE + 24 * 1024;
+  private static final long ENCRYPT0_DECRYPT_BUDGET = PAYLOAD_SIZE + 16 * 1024;
+  private static final long KEY_PARSE_BUDGET = 12 * 1024;
+
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+  private static final byte[] IV = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+  private static final byte[] PAYLOAD = createPayload(PAYLOAD_SIZE);
+
+  private com.sun.management.ThreadMXBean threadBean;
+  private Ec2SigningKey signingKey;
+  private byte[] serializedSigningKey;
+  private byte[] serializedSign1;
+  private Sign1Message sign1;
+  private MacKey macKey;
+  private Mac0Message mac0;
+  private EncryptionKey encryptionKey;
+  private Encrypt0Message encrypt0;
+
+  /** Operation whose allocations are measured. */
+  private interface Operation {
+    void run() throws CborException, CoseException;
+  }
+
+  @Before
+  public void setUp() throws CborException, CoseException {
+    Assume.assumeTrue(
+        ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    signingKey = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    serializedSigningKey = signingKey.serialize();
+    sign1 = CoseUtils.generateCoseSign1(signingKey,
+        protectedHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(),
+        PAYLOAD, null, null, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    serializedSign1 = sign1.serialize();
+
+    macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    mac0 = CoseUtils.generateCoseMac0(macKey,
+        protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+        PAYLOAD, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+
+    encryptionKey = EncryptionKey.builder().withSecretKey(SECRET_KEY).build();
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(IV));
+    encrypt0 = CoseUtils.generateCoseEncrypt0(encryptionKey,
+        protectedHeaders(Algorithm.ENCRYPTION_AES_128_GCM), unprotectedHeaders,
+        PAYLOAD, null, IV, Algorithm.ENCRYPTION_AES_128_GCM);
+  }
+
+  @Test
+  public void testSign1Deserialize() throws CborException, CoseException {
+    assertWithinBudget("Sign1Message.deserialize", SIGN1_DESERIALIZE_BUDGET,
+        () -> Sign1Message.deserialize(serializedSign1));
+  }
+
+  @Test
+  public void testVerifyCoseSign1Message() throws CborException, CoseException {
+    assertWithinBudget("CoseUtils.verifyCoseSign1Message", SIGN1_VERIFY_BUDGET,
+        () -> CoseUtils.verifyCoseSign1Message(signingKey, sign1, null, null, null));
+  }
+
+  @Test
+  public void testVerifyCoseMac0() throws CborException, CoseException {
+    assertWithinBudget("CoseUtils.verifyCoseMac0", MAC0_VERIFY_BUDGET,
+        () -> Assert.assertTrue(CoseUtils.verifyCoseMac0(macKey, mac0, null, null)));
+  }
+
+  @Test
+  public void testEncrypt0Decrypt() throws CborException, CoseException {
+    assertWithinBudget("Encrypt0Message.decrypt", ENCRYPT0_DECRYPT_BUDGET,
+        () -> encrypt0.decrypt(encryptionKey, null, null, null));
+  }
+
+  @Test
+  public void testKeyParse() throws CborException, CoseException {
+    assertWithinBudget("Ec2SigningKey.parse", KEY_PARSE_BUDGET,
+        () -> Ec2SigningKey.parse(serializedSigningKey));
+  }
+
+  private void assertWithinBudget(String name, long budget, Operation operation)
+      throws CborException, CoseException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      operation.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      operation.run();
+    }
+    long perOperation =
+        (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+    Assert.assertTrue(name + " allocated " + perOperation + " bytes per operation, budget is "
+        + budget, perOperation <= budget);
+  }
+
+  private static byte[] createPayload(int size) {
+    byte[] payload = new byte[size];
+    for (int i = 0; i < size; i++) {
+      payload[i] = (byte) i;
+    }
+    return payload;
+  }
+
+  private static Map protectedHeaders(Algorithm algorithm) throws CborException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return protectedHeaders;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static com.google.cose.TestUtilities.EXTERNAL_AAD_BYTES;
+import static com.google.cose.TestUtilities.SECRET_KEY_BYTES;
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link AsyncCose}.
+ */
+@RunWith(JUnit4.class)
+public class AsyncCoseTest {
+  private static Throwable failureOf(CompletableFuture<?> future) throws InterruptedException {
+    ExecutionException e = assertThrows(ExecutionException.class, future::get);
+    return e.getCause();
+  }
+
+  @Test
+  public void testSignAndVerify() throws Exception {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    try (AsyncCose async = AsyncCose.builder().withParallelism(2).build()) {
+      Sign1Message message = async.sign1(key,
+          algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(),
+          TestUtilities.CONTENT_BYTES, EXTERNAL_AAD_BYTES,
+          Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256).get();
+      async.verifySign1(key, message, null, EXTERNAL_AAD_BYTES).get();
+
+      Throwable failure = failureOf(async.verifySign1(key, message, null, new byte[] {1}));
+      Assert.assertTrue(failure instanceof CoseException);
+    }
+  }
+
+  @Test
+  public void testMacAndEncrypt() throws Exception {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    EncryptionKey encryptionKey = EncryptionKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    try (AsyncCose async = AsyncCose.builder().build()) {
+      Mac0Message mac0 = async.mac0(macKey,
+          algorithmHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+          TestUtilities.CONTENT_BYTES, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256).get();
+      Assert.assertTrue(async.verifyMac0(macKey, mac0, null).get());
+
+      byte[] iv = new byte[12];
+      Map unprotectedHeaders = new Map();
+      unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+          new ByteString(iv));
+      Encrypt0Message encrypt0 = async.encrypt0(encryptionKey,
+          algorithmHeaders(Algorithm.ENCRYPTION_AES_128_GCM), unprotectedHeaders,
+          TestUtilities.CONTENT_BYTES, EXTERNAL_AAD_BYTES, iv,
+          Algorithm.ENCRYPTION_AES_128_GCM).get();
+      Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+          async.decrypt0(encryptionKey, encrypt0, EXTERNAL_AAD_BYTES).get());
+    }
+  }
+
+  @Test
+  public void testOpenWithKeyResolver() throws Exception {
+    MacKey active =
+        MacKey.builder().withSecretKey(SECRET_KEY_BYTES).withKeyId(new byte[] {1}).build();
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder().withActiveKey(active).build();
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(new byte[] {1}));
+    try (AsyncCose async = AsyncCose.builder().build()) {
+      Mac0Message mac0 = async.mac0(ring.useActiveKey(),
+          algorithmHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), unprotectedHeaders,
+          TestUtilities.CONTENT_BYTES, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256).get();
+
+      AsyncCose.KeyResolver resolver = message -> CompletableFuture.supplyAsync(() -> {
+        try {
+          return ring.resolve(message);
+        } catch (CborException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+          async.open(mac0, resolver, null).get());
+
+      Throwable failure = failureOf(async.open(mac0,
+          message -> CompletableFuture.completedFuture(null), null));
+      Assert.assertTrue(failure instanceof CoseException);
+
+      CompletableFuture<MacKey> lookup = new CompletableFuture<>();
+      lookup.completeExceptionally(new CoseException("Key store unavailable."));
+      failure = failureOf(async.open(mac0, lookup, null));
+      Assert.assertEquals("Key store unavailable.", failure.getMessage());
+    }
+  }
+
+  @Test
+  public void testDeadlineSkipsQueuedOperation() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger runs = new AtomicInteger();
+    try (AsyncCose async = AsyncCose.builder().withParallelism(1).build()) {
+      CompletableFuture<Void> blocker = async.submit(() -> {
+        awaitUninterruptibly(release);
+        return null;
+      });
+      CompletableFuture<Integer> queued = async.expireAfter(
+          async.submit(runs::incrementAndGet), 50, TimeUnit.MILLISECONDS);
+      Assert.assertTrue(failureOf(queued) instanceof TimeoutException);
+      // The expired operation is removed from the queue by the thread that completed it.
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (async.getPending() > 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(1, async.getPending());
+
+      release.countDown();
+      blocker.get();
+      Assert.assertEquals(0, runs.get());
+    }
+  }
+
+  @Test
+  public void testErrorCompletesTheFuture() throws Exception {
+    AssertionError error = new AssertionError("task failed");
+    try (AsyncCose async = AsyncCose.builder().withParallelism(1).build()) {
+      CompletableFuture<Integer> future = async.submit(() -> {
+        throw error;
+      });
+      Assert.assertSame(error, failureOf(future));
+      Assert.assertEquals(Integer.valueOf(1), async.submit(() -> 1).get());
+    }
+  }
+
+  @Test
+  public void testDefaultDeadline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncCose async = AsyncCose.builder()
+        .withParallelism(1)
+        .withDefaultTimeout(50, TimeUnit.MILLISECONDS)
+        .build()) {
+      CompletableFuture<Void> blocker = async.submit(() -> {
+        awaitUninterruptibly(release);
+        return null;
+      });
+      Assert.assertTrue(failureOf(blocker) instanceof TimeoutException);
+      release.countDown();
+      Assert.assertEquals(Integer.valueOf(1), async.submit(() -> 1).get());
+    }
+  }
+
+  @Test
+  public void testCancellationSkipsQueuedOperation() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger runs = new AtomicInteger();
+    try (AsyncCose async = AsyncCose.builder().withParallelism(1).build()) {
+      CompletableFuture<Void> blocker = async.submit(() -> {
+        awaitUninterruptibly(release);
+        return null;
+      });
+      CompletableFuture<Integer> queued = async.submit(runs::incrementAndGet);
+      Assert.assertTrue(queued.cancel(false));
+      Assert.assertEquals(1, async.getPending());
+
+      release.countDown();
+      blocker.get();
+      Assert.assertEquals(Integer.valueOf(1), async.submit(runs::incrementAndGet).get());
+    }
+  }
+
+  @Test
+  public void testBoundedQueueRejects() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncCose async = AsyncCose.builder()
+        .withParallelism(1)
+        .withQueueCapacity(1)
+        .build()) {
+      CompletableFuture<Void> blocker = async.submit(() -> {
+        awaitUninterruptibly(release);
+        return null;
+      });
+      CompletableFuture<Integer> queued = async.submit(() -> 1);
+      Throwable failure = failureOf(async.submit(() -> 2));
+      Assert.assertTrue(failure instanceof CoseException);
+
+      release.countDown();
+      blocker.get();
+      Assert.assertEquals(Integer.valueOf(1), queued.get());
+    }
+  }
+
+  @Test
+  public void testClosedFailure() throws Exception {
+    AsyncCose async = AsyncCose.builder().build();
+    async.close();
+    Assert.assertTrue(failureOf(async.submit(() -> 1)) instanceof CoseException);
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() {
+    assertThrows(CoseException.class, () -> AsyncCose.builder().withParallelism(0).build());
+    assertThrows(CoseException.class, () -> AsyncCose.builder().withQueueCapacity(0).build());
+    assertThrows(CoseException.class,
+        () -> AsyncCose.builder().withDefaultTimeout(-1, TimeUnit.SECONDS).build());
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
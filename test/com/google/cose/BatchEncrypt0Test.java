@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchEncrypt0Test {
+  private static final Algorithm ALGORITHM = Algorithm.ENCRYPTION_AES_128_GCM;
+  private static final byte[] EXTERNAL_AAD = TestUtilities.hexStringToByteArray("0102");
+
+  private static Map protectedHeaders() {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        ALGORITHM.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static Map unprotectedHeaders() {
+    Map headers = new Map();
+    headers.put(new NegativeInteger(-65537), new ByteString(new byte[] {1}));
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.KEYID_BYTES));
+    return headers;
+  }
+
+  private static EncryptionKey key() throws CborException, CoseException {
+    return EncryptionKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E"))
+        .build();
+  }
+
+  private static BatchEncrypt0 batch() throws CborException, CoseException {
+    return BatchEncrypt0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(unprotectedHeaders())
+        .withExternalAad(EXTERNAL_AAD)
+        .build();
+  }
+
+  private static List<byte[]> records(int count) {
+    List<byte[]> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] record = new byte[(i * 13) % 400];
+      Arrays.fill(record, (byte) i);
+      records.add(record);
+    }
+    return records;
+  }
+
+  @Test
+  public void testMatchesPreparedEncrypt0() throws CborException, CoseException {
+    PreparedEncrypt0 prepared = PreparedEncrypt0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(unprotectedHeaders())
+        .withExternalAad(EXTERNAL_AAD)
+        .build();
+    List<byte[]> records = records(100);
+    byte[] ivs = new byte[records.size() * BatchEncrypt0.IV_LENGTH];
+    for (int i = 0; i < ivs.length; i++) {
+      ivs[i] = (byte) (i * 7);
+    }
+    BatchEncrypt0.Page page = batch().encrypt(records, ivs);
+    Assert.assertEquals(records.size(), page.size());
+    for (int i = 0; i < records.size(); i++) {
+      byte[] iv = Arrays.copyOfRange(
+          ivs, i * BatchEncrypt0.IV_LENGTH, (i + 1) * BatchEncrypt0.IV_LENGTH);
+      Assert.assertArrayEquals(prepared.encrypt(records.get(i), iv), page.get(i));
+      Assert.assertEquals(page.getLength(i), page.getBuffer(i).remaining());
+    }
+    Assert.assertEquals(page.getBuffer().length, page.getOffset(records.size() - 1)
+        + page.getLength(records.size() - 1));
+  }
+
+  @Test
+  public void testRoundTrip() throws CborException, CoseException {
+    BatchEncrypt0 batch = batch();
+    List<byte[]> records = records(2000);
+    BatchEncrypt0.Page encrypted = batch.encrypt(records);
+    BatchEncrypt0.Page decrypted = batch.decrypt(encrypted);
+    Assert.assertEquals(records.size(), decrypted.size());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertArrayEquals(records.get(i), decrypted.get(i));
+    }
+    decrypted = batch.decrypt(encrypted.getBuffer());
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertArrayEquals(records.get(i), decrypted.get(i));
+    }
+  }
+
+  @Test
+  public void testDecryptsMessagesWithOtherEnvelope() throws Exception {
+    EncryptionKey key = key();
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(iv));
+    byte[] generic = CoseUtils.generateCoseEncrypt0(key, protectedHeaders(), unprotectedHeaders,
+        TestUtilities.CONTENT_BYTES, EXTERNAL_AAD, iv, ALGORITHM).serialize();
+    BatchEncrypt0 batch = batch();
+    ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+    sequence.write(batch.encrypt(Arrays.asList(new byte[] {1, 2})).getBuffer());
+    sequence.write(generic);
+
+    BatchEncrypt0.Page decrypted = batch.decrypt(sequence.toByteArray());
+    Assert.assertEquals(2, decrypted.size());
+    Assert.assertArrayEquals(new byte[] {1, 2}, decrypted.get(0));
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, decrypted.get(1));
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    BatchEncrypt0 batch = batch();
+    BatchEncrypt0.Page page = batch.encrypt(records(10));
+    byte[] tampered = page.getBuffer().clone();
+    tampered[page.getOffset(4) + page.getLength(4) - 1] ^= 1;
+    assertThrows(CoseException.class, () -> batch.decrypt(tampered));
+    assertThrows(CborException.class,
+        () -> batch.decrypt(Arrays.copyOf(page.getBuffer(), page.getBuffer().length - 1)));
+    assertThrows(CoseException.class, () -> batch.encrypt(records(2), new byte[12]));
+    assertThrows(CoseException.class, () -> batch.encrypt(Arrays.asList((byte[]) null)));
+    assertThrows(CoseException.class, () -> BatchEncrypt0.builder().withKey(key()).build());
+    assertThrows(CoseException.class, () -> BatchEncrypt0.builder()
+        .withKey(key())
+        .withAlgorithm(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .build());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchMac0Test {
+  private static final Algorithm ALGORITHM = Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256;
+  private static final byte[] EXTERNAL_AAD = new byte[] {1, 2, 3};
+
+  private static Map protectedHeaders() {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        ALGORITHM.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static MacKey key() throws CborException, CoseException {
+    return MacKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray(
+            "849B57219DAE48DE646D07DBB533566E976686457C1491BE3A76DCEA6C427188"))
+        .build();
+  }
+
+  private static BatchMac0.Builder batch() throws CborException, CoseException {
+    return BatchMac0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .withExternalAad(EXTERNAL_AAD);
+  }
+
+  private static List<byte[]> payloads(int count) {
+    List<byte[]> payloads = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] payload = new byte[(i * 37) % 300 + 1];
+      Arrays.fill(payload, (byte) i);
+      payloads.add(payload);
+    }
+    return payloads;
+  }
+
+  @Test
+  public void testMatchesPreparedMac0() throws CborException, CoseException {
+    PreparedMac0 prepared = PreparedMac0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .withExternalAad(EXTERNAL_AAD)
+        .build();
+    List<byte[]> payloads = payloads(50);
+    BatchMac0 batch = batch().build();
+    byte[] sequence = batch.mac(payloads);
+    byte[] tags = batch.computeTags(payloads);
+
+    int offset = 0;
+    for (int i = 0; i < payloads.size(); i++) {
+      byte[] expected = prepared.mac(payloads.get(i));
+      Assert.assertArrayEquals(expected,
+          Arrays.copyOfRange(sequence, offset, offset + expected.length));
+      offset += expected.length;
+      Assert.assertArrayEquals(Mac0Message.deserialize(expected).getTag(),
+          Arrays.copyOfRange(tags, i * batch.getTagLength(), (i + 1) * batch.getTagLength()));
+    }
+    Assert.assertEquals(sequence.length, offset);
+  }
+
+  @Test
+  public void testParallelVerify() throws CborException, CoseException {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BatchMac0 batch = batch().withPool(pool).withBatchSize(16).build();
+      List<byte[]> payloads = payloads(1000);
+      byte[] tags = batch.computeTags(payloads);
+      Assert.assertArrayEquals(batch().build().computeTags(payloads), tags);
+
+      tags[5 * batch.getTagLength()] ^= 1;
+      boolean[] results = batch.verifyTags(payloads, tags);
+      for (int i = 0; i < results.length; i++) {
+        Assert.assertEquals(i != 5, results[i]);
+      }
+
+      byte[] sequence = batch.mac(payloads);
+      results = batch.verify(sequence);
+      Assert.assertEquals(payloads.size(), results.length);
+      for (boolean result : results) {
+        Assert.assertTrue(result);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testVerifyMessages() throws CborException, CoseException {
+    MacKey key = key();
+    Map headers = protectedHeaders();
+    Mac0Message valid = CoseUtils.generateCoseMac0(key, headers, new Map(),
+        TestUtilities.CONTENT_BYTES, null, ALGORITHM);
+    Mac0Message detached = CoseUtils.generateCoseMac0(key, headers, new Map(), null,
+        TestUtilities.CONTENT_BYTES, ALGORITHM);
+    // Messages from CoseUtils carry no external aad.
+    boolean[] results = batch().withExternalAad(null).build()
+        .verify(Arrays.asList(valid, detached));
+    Assert.assertTrue(results[0]);
+    Assert.assertFalse(results[1]);
+    Assert.assertFalse(batch().build().verify(Arrays.asList(valid))[0]);
+  }
+
+  @Test
+  public void testVerifyRejectsOtherAlgorithmHeaders() throws CborException, CoseException {
+    // Tags computed with the algorithm of the instance, under a different algorithm header.
+    Map otherAlgorithm = new Map();
+    otherAlgorithm.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_512_512.getCoseAlgorithmId());
+    byte[] sequence = batch().withProtectedHeaders(otherAlgorithm).build().mac(payloads(2));
+    byte[] noAlgorithm = batch().withProtectedHeaders(new Map()).build().mac(payloads(2));
+
+    BatchMac0 batch = batch().build();
+    for (boolean result : batch.verify(sequence)) {
+      Assert.assertFalse(result);
+    }
+    for (boolean result : batch.verify(noAlgorithm)) {
+      Assert.assertFalse(result);
+    }
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    assertThrows(CoseException.class, () -> BatchMac0.builder().withKey(key()).build());
+    assertThrows(CoseException.class, () -> batch().withBatchSize(0).build());
+    assertThrows(CoseException.class,
+        () -> batch().withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA).build());
+    BatchMac0 batch = batch().build();
+    assertThrows(CoseException.class, () -> batch.mac(Arrays.asList(new byte[1], null)));
+    assertThrows(CoseException.class,
+        () -> batch.verifyTags(payloads(2), new byte[batch.getTagLength()]));
+    assertThrows(CborException.class, () -> batch.verify(new byte[] {(byte) 0x84, 0x40}));
+
+    MacKey verifyOnly = MacKey.builder()
+        .withSecretKey(new byte[32])
+        .withOperations(Headers.KEY_OPERATIONS_MAC_VERIFY)
+        .build();
+    BatchMac0 verifier = batch().withKey(verifyOnly).build();
+    assertThrows(CoseException.class, () -> verifier.computeTags(payloads(1)));
+    verifier.verifyTags(payloads(1), new byte[verifier.getTagLength()]);
+  }
+}
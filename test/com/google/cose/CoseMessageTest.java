@@ -0,0 +1,146 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.Headers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CoseMessage#decodeAny} and tagged serialization.
+ */
+@RunWith(JUnit4.class)
+public class CoseMessageTest {
+  private static final String SIGN1_MESSAGE = "8441A0A201260442313154546869732069732074686520636F6E"
+      + "74656E742E584087DB0D2E5571843B78AC33ECB2830DF7B6E0A4D5B7376DE336B23C591C90C425317E56127FBE"
+      + "04370097CE347087B233BF722B64072BEB4486BDA4031D27244F";
+  private static final String SIGN_MESSAGE = "8441A0A054546869732069732074686520636F6E74656E742E81"
+      + "8343A10126A1044231315840E2AEAFD40D69D19DFE6E52077C5D7FF4E408282CBEFB5D06CBF414AF2E19D982AC"
+      + "45AC98B8544C908B4507DE1E90B717C3D34816FE926A2B98F53AFD2FA0F30A";
+  private static final String MAC0_MESSAGE = "8443A10105A054546869732069732074686520636F6E74656E74"
+      + "2E5820A1A848D3471F9D61EE49018D244C824772F223AD4F935293F1789FC3A08D8C58";
+  private static final String MAC_MESSAGE = "8543A10105A054546869732069732074686520636F6E74656E742E"
+      + "58202BDCC89F058216B8A208DDC6D8B54AA91F48BD63484986565105C9AD5A6682F6818340A20125044A6F7572"
+      + "2D73656372657440";
+  private static final String ENCRYPT0_MESSAGE = "8343A10101A1054C02D1F7E6F26C43D4868D87CE58246097"
+      + "3A94BB2898009EE52ECFD9AB1DD25867374B162E2C03568B41F57C3CC16F9166250B";
+  private static final String ENCRYPT_MESSAGE = "8443A10101A1054C02D1F7E6F26C43D4868D87CE582460973A"
+      + "94BB2898009EE52ECFD9AB1DD25867374B3581F2C80039826350B97AE2300E42FD818340A20125044A6F75722D"
+      + "73656372657440";
+
+  @Test
+  public void testDecodeUntaggedMessages() throws CborException, CoseException {
+    Assert.assertTrue(deserializeAny(SIGN1_MESSAGE) instanceof Sign1Message);
+    Assert.assertTrue(deserializeAny(SIGN_MESSAGE) instanceof SignMessage);
+    Assert.assertTrue(deserializeAny(MAC0_MESSAGE) instanceof Mac0Message);
+    Assert.assertTrue(deserializeAny(MAC_MESSAGE) instanceof MacMessage);
+    Assert.assertTrue(deserializeAny(ENCRYPT0_MESSAGE) instanceof Encrypt0Message);
+    Assert.assertTrue(deserializeAny(ENCRYPT_MESSAGE) instanceof EncryptMessage);
+  }
+
+  @Test
+  public void testDecodeUntaggedMessagesKeepProtectedHeaders() throws CborException, CoseException {
+    CoseMessage mac0 = deserializeAny(MAC0_MESSAGE);
+    Assert.assertEquals("A10105",
+        TestUtilities.bytesToHexString(mac0.getEncodedProtectedHeaders()));
+    Assert.assertEquals(5, CborUtils.asInteger(
+        mac0.findAttributeInProtectedHeaders(Headers.MESSAGE_HEADER_ALGORITHM)));
+    CoseMessage encrypt = deserializeAny(ENCRYPT_MESSAGE);
+    Assert.assertEquals("A10101",
+        TestUtilities.bytesToHexString(encrypt.getEncodedProtectedHeaders()));
+    Assert.assertEquals(MAC0_MESSAGE, TestUtilities.bytesToHexString(mac0.serialize()));
+  }
+
+  @Test
+  public void testDecodeEncryptMessageByRecipientAlgorithm() throws CborException, CoseException {
+    // No algorithm in the body, the direct key usage of the recipient identifies COSE_Encrypt.
+    CoseMessage message = deserializeAny(
+        "8440A1054C02D1F7E6F26C43D4868D87CEF6818340A20125044A6F75722D73656372657440");
+    Assert.assertTrue(message instanceof EncryptMessage);
+  }
+
+  @Test
+  public void testDecodeTaggedMessages() throws CborException, CoseException {
+    Assert.assertTrue(deserializeAny("D2" + SIGN1_MESSAGE) instanceof Sign1Message);
+    Assert.assertTrue(deserializeAny("D862" + SIGN_MESSAGE) instanceof SignMessage);
+    Assert.assertTrue(deserializeAny("D1" + MAC0_MESSAGE) instanceof Mac0Message);
+    Assert.assertTrue(deserializeAny("D861" + MAC_MESSAGE) instanceof MacMessage);
+    Assert.assertTrue(deserializeAny("D0" + ENCRYPT0_MESSAGE) instanceof Encrypt0Message);
+    Assert.assertTrue(deserializeAny("D860" + ENCRYPT_MESSAGE) instanceof EncryptMessage);
+  }
+
+  @Test
+  public void testTagTakesPrecedenceOverStructure() throws CborException, CoseException {
+    // Sign1 and Mac0 share their layout, so the tag alone decides the type.
+    CoseMessage message = deserializeAny("D1" + SIGN1_MESSAGE);
+    Assert.assertTrue(message instanceof Mac0Message);
+  }
+
+  @Test
+  public void testSerializeTagged() throws CborException, CoseException {
+    Sign1Message message = Sign1Message.deserialize(
+        TestUtilities.hexStringToByteArray(SIGN1_MESSAGE));
+    byte[] tagged = message.serializeTagged();
+    Assert.assertEquals("D2" + SIGN1_MESSAGE, TestUtilities.bytesToHexString(tagged));
+
+    DataItem item = CborUtils.decode(tagged);
+    Assert.assertEquals(Headers.MESSAGE_TAG_SIGN1, item.getTag().getValue());
+    Assert.assertArrayEquals(message.getSignature(),
+        ((Sign1Message) CoseMessage.decodeAny(item)).getSignature());
+
+    // Plain serialization stays untagged.
+    Assert.assertEquals(SIGN1_MESSAGE, TestUtilities.bytesToHexString(message.serialize()));
+
+    Assert.assertEquals("D861" + MAC_MESSAGE, TestUtilities.bytesToHexString(
+        MacMessage.deserialize(TestUtilities.hexStringToByteArray(MAC_MESSAGE)).serializeTagged()));
+  }
+
+  @Test
+  public void testDecodeFailureScenarios() {
+    // Unknown tag.
+    assertThrows(CoseException.class, () -> deserializeAny("D818" + SIGN1_MESSAGE));
+    // Unexpected number of items.
+    assertThrows(CoseException.class, () -> deserializeAny("824040"));
+    // Four items without any algorithm.
+    assertThrows(CoseException.class, () -> deserializeAny("8440A04040"));
+    // Not an array.
+    assertThrows(CborException.class, () -> deserializeAny("A10104"));
+  }
+
+  @Test
+  public void testTaggingUnsupportedForInnerStructures() throws CborException, CoseException {
+    Recipient recipient = Recipient.builder()
+        .withProtectedHeaders(new Map())
+        .withUnprotectedHeaders(new Map())
+        .withCiphertext(new byte[0])
+        .build();
+    assertThrows(CoseException.class, recipient::serializeTagged);
+  }
+
+  private static CoseMessage deserializeAny(String hex) throws CborException, CoseException {
+    return CoseMessage.deserializeAny(TestUtilities.hexStringToByteArray(hex));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static com.google.cose.TestUtilities.SECRET_KEY_BYTES;
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CounterSignatures}.
+ */
+@RunWith(JUnit4.class)
+public class CounterSignaturesTest {
+  private static final byte[] IV = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+
+  @Test
+  public void testCountersignDecodedMessages() throws CborException, CoseException {
+    OkpSigningKey notaryKey = OkpSigningKey.generateKey();
+    for (CoseMessage message : createMessages()) {
+      Signature counterSignature = CounterSignatures.create(message, notaryKey,
+          Algorithm.SIGNING_ALGORITHM_EDDSA, algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA),
+          new Map(), null);
+      CounterSignatures.add(message, counterSignature);
+
+      CoseMessage decoded = CoseMessage.deserializeAny(message.serialize());
+      Assert.assertEquals(message.getClass(), decoded.getClass());
+      List<Signature> counterSignatures = decoded.getCounterSignatures();
+      Assert.assertEquals(1, counterSignatures.size());
+      CounterSignatures.verify(decoded, counterSignatures.get(0), notaryKey, null);
+      assertThrows(CoseException.class, () -> CounterSignatures.verify(decoded,
+          counterSignatures.get(0), OkpSigningKey.generateKey(), null));
+      assertThrows(CoseException.class, () -> CounterSignatures.verify(decoded,
+          counterSignatures.get(0), notaryKey, new byte[] {1}));
+    }
+  }
+
+  @Test
+  public void testCountersignSerializedMessage() throws CborException, CoseException {
+    OkpSigningKey notaryKey = OkpSigningKey.generateKey();
+    Ec2SigningKey timestampKey =
+        Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    for (CoseMessage message : createMessages()) {
+      byte[] serialized = message.serializeTagged();
+      byte[] once = CounterSignatures.countersign(serialized, notaryKey,
+          Algorithm.SIGNING_ALGORITHM_EDDSA, algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA),
+          new Map(), null);
+      byte[] twice = CounterSignatures.countersign(once, timestampKey,
+          Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256,
+          algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(), null);
+
+      // The tag, array head and protected headers are kept, as are the trailing fields.
+      int prefixLength = message.getEncodedProtectedHeaders().length + 3;
+      Assert.assertArrayEquals(Arrays.copyOf(serialized, prefixLength),
+          Arrays.copyOf(twice, prefixLength));
+      int suffixLength = serialized.length - prefixLength
+          - CborUtils.encode(message.getUnprotectedHeaders()).length;
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(serialized, serialized.length - suffixLength, serialized.length),
+          Arrays.copyOfRange(twice, twice.length - suffixLength, twice.length));
+
+      CoseMessage decoded = CoseMessage.deserializeAny(twice);
+      Assert.assertEquals(2, decoded.getCounterSignatures().size());
+      CounterSignatures.verifyAll(decoded, ImmutableList.of(notaryKey, timestampKey), null);
+      assertThrows(CoseException.class, () -> CounterSignatures.verifyAll(decoded,
+          ImmutableList.of(timestampKey, notaryKey), null));
+      assertThrows(CoseException.class,
+          () -> CounterSignatures.verifyAll(decoded, ImmutableList.of(notaryKey), null));
+
+      // EdDSA is deterministic, so both paths produce the same countersignature.
+      Signature expected = CounterSignatures.create(message, notaryKey,
+          Algorithm.SIGNING_ALGORITHM_EDDSA, algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA),
+          new Map(), null);
+      Assert.assertArrayEquals(expected.getSignature(),
+          decoded.getCounterSignatures().get(0).getSignature());
+    }
+  }
+
+  @Test
+  public void testNoCounterSignatures() throws CborException, CoseException {
+    for (CoseMessage message : createMessages()) {
+      Assert.assertTrue(message.getCounterSignatures().isEmpty());
+      CounterSignatures.verifyAll(message, ImmutableList.of(), null);
+    }
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    Map headers = algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA);
+    Sign1Message detached = CoseUtils.generateCoseSign1(key, headers, new Map(), null,
+        TestUtilities.CONTENT_BYTES, null, Algorithm.SIGNING_ALGORITHM_EDDSA);
+    assertThrows(CoseException.class, () -> CounterSignatures.create(detached, key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+    assertThrows(CoseException.class, () -> CounterSignatures.countersign(detached.serialize(),
+        key, Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+
+    // Tagged COSE_Sign and an untagged message with a recipients array.
+    assertThrows(CoseException.class, () -> CounterSignatures.countersign(
+        TestUtilities.hexStringToByteArray("D8628440A0F680"), key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+    assertThrows(CoseException.class, () -> CounterSignatures.countersign(
+        TestUtilities.hexStringToByteArray("8440A04080"), key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+    assertThrows(CborException.class, () -> CounterSignatures.countersign(
+        TestUtilities.hexStringToByteArray("8440A04041"), key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+    assertThrows(CborException.class, () -> CounterSignatures.countersign(
+        Bytes.concat(detached.serialize(), new byte[] {0}), key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), null));
+  }
+
+  private static List<CoseMessage> createMessages() throws CborException, CoseException {
+    OkpSigningKey signingKey = OkpSigningKey.generateKey();
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    EncryptionKey encryptionKey = EncryptionKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    Map ivHeaders = new Map();
+    ivHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV), new ByteString(IV));
+    return ImmutableList.of(
+        CoseUtils.generateCoseSign1(signingKey,
+            algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA), new Map(),
+            TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_EDDSA),
+        CoseUtils.generateCoseMac0(macKey,
+            algorithmHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+            TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256),
+        CoseUtils.generateCoseEncrypt0(encryptionKey,
+            algorithmHeaders(Algorithm.ENCRYPTION_AES_128_GCM), ivHeaders,
+            TestUtilities.CONTENT_BYTES, null, IV, Algorithm.ENCRYPTION_AES_128_GCM));
+  }
+}
@@ -26,6 +26,7 @@ import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.Headers;
+import java.security.MessageDigest;
 import java.security.Security;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.Assert;
@@ -301,4 +302,18 @@ public class Ec2SigningKeyTest {
         CoseException.class,
         () -> Ec2SigningKey.generateKey(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256));
   }
+
+  @Test
+  public void testDigestSignatureMatchesRegularSignature() throws Exception {
+    byte[] message = TestUtilities.CONTENT_BYTES;
+    byte[] digest = MessageDigest.getInstance("SHA-512").digest(message);
+
+    Ec2SigningKey p521key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512);
+    byte[] signature = p521key.signDigest(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512, digest, null);
+    p521key.verify(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512, message, signature, null);
+    signature = p521key.sign(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512, message, null);
+    p521key.verifyDigest(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512, digest, signature, null);
+    assertThrows(CoseException.class, () -> p521key.signDigest(
+        Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512, message, null));
+  }
 }
@@ -25,7 +25,11 @@ import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
 import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -149,4 +153,168 @@ public class EncryptMessageTest {
         CborException.class,
         () -> EncryptMessage.deserialize(TestUtilities.hexStringToByteArray(cborString)));
   }
+
+  private static KeyWrapKey wrapKey(int index, boolean withKeyId) throws CborException,
+      CoseException {
+    byte[] secret = new byte[16];
+    Arrays.fill(secret, (byte) index);
+    KeyWrapKey.Builder builder = KeyWrapKey.builder().withSecretKey(secret);
+    if (withKeyId) {
+      builder.withKeyId(new byte[] {(byte) index});
+    }
+    return builder.build();
+  }
+
+  private static EncryptMessage encryptForRecipients(List<KeyWrapKey> keys)
+      throws CborException, CoseException {
+    List<RecipientSpec> specs = new ArrayList<>();
+    for (KeyWrapKey key : keys) {
+      Map headers = new Map();
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+          Algorithm.AES_KEY_WRAP_128.getCoseAlgorithmId());
+      if (key.getKeyId() != null) {
+        headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+            new ByteString(key.getKeyId()));
+      }
+      specs.add(RecipientSpec.builder()
+          .withKey(key)
+          .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+          .withUnprotectedHeaders(headers)
+          .build());
+    }
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    Map unprotectedHeaders = new Map();
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(iv));
+    return EncryptMessage.deserialize(CoseUtils.generateCoseEncrypt(protectedHeaders,
+        unprotectedHeaders, TestUtilities.CONTENT_BYTES, null, iv,
+        Algorithm.ENCRYPTION_AES_128_GCM, specs, null).serialize());
+  }
+
+  @Test
+  public void testDecryptWithKeyId() throws CborException, CoseException {
+    List<KeyWrapKey> keys = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      keys.add(wrapKey(i, true));
+    }
+    EncryptMessage message = encryptForRecipients(keys);
+    // No trial decryption is needed when the key id matches.
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+        message.decrypt(keys.get(27), null, null, 0));
+    assertThrows(CoseException.class, () -> message.decrypt(wrapKey(40, true), null, null));
+  }
+
+  @Test
+  public void testDecryptWithoutKeyIdIsBounded() throws CborException, CoseException {
+    List<KeyWrapKey> keys = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      keys.add(wrapKey(i, false));
+    }
+    EncryptMessage message = encryptForRecipients(keys);
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+        message.decrypt(keys.get(5), null, Algorithm.ENCRYPTION_AES_128_GCM));
+    assertThrows(CoseException.class, () -> message.decrypt(keys.get(5), null, null, 3));
+    // Recipients are only tried with keys of a compatible type.
+    assertThrows(CoseException.class,
+        () -> message.decrypt(OkpKeyAgreementKey.generateKey(), null, null));
+  }
+
+  @Test
+  public void testDecryptWithDirectKey() throws CborException, CoseException {
+    EncryptionKey key = EncryptionKey.builder()
+        .withKeyId(TestUtilities.SHARED_KEY_ID_BYTES)
+        .withSecretKey(TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E"))
+        .build();
+    Map recipientHeaders = new Map();
+    recipientHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.DIRECT_CEK_USAGE.getCoseAlgorithmId());
+    recipientHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.SHARED_KEY_ID_BYTES));
+    RecipientSpec spec = RecipientSpec.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.DIRECT_CEK_USAGE)
+        .withUnprotectedHeaders(recipientHeaders)
+        .build();
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    Map unprotectedHeaders = new Map();
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(iv));
+    EncryptMessage message = EncryptMessage.deserialize(CoseUtils.generateCoseEncrypt(
+        protectedHeaders, unprotectedHeaders, TestUtilities.CONTENT_BYTES, null, iv,
+        Algorithm.ENCRYPTION_AES_128_GCM, Arrays.asList(spec), null).serialize());
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, message.decrypt(key, null, null, 0));
+  }
+
+  @Test
+  public void testDecryptWithDirectMacKeyFailure() throws CborException, CoseException {
+    EncryptionKey key = EncryptionKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E"))
+        .build();
+    RecipientSpec spec = RecipientSpec.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.DIRECT_CEK_USAGE)
+        .build();
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(iv));
+    EncryptMessage message = CoseUtils.generateCoseEncrypt(protectedHeaders, unprotectedHeaders,
+        TestUtilities.CONTENT_BYTES, null, iv, Algorithm.ENCRYPTION_AES_128_GCM,
+        Arrays.asList(spec), null);
+    MacKey macKey = MacKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E"))
+        .build();
+
+    assertThrows(CoseException.class, () -> message.decrypt(macKey, null, null));
+  }
+
+  @Test
+  public void testDecryptWithMissingHeadersFailure() throws CborException, CoseException {
+    KeyWrapKey key = wrapKey(1, true);
+    Recipient recipient = RecipientSpec.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+        .build()
+        .createRecipient(new byte[16]);
+    Map algorithmHeaders = new Map();
+    algorithmHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    Map unknownAlgorithmHeaders = new Map();
+    unknownAlgorithmHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        new UnsignedInteger(9999));
+    Map ivHeaders = new Map();
+    ivHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(new byte[12]));
+
+    EncryptMessage withoutAlgorithm = EncryptMessage.builder()
+        .withProtectedHeaders(new Map())
+        .withUnprotectedHeaders(ivHeaders)
+        .withCiphertext(new byte[32])
+        .withRecipients(recipient)
+        .build();
+    assertThrows(CoseException.class, () -> withoutAlgorithm.decrypt(key, null, null));
+    EncryptMessage unknownAlgorithm = EncryptMessage.builder()
+        .withProtectedHeaders(unknownAlgorithmHeaders)
+        .withUnprotectedHeaders(ivHeaders)
+        .withCiphertext(new byte[32])
+        .withRecipients(recipient)
+        .build();
+    assertThrows(CoseException.class, () -> unknownAlgorithm.decrypt(key, null, null));
+    EncryptMessage withoutIv = EncryptMessage.builder()
+        .withProtectedHeaders(algorithmHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withCiphertext(new byte[32])
+        .withRecipients(recipient)
+        .build();
+    assertThrows(CoseException.class, () -> withoutIv.decrypt(key, null, null));
+  }
 }
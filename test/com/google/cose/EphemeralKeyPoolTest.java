@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link EphemeralKeyPool}.
+ */
+@RunWith(JUnit4.class)
+public class EphemeralKeyPoolTest {
+  @Test
+  public void testKeysAreNeverHandedOutTwice() throws CborException, CoseException {
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder()
+        .withLowWatermark(2)
+        .withHighWatermark(4)
+        .withCurves(Headers.CURVE_EC2_P256)
+        .build()) {
+      Set<String> seen = new HashSet<>();
+      for (int i = 0; i < 20; i++) {
+        Ec2KeyAgreementKey key = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256, pool);
+        Assert.assertNotNull(key.getPrivateKey());
+        Assert.assertTrue(seen.add(key.getPublicKey().getW().getAffineX().toString(16)));
+      }
+    }
+  }
+
+  @Test
+  public void testPoolIsRefilledToHighWatermark() throws CoseException, InterruptedException {
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder()
+        .withLowWatermark(1)
+        .withHighWatermark(3)
+        .withCurves(Headers.CURVE_OKP_X25519)
+        .build()) {
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (pool.available(Headers.CURVE_OKP_X25519) < 3
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(3, pool.available(Headers.CURVE_OKP_X25519));
+      Assert.assertEquals(0, pool.available(Headers.CURVE_EC2_P256));
+    }
+  }
+
+  @Test
+  public void testSigningKeysFromPool() throws CborException, CoseException {
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder().build()) {
+      Ec2SigningKey ec2Key = (Ec2SigningKey) CoseKey.generateKey(
+          Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384, pool);
+      byte[] signature = ec2Key.sign(
+          Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384, TestUtilities.CONTENT_BYTES, null);
+      ec2Key.verify(
+          Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384, TestUtilities.CONTENT_BYTES, signature, null);
+
+      OkpSigningKey okpKey = (OkpSigningKey) CoseKey.generateKey(
+          Algorithm.SIGNING_ALGORITHM_EDDSA, pool);
+      signature = okpKey.sign(Algorithm.SIGNING_ALGORITHM_EDDSA, TestUtilities.CONTENT_BYTES);
+      okpKey.verify(Algorithm.SIGNING_ALGORITHM_EDDSA, TestUtilities.CONTENT_BYTES, signature);
+    }
+  }
+
+  @Test
+  public void testOkpKeyAgreementKeyRoundTrip() throws CborException, CoseException {
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder()
+        .withCurves(Headers.CURVE_OKP_X25519)
+        .build()) {
+      OkpKeyAgreementKey key = OkpKeyAgreementKey.generateKey(pool);
+      OkpKeyAgreementKey parsed = OkpKeyAgreementKey.parse(key.serialize());
+      Assert.assertArrayEquals(key.getPrivateKeyBytes(), parsed.getPrivateKeyBytes());
+      Assert.assertArrayEquals(key.getPublicKeyBytes(), parsed.getPublicKeyBytes());
+    }
+  }
+
+  @Test
+  public void testUnconfiguredCurveFailure() throws CoseException {
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder()
+        .withCurves(Headers.CURVE_EC2_P256)
+        .build()) {
+      assertThrows(CoseException.class, () -> OkpSigningKey.generateKey(pool));
+    }
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() {
+    assertThrows(CoseException.class,
+        () -> EphemeralKeyPool.builder().withLowWatermark(5).withHighWatermark(2).build());
+    assertThrows(CoseException.class,
+        () -> EphemeralKeyPool.builder().withHighWatermark(0).build());
+    assertThrows(CoseException.class,
+        () -> EphemeralKeyPool.builder().withCurves(Headers.CURVE_OKP_X448));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link HashEnvelope}.
+ */
+@RunWith(JUnit4.class)
+public class HashEnvelopeTest {
+  @Test
+  public void testSignAndVerify() throws CborException, CoseException, IOException {
+    byte[] content = new byte[300_000];
+    new Random(1).nextBytes(content);
+    Path file = Files.createTempFile("artifact", ".bin");
+    try {
+      Files.write(file, content);
+      Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+      for (Algorithm hashAlgorithm : ImmutableList.of(Algorithm.HASH_SHA_256,
+          Algorithm.HASH_SHA_384, Algorithm.HASH_SHA_512)) {
+        byte[] digest = HashEnvelope.hash(hashAlgorithm, file);
+        Assert.assertArrayEquals(digest, HashEnvelope.hash(hashAlgorithm, content));
+        Assert.assertArrayEquals(digest,
+            HashEnvelope.hash(hashAlgorithm, new ByteArrayInputStream(content)));
+
+        Sign1Message envelope = Sign1Message.deserialize(HashEnvelope.sign(key,
+            Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256,
+            algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(),
+            hashAlgorithm, digest, "application/octet-stream", "https://example.com/artifact",
+            null).serialize());
+        Assert.assertArrayEquals(digest, envelope.getMessage());
+        Assert.assertEquals(hashAlgorithm, HashEnvelope.getHashAlgorithm(envelope));
+        Assert.assertEquals("application/octet-stream", HashEnvelope.getContentType(envelope));
+        Assert.assertEquals("https://example.com/artifact",
+            HashEnvelope.getPayloadLocation(envelope));
+
+        HashEnvelope.verify(key, envelope, content, null);
+        HashEnvelope.verify(key, envelope, new ByteArrayInputStream(content), null);
+        HashEnvelope.verify(key, envelope, file, null);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testContentMismatch() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    Sign1Message envelope = sign(key, TestUtilities.CONTENT_BYTES);
+    Assert.assertNull(HashEnvelope.getContentType(envelope));
+    Assert.assertNull(HashEnvelope.getPayloadLocation(envelope));
+    HashEnvelope.verify(key, envelope, TestUtilities.CONTENT_BYTES, null);
+    assertThrows(CoseException.class,
+        () -> HashEnvelope.verify(key, envelope, new byte[] {1}, null));
+    assertThrows(CoseException.class,
+        () -> HashEnvelope.verify(key, envelope, TestUtilities.CONTENT_BYTES, new byte[] {1}));
+  }
+
+  @Test
+  public void testContentIsNotReadForInvalidSignature() throws CborException, CoseException {
+    Sign1Message envelope = sign(OkpSigningKey.generateKey(), TestUtilities.CONTENT_BYTES);
+    InputStream unreadable = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("Content must not be read.");
+      }
+    };
+    assertThrows(CoseException.class,
+        () -> HashEnvelope.verify(OkpSigningKey.generateKey(), envelope, unreadable, null));
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    Map headers = algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA);
+    assertThrows(CoseException.class, () -> HashEnvelope.sign(key,
+        Algorithm.SIGNING_ALGORITHM_EDDSA, headers, new Map(), Algorithm.HASH_SHA_384,
+        new byte[32], null, null, null));
+    assertThrows(CoseException.class, () -> HashEnvelope.hash(
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256, TestUtilities.CONTENT_BYTES));
+    Sign1Message regular = CoseUtils.generateCoseSign1(key, headers,
+        new Map(), TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_EDDSA);
+    assertThrows(CoseException.class,
+        () -> HashEnvelope.verify(key, regular, TestUtilities.CONTENT_BYTES, null));
+  }
+
+  private static Sign1Message sign(OkpSigningKey key, byte[] content)
+      throws CborException, CoseException {
+    return HashEnvelope.sign(key, Algorithm.SIGNING_ALGORITHM_EDDSA,
+        algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA), new Map(), Algorithm.HASH_SHA_256,
+        HashEnvelope.hash(Algorithm.HASH_SHA_256, content), null, null, null);
+  }
+}
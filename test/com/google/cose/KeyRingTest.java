@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link KeyRing}.
+ */
+@RunWith(JUnit4.class)
+public class KeyRingTest {
+  private static MacKey macKey(int id) throws CborException, CoseException {
+    byte[] secret = TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+    secret[0] = (byte) id;
+    return MacKey.builder().withSecretKey(secret).withKeyId(new byte[] {(byte) id}).build();
+  }
+
+  private static Mac0Message mac(MacKey key) throws CborException, CoseException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256.getCoseAlgorithmId());
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(key.getKeyId()));
+    return CoseUtils.generateCoseMac0(key, protectedHeaders, unprotectedHeaders,
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+  }
+
+  @Test
+  public void testResolveByKeyId() throws CborException, CoseException {
+    MacKey active = macKey(1);
+    MacKey previous = macKey(2);
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder()
+        .withActiveKey(active)
+        .withPreviousKeys(previous)
+        .build();
+
+    Assert.assertSame(active, ring.getActiveKey());
+    Assert.assertSame(previous, ring.resolve(new byte[] {2}));
+    Assert.assertNull(ring.resolve(new byte[] {3}));
+
+    Mac0Message message = mac(previous);
+    MacKey resolved = ring.resolve(message);
+    Assert.assertSame(previous, resolved);
+    Assert.assertTrue(CoseUtils.verifyCoseMac0(resolved, message, null,
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256));
+    Assert.assertEquals(2, ring.getUsageCount(new byte[] {2}));
+    Assert.assertNull(ring.resolve(Mac0Message.builder()
+        .withProtectedHeaders(new Map())
+        .withUnprotectedHeaders(new Map())
+        .withMessage(TestUtilities.CONTENT_BYTES)
+        .withTag(new byte[32])
+        .build()));
+  }
+
+  @Test
+  public void testRotationKeepsPreviousKeys() throws CborException, CoseException {
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder()
+        .withActiveKey(macKey(1))
+        .withMaxKeys(2)
+        .build();
+    Mac0Message oldMessage = mac(ring.useActiveKey());
+
+    ring.rotate(macKey(2));
+    Assert.assertArrayEquals(new byte[] {2}, ring.getActiveKey().getKeyId());
+    Assert.assertTrue(CoseUtils.verifyCoseMac0(ring.resolve(oldMessage), oldMessage, null,
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256));
+
+    ring.rotate(macKey(3));
+    Assert.assertEquals(2, ring.getKeys().size());
+    Assert.assertNull(ring.resolve(oldMessage));
+    Assert.assertEquals(0, ring.getUsageCount(new byte[] {1}));
+
+    assertThrows(CoseException.class, () -> ring.rotate(macKey(2)));
+    assertThrows(CoseException.class, () -> ring.rotate(MacKey.builder()
+        .withSecretKey(new byte[16])
+        .build()));
+    Assert.assertArrayEquals(new byte[] {3}, ring.getActiveKey().getKeyId());
+  }
+
+  @Test
+  public void testRetire() throws CborException, CoseException {
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder()
+        .withActiveKey(macKey(1))
+        .withPreviousKeys(macKey(2), macKey(3))
+        .build();
+    Assert.assertTrue(ring.retire(new byte[] {2}));
+    Assert.assertFalse(ring.retire(new byte[] {2}));
+    Assert.assertNull(ring.resolve(new byte[] {2}));
+    Assert.assertNotNull(ring.resolve(new byte[] {3}));
+    assertThrows(CoseException.class, () -> ring.retire(new byte[] {1}));
+  }
+
+  @Test
+  public void testUsageLimitTriggersRotation() throws Exception {
+    AtomicInteger notifications = new AtomicInteger();
+    AtomicInteger nextId = new AtomicInteger(2);
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder()
+        .withActiveKey(macKey(1))
+        .withUsageLimit(1000)
+        .withRotationListener((keyRing, key, usages) -> {
+          notifications.incrementAndGet();
+          Assert.assertTrue(usages >= 1000);
+          try {
+            keyRing.rotate(macKey(nextId.getAndIncrement()));
+          } catch (CborException | CoseException e) {
+            throw new AssertionError(e);
+          }
+        })
+        .build();
+
+    int threads = 4;
+    CountDownLatch done = new CountDownLatch(threads);
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        for (int i = 0; i < 5000; i++) {
+          ring.useActiveKey();
+        }
+        done.countDown();
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    done.await();
+
+    Assert.assertTrue(notifications.get() >= 1);
+    byte[] lastKeyId = new byte[] {(byte) (nextId.get() - 1)};
+    Assert.assertArrayEquals(lastKeyId, ring.getActiveKey().getKeyId());
+    long total = 0;
+    for (MacKey key : ring.getKeys()) {
+      total += ring.getUsageCount(key.getKeyId());
+    }
+    Assert.assertTrue(total <= threads * 5000);
+  }
+
+  @Test
+  public void testUsageLimitIsExact() throws CborException, CoseException {
+    List<Long> notifications = new ArrayList<>();
+    KeyRing<MacKey> ring = KeyRing.<MacKey>builder()
+        .withActiveKey(macKey(1))
+        .withUsageLimit(10)
+        .withRotationListener((keyRing, key, usages) -> notifications.add(usages))
+        .build();
+    // Lookups by key id do not count towards the limit.
+    for (int i = 0; i < 100; i++) {
+      ring.resolve(new byte[] {1});
+    }
+    for (int i = 0; i < 9; i++) {
+      ring.useActiveKey();
+    }
+    Assert.assertTrue(notifications.isEmpty());
+    ring.useActiveKey();
+    Assert.assertEquals(Arrays.asList(10L), notifications);
+    ring.useActiveKey();
+    Assert.assertEquals(1, notifications.size());
+    Assert.assertEquals(111, ring.getUsageCount(new byte[] {1}));
+  }
+
+  @Test
+  public void testEncryptionKeyRing() throws CborException, CoseException {
+    EncryptionKey active = EncryptionKey.builder()
+        .withSecretKey(new byte[16])
+        .withKeyId(new byte[] {1})
+        .build();
+    KeyRing<EncryptionKey> ring = KeyRing.<EncryptionKey>builder().withActiveKey(active).build();
+    Assert.assertSame(active, ring.useActiveKey());
+    Assert.assertEquals(1, ring.getUsageCount(new byte[] {1}));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() throws CborException, CoseException {
+    MacKey key = macKey(1);
+    assertThrows(CoseException.class, () -> KeyRing.<MacKey>builder().build());
+    assertThrows(CoseException.class,
+        () -> KeyRing.<MacKey>builder().withActiveKey(key).withPreviousKeys(key).build());
+    assertThrows(CoseException.class,
+        () -> KeyRing.<MacKey>builder().withActiveKey(key).withMaxKeys(0).build());
+    assertThrows(CoseException.class,
+        () -> KeyRing.<MacKey>builder().withActiveKey(key).withUsageLimit(0).build());
+    assertThrows(CoseException.class, () -> KeyRing.<MacKey>builder()
+        .withActiveKey(MacKey.builder().withSecretKey(new byte[16]).build())
+        .build());
+  }
+}
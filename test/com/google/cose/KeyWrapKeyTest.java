@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link KeyWrapKey}. Test vectors are referenced from
+ * https://datatracker.ietf.org/doc/html/rfc3394#section-4
+ */
+@RunWith(JUnit4.class)
+public class KeyWrapKeyTest {
+  @Test
+  public void testWrap128BitKeyWith128BitKek() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .build();
+    byte[] contentKey = TestUtilities.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+    byte[] wrapped = key.wrap(Algorithm.AES_KEY_WRAP_128, contentKey);
+    Assert.assertEquals("1FA68B0A8112B447AEF34BD8FB5A7B829D3E862371D2CFE5",
+        TestUtilities.bytesToHexString(wrapped));
+    Assert.assertArrayEquals(contentKey, key.unwrap(Algorithm.AES_KEY_WRAP_128, wrapped));
+  }
+
+  @Test
+  public void testWrap256BitKeyWith256BitKek() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray(
+            "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F"))
+        .withOperations(Headers.KEY_OPERATIONS_WRAP_KEY, Headers.KEY_OPERATIONS_UNWRAP_KEY)
+        .build();
+    byte[] contentKey = TestUtilities.hexStringToByteArray(
+        "00112233445566778899AABBCCDDEEFF000102030405060708090A0B0C0D0E0F");
+    byte[] wrapped = key.wrap(Algorithm.AES_KEY_WRAP_256, contentKey);
+    Assert.assertEquals(
+        "28C9F404C4B810F4CBCCB35CFB87F8263F5786E2D80ED326CBC7F0E71A99F43BFB988B9B7A02DD21",
+        TestUtilities.bytesToHexString(wrapped));
+    Assert.assertArrayEquals(contentKey, key.unwrap(Algorithm.AES_KEY_WRAP_256, wrapped));
+  }
+
+  @Test
+  public void testRoundTrip() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .withKeyId(TestUtilities.SHARED_KEY_ID_BYTES)
+        .build();
+    KeyWrapKey newKey = KeyWrapKey.parse(key.serialize());
+    Assert.assertEquals(Headers.KEY_TYPE_SYMMETRIC, newKey.getKeyType());
+    Assert.assertArrayEquals(TestUtilities.SHARED_KEY_ID_BYTES, newKey.getKeyId());
+    Assert.assertArrayEquals(key.serialize(), newKey.serialize());
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .withOperations(Headers.KEY_OPERATIONS_WRAP_KEY)
+        .build();
+    byte[] contentKey = TestUtilities.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+    byte[] wrapped = key.wrap(Algorithm.AES_KEY_WRAP_128, contentKey);
+
+    // Key length does not match the algorithm.
+    assertThrows(CoseException.class, () -> key.wrap(Algorithm.AES_KEY_WRAP_256, contentKey));
+    // Operation not allowed by the key.
+    assertThrows(CoseException.class, () -> key.unwrap(Algorithm.AES_KEY_WRAP_128, wrapped));
+    // Not a key wrap algorithm.
+    assertThrows(CoseException.class,
+        () -> key.wrap(Algorithm.ENCRYPTION_AES_128_GCM, contentKey));
+    assertThrows(CoseException.class,
+        () -> KeyWrapKey.builder().withOperations(Headers.KEY_OPERATIONS_ENCRYPT));
+    assertThrows(CoseException.class, () -> KeyWrapKey.builder().build());
+  }
+
+  @Test
+  public void testUnwrapWithWrongKeyFailure() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .build();
+    KeyWrapKey otherKey = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("0F0E0D0C0B0A09080706050403020100"))
+        .build();
+    byte[] wrapped = key.wrap(Algorithm.AES_KEY_WRAP_128,
+        TestUtilities.hexStringToByteArray("00112233445566778899AABBCCDDEEFF"));
+    assertThrows(CoseException.class, () -> otherKey.unwrap(Algorithm.AES_KEY_WRAP_128, wrapped));
+  }
+}
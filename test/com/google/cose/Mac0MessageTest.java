@@ -23,7 +23,10 @@ import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.Algorithm;
+import com.google.cose.structure.MacStructure;
+import com.google.cose.structure.MacStructure.MacContext;
 import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
 import com.google.cose.utils.Headers;
 import org.junit.Assert;
 import org.junit.Test;
@@ -102,4 +105,57 @@ public class Mac0MessageTest {
         CborException.class,
         () -> Mac0Message.deserialize(TestUtilities.hexStringToByteArray(cborString)));
   }
+
+  @Test
+  public void testNonCanonicalProtectedHeadersArePreserved() throws CborException, CoseException {
+    // {4: h'01', 1: 5} with the keys in non-canonical order.
+    byte[] encodedProtectedHeaders = TestUtilities.hexStringToByteArray("A20441010105");
+    MacKey key = MacKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray(
+            "849B57219DAE48DE646D07DBB533566E976686457C1491BE3A76DCEA6C427188"))
+        .build();
+    byte[] tag = key.createMac(new MacStructure(MacContext.MAC0, encodedProtectedHeaders,
+        null, TestUtilities.CONTENT_BYTES).serialize(), Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+    byte[] serialized = Mac0Message.builder()
+        .withProtectedHeaders(CoseUtils.asProtectedHeadersMap(encodedProtectedHeaders))
+        .withEncodedProtectedHeaders(encodedProtectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withMessage(TestUtilities.CONTENT_BYTES)
+        .withTag(tag)
+        .build()
+        .serialize();
+
+    Mac0Message message = Mac0Message.deserialize(serialized);
+    Assert.assertArrayEquals(encodedProtectedHeaders, message.getEncodedProtectedHeaders());
+    Assert.assertArrayEquals(serialized, message.serialize());
+    Assert.assertTrue(CoseUtils.verifyCoseMac0(key, message, null, null));
+  }
+
+  @Test
+  public void testEncodedProtectedHeadersMustMatchMap() throws CborException, CoseException {
+    byte[] encodedProtectedHeaders = TestUtilities.hexStringToByteArray("A20441010105");
+    Mac0Message derived = Mac0Message.builder()
+        .withEncodedProtectedHeaders(encodedProtectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withTag(new byte[32])
+        .build();
+    Assert.assertEquals(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256, Algorithm.fromCoseAlgorithmId(
+        CborUtils.asInteger(derived.findAttributeInProtectedHeaders(
+            Headers.MESSAGE_HEADER_ALGORITHM))));
+
+    Map otherHeaders = new Map();
+    otherHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_512_512.getCoseAlgorithmId());
+    assertThrows(CoseException.class, () -> Mac0Message.builder()
+        .withProtectedHeaders(otherHeaders)
+        .withEncodedProtectedHeaders(encodedProtectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withTag(new byte[32])
+        .build());
+    assertThrows(CoseException.class, () -> Mac0Message.builder()
+        .withEncodedProtectedHeaders(new byte[] {0x01})
+        .withUnprotectedHeaders(new Map())
+        .withTag(new byte[32])
+        .build());
+  }
 }
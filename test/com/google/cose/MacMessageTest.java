@@ -25,8 +25,13 @@ import co.nstant.in.cbor.model.UnsignedInteger;
 import com.google.cose.exceptions.CoseException;
 import com.google.cose.utils.Algorithm;
 import com.google.cose.utils.CborUtils;
+import com.google.cose.structure.MacStructure;
+import com.google.cose.structure.MacStructure.MacContext;
 import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -178,4 +183,130 @@ public class MacMessageTest {
         CoseException.class,
         () -> MacMessage.deserialize(TestUtilities.hexStringToByteArray(cborString)));
   }
+
+  @Test
+  public void testVerifyWithKeyWrapRecipients() throws CborException, CoseException {
+    byte[] macKeyBytes = new byte[32];
+    Arrays.fill(macKeyBytes, (byte) 0x5A);
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256.getCoseAlgorithmId());
+    byte[] tag = MacKey.builder().withSecretKey(macKeyBytes).build().createMac(
+        new MacStructure(MacContext.MAC, protectedHeaders, null, TestUtilities.CONTENT_BYTES)
+            .serialize(),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+
+    List<KeyWrapKey> keys = new ArrayList<>();
+    List<Recipient> recipients = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      byte[] secret = new byte[16];
+      Arrays.fill(secret, (byte) i);
+      KeyWrapKey key = KeyWrapKey.builder()
+          .withSecretKey(secret)
+          .withKeyId(new byte[] {(byte) i})
+          .build();
+      keys.add(key);
+      Map headers = new Map();
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+          Algorithm.AES_KEY_WRAP_128.getCoseAlgorithmId());
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+          new ByteString(key.getKeyId()));
+      recipients.add(Recipient.builder()
+          .withProtectedHeaders(new Map())
+          .withUnprotectedHeaders(headers)
+          .generateWrappedKey(key, macKeyBytes, Algorithm.AES_KEY_WRAP_128)
+          .build());
+    }
+    MacMessage message = MacMessage.deserialize(MacMessage.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withMessage(TestUtilities.CONTENT_BYTES)
+        .withTag(tag)
+        .withRecipients(recipients)
+        .build()
+        .serialize());
+
+    Assert.assertTrue(message.verify(keys.get(11), null, null, null, 0));
+    byte[] otherSecret = new byte[16];
+    Arrays.fill(otherSecret, (byte) 0x7F);
+    Assert.assertFalse(message.verify(
+        KeyWrapKey.builder().withSecretKey(otherSecret).withKeyId(new byte[] {11}).build(),
+        null, null, null));
+  }
+
+  @Test
+  public void testVerifyWithDirectKey() throws CborException, CoseException {
+    MacKey key = MacKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray(
+            "849B57219DAE48DE646D07DBB533566E976686457C1491BE3A76DCEA6C427188"))
+        .build();
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256.getCoseAlgorithmId());
+    Map recipientHeaders = new Map();
+    recipientHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.DIRECT_CEK_USAGE.getCoseAlgorithmId());
+    byte[] tag = key.createMac(new MacStructure(MacContext.MAC, protectedHeaders, null,
+        TestUtilities.CONTENT_BYTES).serialize(), Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+    MacMessage message = MacMessage.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withTag(tag)
+        .withRecipients(Recipient.builder()
+            .withProtectedHeaders(new Map())
+            .withUnprotectedHeaders(recipientHeaders)
+            .withCiphertext(new byte[0])
+            .build())
+        .build();
+
+    Assert.assertTrue(message.verify(key, TestUtilities.CONTENT_BYTES, null, null));
+    Assert.assertFalse(message.verify(key, TestUtilities.hexStringToByteArray("00"), null, null));
+  }
+
+  @Test
+  public void testVerifyWithDirectEncryptionKeyFailure() throws CborException, CoseException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256.getCoseAlgorithmId());
+    Map recipientHeaders = new Map();
+    recipientHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.DIRECT_CEK_USAGE.getCoseAlgorithmId());
+    MacMessage message = MacMessage.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withMessage(TestUtilities.CONTENT_BYTES)
+        .withTag(new byte[32])
+        .withRecipients(Recipient.builder()
+            .withProtectedHeaders(new Map())
+            .withUnprotectedHeaders(recipientHeaders)
+            .withCiphertext(new byte[0])
+            .build())
+        .build();
+    EncryptionKey key = EncryptionKey.builder().withSecretKey(new byte[32]).build();
+
+    Assert.assertFalse(message.verify(key, null, null, null));
+  }
+
+  @Test
+  public void testVerifyWithUnknownAlgorithmFailure() throws CborException, CoseException {
+    MacKey key = MacKey.builder().withSecretKey(new byte[32]).build();
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        new UnsignedInteger(9999));
+    Map recipientHeaders = new Map();
+    recipientHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.DIRECT_CEK_USAGE.getCoseAlgorithmId());
+    MacMessage message = MacMessage.builder()
+        .withProtectedHeaders(protectedHeaders)
+        .withUnprotectedHeaders(new Map())
+        .withMessage(TestUtilities.CONTENT_BYTES)
+        .withTag(new byte[32])
+        .withRecipients(Recipient.builder()
+            .withProtectedHeaders(new Map())
+            .withUnprotectedHeaders(recipientHeaders)
+            .withCiphertext(new byte[0])
+            .build())
+        .build();
+    assertThrows(CoseException.class, () -> message.verify(key, null, null, null));
+  }
 }
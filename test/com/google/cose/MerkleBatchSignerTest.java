@@ -0,0 +1,170 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link MerkleBatchSigner}.
+ */
+@RunWith(JUnit4.class)
+public class MerkleBatchSignerTest {
+  @Test
+  public void testSignAndVerifyBatch() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    MerkleBatchSigner signer = MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256)
+        .withProtectedHeaders(algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256))
+        .withExternalAad(new byte[] {1})
+        .build();
+    List<byte[]> payloads = payloads(11);
+    List<Sign1Message> messages = signer.sign(payloads);
+    Assert.assertEquals(11, messages.size());
+
+    MerkleBatchVerifier verifier = MerkleBatchVerifier.builder()
+        .withKey(key)
+        .withExternalAad(new byte[] {1})
+        .build();
+    for (int i = 0; i < messages.size(); i++) {
+      Sign1Message message = Sign1Message.deserialize(messages.get(i).serialize());
+      Assert.assertArrayEquals(payloads.get(i), message.getMessage());
+      Assert.assertArrayEquals(messages.get(0).getSignature(), message.getSignature());
+      verifier.verify(message);
+    }
+    // The signature covers the root, not the payload.
+    assertThrows(CoseException.class,
+        () -> CoseUtils.verifyCoseSign1Message(key, messages.get(0), null, new byte[] {1}, null));
+  }
+
+  @Test
+  public void testRootSignatureIsNotARegularSignature() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    List<byte[]> payloads = payloads(4);
+    Sign1Message message = MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA))
+        .build()
+        .sign(payloads)
+        .get(0);
+    Assert.assertEquals(new NegativeInteger(Headers.MESSAGE_HEADER_MERKLE_HASH_ALGORITHM),
+        CborUtils.asArray(message.findAttributeInProtectedHeaders(
+            Headers.MESSAGE_HEADER_CRITICALITY)).getDataItems().get(0));
+
+    // A regular message carrying the root as payload must not verify with the root signature.
+    Sign1Message rootMessage = Sign1Message.builder()
+        .withProtectedHeaders(message.getProtectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .withMessage(MerkleTree.build(Algorithm.HASH_SHA_256, payloads).getRoot())
+        .withSignature(message.getSignature())
+        .build();
+    assertThrows(CoseException.class,
+        () -> CoseUtils.verifyCoseSign1Message(key, rootMessage, null, null, null));
+  }
+
+  @Test
+  public void testHashAlgorithms() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    MerkleBatchVerifier verifier = MerkleBatchVerifier.builder().withKey(key).build();
+    for (Algorithm hashAlgorithm : ImmutableList.of(Algorithm.HASH_SHA_256,
+        Algorithm.HASH_SHA_384, Algorithm.HASH_SHA_512)) {
+      Map unprotectedHeaders = new Map();
+      unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+          new ByteString(TestUtilities.KEYID_BYTES));
+      List<Sign1Message> messages = MerkleBatchSigner.builder()
+          .withKey(key)
+          .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+          .withHashAlgorithm(hashAlgorithm)
+          .withProtectedHeaders(algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA))
+          .withUnprotectedHeaders(unprotectedHeaders)
+          .build()
+          .sign(payloads(3));
+      for (Sign1Message message : messages) {
+        Assert.assertNotNull(
+            message.findAttributeInUnprotectedHeaders(Headers.MESSAGE_HEADER_KEY_ID));
+        verifier.verify(message);
+      }
+    }
+  }
+
+  @Test
+  public void testSingletonBatch() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    List<Sign1Message> messages = MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA))
+        .build()
+        .sign(payloads(1));
+    MerkleBatchVerifier.builder().withKey(key).build().verify(messages.get(0));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    Map headers = algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA);
+    assertThrows(CoseException.class, () -> MerkleBatchSigner.builder()
+        .withKey(key)
+        .withProtectedHeaders(headers)
+        .build());
+    assertThrows(CoseException.class, () -> MerkleBatchSigner.builder()
+        .withKey(MacKey.builder().withSecretKey(new byte[16]).build())
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(headers)
+        .build());
+    assertThrows(CoseException.class, () -> MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withHashAlgorithm(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256)
+        .withProtectedHeaders(headers)
+        .build());
+    MerkleBatchSigner signer = MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(headers)
+        .build();
+    assertThrows(CoseException.class, () -> signer.sign(ImmutableList.of()));
+  }
+
+  static List<byte[]> payloads(int size) {
+    List<byte[]> payloads = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      payloads.add(("event " + i).getBytes());
+    }
+    return payloads;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.CountingMetricsListener;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.Headers;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link MerkleBatchVerifier}.
+ */
+@RunWith(JUnit4.class)
+public class MerkleBatchVerifierTest {
+  private CountingMetricsListener listener;
+  private OkpSigningKey key;
+  private List<Sign1Message> messages;
+
+  @Before
+  public void setUp() throws CborException, CoseException {
+    key = OkpSigningKey.generateKey();
+    messages = MerkleBatchSigner.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(
+            algorithmHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA))
+        .build()
+        .sign(MerkleBatchSignerTest.payloads(8));
+    listener = new CountingMetricsListener();
+    Metrics.setListener(listener);
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.setListener(null);
+  }
+
+  @Test
+  public void testVerifiedRootsAreCached() throws CborException, CoseException {
+    MerkleBatchVerifier verifier = MerkleBatchVerifier.builder().withKey(key).build();
+    for (Sign1Message message : messages) {
+      verifier.verify(message);
+    }
+    Assert.assertEquals(1, listener.getCacheMisses(Metrics.CACHE_MERKLE_ROOT));
+    Assert.assertEquals(7, listener.getCacheHits(Metrics.CACHE_MERKLE_ROOT));
+  }
+
+  @Test
+  public void testCacheDisabled() throws CborException, CoseException {
+    MerkleBatchVerifier verifier =
+        MerkleBatchVerifier.builder().withKey(key).withCacheSize(0).build();
+    for (Sign1Message message : messages) {
+      verifier.verify(message);
+    }
+    Assert.assertEquals(8, listener.getCacheMisses(Metrics.CACHE_MERKLE_ROOT));
+  }
+
+  @Test
+  public void testFailedVerificationIsNotCached() throws CborException, CoseException {
+    MerkleBatchVerifier verifier = MerkleBatchVerifier.builder()
+        .withKey(OkpSigningKey.generateKey())
+        .build();
+    assertThrows(CoseException.class, () -> verifier.verify(messages.get(0)));
+    assertThrows(CoseException.class, () -> verifier.verify(messages.get(1)));
+    Assert.assertEquals(2, listener.getCacheMisses(Metrics.CACHE_MERKLE_ROOT));
+  }
+
+  @Test
+  public void testTamperedMessages() throws CborException, CoseException {
+    MerkleBatchVerifier verifier = MerkleBatchVerifier.builder().withKey(key).build();
+    verifier.verify(messages.get(0));
+
+    Sign1Message tamperedPayload = rebuild(messages.get(3), "event 4".getBytes(),
+        messages.get(3).getUnprotectedHeaders());
+    assertThrows(CoseException.class, () -> verifier.verify(tamperedPayload));
+
+    // Proof of message 3 presented as the proof of index 2.
+    Map headers = new Map();
+    List<DataItem> proof = CborUtils.asArray(messages.get(3)
+        .findAttributeInUnprotectedHeaders(Headers.MESSAGE_HEADER_MERKLE_PROOF)).getDataItems();
+    Array movedProof = new Array();
+    movedProof.add(new UnsignedInteger(2));
+    movedProof.add(proof.get(1));
+    movedProof.add(proof.get(2));
+    headers.put(new NegativeInteger(Headers.MESSAGE_HEADER_MERKLE_PROOF), movedProof);
+    Sign1Message movedIndex = rebuild(messages.get(3), messages.get(3).getMessage(), headers);
+    assertThrows(CoseException.class, () -> verifier.verify(movedIndex));
+
+    Sign1Message noProof = rebuild(messages.get(3), messages.get(3).getMessage(),
+        new Map());
+    assertThrows(CoseException.class, () -> verifier.verify(noProof));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() {
+    assertThrows(CoseException.class, () -> MerkleBatchVerifier.builder().build());
+    assertThrows(CoseException.class,
+        () -> MerkleBatchVerifier.builder().withKey(key).withCacheSize(-1).build());
+  }
+
+  private static Sign1Message rebuild(Sign1Message message, byte[] payload,
+      Map unprotectedHeaders) throws CborException, CoseException {
+    return Sign1Message.builder()
+        .withProtectedHeaders(message.getProtectedHeaders())
+        .withEncodedProtectedHeaders(message.getEncodedProtectedHeaders())
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .withMessage(payload)
+        .withSignature(message.getSignature())
+        .build();
+  }
+}
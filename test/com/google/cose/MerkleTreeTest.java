@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link MerkleTree}.
+ */
+@RunWith(JUnit4.class)
+public class MerkleTreeTest {
+  @Test
+  public void testRootMatchesRecursiveDefinition() throws Exception {
+    for (int size = 1; size <= 33; size++) {
+      List<byte[]> payloads = payloads(size);
+      MerkleTree tree = MerkleTree.build(Algorithm.HASH_SHA_256, payloads);
+      Assert.assertEquals(size, tree.size());
+      Assert.assertArrayEquals(referenceRoot(payloads), tree.getRoot());
+    }
+  }
+
+  @Test
+  public void testProofs() throws CoseException {
+    for (Algorithm algorithm : ImmutableList.of(Algorithm.HASH_SHA_256, Algorithm.HASH_SHA_384,
+        Algorithm.HASH_SHA_512)) {
+      for (int size = 1; size <= 20; size++) {
+        List<byte[]> payloads = payloads(size);
+        MerkleTree tree = MerkleTree.build(algorithm, payloads);
+        for (int i = 0; i < size; i++) {
+          Assert.assertArrayEquals(tree.getRoot(), MerkleTree.computeRoot(algorithm,
+              payloads.get(i), i, size, tree.getProof(i)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFailureScenarios() throws CoseException {
+    List<byte[]> payloads = payloads(5);
+    MerkleTree tree = MerkleTree.build(Algorithm.HASH_SHA_256, payloads);
+    List<byte[]> proof = tree.getProof(2);
+    List<byte[]> longProof = new ArrayList<>(proof);
+    longProof.add(new byte[32]);
+
+    assertThrows(CoseException.class, () -> MerkleTree.computeRoot(Algorithm.HASH_SHA_256,
+        payloads.get(2), 2, 5, proof.subList(0, 1)));
+    assertThrows(CoseException.class, () -> MerkleTree.computeRoot(Algorithm.HASH_SHA_256,
+        payloads.get(2), 2, 5, longProof));
+    assertThrows(CoseException.class, () -> MerkleTree.computeRoot(Algorithm.HASH_SHA_256,
+        payloads.get(2), 5, 5, proof));
+    Assert.assertFalse(MessageDigest.isEqual(tree.getRoot(), MerkleTree.computeRoot(
+        Algorithm.HASH_SHA_256, payloads.get(3), 2, 5, proof)));
+    assertThrows(CoseException.class,
+        () -> MerkleTree.build(Algorithm.HASH_SHA_256, ImmutableList.of()));
+    assertThrows(CoseException.class,
+        () -> MerkleTree.build(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256, payloads));
+  }
+
+  private static List<byte[]> payloads(int size) {
+    List<byte[]> payloads = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      payloads.add(new byte[] {(byte) i, (byte) (i * 7)});
+    }
+    return payloads;
+  }
+
+  // MTH from RFC 9162 section 2.1.1.
+  private static byte[] referenceRoot(List<byte[]> leaves) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    if (leaves.size() == 1) {
+      digest.update((byte) 0);
+      return digest.digest(leaves.get(0));
+    }
+    int split = Integer.highestOneBit(leaves.size() - 1);
+    digest.update((byte) 1);
+    digest.update(referenceRoot(leaves.subList(0, split)));
+    return digest.digest(referenceRoot(leaves.subList(split, leaves.size())));
+  }
+}
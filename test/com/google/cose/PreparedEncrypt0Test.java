@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PreparedEncrypt0Test {
+  private static final Algorithm ALGORITHM = Algorithm.ENCRYPTION_AES_128_GCM;
+  private static final byte[] IV = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+
+  private static Map protectedHeaders() {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        ALGORITHM.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static Map unprotectedHeaders() {
+    Map headers = new Map();
+    headers.put(new NegativeInteger(-65537), new ByteString(new byte[] {1}));
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.KEYID_BYTES));
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_PARTIAL_IV),
+        new ByteString(new byte[] {2}));
+    return headers;
+  }
+
+  private static EncryptionKey key() throws CborException, CoseException {
+    return EncryptionKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E"))
+        .build();
+  }
+
+  @Test
+  public void testMatchesGenericEncoding() throws CborException, CoseException {
+    byte[] externalAad = TestUtilities.hexStringToByteArray("0102");
+    PreparedEncrypt0 encryptor = PreparedEncrypt0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(unprotectedHeaders())
+        .withExternalAad(externalAad)
+        .build();
+    byte[] encrypted = encryptor.encrypt(TestUtilities.CONTENT_BYTES, IV);
+
+    Map headers = unprotectedHeaders();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV), new ByteString(IV));
+    Assert.assertArrayEquals(
+        CoseUtils.generateCoseEncrypt0(key(), protectedHeaders(), headers,
+            TestUtilities.CONTENT_BYTES, externalAad, IV, ALGORITHM).serialize(),
+        encrypted);
+
+    Encrypt0Message message = Encrypt0Message.deserialize(encrypted);
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+        message.decrypt(key(), null, externalAad, null));
+  }
+
+  @Test
+  public void testIvInHeadersFailure() throws CborException, CoseException {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV), new ByteString(IV));
+    assertThrows(CoseException.class, () -> PreparedEncrypt0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(headers)
+        .build());
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PreparedMac0Test {
+  private static final Algorithm ALGORITHM = Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256;
+
+  private static Map protectedHeaders() {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        ALGORITHM.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static MacKey key() throws CborException, CoseException {
+    return MacKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray(
+            "849B57219DAE48DE646D07DBB533566E976686457C1491BE3A76DCEA6C427188"))
+        .build();
+  }
+
+  @Test
+  public void testMatchesGenericEncoding() throws CborException, CoseException {
+    PreparedMac0 macer = PreparedMac0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .build();
+    for (int size : new int[] {1, 23, 24, 255, 256, 65535, 65536}) {
+      byte[] payload = new byte[size];
+      Arrays.fill(payload, (byte) size);
+      Assert.assertArrayEquals(
+          CoseUtils.generateCoseMac0(key(), protectedHeaders(), new Map(), payload, null,
+              ALGORITHM).serialize(),
+          macer.mac(payload));
+    }
+  }
+
+  @Test
+  public void testDetachedContent() throws CborException, CoseException {
+    PreparedMac0 macer = PreparedMac0.builder()
+        .withKey(key())
+        .withAlgorithm(ALGORITHM)
+        .withProtectedHeaders(protectedHeaders())
+        .withUnprotectedHeaders(new Map())
+        .build();
+    Mac0Message message = Mac0Message.deserialize(
+        macer.macDetached(TestUtilities.CONTENT_BYTES));
+    Assert.assertNull(message.getMessage());
+    Assert.assertTrue(
+        CoseUtils.verifyCoseMac0(key(), message, TestUtilities.CONTENT_BYTES, null));
+    assertThrows(CoseException.class, () -> macer.macDetached(null));
+  }
+}
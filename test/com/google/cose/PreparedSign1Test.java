@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PreparedSign1Test {
+  private static final int[] PAYLOAD_SIZES = new int[] {1, 23, 24, 255, 256, 65535, 65536};
+
+  private static Map protectedHeaders(Algorithm algorithm) {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static Map unprotectedHeaders() {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.KEYID_BYTES));
+    return headers;
+  }
+
+  @Test
+  public void testMatchesGenericEncoding() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    byte[] externalAad = TestUtilities.hexStringToByteArray("0102");
+    PreparedSign1 signer = PreparedSign1.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(protectedHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA))
+        .withUnprotectedHeaders(unprotectedHeaders())
+        .withExternalAad(externalAad)
+        .build();
+    for (int size : PAYLOAD_SIZES) {
+      byte[] payload = new byte[size];
+      Arrays.fill(payload, (byte) size);
+      // Ed25519 signatures are deterministic, so both paths produce the same bytes.
+      Assert.assertArrayEquals(
+          CoseUtils.generateCoseSign1(key,
+              protectedHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA), unprotectedHeaders(),
+              payload, null, externalAad, Algorithm.SIGNING_ALGORITHM_EDDSA).serialize(),
+          signer.sign(payload));
+    }
+  }
+
+  @Test
+  public void testEc2SignAndVerify() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    PreparedSign1 signer = PreparedSign1.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256)
+        .withProtectedHeaders(protectedHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256))
+        .withUnprotectedHeaders(new Map())
+        .build();
+
+    Sign1Message message = Sign1Message.deserialize(signer.sign(TestUtilities.CONTENT_BYTES));
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, message.getMessage());
+    CoseUtils.verifyCoseSign1Message(key, message, null, null, null);
+
+    Sign1Message detached = Sign1Message.deserialize(
+        signer.signDetached(TestUtilities.CONTENT_BYTES));
+    Assert.assertNull(detached.getMessage());
+    CoseUtils.verifyCoseSign1Message(key, detached, TestUtilities.CONTENT_BYTES, null, null);
+  }
+
+  @Test
+  public void testBuilderFailures() throws CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(new byte[32]).build();
+    assertThrows(CoseException.class, () -> PreparedSign1.builder().build());
+    assertThrows(CoseException.class, () -> PreparedSign1.builder()
+        .withKey(macKey)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .withProtectedHeaders(new Map())
+        .withUnprotectedHeaders(new Map())
+        .build());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link RecipientSpec}.
+ */
+@RunWith(JUnit4.class)
+public class RecipientSpecTest {
+  private static final byte[] CONTENT_KEY =
+      TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F");
+
+  private static Map algorithmHeader(Algorithm algorithm) {
+    Map map = new Map();
+    map.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM), algorithm.getCoseAlgorithmId());
+    return map;
+  }
+
+  private static Algorithm algorithmOf(Map headers) throws CborException {
+    return Algorithm.fromCoseAlgorithmId(CborUtils.asInteger(
+        CoseUtils.getValueFromMap(headers, Headers.MESSAGE_HEADER_ALGORITHM)));
+  }
+
+  @Test
+  public void testAlgorithmHeaderIsAdded() throws CborException, CoseException {
+    KeyWrapKey wrapKey = KeyWrapKey.builder().withSecretKey(new byte[16]).build();
+    Recipient recipient = RecipientSpec.builder()
+        .withKey(wrapKey)
+        .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+        .build()
+        .createRecipient(CONTENT_KEY);
+    Assert.assertEquals(Algorithm.AES_KEY_WRAP_128, algorithmOf(recipient.getProtectedHeaders()));
+    Assert.assertArrayEquals(CONTENT_KEY, Recipient.deserialize(recipient.serialize())
+        .unwrapKey(wrapKey, null));
+
+    EncryptionKey directKey = EncryptionKey.builder().withSecretKey(CONTENT_KEY).build();
+    Recipient direct = RecipientSpec.builder()
+        .withKey(directKey)
+        .withAlgorithm(Algorithm.DIRECT_CEK_USAGE)
+        .build()
+        .createRecipient(null);
+    Assert.assertEquals(0, direct.getProtectedHeaders().getKeys().size());
+    Assert.assertEquals(Algorithm.DIRECT_CEK_USAGE, algorithmOf(direct.getUnprotectedHeaders()));
+  }
+
+  @Test
+  public void testRecipientFromSpecIsIndexed() throws CborException, CoseException {
+    List<KeyWrapKey> keys = new ArrayList<>();
+    List<RecipientSpec> specs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      byte[] secret = new byte[16];
+      Arrays.fill(secret, (byte) i);
+      KeyWrapKey key = KeyWrapKey.builder()
+          .withSecretKey(secret)
+          .withKeyId(new byte[] {(byte) i})
+          .build();
+      keys.add(key);
+      Map headers = new Map();
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+          new ByteString(key.getKeyId()));
+      specs.add(RecipientSpec.builder()
+          .withKey(key)
+          .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+          .withUnprotectedHeaders(headers)
+          .build());
+    }
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(iv));
+    EncryptMessage message = EncryptMessage.deserialize(CoseUtils.generateCoseEncrypt(
+        algorithmHeader(Algorithm.ENCRYPTION_AES_128_GCM), unprotectedHeaders,
+        TestUtilities.CONTENT_BYTES, null, iv, Algorithm.ENCRYPTION_AES_128_GCM, specs, null)
+        .serialize());
+    // Without trial decryption the recipient can only be found through the index.
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+        message.decrypt(keys.get(3), null, null, 0));
+  }
+
+  @Test
+  public void testMismatchingAlgorithmHeaderFailure() throws CborException, CoseException {
+    KeyWrapKey wrapKey = KeyWrapKey.builder().withSecretKey(new byte[16]).build();
+    assertThrows(CoseException.class, () -> RecipientSpec.builder()
+        .withKey(wrapKey)
+        .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+        .withProtectedHeaders(algorithmHeader(Algorithm.AES_KEY_WRAP_256))
+        .build());
+    assertThrows(CoseException.class, () -> RecipientSpec.builder()
+        .withKey(wrapKey)
+        .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+        .withUnprotectedHeaders(algorithmHeader(Algorithm.DIRECT_CEK_USAGE))
+        .build());
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RecipientTest {
+  private static final byte[] CONTENT_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  private static Map algorithmHeader(Algorithm algorithm) {
+    Map map = new Map();
+    map.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM), algorithm.getCoseAlgorithmId());
+    return map;
+  }
+
+  @Test
+  public void testAesKeyWrapRoundTrip() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .withKeyId(TestUtilities.SHARED_KEY_ID_BYTES)
+        .build();
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.SHARED_KEY_ID_BYTES));
+    Recipient recipient = Recipient.builder()
+        .withProtectedHeaders(new Map())
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .generateWrappedKey(key, CONTENT_KEY, Algorithm.AES_KEY_WRAP_128)
+        .build();
+
+    Recipient decoded = Recipient.deserialize(recipient.serialize());
+    Assert.assertArrayEquals(CONTENT_KEY, decoded.unwrapKey(key, Algorithm.AES_KEY_WRAP_128));
+    // algorithm is not present in the protected headers.
+    assertThrows(CoseException.class, () -> decoded.unwrapKey(key, null));
+  }
+
+  @Test
+  public void testEc2KeyAgreementKeyWrapRoundTrip() throws CborException, CoseException {
+    Ec2KeyAgreementKey recipientKey = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    Recipient recipient = Recipient.builder()
+        .withProtectedHeaders(algorithmHeader(Algorithm.ECDH_ES_AES_KEY_WRAP_128))
+        .withUnprotectedHeaders(new Map())
+        .generateWrappedKey(recipientKey.getPublicKeyOnly(), CONTENT_KEY,
+            Algorithm.ECDH_ES_AES_KEY_WRAP_128, null)
+        .build();
+
+    Recipient decoded = Recipient.deserialize(recipient.serialize());
+    Ec2KeyAgreementKey ephemeralKey = Ec2KeyAgreementKey.decode(
+        decoded.findAttributeInUnprotectedHeaders(Headers.ECDH_EPHEMERAL_KEY));
+    Assert.assertNull(ephemeralKey.getPrivateKey());
+    Assert.assertArrayEquals(CONTENT_KEY, decoded.unwrapKey(recipientKey, null));
+
+    Ec2KeyAgreementKey otherKey = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    assertThrows(CoseException.class, () -> decoded.unwrapKey(otherKey, null));
+    assertThrows(CoseException.class,
+        () -> decoded.unwrapKey(recipientKey.getPublicKeyOnly(), null));
+  }
+
+  @Test
+  public void testSharedUnprotectedHeadersAreNotModified() throws CborException, CoseException {
+    Ec2KeyAgreementKey firstKey = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    Ec2KeyAgreementKey secondKey = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_KEY_ID),
+        new ByteString(TestUtilities.SHARED_KEY_ID_BYTES));
+    Recipient first = Recipient.builder()
+        .withProtectedHeaders(algorithmHeader(Algorithm.ECDH_ES_AES_KEY_WRAP_128))
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .generateWrappedKey(firstKey.getPublicKeyOnly(), CONTENT_KEY,
+            Algorithm.ECDH_ES_AES_KEY_WRAP_128, null)
+        .build();
+    Recipient second = Recipient.builder()
+        .withProtectedHeaders(algorithmHeader(Algorithm.ECDH_ES_AES_KEY_WRAP_128))
+        .withUnprotectedHeaders(unprotectedHeaders)
+        .generateWrappedKey(secondKey.getPublicKeyOnly(), CONTENT_KEY,
+            Algorithm.ECDH_ES_AES_KEY_WRAP_128, null)
+        .build();
+
+    Assert.assertEquals(1, unprotectedHeaders.getKeys().size());
+    Assert.assertNotNull(first.findAttributeInUnprotectedHeaders(Headers.MESSAGE_HEADER_KEY_ID));
+    Assert.assertArrayEquals(CONTENT_KEY,
+        Recipient.deserialize(first.serialize()).unwrapKey(firstKey, null));
+    Assert.assertArrayEquals(CONTENT_KEY,
+        Recipient.deserialize(second.serialize()).unwrapKey(secondKey, null));
+  }
+
+  @Test
+  public void testOkpKeyAgreementKeyWrapRoundTrip() throws CborException, CoseException {
+    OkpKeyAgreementKey recipientKey = OkpKeyAgreementKey.generateKey();
+    try (EphemeralKeyPool pool = EphemeralKeyPool.builder()
+        .withCurves(Headers.CURVE_OKP_X25519)
+        .build()) {
+      Recipient recipient = Recipient.builder()
+          .withProtectedHeaders(algorithmHeader(Algorithm.ECDH_ES_AES_KEY_WRAP_256))
+          .withUnprotectedHeaders(new Map())
+          .generateWrappedKey(recipientKey.getPublicKeyOnly(), CONTENT_KEY,
+              Algorithm.ECDH_ES_AES_KEY_WRAP_256, pool)
+          .build();
+
+      Recipient decoded = Recipient.deserialize(recipient.serialize());
+      Assert.assertArrayEquals(CONTENT_KEY, decoded.unwrapKey(recipientKey, null));
+    }
+  }
+
+  @Test
+  public void testIncompatibleKeyFailure() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder()
+        .withSecretKey(TestUtilities.hexStringToByteArray("000102030405060708090A0B0C0D0E0F"))
+        .build();
+    Recipient recipient = Recipient.builder()
+        .withProtectedHeaders(algorithmHeader(Algorithm.AES_KEY_WRAP_128))
+        .withUnprotectedHeaders(new Map())
+        .generateWrappedKey(key, CONTENT_KEY, Algorithm.AES_KEY_WRAP_128)
+        .build();
+    OkpKeyAgreementKey agreementKey = OkpKeyAgreementKey.generateKey();
+    assertThrows(CoseException.class, () -> recipient.unwrapKey(agreementKey, null));
+    assertThrows(CoseException.class, () -> Recipient.builder()
+        .withUnprotectedHeaders(new Map())
+        .generateWrappedKey(agreementKey, CONTENT_KEY, Algorithm.ECDH_ES_AES_KEY_WRAP_128, null));
+  }
+
+  @Test
+  public void testMissingEphemeralKeyFailure() throws CborException, CoseException {
+    Ec2KeyAgreementKey recipientKey = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    Recipient recipient = Recipient.builder()
+        .withProtectedHeaders(algorithmHeader(Algorithm.ECDH_ES_AES_KEY_WRAP_128))
+        .withUnprotectedHeaders(new Map())
+        .withCiphertext(new byte[24])
+        .build();
+    CoseException e = assertThrows(CoseException.class,
+        () -> Recipient.deserialize(recipient.serialize()).unwrapKey(recipientKey, null));
+    Assert.assertEquals("Missing ephemeral key.", e.getMessage());
+  }
+}
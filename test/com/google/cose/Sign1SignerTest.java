@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Arrays;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Sign1SignerTest {
+  private static final int[] PAYLOAD_SIZES = new int[] {1, 23, 24, 255, 256, 65536};
+  private static final byte[] EXTERNAL_AAD = TestUtilities.hexStringToByteArray("0102");
+
+  private static Map protectedHeaders(Algorithm algorithm) {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return headers;
+  }
+
+  private static Sign1Signer.Builder signer(CoseKey key, int length) {
+    return Sign1Signer.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256)
+        .withProtectedHeaders(protectedHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256))
+        .withUnprotectedHeaders(new Map())
+        .withExternalAad(EXTERNAL_AAD)
+        .withPayloadLength(length);
+  }
+
+  private static void feed(Sign1Signer signer, byte[] payload) throws CoseException {
+    // Mix array and buffer chunks of varying size.
+    int offset = 0;
+    for (int chunk = 1; offset < payload.length; chunk *= 3) {
+      int length = Math.min(chunk, payload.length - offset);
+      if (chunk % 2 == 0) {
+        signer.update(ByteBuffer.wrap(payload, offset, length));
+      } else {
+        signer.update(payload, offset, length);
+      }
+      offset += length;
+    }
+  }
+
+  @Test
+  public void testAttachedSignVerifiesWithCoseUtils() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    for (int size : PAYLOAD_SIZES) {
+      byte[] payload = new byte[size];
+      Arrays.fill(payload, (byte) size);
+      Sign1Signer signer = signer(key, size).build();
+      feed(signer, payload);
+      Sign1Message message = Sign1Message.deserialize(signer.finish().serialize());
+      Assert.assertArrayEquals(payload, message.getMessage());
+      CoseUtils.verifyCoseSign1Message(key, message, null, EXTERNAL_AAD, null);
+    }
+  }
+
+  @Test
+  public void testDetachedSignVerifiesIncrementally() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    byte[] payload = new byte[100_000];
+    Arrays.fill(payload, (byte) 7);
+    Sign1Signer signer = signer(key, payload.length).withDetachedPayload(true).build();
+    feed(signer, payload);
+    Sign1Message message = signer.finish();
+    Assert.assertNull(message.getMessage());
+    CoseUtils.verifyCoseSign1Message(key, message, payload, EXTERNAL_AAD, null);
+
+    Sign1Verifier verifier = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withExternalAad(EXTERNAL_AAD)
+        .withPayloadLength(payload.length)
+        .build();
+    verifier.update(Arrays.copyOfRange(payload, 0, 1000));
+    verifier.update(ByteBuffer.wrap(payload, 1000, payload.length - 1000));
+    verifier.finish();
+  }
+
+  @Test
+  public void testSignAndVerifyWithProvider() throws CborException, CoseException {
+    Security.addProvider(new BouncyCastleProvider());
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    byte[] payload = TestUtilities.CONTENT_BYTES;
+    Sign1Signer signer = signer(key, payload.length).withProvider("BC").build();
+    feed(signer, payload);
+    Sign1Message message = signer.finish();
+    CoseUtils.verifyCoseSign1Message(key, message, null, EXTERNAL_AAD, null);
+
+    Sign1Verifier verifier = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withExternalAad(EXTERNAL_AAD)
+        .withPayloadLength(payload.length)
+        .withProvider("BC")
+        .build();
+    verifier.update(payload);
+    verifier.finish();
+  }
+
+  @Test
+  public void testLengthMismatchFailure() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    Sign1Signer signer = signer(key, 4).build();
+    signer.update(new byte[3]);
+    assertThrows(CoseException.class, () -> signer.update(new byte[2]));
+    assertThrows(CoseException.class, signer::finish);
+    signer.update(new byte[1]);
+    Assert.assertEquals(4, signer.getBytesWritten());
+    signer.finish();
+    assertThrows(CoseException.class, signer::finish);
+    assertThrows(CoseException.class, () -> signer.update(new byte[0]));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    assertThrows(CoseException.class, () -> Sign1Signer.builder().withKey(key).build());
+    assertThrows(CoseException.class, () -> signer(key, 1).withPayloadLength(-1).build());
+    assertThrows(CoseException.class,
+        () -> signer(key, 1).withPayloadLength(1L << 32).build());
+    assertThrows(CoseException.class, () -> signer(OkpSigningKey.generateKey(), 1).build());
+    assertThrows(CoseException.class,
+        () -> signer(key, 1).withProvider("NoSuchProvider").build());
+    signer(key, 1).withPayloadLength(1L << 32).withDetachedPayload(true).build();
+  }
+}
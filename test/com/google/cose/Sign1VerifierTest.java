@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Sign1VerifierTest {
+  private static Sign1Message sign(CoseKey key, byte[] payload, byte[] externalAad)
+      throws CborException, CoseException {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384.getCoseAlgorithmId());
+    return CoseUtils.generateCoseSign1(key, headers, new Map(), payload, null, externalAad,
+        Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384);
+  }
+
+  @Test
+  public void testVerifiesMessageSignedInOneShot() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384);
+    byte[] payload = TestUtilities.CONTENT_BYTES;
+    Sign1Verifier verifier = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(sign(key, payload, null))
+        .withPayloadLength(payload.length)
+        .build();
+    for (byte b : payload) {
+      verifier.update(new byte[] {b});
+    }
+    verifier.finish();
+  }
+
+  @Test
+  public void testVerificationFailures() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384);
+    byte[] payload = TestUtilities.CONTENT_BYTES;
+    Sign1Message message = sign(key, payload, new byte[] {1});
+
+    Sign1Verifier wrongAad = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withPayloadLength(payload.length)
+        .build();
+    wrongAad.update(payload);
+    assertThrows(CoseException.class, wrongAad::finish);
+
+    Sign1Verifier tampered = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withExternalAad(new byte[] {1})
+        .withPayloadLength(payload.length)
+        .build();
+    byte[] modified = payload.clone();
+    modified[0] ^= 1;
+    tampered.update(modified);
+    assertThrows(CoseException.class, tampered::finish);
+
+    Sign1Verifier truncated = Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withExternalAad(new byte[] {1})
+        .withPayloadLength(payload.length)
+        .build();
+    truncated.update(payload, 0, payload.length - 1);
+    assertThrows(CoseException.class, truncated::finish);
+    assertThrows(CoseException.class, () -> truncated.update(new byte[2]));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384);
+    Sign1Message message = sign(key, TestUtilities.CONTENT_BYTES, null);
+    assertThrows(CoseException.class,
+        () -> Sign1Verifier.builder().withKey(key).withMessage(message).build());
+    assertThrows(CoseException.class, () -> Sign1Verifier.builder()
+        .withKey(OkpSigningKey.generateKey())
+        .withMessage(message)
+        .withPayloadLength(1)
+        .build());
+    assertThrows(CoseException.class, () -> Sign1Verifier.builder()
+        .withKey(key)
+        .withMessage(message)
+        .withPayloadLength(1)
+        .withProvider("NoSuchProvider")
+        .build());
+  }
+}
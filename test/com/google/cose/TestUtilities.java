@@ -16,6 +16,10 @@
 
 package com.google.cose;
 
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
 import java.nio.charset.StandardCharsets;
 
 public class TestUtilities {
@@ -23,6 +27,9 @@ public class TestUtilities {
   public static final byte[] SHARED_KEY_ID_BYTES = "our-secret".getBytes(StandardCharsets.UTF_8);
   public static final byte[] KEYID_BYTES =
       "meriadoc.brandybuck@buckland.example".getBytes(StandardCharsets.UTF_8);
+  public static final byte[] SECRET_KEY_BYTES =
+      hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+  public static final byte[] EXTERNAL_AAD_BYTES = new byte[] {9};
 
   private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
 
@@ -46,6 +53,14 @@ public class TestUtilities {
     return new String(hexChars);
   }
 
+  /** Returns protected headers holding only the algorithm header. */
+  public static Map algorithmHeaders(Algorithm algorithm) {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return headers;
+  }
+
   // Avoid instantiation of utility class.
   private TestUtilities() {}
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link TreeHash}.
+ */
+@RunWith(JUnit4.class)
+public class TreeHashTest {
+  private static final int CHUNK_SIZE = 1024;
+
+  @Test
+  public void testAllInputsAgree() throws CoseException, IOException {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TreeHash treeHash = TreeHash.builder().withChunkSize(CHUNK_SIZE).withPool(pool).build();
+      for (int size : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1,
+          13 * CHUNK_SIZE + 7, 64 * CHUNK_SIZE}) {
+        byte[] content = content(size);
+        byte[] expected = treeHash.hash(content);
+        Assert.assertArrayEquals(expected, treeHash.hash(new ByteArrayInputStream(content)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(size + 3);
+        direct.put(new byte[3]).put(content).flip().position(3);
+        Assert.assertArrayEquals(expected, treeHash.hash(direct));
+        Assert.assertEquals(3, direct.position());
+
+        Path file = Files.createTempFile("content", ".bin");
+        try {
+          Files.write(file, content);
+          Assert.assertArrayEquals(expected, treeHash.hash(file));
+        } finally {
+          Files.delete(file);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testMatchesMerkleTreeOverChunks() throws CoseException {
+    for (Algorithm algorithm : new Algorithm[] {Algorithm.HASH_SHA_256, Algorithm.HASH_SHA_512}) {
+      TreeHash treeHash = TreeHash.builder()
+          .withHashAlgorithm(algorithm)
+          .withChunkSize(CHUNK_SIZE)
+          .build();
+      byte[] content = content(9 * CHUNK_SIZE + 100);
+      List<byte[]> chunks = new ArrayList<>();
+      for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+        chunks.add(Arrays.copyOfRange(content, offset,
+            Math.min(content.length, offset + CHUNK_SIZE)));
+      }
+      Assert.assertArrayEquals(MerkleTree.build(algorithm, chunks).getRoot(),
+          treeHash.hash(content));
+      Assert.assertArrayEquals(HashEnvelope.hash(algorithm, new byte[0]),
+          treeHash.hash(new byte[0]));
+    }
+  }
+
+  @Test
+  public void testChunkSizeChangesHash() throws CoseException {
+    byte[] content = content(4 * CHUNK_SIZE);
+    Assert.assertFalse(Arrays.equals(
+        TreeHash.builder().withChunkSize(CHUNK_SIZE).build().hash(content),
+        TreeHash.builder().withChunkSize(2 * CHUNK_SIZE).build().hash(content)));
+  }
+
+  @Test
+  public void testHashEnvelope() throws CborException, CoseException, IOException {
+    TreeHash treeHash = TreeHash.builder()
+        .withHashAlgorithm(Algorithm.HASH_SHA_384)
+        .withChunkSize(CHUNK_SIZE)
+        .build();
+    byte[] content = content(20 * CHUNK_SIZE + 1);
+    Path file = Files.createTempFile("artifact", ".bin");
+    try {
+      Files.write(file, content);
+      Map protectedHeaders = new Map();
+      protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+          Algorithm.SIGNING_ALGORITHM_EDDSA.getCoseAlgorithmId());
+      treeHash.addHeaders(protectedHeaders);
+      OkpSigningKey key = OkpSigningKey.generateKey();
+      Sign1Message envelope = Sign1Message.deserialize(HashEnvelope.sign(key,
+          Algorithm.SIGNING_ALGORITHM_EDDSA, protectedHeaders, new Map(),
+          treeHash.getHashAlgorithm(), treeHash.hash(file), null, null, null).serialize());
+
+      TreeHash parsed = TreeHash.fromHeaders(envelope.getProtectedHeaders(), null);
+      Assert.assertEquals(Algorithm.HASH_SHA_384, parsed.getHashAlgorithm());
+      Assert.assertEquals(CHUNK_SIZE, parsed.getChunkSize());
+      HashEnvelope.verify(key, envelope, file, null);
+      HashEnvelope.verify(key, envelope, content, null);
+      HashEnvelope.verify(key, envelope, new ByteArrayInputStream(content), null);
+      content[5]++;
+      assertThrows(CoseException.class, () -> HashEnvelope.verify(key, envelope, content, null));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    assertThrows(CoseException.class, () -> TreeHash.builder().withChunkSize(0).build());
+    assertThrows(CoseException.class, () -> TreeHash.builder()
+        .withHashAlgorithm(Algorithm.ENCRYPTION_AES_128_GCM)
+        .build());
+
+    Map headers = new Map();
+    Assert.assertNull(TreeHash.fromHeaders(headers, null));
+    Array parameters = new Array();
+    parameters.add(new UnsignedInteger(2));
+    parameters.add(new UnsignedInteger(CHUNK_SIZE));
+    headers.put(new NegativeInteger(Headers.MESSAGE_HEADER_TREE_HASH), parameters);
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_PAYLOAD_HASH_ALGORITHM),
+        Algorithm.HASH_SHA_256.getCoseAlgorithmId());
+    assertThrows(CoseException.class, () -> TreeHash.fromHeaders(headers, null));
+  }
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.cwt;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.UnicodeString;
+import com.google.common.collect.ImmutableList;
+import com.google.cose.TestUtilities;
+import com.google.cose.utils.Headers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CwtClaims}.
+ */
+@RunWith(JUnit4.class)
+public class CwtClaimsTest {
+  // Claims set from RFC 8392, Appendix A.1.
+  private static final String RFC_CLAIMS =
+      "A70175636F61703A2F2F61732E6578616D706C652E636F6D02656572696B77037818636F61703A2F2F6C6967"
+      + "68742E6578616D706C652E636F6D041A5612AEB0051A5610D9F0061A5610D9F007420B71";
+
+  @Test
+  public void testRfcExample() throws CborException {
+    CwtClaims claims = CwtClaims.parse(TestUtilities.hexStringToByteArray(RFC_CLAIMS));
+    Assert.assertEquals("coap://as.example.com", claims.getIssuer());
+    Assert.assertEquals("erikw", claims.getSubject());
+    Assert.assertEquals(ImmutableList.of("coap://light.example.com"), claims.getAudience());
+    Assert.assertEquals(Long.valueOf(1444064944), claims.getExpirationTime());
+    Assert.assertEquals(Long.valueOf(1443944944), claims.getNotBefore());
+    Assert.assertEquals(Long.valueOf(1443944944), claims.getIssuedAt());
+    Assert.assertArrayEquals(TestUtilities.hexStringToByteArray("0B71"), claims.getCwtId());
+    Assert.assertEquals(7, claims.asMap().getKeys().size());
+  }
+
+  @Test
+  public void testBuilderRoundTrip() throws CborException {
+    CwtClaims claims = CwtClaims.builder()
+        .withIssuer("issuer")
+        .withClaim(new NegativeInteger(-70000), new UnicodeString("private"))
+        .withExpirationTime(-5)
+        .withCwtId(new byte[] {1, 2, 3})
+        .build();
+    CwtClaims parsed = CwtClaims.parse(claims.getPayload());
+    Assert.assertEquals("issuer", parsed.getIssuer());
+    Assert.assertEquals(Long.valueOf(-5), parsed.getExpirationTime());
+    Assert.assertArrayEquals(new byte[] {1, 2, 3}, parsed.getCwtId());
+    Assert.assertNull(parsed.getSubject());
+    Assert.assertNull(parsed.getNotBefore());
+    Assert.assertTrue(parsed.getAudience().isEmpty());
+    Assert.assertTrue(parsed.hasClaim(Headers.CWT_CLAIM_ISSUER));
+    Assert.assertFalse(parsed.hasClaim(Headers.CWT_CLAIM_SUBJECT));
+    Assert.assertFalse(parsed.hasClaim(70000));
+  }
+
+  @Test
+  public void testAudienceArrayAndFloatDates() throws CborException {
+    // {3: ["a", "bc"], 4: 1.5 (half), 5: 100.75 (single), 6: tag 1 (1e9 as double)}
+    CwtClaims claims = CwtClaims.parse(TestUtilities.hexStringToByteArray(
+        "A403826161626263" + "04F93E00" + "05FA42C98000" + "06C1FB41CDCD6500000000"));
+    Assert.assertEquals(ImmutableList.of("a", "bc"), claims.getAudience());
+    Assert.assertEquals(Long.valueOf(1), claims.getExpirationTime());
+    Assert.assertEquals(Long.valueOf(100), claims.getNotBefore());
+    Assert.assertEquals(Long.valueOf(1000000000), claims.getIssuedAt());
+  }
+
+  @Test
+  public void testIndefiniteLengthMap() throws CborException {
+    CwtClaims claims = CwtClaims.parse(TestUtilities.hexStringToByteArray("BF0161610418FFFF"));
+    Assert.assertEquals("a", claims.getIssuer());
+    Assert.assertEquals(Long.valueOf(255), claims.getExpirationTime());
+  }
+
+  @Test
+  public void testUnrequestedClaimsAreNotDecoded() throws CborException {
+    // The issuer is an integer instead of a string, which only matters once it is read.
+    CwtClaims claims = CwtClaims.parse(TestUtilities.hexStringToByteArray("A20101041864"));
+    Assert.assertEquals(Long.valueOf(100), claims.getExpirationTime());
+    assertThrows(CborException.class, claims::getIssuer);
+  }
+
+  @Test
+  public void testLabelsWithLongerHeads() throws CborException {
+    // The expiration time label 4 written as 0x18 0x04 and as 0x19 0x00 0x04.
+    Assert.assertEquals(Long.valueOf(255),
+        CwtClaims.parse(TestUtilities.hexStringToByteArray("A1180418FF")).getExpirationTime());
+    Assert.assertEquals(Long.valueOf(255),
+        CwtClaims.parse(TestUtilities.hexStringToByteArray("A119000418FF")).getExpirationTime());
+    // A second expiration time must not bypass the duplicate check.
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(TestUtilities.hexStringToByteArray("A20418641804190E10"))
+            .getExpirationTime());
+  }
+
+  @Test
+  public void testFailureScenarios() {
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(TestUtilities.hexStringToByteArray("8101")).getIssuer());
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(TestUtilities.hexStringToByteArray("A2016161016162")).getIssuer());
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(TestUtilities.hexStringToByteArray("A201616104")).getIssuer());
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(TestUtilities.hexStringToByteArray("A104F97E00"))
+            .getExpirationTime());
+    assertThrows(CborException.class,
+        () -> CwtClaims.parse(new byte[0]).getIssuer());
+  }
+}
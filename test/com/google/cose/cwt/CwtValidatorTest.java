@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.cwt;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.common.primitives.Bytes;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CwtValidator}.
+ */
+@RunWith(JUnit4.class)
+public class CwtValidatorTest {
+  private static final long NOW = 1_700_000_000L;
+  private static final Clock CLOCK = Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC);
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  @Test
+  public void testVerifySign1() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    byte[] token = sign(key, CwtClaims.builder()
+        .withIssuer("issuer")
+        .withAudience("service")
+        .withExpirationTime(NOW + 60)
+        .withNotBefore(NOW - 60)
+        .build());
+    CwtValidator validator = CwtValidator.builder()
+        .withIssuer("issuer")
+        .withAudiences("other", "service")
+        .withExpirationRequired(true)
+        .withClock(CLOCK)
+        .build();
+    Assert.assertEquals("issuer", validator.verifySign1(token, key).getIssuer());
+
+    // Tagged as CWT.
+    byte[] tagged = Bytes.concat(new byte[] {(byte) 0xd8, 0x3d}, token);
+    Assert.assertEquals("issuer", validator.verifySign1(tagged, key).getIssuer());
+
+    assertThrows(CoseException.class, () -> validator.verifySign1(token,
+        OkpSigningKey.generateKey()));
+  }
+
+  @Test
+  public void testVerifyMac0() throws CborException, CoseException {
+    MacKey key = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] token = CoseUtils.generateCoseMac0(key,
+        protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+        CwtClaims.builder().withSubject("subject").build().getPayload(), null,
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256).serialize();
+    CwtValidator validator = CwtValidator.builder().withClock(CLOCK).build();
+    Assert.assertEquals("subject", validator.verifyMac0(token, key).getSubject());
+
+    MacKey otherKey = MacKey.builder().withSecretKey(new byte[16]).build();
+    assertThrows(CoseException.class, () -> validator.verifyMac0(token, otherKey));
+  }
+
+  @Test
+  public void testClaimsAreCheckedBeforeSignature() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    Sign1Message message = Sign1Message.deserialize(
+        sign(key, CwtClaims.builder().withExpirationTime(NOW).build()));
+    byte[] token = Sign1Message.builder()
+        .withProtectedHeaders(message.getProtectedHeaders())
+        .withEncodedProtectedHeaders(message.getEncodedProtectedHeaders())
+        .withUnprotectedHeaders(message.getUnprotectedHeaders())
+        .withMessage(message.getMessage())
+        .withSignature(new byte[64])
+        .build()
+        .serialize();
+    CwtValidator validator = CwtValidator.builder().withClock(CLOCK).build();
+    CoseException e = assertThrows(CoseException.class, () -> validator.verifySign1(token, key));
+    Assert.assertEquals("Token has expired.", e.getMessage());
+  }
+
+  @Test
+  public void testTimeChecks() throws CborException, CoseException {
+    CwtValidator validator = CwtValidator.builder().withClock(CLOCK).build();
+    validator.validate(CwtClaims.builder().withExpirationTime(NOW + 1).build());
+    validator.validate(CwtClaims.builder().withNotBefore(NOW).build());
+    validator.validate(CwtClaims.builder().build());
+    assertThrows(CoseException.class,
+        () -> validator.validate(CwtClaims.builder().withExpirationTime(NOW).build()));
+    assertThrows(CoseException.class,
+        () -> validator.validate(CwtClaims.builder().withNotBefore(NOW + 1).build()));
+
+    CwtValidator lenient = CwtValidator.builder()
+        .withClock(CLOCK)
+        .withClockSkewSeconds(30)
+        .withExpirationRequired(true)
+        .build();
+    lenient.validate(CwtClaims.builder().withExpirationTime(NOW - 29).build());
+    lenient.validate(CwtClaims.builder().withExpirationTime(NOW + 10).withNotBefore(NOW + 30)
+        .build());
+    assertThrows(CoseException.class,
+        () -> lenient.validate(CwtClaims.builder().withExpirationTime(NOW - 30).build()));
+    assertThrows(CoseException.class,
+        () -> lenient.validate(CwtClaims.builder().build()));
+  }
+
+  @Test
+  public void testIssuerAndAudienceChecks() throws CborException, CoseException {
+    CwtValidator validator = CwtValidator.builder()
+        .withIssuer("issuer")
+        .withAudiences("service")
+        .withClock(CLOCK)
+        .build();
+    validator.validate(CwtClaims.builder().withIssuer("issuer").withAudience("service").build());
+    assertThrows(CoseException.class, () -> validator.validate(
+        CwtClaims.builder().withIssuer("other").withAudience("service").build()));
+    assertThrows(CoseException.class, () -> validator.validate(
+        CwtClaims.builder().withIssuer("issuer").withAudience("other").build()));
+    assertThrows(CoseException.class, () -> validator.validate(
+        CwtClaims.builder().withIssuer("issuer").build()));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() {
+    assertThrows(CoseException.class,
+        () -> CwtValidator.builder().withClockSkewSeconds(-1).build());
+  }
+
+  private static byte[] sign(OkpSigningKey key, CwtClaims claims)
+      throws CborException, CoseException {
+    return CoseUtils.generateCoseSign1(key, protectedHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA),
+        new Map(), claims.getPayload(), null, null, Algorithm.SIGNING_ALGORITHM_EDDSA).serialize();
+  }
+
+  private static Map protectedHeaders(Algorithm algorithm) throws CborException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return protectedHeaders;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.EncryptionKey;
+import com.google.cose.KeyWrapKey;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CborUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CountingMetricsListener} and {@link Metrics}.
+ */
+@RunWith(JUnit4.class)
+public class CountingMetricsListenerTest {
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  private CountingMetricsListener listener;
+
+  @Before
+  public void setUp() {
+    listener = new CountingMetricsListener();
+    Metrics.setListener(listener);
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.setListener(null);
+  }
+
+  @Test
+  public void testSignAndVerify() throws CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    byte[] signature = key.sign(Algorithm.SIGNING_ALGORITHM_EDDSA, TestUtilities.CONTENT_BYTES);
+    key.verify(Algorithm.SIGNING_ALGORITHM_EDDSA, TestUtilities.CONTENT_BYTES, signature);
+    signature[0] ^= 1;
+    assertThrows(CoseException.class, () -> key.verify(
+        Algorithm.SIGNING_ALGORITHM_EDDSA, TestUtilities.CONTENT_BYTES, signature));
+
+    Assert.assertEquals(1, listener.getCount(Operation.SIGN));
+    Assert.assertEquals(0, listener.getFailureCount(Operation.SIGN));
+    Assert.assertEquals(TestUtilities.CONTENT_BYTES.length, listener.getTotalBytes(Operation.SIGN));
+    Assert.assertEquals(2, listener.getCount(Operation.VERIFY));
+    Assert.assertEquals(1, listener.getFailureCount(Operation.VERIFY));
+    Assert.assertTrue(listener.getTotalNanos(Operation.VERIFY) > 0);
+  }
+
+  @Test
+  public void testMac() throws CborException, CoseException {
+    MacKey key = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    Algorithm algorithm = Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256;
+    byte[] tag = key.createMac(TestUtilities.CONTENT_BYTES, algorithm);
+    Assert.assertTrue(key.verifyMac(TestUtilities.CONTENT_BYTES, algorithm, tag));
+    Assert.assertFalse(key.verifyMac(new byte[0], algorithm, tag));
+
+    Assert.assertEquals(1, listener.getCount(Operation.MAC_CREATE));
+    Assert.assertEquals(2, listener.getCount(Operation.MAC_VERIFY));
+    Assert.assertEquals(1, listener.getFailureCount(Operation.MAC_VERIFY));
+  }
+
+  @Test
+  public void testEncryptAndDecrypt() throws CborException, CoseException {
+    EncryptionKey key = EncryptionKey.builder().withSecretKey(SECRET_KEY).build();
+    Algorithm algorithm = Algorithm.ENCRYPTION_AES_128_GCM;
+    byte[] iv = new byte[12];
+    byte[] ciphertext = key.encrypt(algorithm, TestUtilities.CONTENT_BYTES, iv, null);
+    key.decrypt(algorithm, ciphertext, iv, null);
+    assertThrows(CoseException.class, () -> key.decrypt(algorithm, ciphertext, iv, new byte[1]));
+
+    Assert.assertEquals(1, listener.getCount(Operation.ENCRYPT));
+    Assert.assertEquals(TestUtilities.CONTENT_BYTES.length,
+        listener.getTotalBytes(Operation.ENCRYPT));
+    Assert.assertEquals(2, listener.getCount(Operation.DECRYPT));
+    Assert.assertEquals(1, listener.getFailureCount(Operation.DECRYPT));
+  }
+
+  @Test
+  public void testCborAndKeyParsing() throws CborException, CoseException {
+    byte[] encoded = MacKey.builder().withSecretKey(SECRET_KEY).build().serialize();
+    Assert.assertEquals(1, listener.getCount(Operation.CBOR_ENCODE));
+    Assert.assertEquals(encoded.length, listener.getTotalBytes(Operation.CBOR_ENCODE));
+
+    MacKey.parse(encoded);
+    Assert.assertEquals(1, listener.getCount(Operation.CBOR_DECODE));
+    Assert.assertEquals(1, listener.getCount(Operation.KEY_PARSE));
+    Assert.assertEquals(0, listener.getFailureCount(Operation.KEY_PARSE));
+
+    assertThrows(CoseException.class, () -> EncryptionKey.decode(CborUtils.decode(
+        TestUtilities.hexStringToByteArray("A10104"))));
+    Assert.assertEquals(2, listener.getCount(Operation.KEY_PARSE));
+    Assert.assertEquals(1, listener.getFailureCount(Operation.KEY_PARSE));
+  }
+
+  @Test
+  public void testCacheAccess() throws CborException, CoseException {
+    KeyWrapKey key = KeyWrapKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] wrapped = key.wrap(Algorithm.AES_KEY_WRAP_128, SECRET_KEY);
+    key.unwrap(Algorithm.AES_KEY_WRAP_128, wrapped);
+
+    Assert.assertEquals(2, listener.getCacheHits(Metrics.CACHE_KEY_WRAP_CIPHER)
+        + listener.getCacheMisses(Metrics.CACHE_KEY_WRAP_CIPHER));
+    Assert.assertTrue(listener.getCacheHits(Metrics.CACHE_KEY_WRAP_CIPHER) >= 1);
+    Assert.assertEquals(0, listener.getCacheHits(Metrics.CACHE_RECIPIENT_INDEX));
+
+    listener.reset();
+    Assert.assertEquals(0, listener.getCacheHits(Metrics.CACHE_KEY_WRAP_CIPHER));
+  }
+
+  @Test
+  public void testNoListener() throws CborException {
+    Metrics.setListener(null);
+    Assert.assertFalse(Metrics.isEnabled());
+    Assert.assertEquals(0, Metrics.start());
+    CborUtils.encode(CborUtils.decode(TestUtilities.hexStringToByteArray("A10104")));
+    Assert.assertEquals(0, listener.getCount(Operation.CBOR_ENCODE));
+    Assert.assertEquals(0, listener.getCount(Operation.CBOR_DECODE));
+  }
+}
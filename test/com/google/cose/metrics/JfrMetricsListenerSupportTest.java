@@ -0,0 +1,48 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link JfrMetricsListener#isSupported()}. Kept apart from
+ * {@link JfrMetricsListenerTest}, which only runs where JFR is supported.
+ */
+@RunWith(JUnit4.class)
+public class JfrMetricsListenerSupportTest {
+  @Test
+  public void testSupportMatchesRuntime() {
+    boolean available;
+    try {
+      Class.forName("jdk.jfr.EventFactory");
+      available = true;
+    } catch (ClassNotFoundException e) {
+      available = false;
+    }
+    Assert.assertEquals(available, JfrMetricsListener.isSupported());
+    if (available) {
+      Assert.assertNotNull(new JfrMetricsListener());
+    } else {
+      assertThrows(UnsupportedOperationException.class, JfrMetricsListener::new);
+    }
+  }
+}
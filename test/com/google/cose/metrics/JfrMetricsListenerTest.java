@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.metrics;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.EncryptionKey;
+import com.google.cose.MacKey;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.MetricsListener.Operation;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.Headers;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link JfrMetricsListener}.
+ *
+ * <p>The JFR recording API is accessed reflectively since the tests are compiled for Java 8.
+ */
+@RunWith(JUnit4.class)
+public class JfrMetricsListenerTest {
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  @Before
+  public void setUp() {
+    Assume.assumeTrue(JfrMetricsListener.isSupported());
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.setListener(null);
+  }
+
+  @Test
+  public void testEventNames() {
+    Assert.assertEquals("com.google.cose.Sign", JfrMetricsListener.getEventName(Operation.SIGN));
+    Assert.assertEquals("com.google.cose.MacVerify",
+        JfrMetricsListener.getEventName(Operation.MAC_VERIFY));
+    Assert.assertEquals("com.google.cose.MessageDecode",
+        JfrMetricsListener.getEventName(Operation.MESSAGE_DECODE));
+  }
+
+  @Test
+  public void testForwardsToDelegate() throws CborException, CoseException {
+    CountingMetricsListener counting = new CountingMetricsListener();
+    Metrics.setListener(new JfrMetricsListener(counting));
+    MacKey key = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    key.createMac(TestUtilities.CONTENT_BYTES, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+    Assert.assertEquals(1, counting.getCount(Operation.MAC_CREATE));
+  }
+
+  @Test
+  public void testEventsAreRecorded() throws Exception {
+    Metrics.setListener(new JfrMetricsListener());
+    EncryptionKey key = EncryptionKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] iv = new byte[12];
+
+    Object recording = Class.forName("jdk.jfr.Recording").getConstructor().newInstance();
+    invoke(recording, "enable", JfrMetricsListener.getEventName(Operation.ENCRYPT));
+    invoke(recording, "enable", JfrMetricsListener.getEventName(Operation.DECRYPT));
+    invoke(recording, "start");
+    byte[] ciphertext = key.encrypt(
+        Algorithm.ENCRYPTION_AES_128_GCM, TestUtilities.CONTENT_BYTES, iv, null);
+    assertThrows(CoseException.class,
+        () -> key.decrypt(Algorithm.ENCRYPTION_AES_128_GCM, ciphertext, iv, new byte[1]));
+    key.decrypt(Algorithm.ENCRYPTION_AES_128_GCM, ciphertext, iv, null);
+    invoke(recording, "stop");
+
+    File file = File.createTempFile("cose", ".jfr");
+    try {
+      invoke(recording, "dump", file.toPath());
+      List<Object> events = readEvents(file.toPath());
+      Assert.assertEquals(3, events.size());
+
+      Object encrypt = events.get(0);
+      Assert.assertEquals(JfrMetricsListener.getEventName(Operation.ENCRYPT),
+          invoke(invoke(encrypt, "getEventType"), "getName"));
+      Assert.assertEquals(Algorithm.ENCRYPTION_AES_128_GCM.name(),
+          invoke(encrypt, "getValue", "algorithm"));
+      Assert.assertEquals(Headers.KEY_TYPE_SYMMETRIC, invoke(encrypt, "getValue", "keyType"));
+      Assert.assertEquals(TestUtilities.CONTENT_BYTES.length,
+          invoke(encrypt, "getValue", "payloadBytes"));
+      Assert.assertEquals(true, invoke(encrypt, "getValue", "success"));
+      Assert.assertEquals(false, invoke(events.get(1), "getValue", "success"));
+    } finally {
+      invoke(recording, "close");
+      file.delete();
+    }
+  }
+
+  private static List<Object> readEvents(Path path) throws Exception {
+    Method readAllEvents =
+        Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class);
+    List<Object> events = new ArrayList<>();
+    for (Object event : (List<?>) readAllEvents.invoke(null, path)) {
+      events.add(event);
+    }
+    events.sort((a, b) -> {
+      try {
+        return ((Instant) invoke(a, "getStartTime")).compareTo((Instant) invoke(b, "getStartTime"));
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    return events;
+  }
+
+  private static Object invoke(Object target, String method, Object... args)
+      throws ReflectiveOperationException {
+    for (Method candidate : target.getClass().getMethods()) {
+      if (candidate.getName().equals(method) && accepts(candidate.getParameterTypes(), args)) {
+        candidate.setAccessible(true);
+        return candidate.invoke(target, args);
+      }
+    }
+    throw new NoSuchMethodException(method);
+  }
+
+  private static boolean accepts(Class<?>[] parameterTypes, Object[] args) {
+    if (parameterTypes.length != args.length) {
+      return false;
+    }
+    for (int i = 0; i < args.length; i++) {
+      if (!parameterTypes[i].isInstance(args[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
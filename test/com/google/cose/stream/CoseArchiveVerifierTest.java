@@ -0,0 +1,199 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.Ec2SigningKey;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CoseArchiveVerifier}.
+ */
+@RunWith(JUnit4.class)
+public class CoseArchiveVerifierTest {
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  @Test
+  public void testVerifyFile() throws IOException, CborException, CoseException {
+    OkpSigningKey signingKey = OkpSigningKey.generateKey();
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    OkpSigningKey otherKey = OkpSigningKey.generateKey();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 200; i++) {
+      if (i % 2 == 0) {
+        out.write(sign((i % 50 == 0) ? otherKey : signingKey));
+      } else {
+        out.write(mac(macKey));
+      }
+    }
+    Path file = Files.createTempFile("archive", ".cbor");
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Files.write(file, out.toByteArray());
+      CoseArchiveVerifier verifier = CoseArchiveVerifier.builder()
+          .withSigningKey(signingKey)
+          .withMacKey(macKey)
+          .withPool(pool)
+          .withBatchSize(8)
+          .build();
+      List<CoseArchiveVerifier.Result> results = verifier.verify(file);
+      Assert.assertEquals(200, results.size());
+      long offset = 0;
+      for (int i = 0; i < results.size(); i++) {
+        CoseArchiveVerifier.Result result = results.get(i);
+        Assert.assertEquals(i, result.getIndex());
+        Assert.assertEquals(offset, result.getOffset());
+        Assert.assertEquals(i % 50 != 0, result.isVerified());
+        offset += result.getLength();
+      }
+      Assert.assertEquals(out.size(), offset);
+      Assert.assertTrue(results.get(50).getFailure() instanceof CoseException);
+    } finally {
+      pool.shutdown();
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testVerifyBuffer() throws IOException, CborException, CoseException {
+    Ec2SigningKey signingKey = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0x01);
+    out.write(sign(signingKey));
+    out.write(mac(macKey));
+    out.write(sign(signingKey));
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(out.size() + 2);
+    buffer.put(new byte[] {0x00, 0x00}).put(out.toByteArray()).flip().position(2);
+    List<CoseArchiveVerifier.Result> results =
+        CoseArchiveVerifier.builder().withSigningKey(signingKey).build().verify(buffer);
+    Assert.assertEquals(2, buffer.position());
+    Assert.assertEquals(4, results.size());
+    Assert.assertFalse(results.get(0).isVerified());
+    Assert.assertTrue(results.get(1).isVerified());
+    // No MAC key configured.
+    Assert.assertFalse(results.get(2).isVerified());
+    Assert.assertTrue(results.get(3).isVerified());
+  }
+
+  @Test
+  public void testUnknownAlgorithmFailsOnlyItsRecord()
+      throws IOException, CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    Map unknownAlgorithm = new Map();
+    unknownAlgorithm.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        new UnsignedInteger(9999));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(mac(macKey));
+    // Tagged, so the message type does not have to be inferred from the algorithm.
+    out.write(CoseUtils.generateCoseMac0(macKey, unknownAlgorithm, new Map(),
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256)
+        .serializeTagged());
+    out.write(mac(macKey));
+
+    List<CoseArchiveVerifier.Result> results = CoseArchiveVerifier.builder()
+        .withMacKey(macKey)
+        .build()
+        .verify(ByteBuffer.wrap(out.toByteArray()));
+    Assert.assertEquals(3, results.size());
+    Assert.assertTrue(results.get(0).isVerified());
+    Assert.assertTrue(results.get(1).getFailure() instanceof CoseException);
+    Assert.assertTrue(results.get(2).isVerified());
+  }
+
+  @Test
+  public void testEmptySequence() throws CborException, CoseException {
+    CoseArchiveVerifier verifier = CoseArchiveVerifier.builder()
+        .withMacKey(MacKey.builder().withSecretKey(SECRET_KEY).build())
+        .build();
+    Assert.assertTrue(verifier.verify(ByteBuffer.allocate(0)).isEmpty());
+  }
+
+  @Test
+  public void testTruncatedSequenceFailure() throws CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] message = mac(macKey);
+    CoseArchiveVerifier verifier = CoseArchiveVerifier.builder().withMacKey(macKey).build();
+    assertThrows(CborException.class,
+        () -> verifier.verify(ByteBuffer.wrap(message, 0, message.length - 1)));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() throws CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    assertThrows(CoseException.class, () -> CoseArchiveVerifier.builder().build());
+    assertThrows(CoseException.class,
+        () -> CoseArchiveVerifier.builder().withSigningKey(macKey).build());
+    assertThrows(CoseException.class,
+        () -> CoseArchiveVerifier.builder().withMacKey(macKey).withBatchSize(0).build());
+    assertThrows(CoseException.class,
+        () -> CoseArchiveVerifier.builder().withMacKey(macKey).withMaxMessageSize(0).build());
+    assertThrows(CoseException.class, () -> CoseArchiveVerifier.builder()
+        .withMacKey(macKey)
+        .withMaxMessageSize(Integer.MAX_VALUE)
+        .build());
+  }
+
+  private static byte[] sign(OkpSigningKey key) throws CborException, CoseException {
+    return CoseUtils.generateCoseSign1(key, protectedHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA),
+        new Map(), TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_EDDSA)
+        .serialize();
+  }
+
+  private static byte[] sign(Ec2SigningKey key) throws CborException, CoseException {
+    return CoseUtils.generateCoseSign1(key,
+        protectedHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(),
+        TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256)
+        .serialize();
+  }
+
+  private static byte[] mac(MacKey key) throws CborException, CoseException {
+    return CoseUtils.generateCoseMac0(key,
+        protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256).serialize();
+  }
+
+  private static Map protectedHeaders(Algorithm algorithm) throws CborException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return protectedHeaders;
+  }
+}
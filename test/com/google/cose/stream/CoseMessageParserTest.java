@@ -0,0 +1,216 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.CoseMessage;
+import com.google.cose.Encrypt0Message;
+import com.google.cose.EncryptionKey;
+import com.google.cose.Mac0Message;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CoseMessageParser}.
+ */
+@RunWith(JUnit4.class)
+public class CoseMessageParserTest {
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+  private static final byte[] IV = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+
+  @Test
+  public void testRandomFragments() throws IOException, CborException, CoseException {
+    OkpSigningKey signingKey = OkpSigningKey.generateKey();
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    EncryptionKey encryptionKey = EncryptionKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] sequence = createSequence(signingKey, macKey, encryptionKey, 30);
+
+    Random random = new Random(42);
+    for (int round = 0; round < 20; round++) {
+      CoseMessageParser parser = CoseMessageParser.builder().build();
+      List<CoseMessage> messages = new ArrayList<>();
+      int offset = 0;
+      while (offset < sequence.length) {
+        int length = Math.min(1 + random.nextInt(64), sequence.length - offset);
+        // Alternate between heap and direct buffers.
+        ByteBuffer fragment = (round % 2 == 0)
+            ? ByteBuffer.wrap(sequence, offset, length)
+            : ByteBuffer.allocateDirect(length).put(sequence, offset, length);
+        if (round % 2 != 0) {
+          fragment.flip();
+        }
+        messages.addAll(parser.feed(fragment));
+        Assert.assertFalse(fragment.hasRemaining());
+        offset += length;
+      }
+      Assert.assertFalse(parser.hasPartialMessage());
+      Assert.assertEquals(90, messages.size());
+      for (int i = 0; i < messages.size(); i += 3) {
+        CoseUtils.verifyCoseSign1Message(signingKey, (Sign1Message) messages.get(i), null, null,
+            null);
+        Assert.assertTrue(
+            CoseUtils.verifyCoseMac0(macKey, (Mac0Message) messages.get(i + 1), null, null));
+        Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+            ((Encrypt0Message) messages.get(i + 2)).decrypt(encryptionKey, null, null, null));
+      }
+    }
+  }
+
+  @Test
+  public void testPartialMessage() throws CborException, CoseException {
+    byte[] message = TestUtilities.hexStringToByteArray("D28440A0F640");
+    CoseMessageParser parser = CoseMessageParser.builder().build();
+    Assert.assertTrue(parser.feed(ByteBuffer.wrap(message, 0, 3)).isEmpty());
+    Assert.assertTrue(parser.hasPartialMessage());
+    List<CoseMessage> messages = parser.feed(ByteBuffer.wrap(message, 3, 3));
+    Assert.assertEquals(1, messages.size());
+    Assert.assertTrue(messages.get(0) instanceof Sign1Message);
+    Assert.assertFalse(parser.hasPartialMessage());
+  }
+
+  @Test
+  public void testNextEncodedStopsAtMessageBoundary() throws CborException, CoseException {
+    ByteBuffer fragment = ByteBuffer.wrap(TestUtilities.hexStringToByteArray("83010203F6"));
+    CoseMessageParser parser = CoseMessageParser.builder().build();
+    Assert.assertArrayEquals(TestUtilities.hexStringToByteArray("83010203"),
+        parser.nextEncoded(fragment));
+    Assert.assertEquals(4, fragment.position());
+    Assert.assertArrayEquals(new byte[] {(byte) 0xF6}, parser.nextEncoded(fragment));
+    Assert.assertNull(parser.nextEncoded(fragment));
+  }
+
+  @Test
+  public void testParsingContinuesAfterUnsupportedMessage() throws CborException, CoseException {
+    // A map followed by a tagged Sign1 message.
+    ByteBuffer fragment = ByteBuffer.wrap(TestUtilities.hexStringToByteArray("A10104D28440A0F640"));
+    CoseMessageParser parser = CoseMessageParser.builder().build();
+    assertThrows(CborException.class, () -> parser.feed(fragment));
+    List<CoseMessage> messages = parser.feed(fragment);
+    Assert.assertEquals(1, messages.size());
+  }
+
+  @Test
+  public void testFailureAfterDecodedMessages() throws IOException, CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] mac0 = CoseUtils.generateCoseMac0(macKey,
+        protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256)
+        .serialize();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(mac0);
+    out.write(new byte[] {(byte) 0x81, 0x01});
+    out.write(mac0);
+    ByteBuffer fragment = ByteBuffer.wrap(out.toByteArray());
+    CoseMessageParser parser = CoseMessageParser.builder().build();
+
+    List<CoseMessage> messages = parser.feed(fragment);
+    Assert.assertEquals(1, messages.size());
+    Assert.assertTrue(messages.get(0) instanceof Mac0Message);
+    Assert.assertEquals(mac0.length, fragment.position());
+    assertThrows(CoseException.class, () -> parser.feed(fragment));
+    messages = parser.feed(fragment);
+    Assert.assertEquals(1, messages.size());
+    Assert.assertTrue(CoseUtils.verifyCoseMac0(macKey, (Mac0Message) messages.get(0), null, null));
+    Assert.assertFalse(fragment.hasRemaining());
+  }
+
+  @Test
+  public void testMalformedInputAfterDecodedMessages()
+      throws IOException, CborException, CoseException {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    byte[] mac0 = CoseUtils.generateCoseMac0(macKey,
+        protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256)
+        .serialize();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(mac0);
+    out.write(mac0);
+    out.write(0xFF);
+    ByteBuffer fragment = ByteBuffer.wrap(out.toByteArray());
+    CoseMessageParser parser = CoseMessageParser.builder().build();
+
+    List<CoseMessage> messages = parser.feed(fragment);
+    Assert.assertEquals(2, messages.size());
+    Assert.assertEquals(2 * mac0.length, fragment.position());
+    assertThrows(CborException.class, () -> parser.feed(fragment));
+  }
+
+  @Test
+  public void testFailureScenarios() throws CoseException {
+    CoseMessageParser parser = CoseMessageParser.builder().withMaxMessageSize(8).build();
+    assertThrows(CborException.class, () -> parser.feed(ByteBuffer.wrap(
+        TestUtilities.hexStringToByteArray("8440A0581000"))));
+    assertThrows(CborException.class, () -> CoseMessageParser.builder().build().feed(
+        ByteBuffer.wrap(TestUtilities.hexStringToByteArray("FF"))));
+    assertThrows(CoseException.class,
+        () -> CoseMessageParser.builder().withMaxMessageSize(0).build());
+  }
+
+  private static byte[] createSequence(OkpSigningKey signingKey, MacKey macKey,
+      EncryptionKey encryptionKey, int count) throws IOException, CborException, CoseException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (CoseSequenceWriter writer = CoseSequenceWriter.builder()
+        .withOutputStream(out)
+        .withTagging(true)
+        .build()) {
+      Map unprotectedHeaders = new Map();
+      unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+          new ByteString(IV));
+      for (int i = 0; i < count; i++) {
+        writer.write(CoseUtils.generateCoseSign1(signingKey,
+            protectedHeaders(Algorithm.SIGNING_ALGORITHM_EDDSA), new Map(),
+            TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_EDDSA));
+        writer.write(CoseUtils.generateCoseMac0(macKey,
+            protectedHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(),
+            TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256));
+        writer.write(CoseUtils.generateCoseEncrypt0(encryptionKey,
+            protectedHeaders(Algorithm.ENCRYPTION_AES_128_GCM), unprotectedHeaders,
+            TestUtilities.CONTENT_BYTES, null, IV, Algorithm.ENCRYPTION_AES_128_GCM));
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static Map protectedHeaders(Algorithm algorithm) throws CborException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        algorithm.getCoseAlgorithmId());
+    return protectedHeaders;
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import static com.google.cose.TestUtilities.EXTERNAL_AAD_BYTES;
+import static com.google.cose.TestUtilities.SECRET_KEY_BYTES;
+import static com.google.cose.TestUtilities.algorithmHeaders;
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.Ec2SigningKey;
+import com.google.cose.Encrypt0Message;
+import com.google.cose.EncryptionKey;
+import com.google.cose.Mac0Message;
+import com.google.cose.MacKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.metrics.CountingMetricsListener;
+import com.google.cose.metrics.Metrics;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CosePipeline}.
+ */
+@RunWith(JUnit4.class)
+public class CosePipelineTest {
+  private static byte[] mac(MacKey key, byte[] payload) throws CborException, CoseException {
+    return CoseUtils.generateCoseMac0(key,
+        algorithmHeaders(Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256), new Map(), payload, null,
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256).serializeTagged();
+  }
+
+  private static CosePipeline.KeyResolver resolver(Ec2SigningKey signingKey, MacKey macKey,
+      EncryptionKey encryptionKey) {
+    return message -> {
+      if (message instanceof Sign1Message) {
+        return signingKey;
+      } else if (message instanceof Mac0Message) {
+        return macKey;
+      } else if (message instanceof Encrypt0Message) {
+        return encryptionKey;
+      }
+      return null;
+    };
+  }
+
+  @Test
+  public void testResultsInSubmissionOrder() throws Exception {
+    Ec2SigningKey signingKey = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    EncryptionKey encryptionKey = EncryptionKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    byte[] iv = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+    Map ivHeaders = new Map();
+    ivHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV), new ByteString(iv));
+
+    List<byte[]> payloads = new ArrayList<>();
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      byte[] payload = ("record " + i).getBytes();
+      payloads.add(payload);
+      switch (i % 3) {
+        case 0:
+          messages.add(CoseUtils.generateCoseSign1(signingKey,
+              algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(), payload,
+              null, EXTERNAL_AAD_BYTES, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256).serialize());
+          break;
+        case 1:
+          messages.add(mac(macKey, payload));
+          break;
+        default:
+          messages.add(CoseUtils.generateCoseEncrypt0(encryptionKey,
+              algorithmHeaders(Algorithm.ENCRYPTION_AES_128_GCM), ivHeaders, payload,
+              EXTERNAL_AAD_BYTES, iv, Algorithm.ENCRYPTION_AES_128_GCM).serializeTagged());
+      }
+    }
+
+    // Delays tasks randomly so that they finish out of order.
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    Random random = new Random(1);
+    try (CosePipeline pipeline = CosePipeline.builder()
+        .withKeyResolver(resolver(signingKey, macKey, encryptionKey))
+        .withExternalAad(EXTERNAL_AAD_BYTES)
+        .withCapacity(64)
+        .withExecutor(task -> {
+          int delay = random.nextInt(3);
+          pool.execute(() -> {
+            try {
+              Thread.sleep(delay);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            task.run();
+          });
+        })
+        .build()) {
+      Thread producer = new Thread(() -> {
+        try {
+          for (byte[] message : messages) {
+            pipeline.submit(message);
+          }
+        } catch (CoseException | InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      producer.start();
+      for (int i = 0; i < messages.size(); i++) {
+        CosePipeline.Result result = pipeline.take();
+        Assert.assertEquals(i, result.getIndex());
+        // Mac0 results carry no external aad, so these fail.
+        if (i % 3 == 1) {
+          Assert.assertFalse(result.isSuccess());
+          Assert.assertTrue(result.getFailure() instanceof CoseException);
+        } else {
+          Assert.assertTrue(result.isSuccess());
+          Assert.assertArrayEquals(payloads.get(i), result.getPayload());
+        }
+      }
+      producer.join();
+      Assert.assertNull(pipeline.poll());
+      Assert.assertEquals(0, pipeline.getInFlight());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    byte[] message = mac(macKey, TestUtilities.CONTENT_BYTES);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    CountingMetricsListener listener = new CountingMetricsListener();
+    Metrics.setListener(listener);
+    try (CosePipeline pipeline = CosePipeline.builder()
+        .withKey(macKey)
+        .withCapacity(4)
+        .withExecutor(task -> pool.execute(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          task.run();
+        }))
+        .build()) {
+      for (int i = 0; i < 4; i++) {
+        Assert.assertTrue(pipeline.offer(message));
+      }
+      Assert.assertFalse(pipeline.offer(message));
+      Assert.assertEquals(4, pipeline.getInFlight());
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (pipeline.getQueueDepth(CosePipeline.Stage.CRYPTO) < 4
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      Assert.assertEquals(4, pipeline.getQueueDepth(CosePipeline.Stage.CRYPTO));
+      Assert.assertEquals(0, pipeline.getQueueDepth(CosePipeline.Stage.DECODE));
+      Assert.assertNull(pipeline.poll(10, TimeUnit.MILLISECONDS));
+
+      release.countDown();
+      Assert.assertTrue(pipeline.take().isSuccess());
+      Assert.assertTrue(pipeline.offer(message));
+      for (int i = 0; i < 4; i++) {
+        Assert.assertTrue(pipeline.take().isSuccess());
+      }
+      Assert.assertEquals(0, pipeline.getQueueDepth(CosePipeline.Stage.EMIT));
+      Assert.assertEquals(4, listener.getMaxQueueDepth(CosePipeline.Stage.CRYPTO.getName()));
+    } finally {
+      Metrics.setListener(null);
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailuresDoNotStopThePipeline() throws Exception {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    MacKey otherKey = MacKey.builder().withSecretKey(new byte[16]).build();
+    Ec2SigningKey signingKey = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    try (CosePipeline pipeline = CosePipeline.builder()
+        .withKeyResolver(resolver(null, macKey, null))
+        .withParallelism(2)
+        .build()) {
+      pipeline.submit(new byte[] {(byte) 0x84, 0x40});
+      pipeline.submit(mac(otherKey, TestUtilities.CONTENT_BYTES));
+      pipeline.submit(CoseUtils.generateCoseSign1(signingKey,
+          algorithmHeaders(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256), new Map(),
+          TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256)
+          .serialize());
+      pipeline.submit(mac(macKey, TestUtilities.CONTENT_BYTES));
+
+      CosePipeline.Result result = pipeline.take();
+      Assert.assertTrue(result.getFailure() instanceof CborException);
+      Assert.assertNull(result.getMessage());
+      result = pipeline.take();
+      Assert.assertTrue(result.getFailure() instanceof CoseException);
+      Assert.assertTrue(result.getMessage() instanceof Mac0Message);
+      result = pipeline.take();
+      Assert.assertTrue(result.getFailure() instanceof CoseException);
+      result = pipeline.take();
+      Assert.assertTrue(result.isSuccess());
+      Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, result.getPayload());
+    }
+  }
+
+  @Test
+  public void testErrorCompletesTheMessage() throws Exception {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    AssertionError error = new AssertionError("resolver failed");
+    try (CosePipeline pipeline = CosePipeline.builder()
+        .withKeyResolver(message -> {
+          throw error;
+        })
+        .build()) {
+      pipeline.submit(mac(macKey, TestUtilities.CONTENT_BYTES));
+      CosePipeline.Result result = pipeline.poll(10, TimeUnit.SECONDS);
+      Assert.assertNotNull(result);
+      Assert.assertTrue(result.getFailure() instanceof CoseException);
+      Assert.assertSame(error, result.getFailure().getCause());
+    }
+  }
+
+  @Test
+  public void testClosedPipelineFailure() throws Exception {
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY_BYTES).build();
+    CosePipeline pipeline = CosePipeline.builder().withKey(macKey).build();
+    pipeline.close();
+    assertThrows(CoseException.class,
+        () -> pipeline.offer(mac(macKey, TestUtilities.CONTENT_BYTES)));
+    assertThrows(CoseException.class,
+        () -> pipeline.submit(mac(macKey, TestUtilities.CONTENT_BYTES)));
+  }
+
+  @Test
+  public void testBuilderFailureScenarios() {
+    assertThrows(CoseException.class, () -> CosePipeline.builder().build());
+    assertThrows(CoseException.class, () -> CosePipeline.builder()
+        .withKeyResolver(message -> null)
+        .withCapacity(3)
+        .build());
+    assertThrows(CoseException.class, () -> CosePipeline.builder()
+        .withKeyResolver(message -> null)
+        .withParallelism(0)
+        .build());
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.stream;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnsignedInteger;
+import com.google.cose.CoseMessage;
+import com.google.cose.Mac0Message;
+import com.google.cose.MacKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.Sign1Message;
+import com.google.cose.TestUtilities;
+import com.google.cose.exceptions.CoseException;
+import com.google.cose.utils.Algorithm;
+import com.google.cose.utils.CoseUtils;
+import com.google.cose.utils.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CoseSequenceReader} and {@link CoseSequenceWriter}.
+ */
+@RunWith(JUnit4.class)
+public class CoseSequenceReaderTest {
+  private static final byte[] SECRET_KEY =
+      TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+
+  @Test
+  public void testRoundTrip() throws IOException, CborException, CoseException {
+    OkpSigningKey key = OkpSigningKey.generateKey();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (CoseSequenceWriter writer = CoseSequenceWriter.builder().withOutputStream(out).build()) {
+      for (int i = 0; i < 100; i++) {
+        writer.write(sign(key, i));
+      }
+      Assert.assertEquals(100, writer.getMessagesWritten());
+    }
+
+    try (CoseSequenceReader reader = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(out.toByteArray()))
+        .withMaxMessageSize(1024)
+        .build()) {
+      CoseMessage message;
+      int count = 0;
+      while ((message = reader.read()) != null) {
+        Sign1Message sign1 = (Sign1Message) message;
+        Assert.assertEquals(count, sign1.getMessage()[0]);
+        CoseUtils.verifyCoseSign1Message(key, sign1, null, null, null);
+        count++;
+      }
+      Assert.assertEquals(100, count);
+      Assert.assertEquals(100, reader.getMessagesRead());
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testMixedTaggedMessagesFromFragmentedChannel()
+      throws IOException, CborException, CoseException {
+    OkpSigningKey signingKey = OkpSigningKey.generateKey();
+    MacKey macKey = MacKey.builder().withSecretKey(SECRET_KEY).build();
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256.getCoseAlgorithmId());
+    Mac0Message mac0 = CoseUtils.generateCoseMac0(macKey, protectedHeaders, new Map(),
+        TestUtilities.CONTENT_BYTES, null, Algorithm.MAC_ALGORITHM_HMAC_SHA_256_256);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (CoseSequenceWriter writer = CoseSequenceWriter.builder()
+        .withOutputStream(out)
+        .withTagging(true)
+        .build()) {
+      writer.write(sign(signingKey, 1));
+      writer.write(mac0);
+      writer.write(sign(signingKey, 2));
+    }
+    byte[] sequence = out.toByteArray();
+    Assert.assertEquals((byte) 0xD2, sequence[0]);
+
+    try (CoseSequenceReader reader = CoseSequenceReader.builder()
+        .withChannel(new TrickleChannel(sequence))
+        .build()) {
+      Assert.assertTrue(reader.read() instanceof Sign1Message);
+      Mac0Message decoded = (Mac0Message) reader.read();
+      Assert.assertTrue(CoseUtils.verifyCoseMac0(macKey, decoded, null, null));
+      Assert.assertTrue(reader.read() instanceof Sign1Message);
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testReadEncodedKeepsOriginalBytes()
+      throws IOException, CborException, CoseException {
+    byte[] first = sign(OkpSigningKey.generateKey(), 1).serialize();
+    byte[] second = TestUtilities.hexStringToByteArray("83010203");
+    byte[] sequence = new byte[first.length + second.length];
+    System.arraycopy(first, 0, sequence, 0, first.length);
+    System.arraycopy(second, 0, sequence, first.length, second.length);
+
+    try (CoseSequenceReader reader = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(sequence))
+        .build()) {
+      Assert.assertArrayEquals(first, reader.readEncoded());
+      Assert.assertArrayEquals(second, reader.readEncoded());
+      Assert.assertNull(reader.readEncoded());
+    }
+  }
+
+  @Test
+  public void testEmptySequence() throws IOException, CborException, CoseException {
+    try (CoseSequenceReader reader = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(new byte[0]))
+        .build()) {
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testFailureScenarios() throws CborException, CoseException {
+    byte[] message = sign(OkpSigningKey.generateKey(), 1).serialize();
+
+    CoseSequenceReader truncated = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(Arrays.copyOf(message, message.length - 1)))
+        .build();
+    assertThrows(CborException.class, truncated::read);
+
+    CoseSequenceReader oversized = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(message))
+        .withMaxMessageSize(message.length - 1)
+        .build();
+    assertThrows(CborException.class, oversized::read);
+
+    CoseSequenceReader notCose = CoseSequenceReader.builder()
+        .withInputStream(new ByteArrayInputStream(TestUtilities.hexStringToByteArray("A10104")))
+        .build();
+    assertThrows(CborException.class, notCose::read);
+
+    assertThrows(CoseException.class, () -> CoseSequenceReader.builder().build());
+    assertThrows(CoseException.class, () -> CoseSequenceWriter.builder().build());
+  }
+
+  private static Sign1Message sign(OkpSigningKey key, int index)
+      throws CborException, CoseException {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.SIGNING_ALGORITHM_EDDSA.getCoseAlgorithmId());
+    return CoseUtils.generateCoseSign1(key, protectedHeaders, new Map(), new byte[] {(byte) index},
+        null, null, Algorithm.SIGNING_ALGORITHM_EDDSA);
+  }
+
+  /** Channel returning at most three bytes per read. */
+  private static final class TrickleChannel implements ReadableByteChannel {
+    private final ByteBuffer data;
+
+    TrickleChannel(byte[] data) {
+      this.data = ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!data.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(3, Math.min(dst.remaining(), data.remaining()));
+      for (int i = 0; i < count; i++) {
+        dst.put(data.get());
+      }
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
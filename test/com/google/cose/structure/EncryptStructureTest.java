@@ -86,4 +86,17 @@ public class EncryptStructureTest {
         TestUtilities.bytesToHexString(structure.serialize())
     );
   }
+
+  @Test
+  public void testEncodedHeadersMatchMapHeaders() throws CborException {
+    Map headers = new Map();
+    headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    byte[] externalAad = TestUtilities.hexStringToByteArray("0011");
+    EncryptStructure fromMap = new EncryptStructure(EncryptionContext.ENCRYPT, headers,
+        externalAad);
+    EncryptStructure fromBytes = new EncryptStructure(EncryptionContext.ENCRYPT,
+        CborUtils.encode(headers), externalAad);
+    Assert.assertArrayEquals(fromMap.serialize(), fromBytes.serialize());
+  }
 }
@@ -91,4 +91,18 @@ public class SignStructureTest {
     Assert.assertEquals(externalAad, CborUtils.getBytes(cborArrayItems.get(2)));
     Assert.assertEquals(payload, CborUtils.getBytes(cborArrayItems.get(3)));
   }
+
+  @Test
+  public void testCounterSignatureV2Encoding() throws CborException {
+    byte[] signature = new byte[] {1, 2};
+    SignStructure structure = new SignStructure(SignatureContext.COUNTER_SIGNATURE_V2,
+        new byte[0], TestUtilities.hexStringToByteArray("A10126"), null,
+        TestUtilities.CONTENT_BYTES, new byte[][] {signature});
+    List<DataItem> cborArrayItems = CborUtils.getDataItems(structure.encode());
+    Assert.assertEquals(6, cborArrayItems.size());
+    Assert.assertEquals("CounterSignatureV2", CborUtils.getString(cborArrayItems.get(0)));
+    List<DataItem> otherFields = CborUtils.getDataItems(cborArrayItems.get(5));
+    Assert.assertEquals(1, otherFields.size());
+    Assert.assertArrayEquals(signature, CborUtils.getBytes(otherFields.get(0)));
+  }
 }
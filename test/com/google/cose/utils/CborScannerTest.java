@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cose.utils;
+
+import static org.junit.Assert.assertThrows;
+
+import co.nstant.in.cbor.CborException;
+import com.google.cose.TestUtilities;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test class for testing {@link CborScanner}.
+ */
+@RunWith(JUnit4.class)
+public class CborScannerTest {
+  private static final String[] WELL_FORMED_ITEMS = {
+      "00",
+      "1903E8",
+      "3BFFFFFFFFFFFFFFFF",
+      "40",
+      "4401020304",
+      "6161",
+      "80",
+      "83010203",
+      "A26161016162820203",
+      "C11A514B67B0",
+      "D28440A040F6",
+      "F6",
+      "F93C00",
+      "FB3FF199999999999A",
+      "5F42010243030405FF",
+      "7F657374726561646D696E67FF",
+      "9F018202039F0405FFFF",
+      "BF6346756EF563416D7421FF",
+      "8443A10126A05814546869732069732074686520636F6E74656E742E40",
+  };
+
+  @Test
+  public void testItemBoundaries() throws CborException {
+    for (String item : WELL_FORMED_ITEMS) {
+      byte[] bytes = TestUtilities.hexStringToByteArray(item + "FF00");
+      CborScanner scanner = new CborScanner(1024);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      Assert.assertTrue(item, scanner.scan(buffer));
+      Assert.assertEquals(item, item.length() / 2, buffer.position());
+      Assert.assertEquals(item, item.length() / 2, scanner.getItemLength());
+    }
+  }
+
+  @Test
+  public void testFragmentedInput() throws CborException {
+    for (String item : WELL_FORMED_ITEMS) {
+      byte[] bytes = TestUtilities.hexStringToByteArray(item);
+      CborScanner scanner = new CborScanner(1024);
+      for (int i = 0; i < bytes.length; i++) {
+        Assert.assertEquals(item, i == bytes.length - 1,
+            scanner.scan(ByteBuffer.wrap(bytes, i, 1)));
+      }
+    }
+  }
+
+  @Test
+  public void testSequence() throws CborException {
+    ByteBuffer buffer = ByteBuffer.wrap(TestUtilities.hexStringToByteArray("0183010203F6"));
+    CborScanner scanner = new CborScanner(1024);
+    int items = 0;
+    while (buffer.hasRemaining()) {
+      Assert.assertTrue(scanner.scan(buffer));
+      scanner.reset();
+      items++;
+    }
+    Assert.assertEquals(3, items);
+    Assert.assertTrue(scanner.isAtItemStart());
+  }
+
+  @Test
+  public void testStringContentIsSkipped() throws CborException {
+    // Only the head of the byte string is present, its content is skipped as it arrives.
+    CborScanner scanner = new CborScanner(1 << 20);
+    Assert.assertFalse(scanner.scan(ByteBuffer.wrap(TestUtilities.hexStringToByteArray(
+        "5A00010000"))));
+    Assert.assertFalse(scanner.scan(ByteBuffer.allocate(0xFFFF)));
+    Assert.assertTrue(scanner.scan(ByteBuffer.allocate(2)));
+    Assert.assertEquals(5 + 0x10000, scanner.getItemLength());
+  }
+
+  @Test
+  public void testMalformedInputFailure() {
+    String[] malformed = {
+        "1C",
+        "FF",
+        "5F01FF",
+        "5F5F4001FFFF",
+        "1F",
+        "DF00",
+    };
+    for (String item : malformed) {
+      assertThrows(item, CborException.class, () -> new CborScanner(1024).scan(
+          ByteBuffer.wrap(TestUtilities.hexStringToByteArray(item))));
+    }
+  }
+
+  @Test
+  public void testLimitFailures() {
+    // Declared string length above the maximum size.
+    assertThrows(CborException.class, () -> new CborScanner(16).scan(
+        ByteBuffer.wrap(TestUtilities.hexStringToByteArray("5820"))));
+    // Array count above the maximum size.
+    assertThrows(CborException.class, () -> new CborScanner(16).scan(
+        ByteBuffer.wrap(TestUtilities.hexStringToByteArray("9B7FFFFFFFFFFFFFFF"))));
+    // Nesting deeper than the maximum depth.
+    assertThrows(CborException.class, () -> new CborScanner(16, 2).scan(
+        ByteBuffer.wrap(TestUtilities.hexStringToByteArray("81818100"))));
+    assertThrows(IllegalArgumentException.class, () -> new CborScanner(0));
+  }
+}
@@ -1,10 +1,24 @@
 package com.google.cose.utils;
 
+import com.google.cose.Ec2KeyAgreementKey;
 import com.google.cose.Ec2SigningKey;
+import com.google.cose.EncryptMessage;
+import com.google.cose.EncryptionKey;
+import com.google.cose.KeyWrapKey;
+import com.google.cose.OkpKeyAgreementKey;
+import com.google.cose.OkpSigningKey;
+import com.google.cose.Recipient;
+import com.google.cose.RecipientSpec;
 import com.google.cose.Sign1Message;
+import com.google.cose.TestUtilities;
 import com.google.cose.exceptions.CoseException;
+import com.google.cose.structure.EncryptStructure;
+import com.google.cose.structure.EncryptStructure.EncryptionContext;
+import com.google.cose.structure.SignStructure;
+import com.google.cose.structure.SignStructure.SignatureContext;
 
 import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.UnsignedInteger;
 
@@ -18,6 +32,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.ECPrivateKey;
 import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -73,4 +92,182 @@ public class CoseUtilsTest {
     // Signature verification should succeed when no algorithm is passed
     CoseUtils.verifyCoseSign1Message(key, coseSign1, null, null, null);
   }
-}
\ No newline at end of file
+
+  private static final byte[] IV = TestUtilities.hexStringToByteArray("02D1F7E6F26C43D4868D87CE");
+
+  private static Map encryptProtectedHeaders() {
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ENCRYPTION_AES_128_GCM.getCoseAlgorithmId());
+    return protectedHeaders;
+  }
+
+  private static Map encryptUnprotectedHeaders() {
+    Map unprotectedHeaders = new Map();
+    unprotectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_BASE_IV),
+        new ByteString(IV));
+    return unprotectedHeaders;
+  }
+
+  private static byte[] decrypt(EncryptMessage message, byte[] contentKey)
+      throws CborException, CoseException {
+    return EncryptionKey.builder().withSecretKey(contentKey).build().decrypt(
+        Algorithm.ENCRYPTION_AES_128_GCM, message.getCiphertext(), IV,
+        new EncryptStructure(EncryptionContext.ENCRYPT, message.getProtectedHeaders(), null)
+            .serialize());
+  }
+
+  @Test
+  public void testEncryptForManyRecipients() throws CborException, CoseException {
+    List<KeyWrapKey> wrapKeys = new ArrayList<>();
+    List<RecipientSpec> specs = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      byte[] secret = new byte[16];
+      Arrays.fill(secret, (byte) i);
+      KeyWrapKey key = KeyWrapKey.builder().withSecretKey(secret).build();
+      wrapKeys.add(key);
+      specs.add(RecipientSpec.builder()
+          .withKey(key)
+          .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+          .build());
+    }
+    Ec2KeyAgreementKey ec2Key = Ec2KeyAgreementKey.generateKey(Headers.CURVE_EC2_P256);
+    OkpKeyAgreementKey okpKey = OkpKeyAgreementKey.generateKey();
+    Map agreementHeaders = new Map();
+    agreementHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.ECDH_ES_AES_KEY_WRAP_128.getCoseAlgorithmId());
+    specs.add(RecipientSpec.builder()
+        .withKey(ec2Key.getPublicKeyOnly())
+        .withAlgorithm(Algorithm.ECDH_ES_AES_KEY_WRAP_128)
+        .withProtectedHeaders(agreementHeaders)
+        .build());
+    specs.add(RecipientSpec.builder()
+        .withKey(okpKey.getPublicKeyOnly())
+        .withAlgorithm(Algorithm.ECDH_ES_AES_KEY_WRAP_128)
+        .withProtectedHeaders(agreementHeaders)
+        .build());
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      EncryptMessage message = EncryptMessage.deserialize(CoseUtils.generateCoseEncrypt(
+          encryptProtectedHeaders(), encryptUnprotectedHeaders(), TestUtilities.CONTENT_BYTES,
+          null, IV, Algorithm.ENCRYPTION_AES_128_GCM, specs, executor).serialize());
+
+      List<Recipient> recipients = message.getRecipients();
+      Assert.assertEquals(10, recipients.size());
+      for (int i = 0; i < wrapKeys.size(); i++) {
+        byte[] contentKey = recipients.get(i).unwrapKey(wrapKeys.get(i),
+            Algorithm.AES_KEY_WRAP_128);
+        Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, decrypt(message, contentKey));
+      }
+      Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+          decrypt(message, recipients.get(8).unwrapKey(ec2Key, null)));
+      Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES,
+          decrypt(message, recipients.get(9).unwrapKey(okpKey, null)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testEncryptWithDirectKey() throws CborException, CoseException {
+    byte[] secret = TestUtilities.hexStringToByteArray("849B57219DAE48DE646D07DBB533566E");
+    EncryptionKey key = EncryptionKey.builder().withSecretKey(secret).build();
+    RecipientSpec spec = RecipientSpec.builder()
+        .withKey(key)
+        .withAlgorithm(Algorithm.DIRECT_CEK_USAGE)
+        .build();
+    EncryptMessage message = CoseUtils.generateCoseEncrypt(encryptProtectedHeaders(),
+        encryptUnprotectedHeaders(), TestUtilities.CONTENT_BYTES, null, IV,
+        Algorithm.ENCRYPTION_AES_128_GCM, Arrays.asList(spec), null);
+    Assert.assertEquals(0, message.getRecipients().get(0).getCiphertext().length);
+    Assert.assertArrayEquals(TestUtilities.CONTENT_BYTES, decrypt(message, secret));
+
+    KeyWrapKey wrapKey = KeyWrapKey.builder().withSecretKey(secret).build();
+    RecipientSpec wrapSpec = RecipientSpec.builder()
+        .withKey(wrapKey)
+        .withAlgorithm(Algorithm.AES_KEY_WRAP_128)
+        .build();
+    assertThrows(CoseException.class, () -> CoseUtils.generateCoseEncrypt(
+        encryptProtectedHeaders(), encryptUnprotectedHeaders(), TestUtilities.CONTENT_BYTES, null,
+        IV, Algorithm.ENCRYPTION_AES_128_GCM, Arrays.asList(wrapSpec, spec), null));
+    assertThrows(CoseException.class, () -> RecipientSpec.builder()
+        .withKey(wrapKey)
+        .withAlgorithm(Algorithm.DIRECT_CEK_USAGE)
+        .build());
+  }
+
+  @Test
+  public void testDigestSignAndVerify() throws CborException, CoseException {
+    byte[] externalAad = new byte[] {1, 2};
+    for (Algorithm algorithm : new Algorithm[] {Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256,
+        Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_384, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512}) {
+      Ec2SigningKey key = Ec2SigningKey.generateKey(algorithm);
+      Map headers = new Map();
+      headers.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+          algorithm.getCoseAlgorithmId());
+      byte[] encodedHeaders = CoseUtils.serializeProtectedHeaders(headers);
+      byte[] digest = CoseUtils.digestSign1Structure(
+          encodedHeaders, externalAad, TestUtilities.CONTENT_BYTES, algorithm);
+      byte[] toBeSigned = new SignStructure(SignatureContext.SIGNATURE1, encodedHeaders, null,
+          externalAad, TestUtilities.CONTENT_BYTES).serialize();
+      Assert.assertArrayEquals(
+          CoseUtils.getMessageDigest(CoseUtils.getSignatureHashAlgorithm(algorithm))
+              .digest(toBeSigned),
+          digest);
+
+      // A signature over the digest verifies as a regular signature and vice versa.
+      byte[] signature = CoseUtils.computeSignatureFromDigest(key, digest, algorithm);
+      CoseUtils.verifySignature(key, toBeSigned, signature, algorithm);
+      CoseUtils.verifySignatureFromDigest(key, digest,
+          CoseUtils.computeSignature(key, toBeSigned, algorithm), algorithm);
+
+      Sign1Message message = Sign1Message.builder()
+          .withProtectedHeaders(headers)
+          .withUnprotectedHeaders(new Map())
+          .withMessage(TestUtilities.CONTENT_BYTES)
+          .withSignature(signature)
+          .build();
+      CoseUtils.verifyCoseSign1MessageDigest(key, message, digest, null);
+      CoseUtils.verifyCoseSign1Message(key, message, null, externalAad, null);
+
+      byte[] modified = digest.clone();
+      modified[0] ^= 1;
+      assertThrows(CoseException.class,
+          () -> CoseUtils.verifyCoseSign1MessageDigest(key, message, modified, null));
+    }
+  }
+
+  @Test
+  public void testDigestSignFailureScenarios() throws CborException, CoseException {
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256);
+    assertThrows(CoseException.class, () -> CoseUtils.computeSignatureFromDigest(
+        key, new byte[48], Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_256));
+    assertThrows(CoseException.class, () -> CoseUtils.computeSignatureFromDigest(
+        OkpSigningKey.generateKey(), new byte[32], Algorithm.SIGNING_ALGORITHM_EDDSA));
+    assertThrows(CoseException.class,
+        () -> CoseUtils.getSignatureHashAlgorithm(Algorithm.SIGNING_ALGORITHM_EDDSA));
+  }
+
+  @Test
+  public void testEs512SignatureUsesFullCoordinateSize() throws CborException, CoseException {
+    // P-521 values take up to 66 bytes, the top byte holding the 521st bit.
+    byte[] coseSignature = new byte[132];
+    Arrays.fill(coseSignature, (byte) 0xA5);
+    coseSignature[0] = 0x01;
+    coseSignature[66] = 0x01;
+    Assert.assertArrayEquals(coseSignature, CoseUtils.signatureDerToCose(
+        CoseUtils.signatureCoseToDer(coseSignature), Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512));
+
+    Ec2SigningKey key = Ec2SigningKey.generateKey(Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512);
+    Map protectedHeaders = new Map();
+    protectedHeaders.put(new UnsignedInteger(Headers.MESSAGE_HEADER_ALGORITHM),
+        Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512.getCoseAlgorithmId());
+    for (int i = 0; i < 16; i++) {
+      Sign1Message message = CoseUtils.generateCoseSign1(key, protectedHeaders, new Map(),
+          TestUtilities.CONTENT_BYTES, null, null, Algorithm.SIGNING_ALGORITHM_ECDSA_SHA_512);
+      Assert.assertEquals(132, message.getSignature().length);
+      CoseUtils.verifyCoseSign1Message(key, message, null, null, null);
+    }
+  }
+}